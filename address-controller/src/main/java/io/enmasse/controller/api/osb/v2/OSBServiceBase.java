@@ -51,9 +51,7 @@ public abstract class OSBServiceBase {
     }
 
     protected Optional<Address> findAddress(AddressSpace maasAddressSpace, String addressUuid) {
-        return addressSpaceApi.withAddressSpace(maasAddressSpace).listAddresses().stream()
-                .filter(dest -> addressUuid.equals(dest.getUuid()))
-                .findAny();
+        return addressSpaceApi.withAddressSpace(maasAddressSpace).getAddressWithUuid(addressUuid);
     }
 
     protected void provisionAddress(AddressSpace addressSpace, Address address) {
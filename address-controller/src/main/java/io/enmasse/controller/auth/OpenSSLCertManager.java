@@ -22,8 +22,10 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import io.enmasse.config.AnnotationKeys;
+import io.fabric8.kubernetes.api.model.HasMetadata;
 import io.fabric8.kubernetes.api.model.ObjectReference;
 import io.fabric8.kubernetes.api.model.ObjectReferenceBuilder;
 import io.fabric8.kubernetes.api.model.Secret;
@@ -140,9 +142,11 @@ public class OpenSSLCertManager implements CertManager {
 
     @Override
     public Collection<CertComponent> listComponents(String namespace) {
-        return client.extensions().deployments().inNamespace(namespace).list().getItems().stream()
-                .filter(deployment -> deployment.getMetadata().getAnnotations() != null && deployment.getMetadata().getAnnotations().containsKey(AnnotationKeys.CERT_SECRET_NAME))
-                .map(deployment -> new CertComponent(deployment.getMetadata().getName(), namespace, deployment.getMetadata().getAnnotations().get(AnnotationKeys.CERT_SECRET_NAME)))
+        // the components are Deployments, or StatefulSets when the pods need a stable identity (like the MQTT LWT replicas)
+        return Stream.concat(client.extensions().deployments().inNamespace(namespace).list().getItems().stream().map(HasMetadata::getMetadata),
+                        client.apps().statefulSets().inNamespace(namespace).list().getItems().stream().map(HasMetadata::getMetadata))
+                .filter(metadata -> metadata.getAnnotations() != null && metadata.getAnnotations().containsKey(AnnotationKeys.CERT_SECRET_NAME))
+                .map(metadata -> new CertComponent(metadata.getName(), namespace, metadata.getAnnotations().get(AnnotationKeys.CERT_SECRET_NAME)))
                 .collect(Collectors.toList());
     }
 
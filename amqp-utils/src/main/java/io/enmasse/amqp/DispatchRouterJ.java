@@ -19,16 +19,20 @@ import io.vertx.core.*;
 import io.vertx.core.net.PemKeyCertOptions;
 import io.vertx.core.net.PemTrustOptions;
 import io.vertx.proton.*;
+import io.vertx.proton.impl.ProtonReceiverImpl;
+import io.vertx.proton.impl.ProtonSenderImpl;
 import org.apache.qpid.proton.amqp.Symbol;
 import org.apache.qpid.proton.amqp.messaging.Rejected;
 import org.apache.qpid.proton.amqp.transport.ErrorCondition;
 import org.apache.qpid.proton.amqp.transport.Source;
 import org.apache.qpid.proton.amqp.transport.Target;
+import org.apache.qpid.proton.engine.EndpointState;
 import org.apache.qpid.proton.message.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 /**
@@ -48,6 +52,8 @@ public class DispatchRouterJ extends AbstractVerticle {
     private String certDir;
 
     private RoutingTable routingTable = new RoutingTable();
+    /** Links attached by the clients, not by the route containers */
+    private final Set<ProtonLink<?>> clientLinks = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
     public DispatchRouterJ(String certDir) {
         this.certDir = certDir;
@@ -95,8 +101,18 @@ public class DispatchRouterJ extends AbstractVerticle {
         }
         server.connectHandler(connection -> {
             connection.sessionOpenHandler(ProtonSession::open);
-            connection.receiverOpenHandler(this::receiverOpen);
-            connection.senderOpenHandler(this::senderOpen);
+            connection.receiverOpenHandler(receiver -> {
+                if (!isRouteContainer) {
+                    clientLinks.add(receiver);
+                }
+                receiverOpen(receiver);
+            });
+            connection.senderOpenHandler(sender -> {
+                if (!isRouteContainer) {
+                    clientLinks.add(sender);
+                }
+                senderOpen(sender);
+            });
             connection.openHandler(ar -> connectionOpen(ar, isRouteContainer));
             connection.disconnectHandler(conn -> {
                 log.info("Connection disconnected!");
@@ -140,6 +156,21 @@ public class DispatchRouterJ extends AbstractVerticle {
         routingTable.addReceiver(target.getAddress(), protonReceiver, vertx.getOrCreateContext());
     }
 
+    /**
+     * Number of links currently attached by the clients (not counting the route containers)
+     */
+    public int getClientLinkCount() {
+        clientLinks.removeIf(DispatchRouterJ::isRemotelyClosed);
+        return clientLinks.size();
+    }
+
+    private static boolean isRemotelyClosed(ProtonLink<?> link) {
+        EndpointState state = (link instanceof ProtonSender) ?
+                ((ProtonSenderImpl) link).getRemoteState() :
+                ((ProtonReceiverImpl) link).getRemoteState();
+        return state == EndpointState.CLOSED;
+    }
+
     public int getNormalPort() {
         return normal.actualPort();
     }
@@ -221,11 +252,20 @@ public class DispatchRouterJ extends AbstractVerticle {
         }
 
         public void send(Message message, ProtonDelivery delivery, Receiver receiver) {
+            // pre-settled deliveries are forwarded pre-settled, without any disposition back
+            boolean preSettled = delivery.remotelySettled();
+            if (preSettled) {
+                delivery.settle();
+            }
             context.runOnContext(c -> {
                 if (protonSender.isOpen()) {
-                    protonSender.send(message, forwardedDelivery -> {
-                        receiver.disposition(delivery, forwardedDelivery);
-                    });
+                    if (preSettled) {
+                        protonSender.send(message).settle();
+                    } else {
+                        protonSender.send(message, forwardedDelivery -> {
+                            receiver.disposition(delivery, forwardedDelivery);
+                        });
+                    }
                 }
             });
         }
@@ -303,6 +343,8 @@ public class DispatchRouterJ extends AbstractVerticle {
                         }
                     });
 
+                    // dispositions are propagated end to end as on a real link route
+                    protonReceiver.setAutoAccept(false);
                     protonReceiver.handler(((delivery, message) -> {
                         sender.send(message, delivery, receiver);
                     }));
@@ -322,6 +364,8 @@ public class DispatchRouterJ extends AbstractVerticle {
                     protonSender.openHandler(h -> {
                         if (h.succeeded()) {
                             receiver.onContext(protonReceiver -> {
+                                // dispositions are propagated end to end as on a real link route
+                                protonReceiver.setAutoAccept(false);
                                 protonReceiver.handler(((delivery, message) -> {
                                     sender.send(message, delivery, receiver);
                                 }));
@@ -397,6 +441,8 @@ public class DispatchRouterJ extends AbstractVerticle {
                 Receiver receiver = new Receiver(protonReceiver, context);
                 receiverList.add(receiver);
 
+                // dispositions are propagated end to end, the router doesn't accept on behalf of the consumer
+                protonReceiver.setAutoAccept(false);
                 protonReceiver.handler(((protonDelivery, message) -> {
                     handleMessage(receiver, address, protonDelivery, message);
                 }));
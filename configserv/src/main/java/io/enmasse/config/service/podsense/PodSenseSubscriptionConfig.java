@@ -4,14 +4,15 @@ import io.enmasse.config.service.kubernetes.MessageEncoder;
 import io.enmasse.config.service.kubernetes.SubscriptionConfig;
 import io.enmasse.config.service.model.ObserverKey;
 import io.enmasse.k8s.api.Resource;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.PodList;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.Watch;
 import io.fabric8.kubernetes.client.Watcher;
 
 import java.util.Map;
-import java.util.Set;
+import java.util.Optional;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 /**
  * PodSense supports subscribing to a set of pods matching a label set. The response contains a list of running Pods with their IPs and ports.
@@ -27,16 +28,23 @@ public class PodSenseSubscriptionConfig implements SubscriptionConfig<Pod> {
     public Resource<Pod> getResource(ObserverKey observerKey, KubernetesClient client) {
         return new Resource<Pod>() {
             @Override
-            public Watch watchResources(Watcher watcher) {
-                return client.pods().inNamespace(client.getNamespace()).withLabels(observerKey.getLabelFilter()).watch(watcher);
+            public Watch watchResources(Watcher watcher, String resourceVersion) {
+                return client.pods().inNamespace(client.getNamespace()).withLabels(observerKey.getLabelFilter()).watch(resourceVersion, watcher);
             }
 
             @Override
-            public Set<Pod> listResources() {
-                return client.pods().inNamespace(client.getNamespace()).withLabels(observerKey.getLabelFilter()).list().getItems().stream()
-                        .filter(pod -> filterPod(observerKey, pod))
-                        .map(Pod::new)
-                        .collect(Collectors.toSet());
+            public PodList listObjects() {
+                return client.pods().inNamespace(client.getNamespace()).withLabels(observerKey.getLabelFilter()).list();
+            }
+
+            @Override
+            public Optional<Pod> getResource(HasMetadata object) {
+                io.fabric8.kubernetes.api.model.Pod pod = (io.fabric8.kubernetes.api.model.Pod) object;
+                if (filterPod(observerKey, pod)) {
+                    return Optional.of(new Pod(pod));
+                } else {
+                    return Optional.empty();
+                }
             }
         };
     }
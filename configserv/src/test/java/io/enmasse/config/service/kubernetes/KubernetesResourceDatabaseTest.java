@@ -33,8 +33,6 @@ import org.junit.Test;
 import org.mockito.MockitoAnnotations;
 
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -47,15 +45,13 @@ public class KubernetesResourceDatabaseTest {
     private Map<String, String> testLabels = Collections.singletonMap("l1", "v1");
     private Map<String, String> testAnnotations = Collections.singletonMap("a1", "v1");
     private TestSubscriptionConfig.TestWatch watch;
-    private BlockingQueue<Set<TestResource>> resourceQueue;
 
     @Before
     public void setup() {
         MockitoAnnotations.initMocks(this);
 
         this.watch = new TestSubscriptionConfig.TestWatch();
-        resourceQueue = new LinkedBlockingQueue<>();
-        database = new KubernetesResourceDatabase<>(null, new TestSubscriptionConfig(watch, resourceQueue));
+        database = new KubernetesResourceDatabase<>(null, new TestSubscriptionConfig(watch));
     }
 
     @After
@@ -68,7 +64,7 @@ public class KubernetesResourceDatabaseTest {
 
         TestSubscriber sub = new TestSubscriber();
         ObserverKey key = new ObserverKey(Collections.emptyMap(), Collections.emptyMap());
-        resourceQueue.put(Collections.singleton(new TestResource("k1", "v1")));
+        watch.put(new TestResource("k1", "v1"));
 
         database.subscribe(key, sub);
 
@@ -100,11 +96,11 @@ public class KubernetesResourceDatabaseTest {
 
         database.subscribe(key, sub);
 
-        resourceQueue.put(Collections.singleton(new TestResource("r1", "v1")));
+        watch.put(new TestResource("r1", "v1"));
 
         waitForMessage(sub, Arrays.asList("v1"));
 
-        resourceQueue.put(Collections.singleton(new TestResource("r1", "v2")));
+        watch.put(new TestResource("r1", "v2"));
 
         waitForMessage(sub, Arrays.asList("v2"));
     }
@@ -3,28 +3,30 @@ package io.enmasse.config.service.kubernetes;
 import io.enmasse.config.service.TestResource;
 import io.enmasse.config.service.model.ObserverKey;
 import io.enmasse.k8s.api.Resource;
+import io.fabric8.kubernetes.api.model.ConfigMap;
+import io.fabric8.kubernetes.api.model.ConfigMapBuilder;
+import io.fabric8.kubernetes.api.model.ConfigMapList;
+import io.fabric8.kubernetes.api.model.ConfigMapListBuilder;
+import io.fabric8.kubernetes.api.model.HasMetadata;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.Watch;
 import io.fabric8.kubernetes.client.Watcher;
-import org.apache.qpid.proton.amqp.messaging.AmqpSequence;
 import org.apache.qpid.proton.amqp.messaging.AmqpValue;
 import org.apache.qpid.proton.message.Message;
 
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class TestSubscriptionConfig implements SubscriptionConfig<TestResource> {
 
     private final TestWatch testWatch;
-    private final BlockingQueue<Set<TestResource>> stream;
 
-    public TestSubscriptionConfig(TestWatch testWatch, BlockingQueue<Set<TestResource>> stream) {
+    public TestSubscriptionConfig(TestWatch testWatch) {
         this.testWatch = testWatch;
-        this.stream = stream;
     }
 
     @Override
@@ -41,17 +43,19 @@ public class TestSubscriptionConfig implements SubscriptionConfig<TestResource>
     public Resource<TestResource> getResource(ObserverKey observerKey, KubernetesClient client) {
         return new Resource<TestResource>() {
             @Override
-            public Watch watchResources(Watcher watcher) {
+            public Watch watchResources(Watcher watcher, String resourceVersion) {
+                testWatch.watcher = watcher;
                 return testWatch;
             }
 
             @Override
-            public Set<TestResource> listResources() {
-                try {
-                    return stream.take();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
+            public ConfigMapList listObjects() {
+                return testWatch.list();
+            }
+
+            @Override
+            public Optional<TestResource> getResource(HasMetadata object) {
+                return Optional.of(new TestResource(object.getMetadata().getName(), ((ConfigMap) object).getData().get("value")));
             }
         };
     }
@@ -63,10 +67,43 @@ public class TestSubscriptionConfig implements SubscriptionConfig<TestResource>
 
     public static class TestWatch implements Watch {
         public volatile boolean isClosed = false;
+        private volatile Watcher watcher;
+        private final Map<String, ConfigMap> resources = new LinkedHashMap<>();
+        private int resourceVersion = 0;
 
         @Override
         public void close() {
             isClosed = true;
         }
+
+        @SuppressWarnings("unchecked")
+        public void put(TestResource resource) {
+            ConfigMap map;
+            Watcher.Action action;
+            synchronized (this) {
+                action = resources.containsKey(resource.getName()) ? Watcher.Action.MODIFIED : Watcher.Action.ADDED;
+                map = new ConfigMapBuilder()
+                        .editOrNewMetadata()
+                        .withName(resource.getName())
+                        .withUid(resource.getName())
+                        .withResourceVersion(String.valueOf(++resourceVersion))
+                        .endMetadata()
+                        .addToData("value", resource.getValue())
+                        .build();
+                resources.put(resource.getName(), map);
+            }
+            if (watcher != null) {
+                watcher.eventReceived(action, map);
+            }
+        }
+
+        private synchronized ConfigMapList list() {
+            return new ConfigMapListBuilder()
+                    .withNewMetadata()
+                    .withResourceVersion(String.valueOf(resourceVersion))
+                    .endMetadata()
+                    .withItems(new ArrayList<>(resources.values()))
+                    .build();
+        }
     }
 }
@@ -28,6 +28,12 @@ public interface AddressApi {
     Optional<Address> getAddressWithUuid(String uuid);
     Set<Address> listAddresses();
 
+    default Optional<Address> getAddressWithAddress(String address) {
+        return listAddresses().stream()
+                .filter(a -> address.equals(a.getAddress()))
+                .findAny();
+    }
+
     void createAddress(Address address);
     void replaceAddress(Address address);
     void deleteAddress(Address address);
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.enmasse.k8s.api;
+
+import io.enmasse.address.model.Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Decorator of an AddressApi serving reads from memory, indexed by name, uuid and address, and kept up
+ * to date by watching the addresses. Writes go to the decorated API and are visible to the reads of this
+ * instance right away, before the watch catches up.
+ *
+ * The watch runs from start() to stop(), the owner of the cache stops it when it goes idle. A stopped
+ * cache reads from the decorated API.
+ */
+public class CachingAddressApi implements AddressApi, Watcher<Address> {
+    private static final Logger log = LoggerFactory.getLogger(CachingAddressApi.class);
+    private static final long DEFAULT_WRITE_TIMEOUT = 30_000;
+
+    private final AddressApi delegate;
+    private final long writeTimeout;
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    // Guarded by this
+    private Index index;
+    private final Map<String, PendingWrite> pendingWrites = new LinkedHashMap<>();
+    private Watch watch;
+    private boolean stopped;
+
+    public CachingAddressApi(AddressApi delegate) {
+        this(delegate, DEFAULT_WRITE_TIMEOUT);
+    }
+
+    CachingAddressApi(AddressApi delegate, long writeTimeout) {
+        this.delegate = delegate;
+        this.writeTimeout = writeTimeout;
+    }
+
+    public synchronized void start() {
+        try {
+            watch = delegate.watchAddresses(this);
+        } catch (Exception e) {
+            log.warn("Error watching addresses, reading them without cache", e);
+        }
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        index = null;
+        pendingWrites.clear();
+        try {
+            if (watch != null) {
+                watch.close();
+                watch = null;
+            }
+        } catch (Exception e) {
+            log.warn("Error closing address watch", e);
+        }
+    }
+
+    /**
+     * Whether the cache hasn't been used for the given time
+     */
+    public boolean isIdle(long now, long idleTimeout) {
+        return now - lastAccess >= idleTimeout;
+    }
+
+    void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void resourcesUpdated(Set<Address> addresses) throws Exception {
+        if (stopped) {
+            // Update racing with stop()
+            return;
+        }
+        index = new Index(addresses);
+        long now = System.currentTimeMillis();
+        pendingWrites.values().removeIf(write -> write.isVisible(index) || now >= write.expires);
+    }
+
+    @Override
+    public Optional<Address> getAddressWithName(String name) {
+        touch();
+        synchronized (this) {
+            if (index != null) {
+                PendingWrite write = getPendingWrite(name);
+                if (write != null) {
+                    return Optional.ofNullable(write.address);
+                }
+                return Optional.ofNullable(index.byName.get(name));
+            }
+        }
+        return delegate.getAddressWithName(name);
+    }
+
+    @Override
+    public Optional<Address> getAddressWithUuid(String uuid) {
+        touch();
+        synchronized (this) {
+            if (index != null) {
+                return find(index.byUuid.get(uuid), address -> uuid.equals(address.getUuid()));
+            }
+        }
+        return delegate.getAddressWithUuid(uuid);
+    }
+
+    @Override
+    public Optional<Address> getAddressWithAddress(String address) {
+        touch();
+        synchronized (this) {
+            if (index != null) {
+                return find(index.byAddress.get(address), written -> address.equals(written.getAddress()));
+            }
+        }
+        return delegate.getAddressWithAddress(address);
+    }
+
+    @Override
+    public Set<Address> listAddresses() {
+        touch();
+        synchronized (this) {
+            if (index != null) {
+                if (pendingWrites.isEmpty()) {
+                    return new LinkedHashSet<>(index.byName.values());
+                }
+                Map<String, Address> addresses = new LinkedHashMap<>(index.byName);
+                for (String name : new ArrayList<>(pendingWrites.keySet())) {
+                    PendingWrite write = getPendingWrite(name);
+                    if (write == null) {
+                        continue;
+                    }
+                    if (write.address != null) {
+                        addresses.put(name, write.address);
+                    } else {
+                        addresses.remove(name);
+                    }
+                }
+                return new LinkedHashSet<>(addresses.values());
+            }
+        }
+        return delegate.listAddresses();
+    }
+
+    /*
+     * The written address is read back from the decorated API, one more GET per write: what is stored has
+     * the defaults resolved and a new version, and the reads have to return the same as when served by the
+     * watch. Writes are rare compared to reads.
+     */
+    @Override
+    public void createAddress(Address address) {
+        touch();
+        String previousVersion = getVersion(address.getName());
+        delegate.createAddress(address);
+        written(address.getName(), previousVersion, delegate.getAddressWithName(address.getName()).orElse(null));
+    }
+
+    @Override
+    public void replaceAddress(Address address) {
+        touch();
+        String previousVersion = getVersion(address.getName());
+        delegate.replaceAddress(address);
+        written(address.getName(), previousVersion, delegate.getAddressWithName(address.getName()).orElse(null));
+    }
+
+    @Override
+    public void deleteAddress(Address address) {
+        touch();
+        String previousVersion = getVersion(address.getName());
+        delegate.deleteAddress(address);
+        written(address.getName(), previousVersion, null);
+    }
+
+    @Override
+    public Watch watchAddresses(Watcher<Address> watcher) throws Exception {
+        return delegate.watchAddresses(watcher);
+    }
+
+    private String getVersion(String name) {
+        return getAddressWithName(name).map(Address::getVersion).orElse(null);
+    }
+
+    private synchronized void written(String name, String previousVersion, Address address) {
+        if (index != null) {
+            pendingWrites.remove(name);
+            pendingWrites.put(name, new PendingWrite(name, previousVersion, address, System.currentTimeMillis() + writeTimeout));
+        }
+    }
+
+    private PendingWrite getPendingWrite(String name) {
+        PendingWrite write = pendingWrites.get(name);
+        if (write != null && System.currentTimeMillis() >= write.expires) {
+            log.debug("Write of address {} not seen by the watch, expiring it", name);
+            pendingWrites.remove(name);
+            return null;
+        }
+        return write;
+    }
+
+    /**
+     * Find an address in the pending writes or in the index, where the pending writes hide what they replaced
+     */
+    private Optional<Address> find(Address indexed, Predicate<Address> matches) {
+        for (String name : new ArrayList<>(pendingWrites.keySet())) {
+            PendingWrite write = getPendingWrite(name);
+            if (write != null && write.address != null && matches.test(write.address)) {
+                return Optional.of(write.address);
+            }
+        }
+        if (indexed != null && getPendingWrite(indexed.getName()) == null) {
+            return Optional.of(indexed);
+        }
+        return Optional.empty();
+    }
+
+    private static class Index {
+        private final Map<String, Address> byName = new LinkedHashMap<>();
+        private final Map<String, Address> byUuid = new HashMap<>();
+        private final Map<String, Address> byAddress = new HashMap<>();
+
+        private Index(Set<Address> addresses) {
+            for (Address address : addresses) {
+                byName.put(address.getName(), address);
+                byUuid.put(address.getUuid(), address);
+                byAddress.put(address.getAddress(), address);
+            }
+        }
+    }
+
+    private static class PendingWrite {
+        private final String name;
+        private final String previousVersion;
+        private final Address address;
+        private final long expires;
+
+        private PendingWrite(String name, String previousVersion, Address address, long expires) {
+            this.name = name;
+            this.previousVersion = previousVersion;
+            this.address = address;
+            this.expires = expires;
+        }
+
+        /**
+         * The watch has seen the write, or a later one, when the address has moved on from the version
+         * it had before the write
+         */
+        private boolean isVisible(Index index) {
+            Address current = index.byName.get(name);
+            if (address == null) {
+                return current == null;
+            }
+            return current != null && !Objects.equals(current.getVersion(), previousVersion);
+        }
+    }
+}
@@ -24,6 +24,7 @@ import io.enmasse.address.model.v1.CodecV1;
 import io.fabric8.kubernetes.api.model.ConfigMap;
 import io.fabric8.kubernetes.api.model.ConfigMapBuilder;
 import io.fabric8.kubernetes.api.model.ConfigMapList;
+import io.fabric8.kubernetes.api.model.HasMetadata;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -163,14 +164,21 @@ public class ConfigMapAddressApi implements AddressApi, Resource<Address> {
     }
 
     @Override
-    public io.fabric8.kubernetes.client.Watch watchResources(io.fabric8.kubernetes.client.Watcher watcher) {
+    public io.fabric8.kubernetes.client.Watch watchResources(io.fabric8.kubernetes.client.Watcher watcher, String resourceVersion) {
         Map<String, String> labels = new LinkedHashMap<>();
         labels.put(LabelKeys.TYPE, "address-config");
-        return client.configMaps().inNamespace(namespace).withLabels(labels).watch(watcher);
+        return client.configMaps().inNamespace(namespace).withLabels(labels).watch(resourceVersion, watcher);
     }
 
     @Override
-    public Set<Address> listResources() {
-        return listAddresses();
+    public ConfigMapList listObjects() {
+        Map<String, String> labels = new LinkedHashMap<>();
+        labels.put(LabelKeys.TYPE, "address-config");
+        return client.configMaps().inNamespace(namespace).withLabels(labels).list();
+    }
+
+    @Override
+    public Optional<Address> getResource(HasMetadata object) {
+        return Optional.of(getAddressFromConfig((ConfigMap) object));
     }
 }
@@ -23,11 +23,13 @@ import io.enmasse.address.model.v1.CodecV1;
 import io.fabric8.kubernetes.api.model.ConfigMap;
 import io.fabric8.kubernetes.api.model.ConfigMapList;
 import io.fabric8.kubernetes.api.model.DoneableConfigMap;
+import io.fabric8.kubernetes.api.model.HasMetadata;
 import io.fabric8.openshift.client.OpenShiftClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Implementation of the AddressSpace API towards Kubernetes
@@ -35,6 +37,9 @@ import java.util.*;
 public class ConfigMapAddressSpaceApi implements AddressSpaceApi {
     protected final Logger log = LoggerFactory.getLogger(getClass().getName());
     private final OpenShiftClient client;
+    // Address APIs of the address spaces, by namespace, each one watching its addresses until idle or deleted
+    private final Map<String, CachingAddressApi> addressApis = new ConcurrentHashMap<>();
+    private static final long ADDRESS_API_IDLE_TIMEOUT = 600_000;
     // TODO: Parameterize
     private static final ObjectMapper mapper = CodecV1.getMapper();
 
@@ -91,6 +96,11 @@ public class ConfigMapAddressSpaceApi implements AddressSpaceApi {
     public void deleteAddressSpace(AddressSpace addressSpace) {
         String name = KubeUtil.sanitizeName("address-space-" + addressSpace.getName());
         client.configMaps().withName(name).delete();
+
+        CachingAddressApi addressApi = addressApis.remove(addressSpace.getNamespace());
+        if (addressApi != null) {
+            addressApi.stop();
+        }
     }
 
     @Override
@@ -118,13 +128,18 @@ public class ConfigMapAddressSpaceApi implements AddressSpaceApi {
         labels.put(LabelKeys.TYPE, "address-space");
         ResourceController<AddressSpace> controller = ResourceController.create(new Resource<AddressSpace>() {
             @Override
-            public io.fabric8.kubernetes.client.Watch watchResources(io.fabric8.kubernetes.client.Watcher w) {
-                return client.configMaps().withLabels(labels).watch(w);
+            public io.fabric8.kubernetes.client.Watch watchResources(io.fabric8.kubernetes.client.Watcher w, String resourceVersion) {
+                return client.configMaps().withLabels(labels).watch(resourceVersion, w);
+            }
+
+            @Override
+            public ConfigMapList listObjects() {
+                return client.configMaps().withLabels(labels).list();
             }
 
             @Override
-            public Set<AddressSpace> listResources() {
-                return listAddressSpaces();
+            public Optional<AddressSpace> getResource(HasMetadata object) {
+                return Optional.of(getAddressSpaceFromConfig((ConfigMap) object));
             }
         }, watcher);
 
@@ -134,6 +149,28 @@ public class ConfigMapAddressSpaceApi implements AddressSpaceApi {
 
     @Override
     public AddressApi withAddressSpace(AddressSpace addressSpace) {
-        return new ConfigMapAddressApi(client, new AddressResolver(addressSpace.getType()), addressSpace.getNamespace());
+        stopIdleAddressApis();
+        CachingAddressApi addressApi = addressApis.computeIfAbsent(addressSpace.getNamespace(), namespace -> {
+            CachingAddressApi api = new CachingAddressApi(new ConfigMapAddressApi(client, new AddressResolver(addressSpace.getType()), namespace));
+            api.start();
+            return api;
+        });
+        addressApi.touch();
+        return addressApi;
+    }
+
+    /**
+     * Stop the watches of the address spaces not used for a while, so that callers just reading
+     * from many address spaces don't leave a watch behind for each of them
+     */
+    private void stopIdleAddressApis() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, CachingAddressApi> entry : addressApis.entrySet()) {
+            CachingAddressApi addressApi = entry.getValue();
+            if (addressApi.isIdle(now, ADDRESS_API_IDLE_TIMEOUT) && addressApis.remove(entry.getKey(), addressApi)) {
+                log.debug("Stopping idle address cache of namespace {}", entry.getKey());
+                addressApi.stop();
+            }
+        }
     }
 }
@@ -15,12 +15,27 @@
  */
 package io.enmasse.k8s.api;
 
-import java.util.Set;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.KubernetesResourceList;
+
+import java.util.Optional;
 
 /**
  * Interface for components supporting listing and watching a resource.
  */
 public interface Resource<T> {
-    io.fabric8.kubernetes.client.Watch watchResources(io.fabric8.kubernetes.client.Watcher watcher);
-    Set<T> listResources();
+    /**
+     * Watch the resource from the given resource version, or from now if null.
+     */
+    io.fabric8.kubernetes.client.Watch watchResources(io.fabric8.kubernetes.client.Watcher watcher, String resourceVersion);
+
+    /**
+     * List the objects of the resource, used for the initial state and for consistency checks.
+     */
+    KubernetesResourceList listObjects();
+
+    /**
+     * Decode a listed or watched object, returning empty if the object should be left out.
+     */
+    Optional<T> getResource(HasMetadata object);
 }
@@ -15,79 +15,368 @@
  */
 package io.enmasse.k8s.api;
 
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.KubernetesResourceList;
+import io.fabric8.kubernetes.api.model.ObjectMeta;
 import io.fabric8.kubernetes.client.KubernetesClientException;
 import io.fabric8.kubernetes.client.Watch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 /**
  * A verticle that handles watching a resource with the appropriate reconnect and retry logic,
  * which notifies a resource interface when things change.
+ *
+ * The resources are kept in a local cache, keyed by uid, updated from the watch events. A closed watch
+ * is resumed from the last resource version seen, after a jittered exponential backoff. The whole
+ * collection is listed only when starting, when the resource version is gone, and as a periodic
+ * consistency check.
+ *
+ * Controllers don't have a thread each, they run on a shared scheduler sized by RESOURCE_CONTROLLER_THREADS.
+ * The events of a controller are queued and handled by one task at a time, so they are kept in order.
  */
 public class ResourceController<T> implements io.fabric8.kubernetes.client.Watcher, Runnable {
     private static final Logger log = LoggerFactory.getLogger(ResourceController.class.getName());
-    private Watch watch;
+    private static final long DEFAULT_RELIST_INTERVAL = 600_000;
+    private static final long MIN_BACKOFF = 1_000;
+    private static final long MAX_BACKOFF = 60_000;
+    private static final int HTTP_GONE = 410;
+    private static final long STOP_TIMEOUT = 30_000;
+    // Set while a controller task runs, so that stopping from such a task doesn't wait on the pool
+    private static final ThreadLocal<Boolean> inTask = ThreadLocal.withInitial(() -> false);
+    private static final ScheduledExecutorService sharedExecutor = createExecutor(getThreads(System.getenv()));
+
     private final Resource<T> resource;
     private final Watcher<T> changeHandler;
-    private final Thread watcherThread;
-    private final BlockingQueue<Action> events = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService executor;
+    private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile CountDownLatch stopped;
+    private volatile boolean started;
     private volatile boolean running;
+    private volatile ScheduledFuture<?> timer;
     private final Supplier<Long> resyncSupplier;
+    private final long relistInterval;
+    private final Random random = new Random();
 
-    ResourceController(Resource<T> resource, Watcher<T> changeHandler, Supplier<Long> resyncSupplier) {
+    // Only accessed by the task running the controller
+    private final Map<String, CachedResource<T>> cache = new LinkedHashMap<>();
+    private Watch watch;
+    private String resourceVersion;
+    private boolean relistNeeded = true;
+    private boolean synced;
+    private int failures;
+    private long nextWatch;
+    private long nextRelist;
+    private long nextResync;
+
+    ResourceController(Resource<T> resource, Watcher<T> changeHandler, Supplier<Long> resyncSupplier, long relistInterval) {
+        this(resource, changeHandler, resyncSupplier, relistInterval, sharedExecutor);
+    }
+
+    ResourceController(Resource<T> resource, Watcher<T> changeHandler, Supplier<Long> resyncSupplier, long relistInterval, ScheduledExecutorService executor) {
         this.resource = resource;
         this.changeHandler = changeHandler;
-        this.watcherThread = new Thread(this);
         this.resyncSupplier = resyncSupplier;
+        this.relistInterval = relistInterval;
+        this.executor = executor;
     }
 
     public static <T> ResourceController<T> create(Resource<T> resource, Watcher<T> changeHandler) {
+        return create(resource, changeHandler, getRelistInterval(System.getenv()));
+    }
+
+    public static <T> ResourceController<T> create(Resource<T> resource, Watcher<T> changeHandler, long relistInterval) {
         Random random = new Random(System.currentTimeMillis());
-        return new ResourceController<>(resource, changeHandler, () -> 10000 + Math.abs(random.nextLong()) % 5000);
+        return new ResourceController<>(resource, changeHandler, () -> 10000 + Math.abs(random.nextLong()) % 5000, relistInterval);
+    }
+
+    static long getRelistInterval(Map<String, String> env) {
+        String value = env.get("RESOURCE_RELIST_INTERVAL");
+        if (value == null) {
+            return DEFAULT_RELIST_INTERVAL;
+        }
+        return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+    }
+
+    static int getThreads(Map<String, String> env) {
+        String value = env.get("RESOURCE_CONTROLLER_THREADS");
+        if (value == null) {
+            return Math.max(2, Runtime.getRuntime().availableProcessors());
+        }
+        return Integer.parseInt(value);
+    }
+
+    static ScheduledExecutorService createExecutor(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, "resource-controller-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Delay before the given retry, doubling up to the max and with half of it random
+     * so that controllers disconnected at the same time don't retry together.
+     */
+    static long getBackoff(int attempt, Random random) {
+        long delay = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(Math.max(attempt - 1, 0), 16));
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
     }
 
     public void start() {
+        stopped = new CountDownLatch(1);
         running = true;
-        events.add(Action.ADDED);
-        watcherThread.start();
+        started = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
     }
 
     @Override
     public void run() {
-        while (running) {
-            try {
-                if (watch == null) {
-                    watch = resource.watchResources(this);
+        CountDownLatch latch = stopped;
+        inTask.set(true);
+        try {
+            if (running) {
+                process();
+            } else {
+                // Events received by a stopped controller are dropped
+                events.clear();
+                if (latch.getCount() > 0) {
+                    if (watch != null) {
+                        watch.close();
+                        watch = null;
+                    }
+                    // A restarted controller lists again, the events in between are lost
+                    relistNeeded = true;
+                    synced = false;
+                    failures = 0;
+                    nextWatch = 0;
+                    latch.countDown();
                 }
-                Action action = events.poll(resyncSupplier.get(), TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            inTask.set(false);
+            scheduled.set(false);
+            // Events queued while running are handled by the next task
+            if (!events.isEmpty() || (!running && stopped.getCount() > 0)) {
+                schedule();
+            }
+        }
+    }
+
+    private void process() {
+        try {
+            long now = System.currentTimeMillis();
+            if (watch == null && now >= nextWatch) {
+                startWatch();
+            } else if (watch != null && now >= nextRelist) {
+                checkConsistency();
+            }
 
-                if (running) {
-                    // TODO: Use action and resource instead of relisting
-                    changeHandler.resourcesUpdated(resource.listResources());
+            boolean changed = false;
+            Event event;
+            while (running && (event = events.poll()) != null) {
+                if (event.closeCause != null) {
+                    watchClosed(event.closeCause);
+                } else {
+                    changed |= apply(event);
                 }
-            } catch (Exception e) {
-                log.warn("Exception doing resource update", e);
+            }
+
+            // Handlers are notified on resync even without changes
+            if (running && (changed || System.currentTimeMillis() >= nextResync)) {
+                notifyChangeHandler();
+            }
+        } catch (Exception e) {
+            log.warn("Exception doing resource update", e);
+        } finally {
+            scheduleTimer();
+        }
+    }
+
+    private void scheduleTimer() {
+        ScheduledFuture<?> previous = timer;
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        if (running) {
+            long deadline = Math.min(synced ? nextResync : Long.MAX_VALUE, watch == null ? nextWatch : nextRelist);
+            timer = executor.schedule(this::schedule, Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void startWatch() throws Exception {
+        boolean relisted = false;
+        try {
+            if (relistNeeded) {
+                resourceVersion = relist();
+                relisted = true;
+            }
+            log.debug("Watching resource from version {}", resourceVersion);
+            watch = resource.watchResources(this, resourceVersion);
+            // The backoff starts over once a watch is established, even before any event arrives
+            failures = 0;
+        } catch (Exception e) {
+            if (e instanceof KubernetesClientException && ((KubernetesClientException) e).getCode() == HTTP_GONE) {
+                relistNeeded = true;
+            }
+            scheduleWatch();
+            log.warn("Error watching resource, retrying in {} ms", nextWatch - System.currentTimeMillis(), e);
+        }
+
+        if (relisted) {
+            notifyChangeHandler();
+        }
+    }
+
+    private void checkConsistency() throws Exception {
+        try {
+            // The watch goes on from where it is
+            relist();
+        } catch (Exception e) {
+            nextRelist = System.currentTimeMillis() + getBackoff(++failures, random);
+            log.warn("Error listing resource, retrying in {} ms", nextRelist - System.currentTimeMillis(), e);
+            return;
+        }
+        notifyChangeHandler();
+    }
+
+    private void watchClosed(KubernetesClientException cause) {
+        watch = null;
+        if (cause.getCode() == HTTP_GONE) {
+            log.info("Resource version {} is gone, relisting", resourceVersion);
+            relistNeeded = true;
+        } else {
+            log.info("Watch for resource closed, resuming from version {}", resourceVersion, cause);
+        }
+        scheduleWatch();
+    }
+
+    private void scheduleWatch() {
+        failures++;
+        nextWatch = System.currentTimeMillis() + getBackoff(failures, random);
+    }
+
+    private void notifyChangeHandler() throws Exception {
+        // Nothing is known about the resources before the first list
+        if (!synced) {
+            return;
+        }
+        Set<T> resources = new LinkedHashSet<>();
+        for (CachedResource<T> cached : cache.values()) {
+            resources.add(cached.resource);
+        }
+        nextResync = System.currentTimeMillis() + resyncSupplier.get();
+        changeHandler.resourcesUpdated(resources);
+    }
+
+    /**
+     * Replace the cache with the listed objects, returning the resource version of the list
+     */
+    private String relist() {
+        KubernetesResourceList list = resource.listObjects();
+
+        Map<String, CachedResource<T>> listed = new LinkedHashMap<>();
+        for (Object item : list.getItems()) {
+            HasMetadata object = (HasMetadata) item;
+            ObjectMeta metadata = object.getMetadata();
+            CachedResource<T> cached = cache.get(metadata.getUid());
+            if (cached != null && Objects.equals(cached.resourceVersion, metadata.getResourceVersion())) {
+                listed.put(metadata.getUid(), cached);
+            } else {
+                decode(object).ifPresent(decoded -> listed.put(metadata.getUid(), new CachedResource<>(metadata.getResourceVersion(), decoded)));
             }
         }
+        log.debug("Relisted {} resources", listed.size());
+
+        cache.clear();
+        cache.putAll(listed);
+        synced = true;
+        relistNeeded = false;
+        nextRelist = System.currentTimeMillis() + relistInterval;
+        return list.getMetadata() != null ? list.getMetadata().getResourceVersion() : null;
+    }
+
+    private boolean apply(Event event) {
+        if (event.object == null) {
+            return false;
+        }
+        // The watch is healthy again
+        failures = 0;
+
+        ObjectMeta metadata = event.object.getMetadata();
+        resourceVersion = metadata.getResourceVersion();
+        switch (event.action) {
+            case ADDED:
+            case MODIFIED:
+                CachedResource<T> cached = cache.get(metadata.getUid());
+                if (cached != null && Objects.equals(cached.resourceVersion, metadata.getResourceVersion())) {
+                    return false;
+                }
+                Optional<T> decoded = decode(event.object);
+                if (decoded.isPresent()) {
+                    cache.put(metadata.getUid(), new CachedResource<>(metadata.getResourceVersion(), decoded.get()));
+                    return true;
+                } else {
+                    return cache.remove(metadata.getUid()) != null;
+                }
+            case DELETED:
+                return cache.remove(metadata.getUid()) != null;
+            default:
+                return false;
+        }
+    }
+
+    private Optional<T> decode(HasMetadata object) {
+        try {
+            return resource.getResource(object);
+        } catch (Exception e) {
+            log.warn("Error decoding resource {}", object.getMetadata().getName(), e);
+            return Optional.empty();
+        }
     }
 
     public void stop() {
+        if (!started) {
+            return;
+        }
         running = false;
-        if (watch != null) {
-            watch.close();
+        ScheduledFuture<?> current = timer;
+        if (current != null) {
+            current.cancel(false);
+        }
+        CountDownLatch latch = stopped;
+        schedule();
+        if (inTask.get()) {
+            // Waiting here could take the pool thread needed to complete the stop
+            return;
         }
         try {
-            log.debug("Putting poison pill event");
-            events.put(Action.ERROR);
-            watcherThread.join();
-            watch = null;
-        } catch (InterruptedException ignored) {
+            if (!latch.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                log.warn("Timed out waiting for resource controller to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -98,31 +387,42 @@ public class ResourceController<T> implements io.fabric8.kubernetes.client.Watch
             return;
         }
 
-        switch (action) {
-            case ADDED:
-            case DELETED:
-                try {
-                    log.debug("Putting action {} on queue", action);
-                    events.put(action);
-                } catch (InterruptedException e) {
-                    log.warn("Interrupted while posting event", e);
-                }
-                break;
-            case MODIFIED:
-                break;
+        if (obj instanceof HasMetadata) {
+            log.debug("Putting action {} on queue", action);
+            events.add(new Event(action, (HasMetadata) obj, null));
+            schedule();
         }
     }
 
     @Override
     public void onClose(KubernetesClientException cause) {
         if (cause != null) {
-            log.info("Received onClose for address space config resource", cause);
-            stop();
-            start();
+            events.add(new Event(null, null, cause));
+            schedule();
         } else {
-            log.info("Watch for address space configs force closed, stopping");
-            watch = null;
-            stop();
+            log.info("Watch for resource force closed");
+        }
+    }
+
+    private static class Event {
+        private final Action action;
+        private final HasMetadata object;
+        private final KubernetesClientException closeCause;
+
+        private Event(Action action, HasMetadata object, KubernetesClientException closeCause) {
+            this.action = action;
+            this.object = object;
+            this.closeCause = closeCause;
+        }
+    }
+
+    private static class CachedResource<T> {
+        private final String resourceVersion;
+        private final T resource;
+
+        private CachedResource(String resourceVersion, T resource) {
+            this.resourceVersion = resourceVersion;
+            this.resource = resource;
         }
     }
 }
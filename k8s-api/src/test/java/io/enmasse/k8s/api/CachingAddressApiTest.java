@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.enmasse.k8s.api;
+
+import io.enmasse.address.model.Address;
+import io.enmasse.address.model.types.standard.StandardType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CachingAddressApiTest {
+    private CountingAddressApi delegate;
+    private CachingAddressApi addressApi;
+
+    @Before
+    public void setup() throws Exception {
+        delegate = new CountingAddressApi();
+        delegate.createAddress(createAddress("q1", "myqueue"));
+        addressApi = new CachingAddressApi(delegate, 60_000);
+        addressApi.start();
+    }
+
+    @Test
+    public void testReadThroughBeforeWatchUpdate() {
+        assertTrue(addressApi.getAddressWithName("q1").isPresent());
+        assertEquals(1, delegate.reads);
+    }
+
+    @Test
+    public void testReadsServedFromIndex() throws Exception {
+        delegate.sync();
+        int reads = delegate.reads;
+
+        Address q1 = addressApi.getAddressWithName("q1").get();
+        assertEquals(q1, addressApi.getAddressWithUuid(q1.getUuid()).get());
+        assertEquals(q1, addressApi.getAddressWithAddress("myqueue").get());
+        assertFalse(addressApi.getAddressWithName("q2").isPresent());
+        assertEquals(Collections.singleton(q1), addressApi.listAddresses());
+
+        assertEquals(reads, delegate.reads);
+    }
+
+    @Test
+    public void testReadYourWrites() throws Exception {
+        delegate.sync();
+
+        addressApi.createAddress(createAddress("q2", "myqueue2"));
+        assertTrue(addressApi.getAddressWithName("q2").isPresent());
+        assertTrue(addressApi.getAddressWithAddress("myqueue2").isPresent());
+        assertEquals(2, addressApi.listAddresses().size());
+
+        addressApi.deleteAddress(addressApi.getAddressWithName("q1").get());
+        assertFalse(addressApi.getAddressWithName("q1").isPresent());
+        assertFalse(addressApi.getAddressWithAddress("myqueue").isPresent());
+        assertEquals(1, addressApi.listAddresses().size());
+
+        // Watch catching up with the writes
+        delegate.sync();
+        assertFalse(addressApi.getAddressWithName("q1").isPresent());
+        assertEquals("q2", addressApi.listAddresses().iterator().next().getName());
+    }
+
+    @Test
+    public void testWritesReplacedByWatch() throws Exception {
+        delegate.sync();
+
+        addressApi.createAddress(createAddress("q2", "myqueue2"));
+        delegate.sync();
+
+        // Another writer deletes the address, seen through the watch
+        delegate.deleteAddress(createAddress("q2", "myqueue2"));
+        delegate.sync();
+        assertFalse(addressApi.getAddressWithName("q2").isPresent());
+    }
+
+    @Test
+    public void testWritesExpire() throws Exception {
+        addressApi = new CachingAddressApi(delegate, 0);
+        addressApi.start();
+        delegate.sync();
+
+        addressApi.createAddress(createAddress("q2", "myqueue2"));
+        assertFalse(addressApi.getAddressWithName("q2").isPresent());
+    }
+
+    @Test
+    public void testIdle() throws Exception {
+        long accessed = System.currentTimeMillis();
+        addressApi.getAddressWithName("q1");
+        assertFalse(addressApi.isIdle(accessed + 59_999, 60_000));
+        assertTrue(addressApi.isIdle(System.currentTimeMillis() + 60_000, 60_000));
+    }
+
+    @Test
+    public void testStoppedReadsFromDelegate() throws Exception {
+        delegate.sync();
+        addressApi.stop();
+
+        // Neither the stale index nor the later watch updates are used
+        delegate.createAddress(createAddress("q2", "myqueue2"));
+        delegate.sync();
+        int reads = delegate.reads;
+        assertTrue(addressApi.getAddressWithName("q2").isPresent());
+        assertEquals(reads + 1, delegate.reads);
+    }
+
+    private static Address createAddress(String name, String address) {
+        return new Address.Builder()
+                .setName(name)
+                .setAddress(address)
+                .setType(StandardType.QUEUE)
+                .build();
+    }
+
+    private static class CountingAddressApi implements AddressApi {
+        private final Map<String, Address> addresses = new LinkedHashMap<>();
+        private Watcher<Address> watcher;
+        private int reads;
+        private int version;
+
+        void sync() throws Exception {
+            watcher.resourcesUpdated(new LinkedHashSet<>(addresses.values()));
+        }
+
+        @Override
+        public Optional<Address> getAddressWithName(String name) {
+            reads++;
+            return Optional.ofNullable(addresses.get(name));
+        }
+
+        @Override
+        public Optional<Address> getAddressWithUuid(String uuid) {
+            reads++;
+            return addresses.values().stream().filter(a -> uuid.equals(a.getUuid())).findAny();
+        }
+
+        @Override
+        public Set<Address> listAddresses() {
+            reads++;
+            return new LinkedHashSet<>(addresses.values());
+        }
+
+        @Override
+        public void createAddress(Address address) {
+            addresses.put(address.getName(), new Address.Builder(address).setVersion(String.valueOf(++version)).build());
+        }
+
+        @Override
+        public void replaceAddress(Address address) {
+            createAddress(address);
+        }
+
+        @Override
+        public void deleteAddress(Address address) {
+            addresses.remove(address.getName());
+        }
+
+        @Override
+        public Watch watchAddresses(Watcher<Address> watcher) throws Exception {
+            this.watcher = watcher;
+            return () -> {};
+        }
+    }
+}
@@ -15,16 +15,25 @@
  */
 package io.enmasse.k8s.api;
 
+import io.fabric8.kubernetes.api.model.ConfigMap;
+import io.fabric8.kubernetes.api.model.ConfigMapBuilder;
+import io.fabric8.kubernetes.api.model.ConfigMapList;
+import io.fabric8.kubernetes.api.model.ConfigMapListBuilder;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.client.KubernetesClientException;
 import io.fabric8.kubernetes.client.Watch;
 import io.fabric8.kubernetes.client.Watcher;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -42,7 +51,7 @@ public class ResourceControllerTest {
             public Long get() {
                 return 2_000L;
             }
-        });
+        }, 600_000L);
         controller.start();
     }
 
@@ -74,7 +83,141 @@ public class ResourceControllerTest {
         assertResource("r3");
     }
 
+    @Test
+    public void testResourcesModified() {
+        resource.addResource("r1");
+        assertResource("r1");
+
+        resource.modifyResource("r1", "r1.1");
+        assertResource("r1.1");
+        assertNotResource("r1");
+    }
+
+    @Test
+    public void testEventsServedFromCache() {
+        for (int i = 0; i < 100; i++) {
+            resource.addResource("r" + i);
+        }
+        assertResource("r99");
+        resource.removeResource("r50");
+        assertNotResource("r50");
+
+        assertEquals(1, resource.getListCount());
+    }
+
+    @Test
+    public void testWatchResumed() {
+        resource.addResource("r1").addResource("r2");
+        assertResource("r1");
+        assertResource("r2");
+
+        // Changes made while the watch is down are received when resuming it
+        resource.setSendEvents(false);
+        controller.onClose(new KubernetesClientException("connection reset"));
+        resource.addResource("r3");
+
+        assertResource("r3");
+        List<String> watchVersions = resource.getWatchVersions();
+        assertEquals(2, watchVersions.size());
+        assertEquals("2", watchVersions.get(1));
+        assertEquals(1, resource.getListCount());
+    }
+
+    @Test
+    public void testRelistOnResourceVersionGone() {
+        resource.addResource("r1");
+        assertResource("r1");
+
+        resource.setSendEvents(false);
+        resource.addResource("r2");
+        resource.removeResource("r1");
+        controller.onClose(new KubernetesClientException("too old resource version", 410, null));
+
+        assertResource("r2");
+        assertNotResource("r1");
+        assertEquals(2, resource.getListCount());
+    }
+
+    @Test
+    public void testBackoff() {
+        Random random = new Random();
+        for (int attempt = 1; attempt < 20; attempt++) {
+            long max = Math.min(60_000, 1_000L << (attempt - 1));
+            long backoff = ResourceController.getBackoff(attempt, random);
+            assertTrue(backoff >= max / 2);
+            assertTrue(backoff <= max);
+        }
+    }
+
+    @Test
+    public void testThreadsShared() {
+        ScheduledExecutorService executor = ResourceController.createExecutor(2);
+        List<ResourceController<String>> controllers = new ArrayList<>();
+        Set<String> threads = new HashSet<>();
+        try {
+            for (int i = 0; i < 100; i++) {
+                TestResource resource = new TestResource().addResource("r" + i);
+                TestWatcher watcher = new TestWatcher();
+                ResourceController<String> controller = new ResourceController<>(resource, watcher, () -> 2_000L, 600_000L, executor);
+                controllers.add(controller);
+                controller.start();
+                assertResource(watcher, "r" + i);
+                threads.addAll(watcher.getThreads());
+            }
+        } finally {
+            for (ResourceController<String> controller : controllers) {
+                controller.stop();
+            }
+            executor.shutdown();
+        }
+
+        assertTrue(threads.size() <= 2);
+        for (String thread : threads) {
+            assertTrue(thread.startsWith("resource-controller-"));
+        }
+    }
+
+    @Test
+    public void testRestart() {
+        resource.addResource("r1");
+        assertResource("r1");
+
+        controller.stop();
+        resource.addResource("r2");
+        controller.start();
+        assertResource("r2");
+
+        // Stopping again completes, the restarted controller isn't left with a spent latch
+        controller.stop();
+        resource.addResource("r3");
+        controller.start();
+        assertResource("r3");
+    }
+
+    @Test
+    public void testStopFromChangeHandler() throws Exception {
+        ScheduledExecutorService executor = ResourceController.createExecutor(1);
+        try {
+            List<ResourceController<String>> controllers = new ArrayList<>();
+            CountDownLatch stopped = new CountDownLatch(1);
+            ResourceController<String> controller = new ResourceController<>(new TestResource().addResource("r1"), resources -> {
+                // Runs on the only pool thread, the stop can't wait for it
+                controllers.get(0).stop();
+                stopped.countDown();
+            }, () -> 2_000L, 600_000L, executor);
+            controllers.add(controller);
+            controller.start();
+            assertTrue(stopped.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     private void assertResource(String name) {
+        assertResource(watcher, name);
+    }
+
+    private static void assertResource(TestWatcher watcher, String name) {
         long end = System.currentTimeMillis() + 60_000;
         while (System.currentTimeMillis() < end && !watcher.getResources().contains(name)) { }
         assertTrue(watcher.getResources().contains(name));
@@ -88,38 +231,118 @@ public class ResourceControllerTest {
 
     private static class TestResource implements Resource<String> {
 
-        private Set<String> resources = new HashSet<>();
+        private Map<String, ConfigMap> resources = new LinkedHashMap<>();
+        private volatile Watcher watcher;
+        private volatile boolean sendEvents = true;
+        private int resourceVersion = 0;
+        private int listCount = 0;
+        private List<String> watchVersions = new ArrayList<>();
 
         @Override
-        public Watch watchResources(Watcher watcher) {
+        @SuppressWarnings("unchecked")
+        public Watch watchResources(Watcher watcher, String resourceVersion) {
+            List<ConfigMap> missed = new ArrayList<>();
+            synchronized (this) {
+                watchVersions.add(resourceVersion);
+                if (resourceVersion != null) {
+                    for (ConfigMap map : resources.values()) {
+                        if (Integer.parseInt(map.getMetadata().getResourceVersion()) > Integer.parseInt(resourceVersion)) {
+                            missed.add(map);
+                        }
+                    }
+                }
+            }
+            for (ConfigMap map : missed) {
+                watcher.eventReceived(Watcher.Action.MODIFIED, map);
+            }
+            this.watcher = watcher;
+            this.sendEvents = true;
             return () -> {};
         }
 
-        public synchronized TestResource addResource(String resource) {
-            this.resources.add(resource);
+        public TestResource addResource(String resource) {
+            return modifyResource(resource, resource);
+        }
+
+        public TestResource modifyResource(String name, String resource) {
+            ConfigMap map;
+            Watcher.Action action;
+            synchronized (this) {
+                action = resources.containsKey(name) ? Watcher.Action.MODIFIED : Watcher.Action.ADDED;
+                map = new ConfigMapBuilder()
+                        .editOrNewMetadata()
+                        .withName(name)
+                        .withUid(name)
+                        .withResourceVersion(String.valueOf(++resourceVersion))
+                        .endMetadata()
+                        .addToData("value", resource)
+                        .build();
+                resources.put(name, map);
+            }
+            sendEvent(action, map);
             return this;
         }
 
+        public void removeResource(String name) {
+            ConfigMap map;
+            synchronized (this) {
+                map = resources.remove(name);
+            }
+            sendEvent(Watcher.Action.DELETED, map);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void sendEvent(Watcher.Action action, ConfigMap map) {
+            if (sendEvents && watcher != null) {
+                watcher.eventReceived(action, map);
+            }
+        }
+
+        public void setSendEvents(boolean sendEvents) {
+            this.sendEvents = sendEvents;
+        }
+
         @Override
-        public synchronized Set<String> listResources() {
-            return new HashSet<>(resources);
+        public synchronized ConfigMapList listObjects() {
+            listCount++;
+            return new ConfigMapListBuilder()
+                    .withNewMetadata()
+                    .withResourceVersion(String.valueOf(resourceVersion))
+                    .endMetadata()
+                    .withItems(new ArrayList<>(resources.values()))
+                    .build();
+        }
+
+        @Override
+        public Optional<String> getResource(HasMetadata object) {
+            return Optional.of(((ConfigMap) object).getData().get("value"));
+        }
+
+        public synchronized int getListCount() {
+            return listCount;
         }
 
-        public synchronized void removeResource(String resource) {
-            this.resources.remove(resource);
+        public synchronized List<String> getWatchVersions() {
+            return new ArrayList<>(watchVersions);
         }
     }
 
     private static class TestWatcher implements io.enmasse.k8s.api.Watcher<String> {
         private Set<String> resources = new HashSet<>();
+        private Set<String> threads = new HashSet<>();
 
         public synchronized Set<String> getResources() {
             return new HashSet<>(resources);
         }
 
+        public synchronized Set<String> getThreads() {
+            return new HashSet<>(threads);
+        }
+
         @Override
         public synchronized void resourcesUpdated(Set<String> resources) throws Exception {
             this.resources = new HashSet<>(resources);
+            this.threads.add(Thread.currentThread().getName());
         }
     }
 }
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.enmasse.k8s.api;
+
+import io.fabric8.kubernetes.api.model.ConfigMap;
+import io.fabric8.kubernetes.api.model.ConfigMapBuilder;
+import io.fabric8.kubernetes.api.model.ConfigMapList;
+import io.fabric8.kubernetes.api.model.ConfigMapListBuilder;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.WatchEvent;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import io.fabric8.kubernetes.server.mock.KubernetesServer;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResourceControllerWatchTest {
+    private static final String CONFIGMAPS_PATH = "/api/v1/namespaces/test/configmaps";
+    private static final int WATCH_DROPS = 3;
+
+    @Rule
+    public KubernetesServer server = new KubernetesServer();
+
+    @Test
+    public void testListsBoundedOnWatchDrops() throws Exception {
+        server.expect().withPath(CONFIGMAPS_PATH)
+                .andReturn(200, new ConfigMapListBuilder()
+                        .withNewMetadata()
+                        .withResourceVersion("1")
+                        .endMetadata()
+                        .build())
+                .always();
+
+        // The watch fails a few times before it is established, always from the listed version
+        server.expect().withPath(CONFIGMAPS_PATH + "?resourceVersion=1&watch=true")
+                .andReturn(500, "watch dropped")
+                .times(WATCH_DROPS);
+        server.expect().withPath(CONFIGMAPS_PATH + "?resourceVersion=1&watch=true")
+                .andUpgradeToWebSocket()
+                .open()
+                .waitFor(100).andEmit(new WatchEvent(createMap("c1", "v1", "2"), "ADDED"))
+                .done()
+                .once();
+
+        CountingResource resource = new CountingResource(server.getClient());
+        TestWatcher watcher = new TestWatcher();
+        ResourceController<String> controller = new ResourceController<>(resource, watcher, () -> 2_000L, 600_000L);
+        controller.start();
+        try {
+            long end = System.currentTimeMillis() + 60_000;
+            while (System.currentTimeMillis() < end && !watcher.getResources().contains("v1")) {
+                Thread.sleep(100);
+            }
+            assertTrue(watcher.getResources().contains("v1"));
+            assertTrue(resource.watches.get() <= WATCH_DROPS + 1);
+            assertEquals(1, resource.lists.get());
+        } finally {
+            controller.stop();
+        }
+    }
+
+    @Test
+    public void testEstablishedWatchDroppedIsResumed() throws Exception {
+        ScriptedResource resource = new ScriptedResource("5", createMap("c1", "v1", "5"));
+        TestWatcher watcher = new TestWatcher();
+        ResourceController<String> controller = new ResourceController<>(resource, watcher, () -> 2_000L, 600_000L);
+        controller.start();
+        try {
+            Watcher<ConfigMap> watch = resource.awaitWatch(1);
+            watch.eventReceived(Watcher.Action.ADDED, createMap("c2", "v2", "6"));
+            awaitResource(watcher, "v2");
+
+            // The established watch is dropped, not gone, so it goes on from the last version seen
+            watch.onClose(new KubernetesClientException("connection reset"));
+            resource.awaitWatch(2);
+            assertEquals(Arrays.asList("5", "6"), resource.getWatchVersions());
+            assertEquals(1, resource.lists.get());
+        } finally {
+            controller.stop();
+        }
+    }
+
+    @Test
+    public void testResourceVersionGoneRelists() throws Exception {
+        ScriptedResource resource = new ScriptedResource("5", createMap("c1", "v1", "5"));
+        TestWatcher watcher = new TestWatcher();
+        ResourceController<String> controller = new ResourceController<>(resource, watcher, () -> 2_000L, 600_000L);
+        controller.start();
+        try {
+            Watcher<ConfigMap> watch = resource.awaitWatch(1);
+            awaitResource(watcher, "v1");
+
+            // The version can't be resumed from anymore, the new watch starts from a new list
+            resource.setList("9", createMap("c3", "v3", "9"));
+            watch.onClose(new KubernetesClientException("too old resource version", 410, null));
+            resource.awaitWatch(2);
+            awaitResource(watcher, "v3");
+            assertEquals(Arrays.asList("5", "9"), resource.getWatchVersions());
+            assertEquals(2, resource.lists.get());
+            assertFalse(watcher.getResources().contains("v1"));
+        } finally {
+            controller.stop();
+        }
+    }
+
+    @Test
+    public void testBackoffResetWhenWatchEstablished() throws Exception {
+        ScriptedResource resource = new ScriptedResource("5", createMap("c1", "v1", "5"));
+        resource.failWatches(WATCH_DROPS);
+        TestWatcher watcher = new TestWatcher();
+        ResourceController<String> controller = new ResourceController<>(resource, watcher, () -> 2_000L, 600_000L);
+        controller.start();
+        try {
+            Watcher<ConfigMap> watch = resource.awaitWatch(WATCH_DROPS + 1);
+
+            // No event arrived on the established watch, still the retry starts from the shortest backoff
+            long dropped = System.currentTimeMillis();
+            watch.onClose(new KubernetesClientException("connection reset"));
+            resource.awaitWatch(WATCH_DROPS + 2);
+            assertTrue(System.currentTimeMillis() - dropped < 3_000);
+        } finally {
+            controller.stop();
+        }
+    }
+
+    private static void awaitResource(TestWatcher watcher, String resource) throws InterruptedException {
+        long end = System.currentTimeMillis() + 60_000;
+        while (System.currentTimeMillis() < end && !watcher.getResources().contains(resource)) {
+            Thread.sleep(10);
+        }
+        assertTrue(watcher.getResources().contains(resource));
+    }
+
+    private static ConfigMap createMap(String name, String value, String resourceVersion) {
+        return new ConfigMapBuilder()
+                .editOrNewMetadata()
+                .withName(name)
+                .withUid(name)
+                .withResourceVersion(resourceVersion)
+                .endMetadata()
+                .addToData("value", value)
+                .build();
+    }
+
+    private static class CountingResource implements Resource<String> {
+        private final KubernetesClient client;
+        private final AtomicInteger lists = new AtomicInteger();
+        private final AtomicInteger watches = new AtomicInteger();
+
+        private CountingResource(KubernetesClient client) {
+            this.client = client;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Watch watchResources(Watcher watcher, String resourceVersion) {
+            watches.incrementAndGet();
+            return client.configMaps().inNamespace("test").watch(resourceVersion, watcher);
+        }
+
+        @Override
+        public ConfigMapList listObjects() {
+            lists.incrementAndGet();
+            return client.configMaps().inNamespace("test").list();
+        }
+
+        @Override
+        public Optional<String> getResource(HasMetadata object) {
+            return Optional.of(((ConfigMap) object).getData().get("value"));
+        }
+    }
+
+    /**
+     * Resource driven by the test, the watcher passed to the last watch is handed out to send events and closes
+     */
+    private static class ScriptedResource implements Resource<String> {
+        private final AtomicInteger lists = new AtomicInteger();
+        private final List<String> watchVersions = new ArrayList<>();
+        private ConfigMapList list;
+        private int failWatches;
+        private Watcher<ConfigMap> watcher;
+
+        private ScriptedResource(String resourceVersion, ConfigMap... items) {
+            setList(resourceVersion, items);
+        }
+
+        public synchronized void setList(String resourceVersion, ConfigMap... items) {
+            list = new ConfigMapListBuilder()
+                    .withNewMetadata()
+                    .withResourceVersion(resourceVersion)
+                    .endMetadata()
+                    .withItems(Arrays.asList(items))
+                    .build();
+        }
+
+        public synchronized void failWatches(int count) {
+            failWatches = count;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized Watch watchResources(Watcher watcher, String resourceVersion) {
+            watchVersions.add(resourceVersion);
+            notifyAll();
+            if (failWatches > 0) {
+                failWatches--;
+                throw new KubernetesClientException("watch failed");
+            }
+            this.watcher = watcher;
+            return () -> {};
+        }
+
+        @Override
+        public synchronized ConfigMapList listObjects() {
+            lists.incrementAndGet();
+            return list;
+        }
+
+        @Override
+        public Optional<String> getResource(HasMetadata object) {
+            return Optional.of(((ConfigMap) object).getData().get("value"));
+        }
+
+        public synchronized List<String> getWatchVersions() {
+            return new ArrayList<>(watchVersions);
+        }
+
+        public synchronized Watcher<ConfigMap> awaitWatch(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 60_000;
+            while (watchVersions.size() < count && System.currentTimeMillis() < end) {
+                wait(end - System.currentTimeMillis());
+            }
+            assertEquals(count, watchVersions.size());
+            return watcher;
+        }
+    }
+
+    private static class TestWatcher implements io.enmasse.k8s.api.Watcher<String> {
+        private Set<String> resources = new HashSet<>();
+
+        public synchronized Set<String> getResources() {
+            return new HashSet<>(resources);
+        }
+
+        @Override
+        public synchronized void resourcesUpdated(Set<String> resources) throws Exception {
+            this.resources = new HashSet<>(resources);
+        }
+    }
+}
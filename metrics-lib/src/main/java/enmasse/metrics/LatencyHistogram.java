@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets, recorded by more threads without locking
+ */
+public class LatencyHistogram {
+
+    // buckets upper bounds (in seconds, as Prometheus convention)
+    private static final double[] BOUNDS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+    private static final String[] BOUNDS_LABELS = new String[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+            BOUNDS_LABELS[i] = BigDecimal.valueOf(BOUNDS[i]).toPlainString();
+        }
+    }
+
+    private final String name;
+    private final String help;
+
+    // not cumulative counts, the last one is for the +Inf bucket
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param name  metric name
+     * @param help  metric description
+     */
+    public LatencyHistogram(String name, String help) {
+        this.name = name;
+        this.help = help;
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a latency value
+     *
+     * @param nanos latency in ns
+     */
+    public void record(long nanos) {
+
+        int i = 0;
+        while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+            i++;
+        }
+        this.buckets[i].increment();
+        this.sumNanos.add(nanos);
+    }
+
+    /**
+     * Number of recorded values
+     * @return
+     */
+    public long count() {
+
+        long count = 0;
+        for (LongAdder bucket : this.buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Write the histogram in the Prometheus text format
+     *
+     * @param out   output to append to
+     */
+    public void writeTo(StringBuilder out) {
+
+        out.append("# HELP ").append(this.name).append(' ').append(this.help).append('\n');
+        out.append("# TYPE ").append(this.name).append(" histogram\n");
+
+        long cumulative = 0;
+        for (int i = 0; i < this.buckets.length; i++) {
+
+            cumulative += this.buckets[i].sum();
+            out.append(this.name).append("_bucket{le=\"")
+                    .append(i < BOUNDS.length ? BOUNDS_LABELS[i] : "+Inf")
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+
+        out.append(this.name).append("_sum ").append(this.sumNanos.sum() / 1e9).append('\n');
+        out.append(this.name).append("_count ").append(cumulative).append('\n');
+    }
+}
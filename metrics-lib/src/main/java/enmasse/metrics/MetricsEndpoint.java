@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.metrics;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP endpoint exposing metrics in the Prometheus text format
+ */
+public class MetricsEndpoint extends AbstractVerticle {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsEndpoint.class);
+
+    private static final String METRICS_PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    private final PrometheusMetrics metrics;
+    private final String bindAddress;
+    private final int listenPort;
+
+    private HttpServer server;
+
+    /**
+     * Constructor
+     *
+     * @param metrics   metrics to expose
+     * @param bindAddress   the IP address to bind to
+     * @param listenPort    the port to listen on
+     */
+    public MetricsEndpoint(PrometheusMetrics metrics, String bindAddress, int listenPort) {
+        this.metrics = metrics;
+        this.bindAddress = bindAddress;
+        this.listenPort = listenPort;
+    }
+
+    @Override
+    public void start(Future<Void> startFuture) throws Exception {
+
+        this.server = this.vertx.createHttpServer()
+                .requestHandler(request -> {
+
+                    if (request.method() == HttpMethod.GET && METRICS_PATH.equals(request.path())) {
+                        request.response()
+                                .putHeader("Content-Type", CONTENT_TYPE)
+                                .end(this.metrics.scrape());
+                    } else {
+                        request.response().setStatusCode(HttpResponseStatus.NOT_FOUND.code()).end();
+                    }
+                })
+                .listen(this.listenPort, this.bindAddress, done -> {
+
+                    if (done.succeeded()) {
+                        LOG.info("Metrics endpoint running on {}:{}", this.bindAddress, done.result().actualPort());
+                        startFuture.complete();
+                    } else {
+                        LOG.error("Error while starting up metrics endpoint", done.cause());
+                        startFuture.fail(done.cause());
+                    }
+                });
+    }
+
+    @Override
+    public void stop(Future<Void> stopFuture) throws Exception {
+
+        if (this.server != null) {
+            this.server.close(stopFuture.completer());
+        } else {
+            stopFuture.complete();
+        }
+    }
+}
@@ -23,6 +23,8 @@ import enmasse.mqtt.endpoints.AmqpReceiver;
 import enmasse.mqtt.endpoints.AmqpReceiverEndpoint;
 import enmasse.mqtt.endpoints.AmqpSubscriptionServiceEndpoint;
 import enmasse.mqtt.endpoints.AmqpLwtServiceEndpoint;
+import enmasse.mqtt.endpoints.InFlightWindow;
+import enmasse.mqtt.lwt.LwtPartitions;
 import enmasse.mqtt.messages.AmqpCloseMessage;
 import enmasse.mqtt.messages.AmqpListMessage;
 import enmasse.mqtt.messages.AmqpPublishMessage;
@@ -32,14 +34,20 @@ import enmasse.mqtt.messages.AmqpSubscriptionsMessage;
 import enmasse.mqtt.messages.AmqpTopicSubscription;
 import enmasse.mqtt.messages.AmqpUnsubscribeMessage;
 import enmasse.mqtt.messages.AmqpWillMessage;
+import enmasse.mqtt.metrics.GatewayMetrics;
+import enmasse.mqtt.ratelimit.RateLimitPolicy;
+import enmasse.mqtt.ratelimit.RateLimiter;
+import enmasse.mqtt.ratelimit.TimerWheel;
 import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.mqtt.MqttEndpoint;
+import io.vertx.mqtt.MqttTopicSubscription;
 import io.vertx.mqtt.MqttWill;
 import io.vertx.mqtt.messages.MqttPublishMessage;
 import io.vertx.mqtt.messages.MqttSubscribeMessage;
@@ -48,19 +56,24 @@ import io.vertx.proton.ProtonClient;
 import io.vertx.proton.ProtonClientOptions;
 import io.vertx.proton.ProtonConnection;
 import io.vertx.proton.ProtonDelivery;
+import io.vertx.proton.ProtonLink;
 import io.vertx.proton.ProtonLinkOptions;
 import io.vertx.proton.ProtonReceiver;
 import io.vertx.proton.ProtonSender;
+import io.vertx.proton.ProtonSession;
+import org.apache.qpid.proton.amqp.Symbol;
 import org.apache.qpid.proton.amqp.messaging.Accepted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * AMQP bridging class from/to the MQTT endpoint to/from the AMQP related endpoints
@@ -69,12 +82,27 @@ public class AmqpBridge {
 
     private static final int AMQP_SERVICES_CONNECTION_TIMEOUT = 5000; // in ms
 
+    private static final Symbol LINK_PROPERTY_USER = Symbol.valueOf("user");
+    private static final Symbol LINK_PROPERTY_CLIENT_ID = Symbol.valueOf("client-id");
+
     private static final Logger LOG = LoggerFactory.getLogger(AmqpBridge.class);
 
     private Vertx vertx;
 
+    private final AmqpBridgeOptions options;
+    private final GatewayMetrics metrics;
+
     private ProtonClient client;
     private ProtonConnection connection;
+    // session used by the bridge for all the links (on a dedicated or a shared connection)
+    private ProtonSession session;
+
+    // pool providing the shared connection (if the bridge doesn't use a dedicated one)
+    private AmqpConnectionPool connectionPool;
+    // properties of the links on a shared connection, for attributing them to the MQTT client
+    private Map<Symbol, Object> linkProperties;
+    // callback called by the pool when the shared connection is lost
+    private Handler<ProtonConnection> connectionLostHandler;
 
     // local endpoint for handling remote connected MQTT client
     private MqttEndpoint mqttEndpoint;
@@ -92,7 +120,26 @@ public class AmqpBridge {
     private Handler<AmqpBridge> mqttEndpointCloseHandler;
 
     // topic subscriptions with granted QoS levels
-    private Map<String, MqttQoS> grantedQoSLevels;
+    private TopicTrie grantedQoSLevels;
+
+    // subscriptions to topic filters shared with the other bridges (null if not enabled)
+    private final SharedSubscriptions sharedSubscriptions;
+    // messages from the shared subscriptions published to the MQTT client and not acknowledged yet (not settled at the source)
+    private InFlightWindow<SharedPublish> sharedInFlight;
+    // QoS 1/2 messages from the shared subscriptions waiting for a free slot in sharedInFlight (up to max in flight)
+    private Deque<SharedPublish> sharedQueue;
+
+    // publish rate limiter of the gateway instance (null if not enabled) with the rate limit of the MQTT client
+    private final RateLimiter rateLimiter;
+    private RateLimiter.ClientRateLimit rateLimit;
+    // timeout for resuming the MQTT client throttled by the rate limit (null if not throttled)
+    private TimerWheel.Timeout rateLimitResume;
+    // reading from the MQTT client paused, by the pending dispositions or by the rate limit (see updatePaused)
+    private boolean paused;
+
+    // QoS level and arrival time (in ns) of the PUBLISH messages from the MQTT client not acknowledged yet,
+    // keyed by message identifier (unique across QoS 1 and 2 while in flight); its table is released while the client is idle
+    private final InFlightWindow<MqttQoS> publishesIn = new InFlightWindow<>(InFlightWindow.MAX_MESSAGE_ID);
 
     /**
      * Constructor
@@ -101,8 +148,23 @@ public class AmqpBridge {
      * @param mqttEndpoint  MQTT local endpoint
      */
     public AmqpBridge(Vertx vertx, MqttEndpoint mqttEndpoint) {
+        this(vertx, mqttEndpoint, new AmqpBridgeOptions());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param vertx Vert.x instance
+     * @param mqttEndpoint  MQTT local endpoint
+     * @param options   AMQP bridge options
+     */
+    public AmqpBridge(Vertx vertx, MqttEndpoint mqttEndpoint, AmqpBridgeOptions options) {
         this.vertx = vertx;
         this.mqttEndpoint = mqttEndpoint;
+        this.options = options;
+        this.metrics = options.getMetrics();
+        this.sharedSubscriptions = options.getSharedSubscriptions();
+        this.rateLimiter = options.getRateLimiter();
     }
 
     /**
@@ -119,6 +181,9 @@ public class AmqpBridge {
         // TODO: check correlation between MQTT and AMQP keep alive
         ProtonClientOptions clientOptions = new ProtonClientOptions();
         clientOptions.setHeartbeat(this.mqttEndpoint.keepAliveTimeSeconds() * 1000);
+        if (this.options.getAmqpMaxFrameSize() > 0) {
+            clientOptions.setMaxFrameSize(this.options.getAmqpMaxFrameSize());
+        }
 
         String userName = (this.mqttEndpoint.auth() != null) ? this.mqttEndpoint.auth().userName() : null;
         String password = (this.mqttEndpoint.auth() != null) ? this.mqttEndpoint.auth().password() : null;
@@ -134,151 +199,319 @@ public class AmqpBridge {
                         .disconnectHandler(this::handleRemoteDisconnect)
                         .open();
 
-                // setup MQTT endpoint handlers and AMQP endpoints
-                this.setupMqttEndpoint();
-                this.setupAmqpEndpoits();
+                this.openSession(openHandler);
 
-                // setup a Future for completed connection steps with all services
-                // with AMQP_WILL and AMQP_LIST/AMQP_SUBSCRIPTIONS or AMQP_CLOSE handled
-                Future<AmqpSubscriptionsMessage> connectionFuture = Future.future();
-                connectionFuture.setHandler(ar -> {
+            } else {
 
-                    if (ar.succeeded()) {
+                this.handleConnectionFailure(done.cause(), openHandler);
+            }
 
-                        this.rcvEndpoint.publishHandler(this::publishHandler);
-                        this.rcvEndpoint.pubrelHandler(this::pubrelHandler);
+        });
 
-                        AmqpSubscriptionsMessage amqpSubscriptionsMessage = ar.result();
+    }
 
-                        if (amqpSubscriptionsMessage != null) {
-                            this.mqttEndpoint.accept(!amqpSubscriptionsMessage.topicSubscriptions().isEmpty());
-                            // added topic subscriptions of a previous session in the local collection
-                            this.grantedQoSLevels = amqpSubscriptionsMessage.topicSubscriptions()
-                                    .stream()
-                                    .collect(Collectors.toMap(amqpTopicSubscription -> amqpTopicSubscription.topic(),
-                                            amqpTopicSubscription -> amqpTopicSubscription.qos()));
+    /**
+     * Open the bridge using a shared connection to the AMQP service provider
+     * taken from the provided pool. The bridge uses its own session on that connection
+     *
+     * @param connectionPool    pool of AMQP connections to the AMQP service provider
+     * @param openHandler   handler called when the open is completed (with success or not)
+     */
+    public void open(AmqpConnectionPool connectionPool, Handler<AsyncResult<AmqpBridge>> openHandler) {
 
-                        } else {
-                            this.mqttEndpoint.accept(false);
-                            this.grantedQoSLevels = new HashMap<>();
-                        }
-                        LOG.info("CONNACK to MQTT client {} [accepted]", this.mqttEndpoint.clientIdentifier());
+        this.connectionPool = connectionPool;
 
-                        // open unique client publish address receiver
-                        this.rcvEndpoint.openPublish();
+        // the shared connection is anonymous, the links carry the MQTT client they belong to
+        this.linkProperties = new HashMap<>();
+        this.linkProperties.put(LINK_PROPERTY_CLIENT_ID, this.mqttEndpoint.clientIdentifier());
+        if (this.mqttEndpoint.auth() != null) {
+            this.linkProperties.put(LINK_PROPERTY_USER, this.mqttEndpoint.auth().userName());
+        }
 
-                        openHandler.handle(Future.succeededFuture(AmqpBridge.this));
+        if (this.mqttEndpoint.auth() != null) {
 
-                    } else {
+            // the shared connection doesn't carry the MQTT client credentials, they are
+            // authenticated before the bridge can use it
+            this.connectionPool.authenticate(this.mqttEndpoint.auth().userName(), this.mqttEndpoint.auth().password(), done -> {
 
-                        this.mqttEndpoint.reject(MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE);
-                        LOG.error("CONNACK to MQTT client {} [rejected]", this.mqttEndpoint.clientIdentifier());
+                if (done.succeeded()) {
+                    this.acquire(openHandler);
+                } else {
+                    this.handleConnectionFailure(done.cause(), openHandler);
+                }
+            });
 
-                        openHandler.handle(Future.failedFuture(ar.cause()));
-                    }
+        } else {
+            this.acquire(openHandler);
+        }
+    }
 
-                });
+    /**
+     * Set the properties attributing a link to the MQTT client (and its authenticated user),
+     * when the bridge is on a shared connection
+     *
+     * @param link  link to attribute
+     * @return  the same link
+     */
+    private <T extends ProtonLink<T>> T attributed(T link) {
+
+        if (this.linkProperties != null) {
+            link.setProperties(this.linkProperties);
+        }
+        return link;
+    }
+
+    /**
+     * Acquire the shared connection from the pool and open the bridge session on it
+     *
+     * @param openHandler   handler called when the open is completed (with success or not)
+     */
+    private void acquire(Handler<AsyncResult<AmqpBridge>> openHandler) {
+
+        this.connectionLostHandler = this::handleConnectionLost;
+
+        this.connectionPool.acquire(this.connectionLostHandler, done -> {
+
+            if (done.succeeded()) {
+
+                this.connection = done.result();
+                this.openSession(openHandler);
+
+            } else {
+
+                this.handleConnectionFailure(done.cause(), openHandler);
+            }
+        });
+    }
+
+    /**
+     * Open the AMQP session for the bridge and execute the connection steps with the AMQP services
+     *
+     * @param openHandler   handler called when the open is completed (with success or not)
+     */
+    private void openSession(Handler<AsyncResult<AmqpBridge>> openHandler) {
+
+        this.session = this.connection.createSession();
+        this.session
+                .closeHandler(remoteClose -> handleRemoteSessionClose(this.session, remoteClose))
+                .open();
+
+        // setup MQTT endpoint handlers and AMQP endpoints
+        this.setupMqttEndpoint();
+        this.setupAmqpEndpoits();
 
-                // step 1 : send AMQP_WILL to Last Will and Testament Service
-                Future<ProtonDelivery> willFuture = Future.future();
-                // if remote MQTT has specified the will
-                if (this.mqttEndpoint.will().isWillFlag()) {
+        // setup a Future for completed connection steps with all services
+        // with AMQP_WILL and AMQP_LIST/AMQP_SUBSCRIPTIONS or AMQP_CLOSE handled
+        Future<AmqpSubscriptionsMessage> connectionFuture = Future.future();
+        connectionFuture.setHandler(ar -> {
 
-                    // sending AMQP_WILL
-                    MqttWill will = this.mqttEndpoint.will();
+            if (ar.succeeded()) {
 
-                    AmqpWillMessage amqpWillMessage =
-                            new AmqpWillMessage(will.isWillRetain(),
-                                    will.willTopic(),
-                                    MqttQoS.valueOf(will.willQos()),
-                                    Buffer.buffer(will.willMessage()));
+                this.rcvEndpoint.publishHandler(this::publishHandler);
+                this.rcvEndpoint.pubrelHandler(this::pubrelHandler);
 
-                    // specified link name for the Last Will and Testament Service as MQTT clientid
-                    ProtonLinkOptions linkOptions = new ProtonLinkOptions();
-                    linkOptions.setLinkName(this.mqttEndpoint.clientIdentifier());
+                AmqpSubscriptionsMessage amqpSubscriptionsMessage = ar.result();
 
-                    // setup and open AMQP endpoints to Last Will and Testament Service
-                    ProtonSender wsSender = this.connection.createSender(AmqpLwtServiceEndpoint.LWT_SERVICE_ENDPOINT, linkOptions);
-                    this.lwtEndpoint = new AmqpLwtServiceEndpoint(wsSender);
+                this.grantedQoSLevels = new TopicTrie();
 
-                    this.lwtEndpoint.open();
-                    this.lwtEndpoint.sendWill(amqpWillMessage, willFuture.completer());
+                if (amqpSubscriptionsMessage != null) {
+                    this.mqttEndpoint.accept(!amqpSubscriptionsMessage.topicSubscriptions().isEmpty());
+                    // added topic subscriptions of a previous session in the local collection
+                    amqpSubscriptionsMessage.topicSubscriptions().forEach(amqpTopicSubscription -> {
+                        this.grantedQoSLevels.put(amqpTopicSubscription.topic(), amqpTopicSubscription.qos());
+                    });
 
                 } else {
+                    this.mqttEndpoint.accept(false);
+                }
+                LOG.info("CONNACK to MQTT client {} [accepted]", this.mqttEndpoint.clientIdentifier());
 
-                    // otherwise just complete the Future
-                    willFuture.complete();
+                if (this.rateLimiter != null) {
+                    String userName = (this.mqttEndpoint.auth() != null) ? this.mqttEndpoint.auth().userName() : null;
+                    this.rateLimit = this.rateLimiter.register(userName);
                 }
 
-                willFuture.compose(v -> {
+                // open unique client publish address receiver
+                this.rcvEndpoint.openPublish();
 
-                    // handling AMQP_SUBSCRIPTIONS reply from Subscription Service
-                    this.rcvEndpoint.subscriptionsHandler(amqpSubscriptionsMessage -> {
+                // the control links aren't needed anymore (the Subscription Service one is
+                // detached after the AMQP_CLOSE disposition, with the early CONNACK)
+                this.rcvEndpoint.closeControl();
+                this.ssEndpoint.detach();
 
-                        LOG.info("Session present: {}", !amqpSubscriptionsMessage.topicSubscriptions().isEmpty());
-                        LOG.info(amqpSubscriptionsMessage.toString());
+                openHandler.handle(Future.succeededFuture(AmqpBridge.this));
 
-                        connectionFuture.complete(amqpSubscriptionsMessage);
-                    });
+            } else {
+
+                this.mqttEndpoint.reject(MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE);
+                LOG.error("CONNACK to MQTT client {} [rejected]", this.mqttEndpoint.clientIdentifier());
 
-                    // step 2 : send AMQP_CLOSE or AMQP_LIST (based on "clean session" flag) to Subscription Service
-                    Future<ProtonDelivery> sessionFuture = Future.future();
+                openHandler.handle(Future.failedFuture(ar.cause()));
+            }
 
-                    if (this.mqttEndpoint.isCleanSession()) {
+        });
 
-                        // sending AMQP_CLOSE
-                        AmqpCloseMessage amqpCloseMessage =
-                                new AmqpCloseMessage(this.mqttEndpoint.clientIdentifier());
+        // AMQP_WILL and AMQP_CLOSE/AMQP_LIST are handled by different services,
+        // so they are sent at same time without waiting for each other
+        Future<ProtonDelivery> willFuture = this.sendWill();
+        Future<AmqpSubscriptionsMessage> sessionFuture = this.sendSession();
 
-                        this.ssEndpoint.sendClose(amqpCloseMessage, closeAsyncResult -> {
+        Future<AmqpSubscriptionsMessage> stepsFuture = Future.future();
+        CompositeFuture.all(willFuture, sessionFuture).setHandler(ar -> {
 
-                            // in case of AMQP_CLOSE, the connection completes on its disposition
-                            // no other AMQP message will be delivered by Subscription Service (i.e. AMQP_SUBSCRIPTIONS)
-                            if (closeAsyncResult.succeeded()) {
-                                connectionFuture.complete();
-                            }
-                        });
+            if (ar.succeeded()) {
+                stepsFuture.tryComplete(sessionFuture.result());
+            } else {
+                stepsFuture.tryFail(ar.cause());
+            }
+        });
 
-                    } else {
+        if (this.options.isEarlyConnack() &&
+                this.mqttEndpoint.isCleanSession() && !this.mqttEndpoint.will().isWillFlag()) {
 
-                        // sending AMQP_LIST
-                        AmqpListMessage amqpListMessage =
-                                new AmqpListMessage(this.mqttEndpoint.clientIdentifier());
+            // clean session without will : there is nothing to get from the services before
+            // the CONNACK and the following requests go on the same link after the AMQP_CLOSE,
+            // so the client is accepted now and closed if the AMQP_CLOSE fails
+            connectionFuture.complete();
 
-                        this.ssEndpoint.sendList(amqpListMessage, sessionFuture.completer());
+            stepsFuture.setHandler(ar -> {
+
+                if (ar.failed()) {
+
+                    LOG.error("Error on AMQP_CLOSE for MQTT client {}", this.mqttEndpoint.clientIdentifier(), ar.cause());
+                    if (this.mqttEndpoint.isConnected()) {
+                        this.mqttEndpoint.close();
                     }
+                }
+            });
 
-                    return sessionFuture;
+        } else {
 
-                }).compose(v -> {
-                    // nothing here !??
-                }, connectionFuture);
+            stepsFuture.setHandler(connectionFuture.completer());
+        }
 
-                // timeout for the overall connection process
-                vertx.setTimer(AMQP_SERVICES_CONNECTION_TIMEOUT, timer -> {
-                   if (!connectionFuture.isComplete()) {
-                       connectionFuture.fail("Timeout on connecting to AMQP services");
-                   }
-                });
+        // timeout for the overall connection process
+        vertx.setTimer(AMQP_SERVICES_CONNECTION_TIMEOUT, timer -> {
+           stepsFuture.tryFail("Timeout on connecting to AMQP services");
+        });
+    }
 
-            } else {
+    /**
+     * Send the AMQP_WILL to the Last Will and Testament Service, if the MQTT client has specified the will
+     *
+     * @return  Future completed on the AMQP_WILL disposition (or immediately without will)
+     */
+    private Future<ProtonDelivery> sendWill() {
+
+        Future<ProtonDelivery> willFuture = Future.future();
+        // if remote MQTT has specified the will
+        if (this.mqttEndpoint.will().isWillFlag()) {
+
+            // sending AMQP_WILL
+            MqttWill will = this.mqttEndpoint.will();
+
+            AmqpWillMessage amqpWillMessage =
+                    new AmqpWillMessage(will.isWillRetain(),
+                            will.willTopic(),
+                            MqttQoS.valueOf(will.willQos()),
+                            Buffer.buffer(will.willMessage()));
+
+            // specified link name for the Last Will and Testament Service as MQTT clientid
+            ProtonLinkOptions linkOptions = new ProtonLinkOptions();
+            linkOptions.setLinkName(this.mqttEndpoint.clientIdentifier());
+
+            // setup and open AMQP endpoints to Last Will and Testament Service
+            // to the partition of the service owning the client
+            String lwtAddress = LwtPartitions.address(this.mqttEndpoint.clientIdentifier(), this.options.getLwtPartitions());
+            ProtonSender wsSender = this.attributed(this.session.createSender(lwtAddress, linkOptions));
+            this.lwtEndpoint = new AmqpLwtServiceEndpoint(wsSender);
+
+            this.lwtEndpoint.open();
+            this.lwtEndpoint.sendWill(amqpWillMessage, willFuture.completer());
+
+        } else {
+
+            // otherwise just complete the Future
+            willFuture.complete();
+        }
+        return willFuture;
+    }
 
-                LOG.error("Error connecting to AMQP services ...", done.cause());
-                if (done.cause() instanceof SecurityException) {
-                    // error on the SASL mechanism side
-                    this.mqttEndpoint.reject(MqttConnectReturnCode.CONNECTION_REFUSED_NOT_AUTHORIZED);
+    /**
+     * Send the AMQP_CLOSE or AMQP_LIST (based on "clean session" flag) to the Subscription Service
+     *
+     * @return  Future completed on the AMQP_CLOSE disposition (without subscriptions)
+     *          or on the AMQP_SUBSCRIPTIONS reply to the AMQP_LIST
+     */
+    private Future<AmqpSubscriptionsMessage> sendSession() {
+
+        Future<AmqpSubscriptionsMessage> sessionFuture = Future.future();
+
+        if (this.mqttEndpoint.isCleanSession()) {
+
+            // sending AMQP_CLOSE
+            AmqpCloseMessage amqpCloseMessage =
+                    new AmqpCloseMessage(this.mqttEndpoint.clientIdentifier());
+
+            this.ssEndpoint.sendClose(amqpCloseMessage, closeAsyncResult -> {
+
+                // in case of AMQP_CLOSE, the session step completes on its disposition
+                // no other AMQP message will be delivered by Subscription Service (i.e. AMQP_SUBSCRIPTIONS)
+                if (closeAsyncResult.succeeded()) {
+                    sessionFuture.tryComplete();
                 } else {
-                    // no connection with the AMQP side
-                    this.mqttEndpoint.reject(MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE);
+                    sessionFuture.tryFail(closeAsyncResult.cause());
                 }
+            });
+
+        } else {
 
-                openHandler.handle(Future.failedFuture(done.cause()));
+            // handling AMQP_SUBSCRIPTIONS reply from Subscription Service
+            // on the unique client control address, attached just for it
+            this.rcvEndpoint.openControl();
+            this.rcvEndpoint.subscriptionsHandler(amqpSubscriptionsMessage -> {
 
-                LOG.info("CONNACK to MQTT client {}", this.mqttEndpoint.clientIdentifier());
-            }
+                LOG.info("Session present: {}", !amqpSubscriptionsMessage.topicSubscriptions().isEmpty());
+                LOG.info(amqpSubscriptionsMessage.toString());
 
-        });
+                sessionFuture.tryComplete(amqpSubscriptionsMessage);
+            });
 
+            // sending AMQP_LIST
+            AmqpListMessage amqpListMessage =
+                    new AmqpListMessage(this.mqttEndpoint.clientIdentifier());
+
+            this.ssEndpoint.sendList(amqpListMessage, listAsyncResult -> {
+
+                // the session step completes on the AMQP_SUBSCRIPTIONS reply, just a failure here
+                if (listAsyncResult.failed()) {
+                    sessionFuture.tryFail(listAsyncResult.cause());
+                }
+            });
+        }
+        return sessionFuture;
+    }
+
+    /**
+     * Handle a failure on getting the connection to the AMQP services
+     *
+     * @param cause cause of the failure
+     * @param openHandler   handler called when the open is completed (with success or not)
+     */
+    private void handleConnectionFailure(Throwable cause, Handler<AsyncResult<AmqpBridge>> openHandler) {
+
+        LOG.error("Error connecting to AMQP services ...", cause);
+        if (cause instanceof SecurityException) {
+            // error on the SASL mechanism side
+            this.mqttEndpoint.reject(MqttConnectReturnCode.CONNECTION_REFUSED_NOT_AUTHORIZED);
+        } else {
+            // no connection with the AMQP side
+            this.mqttEndpoint.reject(MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE);
+        }
+
+        openHandler.handle(Future.failedFuture(cause));
+
+        LOG.info("CONNACK to MQTT client {}", this.mqttEndpoint.clientIdentifier());
     }
 
     /**
@@ -293,10 +526,84 @@ public class AmqpBridge {
         this.rcvEndpoint.close();
         this.pubEndpoint.close();
 
-        this.connection.close();
+        if (this.connectionPool != null) {
+            // the connection is shared with other bridges, just the session is closed
+            this.session.close();
+            this.connectionPool.release(this.connection, this.connectionLostHandler);
+        } else {
+            this.connection.close();
+        }
 
         if (this.grantedQoSLevels != null)
             this.grantedQoSLevels.clear();
+
+        if (this.sharedSubscriptions != null)
+            this.sharedSubscriptions.unsubscribeAll(this);
+
+        // the messages not acknowledged and the queued ones will never get to the "clean session" client,
+        // they don't hold the acceptance at the source anymore
+        if (this.sharedInFlight != null) {
+            this.sharedInFlight.forEach(inFlight -> inFlight.delivery.settled());
+            this.sharedInFlight.clear();
+        }
+
+        if (this.sharedQueue != null) {
+            if (!this.sharedQueue.isEmpty()) {
+                this.metrics.sharedDropped(this.sharedQueue.size());
+                this.sharedQueue.forEach(queued -> queued.delivery.settled());
+            }
+            this.sharedQueue = null;
+        }
+
+        if (this.rateLimit != null) {
+            this.rateLimiter.unregister(this.rateLimit);
+            this.rateLimit = null;
+        }
+
+        if (this.rateLimitResume != null) {
+            this.rateLimitResume.cancel();
+            this.rateLimitResume = null;
+        }
+
+        // the socket is closed, the client isn't paused anymore whatever the reason was
+        if (this.paused) {
+            this.paused = false;
+            this.metrics.clientPaused(-1);
+        }
+
+        // PUBLISH messages never acknowledged aren't in flight anymore
+        this.publishesIn.forEach(qos -> this.metrics.inFlight(qos, -1));
+        this.publishesIn.clear();
+    }
+
+    /**
+     * Detach the publishers not used for more than the idle timeout
+     *
+     * @param now   current time in ns
+     */
+    public void evictIdlePublishers(long now) {
+
+        if (this.pubEndpoint != null) {
+            this.pubEndpoint.evictIdlePublishers(now);
+        }
+    }
+
+    /**
+     * Release the memory for tracking the deliveries if there are none in flight,
+     * it's allocated again when the MQTT client is active
+     */
+    public void trim() {
+
+        if (this.rcvEndpoint != null) {
+            this.rcvEndpoint.trim();
+        }
+        if (this.pubEndpoint != null) {
+            this.pubEndpoint.trim();
+        }
+        if (this.sharedInFlight != null) {
+            this.sharedInFlight.trim();
+        }
+        this.publishesIn.trim();
     }
 
     /**
@@ -306,18 +613,27 @@ public class AmqpBridge {
      */
     private void publishHandler(MqttPublishMessage publish) {
 
-        LOG.info("PUBLISH [{}] from MQTT client {}", publish.messageId(), this.mqttEndpoint.clientIdentifier());
+        LOG.debug("PUBLISH [{}] from MQTT client {}", publish.messageId(), this.mqttEndpoint.clientIdentifier());
+
+        this.metrics.messageIn(publish.payload().length());
+
+        if (this.rateLimit != null && !this.checkRateLimit(publish)) {
+            return;
+        }
+
+        this.publishStarted(publish.qosLevel(), publish.messageId());
 
         // TODO: simple way, without considering wildcards
 
         // check if a publisher already exists for the requested topic
         if (!this.pubEndpoint.isPublisher(publish.topicName())) {
 
-            // create two sender for publishing QoS 0/1 and QoS 2 messages
-            ProtonSender senderQoS01 = this.connection.createSender(publish.topicName());
-            ProtonSender senderQoS2 = this.connection.createSender(publish.topicName());
+            // create the senders for publishing QoS 0 (pre-settled), QoS 1 and QoS 2 messages
+            ProtonSender senderQoS0 = this.attributed(this.session.createSender(publish.topicName()));
+            ProtonSender senderQoS1 = this.attributed(this.session.createSender(publish.topicName()));
+            ProtonSender senderQoS2 = this.attributed(this.session.createSender(publish.topicName()));
 
-            this.pubEndpoint.addPublisher(publish.topicName(), new AmqpPublisher(senderQoS01, senderQoS2));
+            this.pubEndpoint.addPublisher(publish.topicName(), new AmqpPublisher(senderQoS0, senderQoS1, senderQoS2));
         }
 
         // sending AMQP_PUBLISH
@@ -339,19 +655,87 @@ public class AmqpBridge {
                     if (publish.qosLevel() == MqttQoS.AT_LEAST_ONCE) {
 
                         this.mqttEndpoint.publishAcknowledge((int) amqpPublishMessage.messageId());
-                        LOG.info("PUBACK [{}] to MQTT client {}", amqpPublishMessage.messageId(), this.mqttEndpoint.clientIdentifier());
+                        LOG.debug("PUBACK [{}] to MQTT client {}", amqpPublishMessage.messageId(), this.mqttEndpoint.clientIdentifier());
+
+                        this.publishCompleted(MqttQoS.AT_LEAST_ONCE, (int) amqpPublishMessage.messageId(), true);
                     } else {
 
                         this.mqttEndpoint.publishReceived((int) amqpPublishMessage.messageId());
-                        LOG.info("PUBREC [{}] to MQTT client {}", amqpPublishMessage.messageId(), this.mqttEndpoint.clientIdentifier());
+                        LOG.debug("PUBREC [{}] to MQTT client {}", amqpPublishMessage.messageId(), this.mqttEndpoint.clientIdentifier());
                     }
 
                 }
+            } else {
+
+                // not acknowledged to the MQTT client, it's up to the client re-sending the PUBLISH
+                this.publishCompleted(publish.qosLevel(), (int) amqpPublishMessage.messageId(), false);
             }
 
         });
     }
 
+    /**
+     * Account the PUBLISH message in the rate limit of the MQTT client
+     *
+     * @param publish   PUBLISH message
+     * @return  if the message has to be published
+     */
+    private boolean checkRateLimit(MqttPublishMessage publish) {
+
+        long now = System.nanoTime();
+
+        if (this.rateLimiter.policy() == RateLimitPolicy.THROTTLE) {
+
+            // the message is already read so it's published anyway, the MQTT client
+            // is slowed down at TCP level until it's back in budget
+            long delay = this.rateLimit.acquire(publish.payload().length(), now);
+            if (delay > 0 && this.rateLimitResume == null) {
+
+                LOG.debug("Throttled MQTT client {} for {} ms", this.mqttEndpoint.clientIdentifier(), TimeUnit.NANOSECONDS.toMillis(delay));
+                this.metrics.rateLimitThrottled();
+                this.rateLimitResume = this.rateLimiter.schedule(delay, this::rateLimitResumeHandler);
+                this.updatePaused();
+            }
+            return true;
+        }
+
+        if (this.rateLimit.tryAcquire(publish.payload().length(), now)) {
+            return true;
+        }
+
+        if (publish.qosLevel() == MqttQoS.AT_MOST_ONCE) {
+
+            LOG.debug("PUBLISH [{}] from MQTT client {} dropped : over the rate limit", publish.messageId(), this.mqttEndpoint.clientIdentifier());
+            this.metrics.rateLimitDropped();
+        } else {
+
+            // a QoS 1/2 message can't be dropped without breaking the delivery guarantee
+            LOG.warn("MQTT client {} disconnected : over the rate limit", this.mqttEndpoint.clientIdentifier());
+            this.metrics.rateLimitDisconnected();
+            this.mqttEndpoint.close();
+        }
+        return false;
+    }
+
+    /**
+     * Handler called when the MQTT client throttled by the rate limit could be back in budget
+     *
+     * @param v
+     */
+    private void rateLimitResumeHandler(Void v) {
+
+        // other messages could have been read before the pause
+        long delay = (this.rateLimit != null) ? this.rateLimit.delay(System.nanoTime()) : 0;
+        if (delay > 0) {
+            this.rateLimitResume = this.rateLimiter.schedule(delay, this::rateLimitResumeHandler);
+            return;
+        }
+        this.rateLimitResume = null;
+
+        // still paused while too many messages are waiting for a disposition
+        this.updatePaused();
+    }
+
     /**
      * Handler for incoming AMQP_PUBLISH message
      *
@@ -365,27 +749,26 @@ public class AmqpBridge {
         // see https://github.com/EnMasseProject/subserv/issues/8
 
         // try to get subscribed topic (that could have wildcards) that matches the publish topic
-        String topic = (this.grantedQoSLevels.size() == 0) ? null :
-                TopicMatcher.match(this.grantedQoSLevels.keySet().stream().collect(Collectors.toList()), publish.topic());
+        TopicTrie.Node subscription = this.grantedQoSLevels.match(publish.topic());
 
-        if (topic != null) {
+        if (subscription != null) {
 
             // MQTT 3.1.1 spec :  The QoS of Payload Messages sent in response to a Subscription MUST be
             // the minimum of the QoS of the originally published message and the maximum QoS granted by the Server
-            MqttQoS qos = (publish.qos().value() < this.grantedQoSLevels.get(topic).value()) ?
+            MqttQoS qos = (publish.qos().value() < subscription.qos().value()) ?
                     publish.qos() :
-                    this.grantedQoSLevels.get(topic);
+                    subscription.qos();
 
             this.mqttEndpoint.publish(publish.topic(), publish.payload(), qos, publish.isDup(), publish.isRetain());
             // the the message identifier assigned to the published message
-            amqpPublishData.setMessageId(this.mqttEndpoint.lastMessageId());
+            // (for QoS 0, the message is settled immediately)
+            amqpPublishData
+                    .setMessageId(this.mqttEndpoint.lastMessageId())
+                    .setQos(qos);
 
-            LOG.info("PUBLISH [{}] to MQTT client {}", this.mqttEndpoint.lastMessageId(), this.mqttEndpoint.clientIdentifier());
+            this.metrics.messageOut(publish.payload().length());
 
-            // for QoS 0, message settled immediately
-            if (qos == MqttQoS.AT_MOST_ONCE) {
-                this.rcvEndpoint.settle(amqpPublishData.messageId());
-            }
+            LOG.debug("PUBLISH [{}] to MQTT client {}", this.mqttEndpoint.lastMessageId(), this.mqttEndpoint.clientIdentifier());
 
         } else {
 
@@ -393,6 +776,172 @@ public class AmqpBridge {
         }
     }
 
+    /**
+     * Publish a message received on a shared subscription to the MQTT client
+     *
+     * @param publish   AMQP_PUBLISH message (the same for all the subscribers)
+     * @param grantedQoS    QoS level granted to the MQTT client on the shared topic filter
+     * @param delivery  delivery at the source, settled by the client acknowledging a QoS 1/2 message
+     */
+    void publishShared(AmqpPublishMessage publish, MqttQoS grantedQoS, SharedSubscriptions.SharedDelivery delivery) {
+
+        if (!this.mqttEndpoint.isConnected()) {
+            return;
+        }
+
+        // the QoS is downgraded to the granted one as for the messages from the client publish address
+        MqttQoS qos = (publish.qos().value() < grantedQoS.value()) ?
+                publish.qos() :
+                grantedQoS;
+
+        if (qos != MqttQoS.AT_MOST_ONCE) {
+
+            if (this.sharedInFlight == null) {
+                this.sharedInFlight = new InFlightWindow<>(this.options.getMaxInFlight());
+            }
+
+            // the shared receiver doesn't wait for a single slow client : the message is queued for it, in order
+            // after the ones already queued, and sent when an acknowledgement frees a slot in the window
+            if (this.sharedInFlight.free() == 0 || (this.sharedQueue != null && !this.sharedQueue.isEmpty())) {
+
+                if (this.sharedQueue == null) {
+                    this.sharedQueue = new ArrayDeque<>();
+                }
+
+                if (this.sharedQueue.size() < this.options.getMaxInFlight()) {
+                    delivery.retain();
+                    this.sharedQueue.add(new SharedPublish(publish, qos, delivery));
+                    this.metrics.sharedQueued();
+                    return;
+                }
+
+                // a QoS 1/2 message can't be dropped without breaking the delivery guarantee, the client is disconnected
+                LOG.warn("Shared message on {} not delivered : too many in flight and queued for MQTT client {}, disconnecting",
+                        publish.topic(), this.mqttEndpoint.clientIdentifier());
+                this.metrics.sharedDropped(this.sharedQueue.size() + 1);
+                this.sharedQueue.forEach(queued -> queued.delivery.settled());
+                this.sharedQueue.clear();
+                this.mqttEndpoint.close();
+                return;
+            }
+
+            delivery.retain();
+        }
+
+        this.publishShared(new SharedPublish(publish, qos, delivery));
+    }
+
+    /**
+     * Send a message from the shared subscriptions to the MQTT client
+     *
+     * @param shared    message with the QoS level for the MQTT client
+     */
+    private void publishShared(SharedPublish shared) {
+
+        AmqpPublishMessage publish = shared.publish;
+
+        this.mqttEndpoint.publish(publish.topic(), publish.payload(), shared.qos, publish.isDup(), publish.isRetain());
+        if (shared.qos != MqttQoS.AT_MOST_ONCE) {
+            this.sharedInFlight.put(this.mqttEndpoint.lastMessageId(), shared);
+        }
+
+        this.metrics.messageOut(publish.payload().length());
+
+        LOG.debug("PUBLISH [{}] to MQTT client {} (shared)", this.mqttEndpoint.lastMessageId(), this.mqttEndpoint.clientIdentifier());
+    }
+
+    /**
+     * Send the queued messages from the shared subscriptions while there are free slots in the window
+     */
+    private void drainShared() {
+
+        while (this.sharedQueue != null && !this.sharedQueue.isEmpty() &&
+                this.sharedInFlight.free() > 0 && this.mqttEndpoint.isConnected()) {
+
+            this.publishShared(this.sharedQueue.poll());
+        }
+    }
+
+    /**
+     * Settle a message from the shared subscriptions acknowledged by the MQTT client
+     *
+     * @param messageId message identifier
+     * @return  if the message was from the shared subscriptions
+     */
+    private boolean settleShared(int messageId) {
+
+        SharedPublish shared = (this.sharedInFlight != null) ? this.sharedInFlight.remove(messageId) : null;
+        if (shared != null) {
+            shared.delivery.settled();
+            this.drainShared();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * If a topic filter requested by the MQTT client is subscribed through the shared subscriptions.
+     * Only "clean session" clients use them, the other subscriptions are stored by the Subscription Service
+     *
+     * @param topicFilter   topic filter
+     * @return
+     */
+    private boolean isShared(String topicFilter) {
+
+        return (this.sharedSubscriptions != null) &&
+                this.mqttEndpoint.isCleanSession() &&
+                this.sharedSubscriptions.isShared(topicFilter);
+    }
+
+    /**
+     * Handler called when too many messages published by the MQTT client are waiting for a disposition
+     *
+     * @param v
+     */
+    private void publishPauseHandler(Void v) {
+
+        // the MQTT client is slowed down at TCP level, no more PUBLISH read from the socket
+        this.updatePaused();
+    }
+
+    /**
+     * Handler called when the messages published by the MQTT client waiting for a disposition go down
+     *
+     * @param v
+     */
+    private void publishResumeHandler(Void v) {
+
+        // still paused while the MQTT client is throttled by the rate limit
+        this.updatePaused();
+    }
+
+    /**
+     * Pause or resume reading from the MQTT client socket, which is paused while too many
+     * messages are waiting for a disposition or while the client is throttled by the rate limit.
+     * The paused clients gauge changes only when the socket does
+     */
+    private void updatePaused() {
+
+        boolean pause = this.pubEndpoint.isPaused() || this.rateLimitResume != null;
+        if (pause == this.paused) {
+            return;
+        }
+
+        if (pause ? MqttEndpointFlowControl.pause(this.mqttEndpoint) : MqttEndpointFlowControl.resume(this.mqttEndpoint)) {
+            LOG.debug("{} MQTT client {}", pause ? "Paused" : "Resumed", this.mqttEndpoint.clientIdentifier());
+            this.paused = pause;
+            this.metrics.clientPaused(pause ? 1 : -1);
+        }
+    }
+
+    /**
+     * If reading from the MQTT client socket is paused
+     * @return
+     */
+    boolean isPaused() {
+        return this.paused;
+    }
+
     /**
      * Handler for incoming AMQP_PUBREL message
      *
@@ -402,7 +951,7 @@ public class AmqpBridge {
 
         this.mqttEndpoint.publishRelease((int) pubrel.messageId());
 
-        LOG.info("PUBREL [{}] to MQTT client {}", pubrel.messageId(), this.mqttEndpoint.clientIdentifier());
+        LOG.debug("PUBREL [{}] to MQTT client {}", pubrel.messageId(), this.mqttEndpoint.clientIdentifier());
     }
 
     /**
@@ -414,16 +963,61 @@ public class AmqpBridge {
 
         LOG.info("SUBSCRIBE [{}] from MQTT client {}", subscribe.messageId(), this.mqttEndpoint.clientIdentifier());
 
-        // sending AMQP_SUBSCRIBE
+        // granted QoS levels in the same order of the requested topic subscriptions
+        List<MqttTopicSubscription> requested = subscribe.topicSubscriptions();
+        List<MqttQoS> grantedQoSLevels = new ArrayList<>(Collections.nCopies(requested.size(), MqttQoS.FAILURE));
+
+        List<Future> steps = new ArrayList<>();
+
+        // topic subscriptions for the Subscription Service, with their position in the request
+        List<AmqpTopicSubscription> topicSubscriptions = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
 
-        List<AmqpTopicSubscription> topicSubscriptions =
-                subscribe.topicSubscriptions().stream().map(topicSubscription -> {
-                    return new AmqpTopicSubscription(topicSubscription.topicName(), topicSubscription.qualityOfService());
-                }).collect(Collectors.toList());
+        for (int i = 0; i < requested.size(); i++) {
+
+            MqttTopicSubscription topicSubscription = requested.get(i);
+            if (this.isShared(topicSubscription.topicName())) {
+                steps.add(this.subscribeShared(topicSubscription.topicName(), topicSubscription.qualityOfService(), grantedQoSLevels, i));
+            } else {
+                topicSubscriptions.add(new AmqpTopicSubscription(topicSubscription.topicName(), topicSubscription.qualityOfService()));
+                positions.add(i);
+            }
+        }
+
+        if (!topicSubscriptions.isEmpty()) {
+            steps.add(this.sendSubscribe(subscribe.messageId(), topicSubscriptions, positions, grantedQoSLevels));
+        }
+
+        CompositeFuture.all(steps).setHandler(ar -> {
+
+            if (ar.succeeded()) {
+
+                this.mqttEndpoint.subscribeAcknowledge(subscribe.messageId(), grantedQoSLevels);
+
+                LOG.info("SUBACK [{}] to MQTT client {}", subscribe.messageId(), this.mqttEndpoint.clientIdentifier());
+            }
+        });
+    }
+
+    /**
+     * Send the AMQP_SUBSCRIBE to the Subscription Service
+     *
+     * @param messageId message identifier of the SUBSCRIBE
+     * @param topicSubscriptions    topic subscriptions to send
+     * @param positions position of every topic subscription in the SUBSCRIBE
+     * @param grantedQoSLevels  granted QoS levels (updated with the ones of the sent topic subscriptions)
+     * @return  Future completed on the AMQP_SUBSCRIBE disposition
+     */
+    private Future<Void> sendSubscribe(int messageId, List<AmqpTopicSubscription> topicSubscriptions,
+                                       List<Integer> positions, List<MqttQoS> grantedQoSLevels) {
+
+        Future<Void> subscribeFuture = Future.future();
+
+        // sending AMQP_SUBSCRIBE
 
         AmqpSubscribeMessage amqpSubscribeMessage =
                 new AmqpSubscribeMessage(this.mqttEndpoint.clientIdentifier(),
-                        subscribe.messageId(),
+                        messageId,
                         topicSubscriptions);
 
         this.ssEndpoint.sendSubscribe(amqpSubscribeMessage, done -> {
@@ -432,30 +1026,53 @@ public class AmqpBridge {
 
                 ProtonDelivery delivery = done.result();
 
-                List<MqttQoS> grantedQoSLevels = null;
                 if (delivery.getRemoteState() == Accepted.getInstance()) {
 
                     // QoS levels requested are granted
-                    grantedQoSLevels = amqpSubscribeMessage.topicSubscriptions().stream().map(topicSubscription -> {
-                        return topicSubscription.qos();
-                    }).collect(Collectors.toList());
+                    // and accepted topic subscriptions added to the local collection
+                    for (int i = 0; i < topicSubscriptions.size(); i++) {
 
-                    // add accepted topic subscriptions to the local collection
-                    amqpSubscribeMessage.topicSubscriptions().stream().forEach(amqpTopicSubscription -> {
+                        AmqpTopicSubscription amqpTopicSubscription = topicSubscriptions.get(i);
+                        grantedQoSLevels.set(positions.get(i), amqpTopicSubscription.qos());
                         this.grantedQoSLevels.put(amqpTopicSubscription.topic(), amqpTopicSubscription.qos());
-                    });
+                    }
+                }
+                // otherwise failure for all QoS levels requested
 
-                } else {
+                subscribeFuture.complete();
+            } else {
+                subscribeFuture.fail(done.cause());
+            }
+        });
 
-                    // failure for all QoS levels requested
-                    grantedQoSLevels = new ArrayList<>(Collections.nCopies(amqpSubscribeMessage.topicSubscriptions().size(), MqttQoS.FAILURE));
-                }
+        return subscribeFuture;
+    }
 
-                this.mqttEndpoint.subscribeAcknowledge((int) amqpSubscribeMessage.messageId(), grantedQoSLevels);
+    /**
+     * Subscribe to a topic filter through the shared subscriptions
+     *
+     * @param topicFilter   shared topic filter
+     * @param qos   requested QoS level
+     * @param grantedQoSLevels  granted QoS levels (updated with the one of the shared topic filter)
+     * @param position  position of the topic subscription in the SUBSCRIBE
+     * @return  Future completed when the subscription is done (with success or not)
+     */
+    private Future<Void> subscribeShared(String topicFilter, MqttQoS qos, List<MqttQoS> grantedQoSLevels, int position) {
 
-                LOG.info("SUBACK [{}] to MQTT client {}", amqpSubscribeMessage.messageId(), this.mqttEndpoint.clientIdentifier());
+        Future<Void> sharedFuture = Future.future();
+
+        this.sharedSubscriptions.subscribe(topicFilter, this, qos, done -> {
+
+            if (done.succeeded()) {
+                grantedQoSLevels.set(position, qos);
+            } else {
+                LOG.error("Error on shared subscription {} for MQTT client {}", topicFilter, this.mqttEndpoint.clientIdentifier(), done.cause());
+                this.sharedSubscriptions.unsubscribe(topicFilter, this);
             }
+            sharedFuture.complete();
         });
+
+        return sharedFuture;
     }
 
     /**
@@ -467,12 +1084,31 @@ public class AmqpBridge {
 
         LOG.info("UNSUBSCRIBE [{}] from MQTT client {}", unsubscribe.messageId(), this.mqttEndpoint.clientIdentifier());
 
+        // shared topic filters are just removed locally
+        List<String> topics = new ArrayList<>();
+        for (String topic : unsubscribe.topics()) {
+
+            if (this.isShared(topic)) {
+                this.sharedSubscriptions.unsubscribe(topic, this);
+            } else {
+                topics.add(topic);
+            }
+        }
+
+        if (topics.isEmpty()) {
+
+            this.mqttEndpoint.unsubscribeAcknowledge(unsubscribe.messageId());
+
+            LOG.info("UNSUBACK [{}] to MQTT client {}", unsubscribe.messageId(), this.mqttEndpoint.clientIdentifier());
+            return;
+        }
+
         // sending AMQP_UNSUBSCRIBE
 
         AmqpUnsubscribeMessage amqpUnsubscribeMessage =
                 new AmqpUnsubscribeMessage(this.mqttEndpoint.clientIdentifier(),
                         unsubscribe.messageId(),
-                        unsubscribe.topics());
+                        topics);
 
         this.ssEndpoint.sendUnsubscribe(amqpUnsubscribeMessage, done -> {
 
@@ -481,7 +1117,7 @@ public class AmqpBridge {
                 this.mqttEndpoint.unsubscribeAcknowledge((int) amqpUnsubscribeMessage.messageId());
 
                 // removing topics from local collection
-                unsubscribe.topics().stream().forEach(topic -> {
+                topics.stream().forEach(topic -> {
 
                     this.grantedQoSLevels.remove(topic);
                 });
@@ -527,11 +1163,13 @@ public class AmqpBridge {
      */
     private void pubackHandler(int messageId) {
 
-        LOG.info("PUBACK [{}] from MQTT client {}", messageId, this.mqttEndpoint.clientIdentifier());
+        LOG.debug("PUBACK [{}] from MQTT client {}", messageId, this.mqttEndpoint.clientIdentifier());
 
         // a PUBLISH message with QoS 1 was sent to remote MQTT client (not settled yet at source)
-        // now PUBACK is received so it's time to settle
-        this.rcvEndpoint.settle(messageId);
+        // now PUBACK is received so it's time to settle (for the shared subscriptions, once all the subscribers did)
+        if (!this.settleShared(messageId)) {
+            this.rcvEndpoint.settle(messageId);
+        }
     }
 
     /**
@@ -541,7 +1179,7 @@ public class AmqpBridge {
      */
     private void pubrelHandler(int messageId) {
 
-        LOG.info("PUBREL [{}] from MQTT client {}", messageId, this.mqttEndpoint.clientIdentifier());
+        LOG.debug("PUBREL [{}] from MQTT client {}", messageId, this.mqttEndpoint.clientIdentifier());
 
         // a PUBLISH message with QoS 2 was received from remote MQTT client, PUBREC was already sent
         // as reply, now that PUBREL is coming it's time to settle and reply with PUBCOMP
@@ -549,7 +1187,9 @@ public class AmqpBridge {
 
         this.mqttEndpoint.publishComplete(messageId);
 
-        LOG.info("PUBCOMP [{}] to MQTT client {}", messageId, this.mqttEndpoint.clientIdentifier());
+        LOG.debug("PUBCOMP [{}] to MQTT client {}", messageId, this.mqttEndpoint.clientIdentifier());
+
+        this.publishCompleted(MqttQoS.EXACTLY_ONCE, messageId, true);
     }
 
     /**
@@ -559,7 +1199,15 @@ public class AmqpBridge {
      */
     private void pubrecHandler(int messageId) {
 
-        LOG.info("PUBREC [{}] from MQTT client {}", messageId, this.mqttEndpoint.clientIdentifier());
+        LOG.debug("PUBREC [{}] from MQTT client {}", messageId, this.mqttEndpoint.clientIdentifier());
+
+        // a message from the shared subscriptions has no source to involve, the PUBREL is sent right away
+        if (this.sharedInFlight != null && this.sharedInFlight.get(messageId) != null) {
+
+            this.mqttEndpoint.publishRelease(messageId);
+            LOG.debug("PUBREL [{}] to MQTT client {}", messageId, this.mqttEndpoint.clientIdentifier());
+            return;
+        }
 
         AmqpPubrelMessage amqpPubrelMessage = new AmqpPubrelMessage(messageId);
 
@@ -579,12 +1227,51 @@ public class AmqpBridge {
      */
     private void pubcompHandler(int messageId) {
 
-        LOG.info("PUBCOMP [{}] from MQTT client {}", messageId, this.mqttEndpoint.clientIdentifier());
+        LOG.debug("PUBCOMP [{}] from MQTT client {}", messageId, this.mqttEndpoint.clientIdentifier());
 
         // a PUBLISH message with QoS 2 was sent to remote MQTT client (not settled yet at source)
         // then PUBREC was received. The corresponding PUBREL was sent (after PUBLISH settlement at source)
         // and now the PUBCOMP was received so it's time to settle
-        this.rcvEndpoint.settle(messageId);
+        if (!this.settleShared(messageId)) {
+            this.rcvEndpoint.settle(messageId);
+        }
+    }
+
+    /**
+     * Track a PUBLISH message received from the MQTT client which needs to be acknowledged
+     *
+     * @param qos   QoS level of the PUBLISH message
+     * @param messageId message identifier
+     */
+    private void publishStarted(MqttQoS qos, int messageId) {
+
+        if (qos == MqttQoS.AT_MOST_ONCE) {
+            return;
+        }
+        // a duplicated PUBLISH (re-sent by the client) is already in flight
+        if (this.publishesIn.putWithTime(messageId, qos, System.nanoTime()) == null) {
+            this.metrics.inFlight(qos, 1);
+        }
+    }
+
+    /**
+     * Complete the tracking of a PUBLISH message received from the MQTT client
+     *
+     * @param qos   QoS level of the PUBLISH message
+     * @param messageId message identifier
+     * @param acknowledged  if the PUBLISH was acknowledged (with PUBACK or PUBCOMP) to the MQTT client
+     */
+    private void publishCompleted(MqttQoS qos, int messageId, boolean acknowledged) {
+
+        if (this.publishesIn.get(messageId) != qos) {
+            return;
+        }
+        long start = this.publishesIn.time(messageId);
+        this.publishesIn.remove(messageId);
+        this.metrics.inFlight(qos, -1);
+        if (acknowledged) {
+            this.metrics.publishCompleted(qos, System.nanoTime() - start);
+        }
     }
 
     /**
@@ -612,21 +1299,31 @@ public class AmqpBridge {
         // NOTE : Last Will and Testament Service endpoint is opened only if MQTT client provides will information
         //        The receiver on the unique client publish address will be opened only after
         //        connection is established (and CONNACK sent to the MQTT client)
+        //        The receiver on the unique client control address is opened only for the AMQP_LIST
 
         // setup and open AMQP endpoint for receiving on unique client control/publish addresses
-        ProtonReceiver receiverControl = this.connection.createReceiver(String.format(AmqpReceiverEndpoint.CLIENT_CONTROL_ENDPOINT_TEMPLATE, this.mqttEndpoint.clientIdentifier()));
-        ProtonReceiver receiverPublish = this.connection.createReceiver(String.format(AmqpReceiverEndpoint.CLIENT_PUBLISH_ENDPOINT_TEMPLATE, this.mqttEndpoint.clientIdentifier()));
-        this.rcvEndpoint = new AmqpReceiverEndpoint(new AmqpReceiver(receiverControl, receiverPublish));
+        // (the receiver on the control address is created only for the AMQP_LIST)
+        String controlAddress = String.format(AmqpReceiverEndpoint.CLIENT_CONTROL_ENDPOINT_TEMPLATE, this.mqttEndpoint.clientIdentifier());
+        ProtonReceiver receiverPublish = this.attributed(this.session.createReceiver(String.format(AmqpReceiverEndpoint.CLIENT_PUBLISH_ENDPOINT_TEMPLATE, this.mqttEndpoint.clientIdentifier())));
+        this.rcvEndpoint = new AmqpReceiverEndpoint(new AmqpReceiver(() -> this.attributed(this.session.createReceiver(controlAddress)), receiverPublish), this.options.getMaxInFlight());
 
         // setup and open AMQP endpoint to Subscription Service
-        ProtonSender ssSender = this.connection.createSender(AmqpSubscriptionServiceEndpoint.SUBSCRIPTION_SERVICE_ENDPOINT);
-        this.ssEndpoint = new AmqpSubscriptionServiceEndpoint(ssSender);
+        // (after the connection steps, the link is attached again only for SUBSCRIBE/UNSUBSCRIBE requests)
+        this.ssEndpoint = new AmqpSubscriptionServiceEndpoint(() ->
+                this.attributed(this.session.createSender(AmqpSubscriptionServiceEndpoint.SUBSCRIPTION_SERVICE_ENDPOINT)));
 
         // setup and open AMQP endpoint for publishing
-        ProtonSender senderPubrel = this.connection.createSender(String.format(AmqpPublishEndpoint.AMQP_CLIENT_PUBREL_ENDPOINT_TEMPLATE, this.mqttEndpoint.clientIdentifier()));
-        this.pubEndpoint = new AmqpPublishEndpoint(senderPubrel);
+        // (the link for PUBREL is attached only for the first QoS 2 message to the MQTT client)
+        String pubrelAddress = String.format(AmqpPublishEndpoint.AMQP_CLIENT_PUBREL_ENDPOINT_TEMPLATE, this.mqttEndpoint.clientIdentifier());
+        this.pubEndpoint = new AmqpPublishEndpoint(() -> this.attributed(this.session.createSender(pubrelAddress)),
+                this.options.getMaxPublishers(), this.options.getPublisherIdleTimeout());
+        this.pubEndpoint.creditStallHandler(this.options.getCreditStallHandler());
+        this.pubEndpoint
+                .metrics(this.metrics)
+                .watermarks(this.options.getPublishHighWatermark(), this.options.getPublishLowWatermark())
+                .pauseHandler(this::publishPauseHandler)
+                .resumeHandler(this::publishResumeHandler);
 
-        this.rcvEndpoint.openControl();
         this.ssEndpoint.open();
         this.pubEndpoint.open();
     }
@@ -679,6 +1376,45 @@ public class AmqpBridge {
         }
     }
 
+    /**
+     * Handle session closed with remote AMQP container
+     *
+     * @param session   current ProtonSession instance
+     * @param result    result of remote session closing
+     */
+    private void handleRemoteSessionClose(ProtonSession session, AsyncResult<ProtonSession> result) {
+
+        // NOTE : on a shared connection, only the MQTT client related to this session is affected
+        if (result.succeeded()) {
+            LOG.info("AMQP session closed for client {}", this.mqttEndpoint.clientIdentifier());
+        } else {
+            LOG.info("AMQP session closed for client {} with error", this.mqttEndpoint.clientIdentifier(), result.cause());
+        }
+        session.close();
+
+        try {
+            this.mqttEndpoint.close();
+        } catch (IllegalStateException e) {
+            LOG.warn("MQTT endpoint for client {} already closed", this.mqttEndpoint.clientIdentifier());
+        }
+    }
+
+    /**
+     * Handle the loss of the shared connection with remote AMQP container
+     *
+     * @param connection    shared ProtonConnection instance
+     */
+    private void handleConnectionLost(ProtonConnection connection) {
+
+        LOG.info("Shared AMQP connection lost for client {}", this.mqttEndpoint.clientIdentifier());
+
+        try {
+            this.mqttEndpoint.close();
+        } catch (IllegalStateException e) {
+            LOG.warn("MQTT endpoint for client {} already closed", this.mqttEndpoint.clientIdentifier());
+        }
+    }
+
     /**
      * Handler disconnection with remote AMQP container
      *
@@ -705,4 +1441,21 @@ public class AmqpBridge {
         // just the MQTT client identifier
         return this.mqttEndpoint.clientIdentifier();
     }
+
+    /**
+     * Message from a shared subscription queued for (or in flight to) the MQTT client, with the
+     * QoS level granted to it and the delivery to settle at the source on the acknowledgement
+     */
+    private static class SharedPublish {
+
+        private final AmqpPublishMessage publish;
+        private final MqttQoS qos;
+        private final SharedSubscriptions.SharedDelivery delivery;
+
+        private SharedPublish(AmqpPublishMessage publish, MqttQoS qos, SharedSubscriptions.SharedDelivery delivery) {
+            this.publish = publish;
+            this.qos = qos;
+            this.delivery = delivery;
+        }
+    }
 }
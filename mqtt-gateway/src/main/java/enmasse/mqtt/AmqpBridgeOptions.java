@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.mqtt.endpoints.AmqpReceiverEndpoint;
+import enmasse.mqtt.lwt.LwtPartitions;
+import enmasse.mqtt.messages.AmqpPublishMessage;
+import enmasse.mqtt.metrics.GatewayMetrics;
+import enmasse.mqtt.metrics.NoopGatewayMetrics;
+import enmasse.mqtt.ratelimit.RateLimiter;
+import io.vertx.core.Handler;
+
+/**
+ * Options for the AMQP bridges, shared by all the bridges of an MQTT gateway instance
+ */
+public class AmqpBridgeOptions {
+
+    public static final int DEFAULT_MAX_PUBLISHERS = 64;
+    public static final long DEFAULT_PUBLISHER_IDLE_TIMEOUT = 60000; // in ms
+    public static final int DEFAULT_PUBLISH_HIGH_WATERMARK = 1000;
+    public static final int DEFAULT_PUBLISH_LOW_WATERMARK = 500;
+    public static final int DEFAULT_MAX_IN_FLIGHT = AmqpReceiverEndpoint.DEFAULT_MAX_IN_FLIGHT;
+
+    private int maxPublishers = DEFAULT_MAX_PUBLISHERS;
+    private long publisherIdleTimeout = DEFAULT_PUBLISHER_IDLE_TIMEOUT;
+    private int publishHighWatermark = DEFAULT_PUBLISH_HIGH_WATERMARK;
+    private int publishLowWatermark = DEFAULT_PUBLISH_LOW_WATERMARK;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int lwtPartitions = LwtPartitions.DEFAULT_PARTITIONS;
+    private boolean earlyConnack;
+    private int amqpMaxFrameSize;
+    private SharedSubscriptions sharedSubscriptions;
+    private RateLimiter rateLimiter;
+    private GatewayMetrics metrics = NoopGatewayMetrics.INSTANCE;
+    // shared by the bridges instead of a handler for each of them
+    private Handler<AmqpPublishMessage> creditStallHandler = this.creditStallHandler(this.metrics);
+
+    /**
+     * Max number of publishers (links on a topic) cached by a bridge
+     * @return
+     */
+    public int getMaxPublishers() {
+        return this.maxPublishers;
+    }
+
+    /**
+     * Set the max number of publishers (links on a topic) cached by a bridge.
+     * When the limit is reached, the least recently used publisher is detached
+     *
+     * @param maxPublishers max number of publishers (0 for no limit)
+     * @return  current AmqpBridgeOptions instance
+     */
+    public AmqpBridgeOptions setMaxPublishers(int maxPublishers) {
+        this.maxPublishers = maxPublishers;
+        return this;
+    }
+
+    /**
+     * Time after which an unused publisher is detached
+     * @return
+     */
+    public long getPublisherIdleTimeout() {
+        return this.publisherIdleTimeout;
+    }
+
+    /**
+     * Set the time after which an unused publisher is detached
+     *
+     * @param publisherIdleTimeout  idle timeout in ms (0 for no timeout)
+     * @return  current AmqpBridgeOptions instance
+     */
+    public AmqpBridgeOptions setPublisherIdleTimeout(long publisherIdleTimeout) {
+        this.publisherIdleTimeout = publisherIdleTimeout;
+        return this;
+    }
+
+    /**
+     * Messages published to AMQP, without a disposition yet, for pausing the MQTT client
+     * @return
+     */
+    public int getPublishHighWatermark() {
+        return this.publishHighWatermark;
+    }
+
+    /**
+     * Set the number of messages published to AMQP, without a disposition yet, for pausing
+     * reading from the MQTT client socket
+     *
+     * @param publishHighWatermark  high watermark (0 for no flow control)
+     * @return  current AmqpBridgeOptions instance
+     */
+    public AmqpBridgeOptions setPublishHighWatermark(int publishHighWatermark) {
+        this.publishHighWatermark = publishHighWatermark;
+        return this;
+    }
+
+    /**
+     * Messages published to AMQP, without a disposition yet, for resuming the MQTT client
+     * @return
+     */
+    public int getPublishLowWatermark() {
+        return this.publishLowWatermark;
+    }
+
+    /**
+     * Set the number of messages published to AMQP, without a disposition yet, for resuming
+     * reading from the MQTT client socket (after a pause)
+     *
+     * @param publishLowWatermark   low watermark
+     * @return  current AmqpBridgeOptions instance
+     */
+    public AmqpBridgeOptions setPublishLowWatermark(int publishLowWatermark) {
+        this.publishLowWatermark = publishLowWatermark;
+        return this;
+    }
+
+    /**
+     * Max number of messages published to the MQTT client not acknowledged yet
+     * @return
+     */
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    /**
+     * Set the max number of messages published to the MQTT client not acknowledged yet.
+     * It's the credit on the AMQP link for receiving the messages to publish
+     *
+     * @param maxInFlight   max number of in flight messages (1..65535)
+     * @return  current AmqpBridgeOptions instance
+     */
+    public AmqpBridgeOptions setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Number of partitions of the Last Will and Testament Service
+     * @return
+     */
+    public int getLwtPartitions() {
+        return this.lwtPartitions;
+    }
+
+    /**
+     * Set the number of partitions of the Last Will and Testament Service.
+     * The "will" of a client is sent to the partition owning the hash of its identifier
+     *
+     * @param lwtPartitions number of partitions (1 for a not partitioned service)
+     * @return  current AmqpBridgeOptions instance
+     */
+    public AmqpBridgeOptions setLwtPartitions(int lwtPartitions) {
+        this.lwtPartitions = lwtPartitions;
+        return this;
+    }
+
+    /**
+     * If the CONNACK is sent to "clean session" MQTT clients without will before the AMQP_CLOSE disposition
+     * @return
+     */
+    public boolean isEarlyConnack() {
+        return this.earlyConnack;
+    }
+
+    /**
+     * Set if the CONNACK is sent to "clean session" MQTT clients without will before the
+     * AMQP_CLOSE disposition. If the AMQP_CLOSE then fails, the MQTT client is disconnected
+     *
+     * @param earlyConnack  if the CONNACK is sent without waiting for the AMQP_CLOSE
+     * @return  current AmqpBridgeOptions instance
+     */
+    public AmqpBridgeOptions setEarlyConnack(boolean earlyConnack) {
+        this.earlyConnack = earlyConnack;
+        return this;
+    }
+
+    /**
+     * Max AMQP frame size for the dedicated connections (0 for the default one)
+     * @return
+     */
+    public int getAmqpMaxFrameSize() {
+        return this.amqpMaxFrameSize;
+    }
+
+    /**
+     * Set the max AMQP frame size for the dedicated connections. The AMQP transport of every
+     * connection holds input and output buffers of this size
+     *
+     * @param amqpMaxFrameSize  max frame size in bytes (0 for the default one)
+     * @return  current AmqpBridgeOptions instance
+     */
+    public AmqpBridgeOptions setAmqpMaxFrameSize(int amqpMaxFrameSize) {
+        this.amqpMaxFrameSize = amqpMaxFrameSize;
+        return this;
+    }
+
+    /**
+     * Subscriptions to topic filters shared by the bridges (null if not enabled)
+     * @return
+     */
+    public SharedSubscriptions getSharedSubscriptions() {
+        return this.sharedSubscriptions;
+    }
+
+    /**
+     * Set the subscriptions to topic filters shared by the bridges. The "clean session" MQTT clients
+     * subscribing to one of these topic filters get the messages from a single AMQP receiver
+     * on the gateway instance instead of the Subscription Service
+     *
+     * @param sharedSubscriptions   shared subscriptions (null for not sharing any topic filter)
+     * @return  current AmqpBridgeOptions instance
+     */
+    public AmqpBridgeOptions setSharedSubscriptions(SharedSubscriptions sharedSubscriptions) {
+        this.sharedSubscriptions = sharedSubscriptions;
+        return this;
+    }
+
+    /**
+     * Publish rate limiter shared by the bridges (null if not enabled)
+     * @return
+     */
+    public RateLimiter getRateLimiter() {
+        return this.rateLimiter;
+    }
+
+    /**
+     * Set the publish rate limiter shared by the bridges, providing the rate limit
+     * of every MQTT client and what to do when a client is over it
+     *
+     * @param rateLimiter   publish rate limiter (null for no rate limit)
+     * @return  current AmqpBridgeOptions instance
+     */
+    public AmqpBridgeOptions setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Metrics updated by the bridges
+     * @return
+     */
+    public GatewayMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Set the metrics updated by the bridges
+     *
+     * @param metrics   metrics shared by the bridges
+     * @return  current AmqpBridgeOptions instance
+     */
+    public AmqpBridgeOptions setMetrics(GatewayMetrics metrics) {
+        this.metrics = metrics;
+        this.creditStallHandler = this.creditStallHandler(metrics);
+        return this;
+    }
+
+    /**
+     * Handler for the messages to publish on an AMQP link without credit, shared by the bridges
+     * @return
+     */
+    public Handler<AmqpPublishMessage> getCreditStallHandler() {
+        return this.creditStallHandler;
+    }
+
+    private Handler<AmqpPublishMessage> creditStallHandler(GatewayMetrics metrics) {
+        return amqpPublishMessage -> metrics.creditStall();
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.proton.ProtonClient;
+import io.vertx.proton.ProtonClientOptions;
+import io.vertx.proton.ProtonConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of AMQP connections to the messaging service shared by the AMQP bridges
+ * running on the same event loop (so the same MQTT gateway verticle instance).
+ *
+ * Every AMQP bridge opens its own session (with the related links) on a pooled
+ * connection, so the number of connections to the messaging service doesn't grow
+ * with the number of connected MQTT clients.
+ *
+ * The credentials authenticated against the messaging service are cached (as salted
+ * digests) for a while, so a reconnecting MQTT client doesn't need a new authentication
+ * connection on every CONNECT.
+ *
+ * NOTE : not thread safe, it has to be used only from the event loop of the owning verticle
+ */
+public class AmqpConnectionPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AmqpConnectionPool.class);
+
+    public static final long DEFAULT_AUTH_CACHE_TTL = 300000; // in ms
+    // max number of users with cached credentials, the least recently authenticated are dropped
+    private static final int MAX_AUTH_CACHE_SIZE = 10000;
+
+    private final Vertx vertx;
+    private final String host;
+    private final int port;
+    private final ProtonClientOptions options;
+
+    private final PooledConnection[] connections;
+
+    private ProtonClient client;
+    private boolean closed;
+
+    // time for which authenticated credentials are cached (in ns, 0 for no cache)
+    private long authCacheTtl = TimeUnit.MILLISECONDS.toNanos(DEFAULT_AUTH_CACHE_TTL);
+    private final byte[] salt = new byte[16];
+    // username -> authenticated credentials, in insertion order (oldest first)
+    private final LinkedHashMap<String, AuthenticatedCredentials> authenticated = new LinkedHashMap<String, AuthenticatedCredentials>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AuthenticatedCredentials> eldest) {
+            return this.size() > MAX_AUTH_CACHE_SIZE;
+        }
+    };
+    // credentials being authenticated -> handlers waiting for the outcome
+    private final Map<AuthenticatedCredentials, List<Handler<AsyncResult<Void>>>> authenticating = new HashMap<>();
+
+    // authentications done against the messaging service (so not from the cache)
+    private long authentications;
+
+    /**
+     * Constructor
+     *
+     * @param vertx Vert.x instance
+     * @param host  AMQP service provider address
+     * @param port  AMQP service provider port
+     * @param size  max number of pooled connections
+     * @param options   options used for opening the pooled connections
+     */
+    public AmqpConnectionPool(Vertx vertx, String host, int port, int size, ProtonClientOptions options) {
+
+        if (size <= 0) {
+            throw new IllegalArgumentException("The connection pool size must be greater than 0");
+        }
+
+        this.vertx = vertx;
+        this.host = host;
+        this.port = port;
+        this.options = options;
+        this.connections = new PooledConnection[size];
+        new SecureRandom().nextBytes(this.salt);
+    }
+
+    /**
+     * Set the time for which the authenticated credentials are cached. A password changed
+     * or a user removed in the meantime is still accepted until the cached entry expires
+     *
+     * @param authCacheTtl  time to live of the cached credentials (in ms, 0 for no cache)
+     * @return  current AmqpConnectionPool instance
+     */
+    public AmqpConnectionPool authCacheTtl(long authCacheTtl) {
+        this.authCacheTtl = TimeUnit.MILLISECONDS.toNanos(authCacheTtl);
+        return this;
+    }
+
+    /**
+     * Acquire an opened AMQP connection from the pool. The least used pooled connection is
+     * returned; a new one is opened if there is a free slot in the pool
+     *
+     * @param lostHandler   handler called when the acquired connection is closed or lost
+     * @param handler   handler called when the connection is available (with success or not)
+     */
+    public void acquire(Handler<ProtonConnection> lostHandler, Handler<AsyncResult<ProtonConnection>> handler) {
+
+        if (this.closed) {
+            handler.handle(Future.failedFuture(new IllegalStateException("AMQP connection pool closed")));
+            return;
+        }
+
+        // empty slots win, otherwise the connection with less users
+        int slot = 0;
+        for (int i = 0; i < this.connections.length; i++) {
+
+            if (this.connections[i] == null) {
+                slot = i;
+                break;
+            }
+            if (this.connections[i].users.size() < this.connections[slot].users.size()) {
+                slot = i;
+            }
+        }
+
+        PooledConnection pooledConnection = this.connections[slot];
+        if (pooledConnection == null) {
+            pooledConnection = new PooledConnection(slot);
+            this.connections[slot] = pooledConnection;
+            this.connect(pooledConnection);
+        }
+
+        pooledConnection.users.add(lostHandler);
+
+        if (pooledConnection.connection != null) {
+            handler.handle(Future.succeededFuture(pooledConnection.connection));
+        } else {
+            pooledConnection.waiters.add(handler);
+        }
+    }
+
+    /**
+     * Authenticate the provided credentials against the messaging service. The pooled
+     * connections are opened with SASL ANONYMOUS, so the credentials of an MQTT client
+     * are verified with a short-lived connection before it can use the pool, unless
+     * they were authenticated less than the cache time to live ago. Concurrent requests
+     * for the same credentials share the same authentication; a failed one isn't cached
+     *
+     * @param userName  username to authenticate
+     * @param password  password to authenticate
+     * @param handler   handler called when the authentication is completed (with success or not)
+     */
+    public void authenticate(String userName, String password, Handler<AsyncResult<Void>> handler) {
+
+        if (this.closed) {
+            handler.handle(Future.failedFuture(new IllegalStateException("AMQP connection pool closed")));
+            return;
+        }
+
+        long now = System.nanoTime();
+        AuthenticatedCredentials credentials = new AuthenticatedCredentials(userName, this.digest(userName, password), now + this.authCacheTtl);
+
+        AuthenticatedCredentials cached = this.authenticated.get(userName);
+        if (cached != null) {
+            if (cached.equals(credentials) && now - cached.expiration < 0) {
+                handler.handle(Future.succeededFuture());
+                return;
+            }
+            if (now - cached.expiration >= 0) {
+                this.authenticated.remove(userName);
+            }
+        }
+
+        List<Handler<AsyncResult<Void>>> waiters = this.authenticating.get(credentials);
+        if (waiters != null) {
+            waiters.add(handler);
+            return;
+        }
+        waiters = new ArrayList<>();
+        waiters.add(handler);
+        this.authenticating.put(credentials, waiters);
+
+        if (this.client == null) {
+            this.client = ProtonClient.create(this.vertx);
+        }
+
+        // the connect handler is called after the SASL outcome, the AMQP connection isn't opened at all
+        this.authentications++;
+        this.client.connect(this.options, this.host, this.port, userName, password, done -> {
+
+            AsyncResult<Void> result;
+            if (done.succeeded()) {
+                done.result().disconnect();
+                if (this.authCacheTtl > 0 && !this.closed) {
+                    this.authenticated.remove(userName);
+                    this.authenticated.put(userName, credentials);
+                }
+                result = Future.succeededFuture();
+            } else {
+                result = Future.failedFuture(done.cause());
+            }
+
+            List<Handler<AsyncResult<Void>>> completed = this.authenticating.remove(credentials);
+            completed.forEach(waiter -> waiter.handle(result));
+        });
+    }
+
+    /**
+     * Number of authentications done against the messaging service (so not from the cache)
+     *
+     * @return
+     */
+    public long authentications() {
+        return this.authentications;
+    }
+
+    /**
+     * Release an AMQP connection previously acquired. The connection isn't closed
+     * because it's shared with the other users
+     *
+     * @param connection    AMQP connection to release
+     * @param lostHandler   handler used on acquiring the connection
+     */
+    public void release(ProtonConnection connection, Handler<ProtonConnection> lostHandler) {
+
+        for (PooledConnection pooledConnection : this.connections) {
+
+            if (pooledConnection != null && pooledConnection.connection == connection) {
+                pooledConnection.users.remove(lostHandler);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Close all the pooled connections
+     */
+    public void close() {
+
+        this.closed = true;
+        this.authenticated.clear();
+
+        for (int i = 0; i < this.connections.length; i++) {
+
+            PooledConnection pooledConnection = this.connections[i];
+            if (pooledConnection != null && pooledConnection.connection != null) {
+                pooledConnection.connection.close();
+            }
+            this.connections[i] = null;
+        }
+    }
+
+    /**
+     * Number of opened (or opening) pooled connections
+     *
+     * @return
+     */
+    public int connectionsCount() {
+
+        int count = 0;
+        for (PooledConnection pooledConnection : this.connections) {
+            if (pooledConnection != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void connect(PooledConnection pooledConnection) {
+
+        if (this.client == null) {
+            this.client = ProtonClient.create(this.vertx);
+        }
+
+        // NOTE : the pooled connections are shared by different MQTT clients so
+        //        they can't use the MQTT clients credentials; SASL ANONYMOUS is used
+        //        and the credentials are verified on their own (see authenticate)
+        this.client.connect(this.options, this.host, this.port, done -> {
+
+            if (done.succeeded()) {
+
+                ProtonConnection connection = done.result();
+                connection
+                        .openHandler(ar -> {
+
+                            if (ar.succeeded()) {
+
+                                LOG.info("Pooled AMQP connection [{}] opened with {}", pooledConnection.slot, connection.getRemoteContainer());
+                                pooledConnection.connection = connection;
+                                pooledConnection.opened(Future.succeededFuture(connection));
+                            } else {
+                                this.handleConnectionLost(pooledConnection, connection, ar.cause());
+                            }
+                        })
+                        .closeHandler(ar -> this.handleConnectionLost(pooledConnection, connection, ar.cause()))
+                        .disconnectHandler(conn -> this.handleConnectionLost(pooledConnection, conn, null))
+                        .open();
+
+            } else {
+
+                LOG.error("Error opening pooled AMQP connection [{}]", pooledConnection.slot, done.cause());
+                this.evict(pooledConnection);
+                pooledConnection.opened(Future.failedFuture(done.cause()));
+            }
+        });
+    }
+
+    private void handleConnectionLost(PooledConnection pooledConnection, ProtonConnection connection, Throwable cause) {
+
+        // both close and disconnect could be notified for the same connection
+        if (pooledConnection.lost) {
+            return;
+        }
+        pooledConnection.lost = true;
+
+        if (cause != null) {
+            LOG.info("Pooled AMQP connection [{}] closed with error", pooledConnection.slot, cause);
+        } else {
+            LOG.info("Pooled AMQP connection [{}] closed", pooledConnection.slot);
+        }
+
+        // the slot is freed so a new connection will be opened on the next request
+        this.evict(pooledConnection);
+        connection.close();
+        connection.disconnect();
+
+        if (pooledConnection.connection == null) {
+            // still opening, the users are just notified about the failure
+            pooledConnection.users.clear();
+            pooledConnection.opened(Future.failedFuture(cause != null ? cause : new IllegalStateException("AMQP connection closed")));
+            return;
+        }
+
+        // only the sessions on this connection are affected
+        List<Handler<ProtonConnection>> users = new ArrayList<>(pooledConnection.users);
+        pooledConnection.users.clear();
+        users.forEach(lostHandler -> lostHandler.handle(connection));
+    }
+
+    /**
+     * Salted digest of the credentials, so the passwords aren't kept in memory
+     */
+    private byte[] digest(String userName, String password) {
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(this.salt);
+            digest.update(userName.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            if (password != null) {
+                digest.update(password.getBytes(StandardCharsets.UTF_8));
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void evict(PooledConnection pooledConnection) {
+
+        if (this.connections[pooledConnection.slot] == pooledConnection) {
+            this.connections[pooledConnection.slot] = null;
+        }
+    }
+
+    /**
+     * Slot of the pool with the related AMQP connection and its users
+     */
+    private static class PooledConnection {
+
+        private final int slot;
+        private final Set<Handler<ProtonConnection>> users = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final List<Handler<AsyncResult<ProtonConnection>>> waiters = new ArrayList<>();
+
+        private ProtonConnection connection;
+        private boolean lost;
+
+        private PooledConnection(int slot) {
+            this.slot = slot;
+        }
+
+        private void opened(AsyncResult<ProtonConnection> result) {
+
+            List<Handler<AsyncResult<ProtonConnection>>> waiters = new ArrayList<>(this.waiters);
+            this.waiters.clear();
+            waiters.forEach(waiter -> waiter.handle(result));
+        }
+    }
+
+    /**
+     * Credentials authenticated by the messaging service
+     */
+    private static class AuthenticatedCredentials {
+
+        private final String userName;
+        private final byte[] digest;
+        // time (in ns) after which the credentials have to be authenticated again
+        private final long expiration;
+
+        private AuthenticatedCredentials(String userName, byte[] digest, long expiration) {
+            this.userName = userName;
+            this.digest = digest;
+            this.expiration = expiration;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof AuthenticatedCredentials)) {
+                return false;
+            }
+            AuthenticatedCredentials that = (AuthenticatedCredentials) o;
+            return this.userName.equals(that.userName) && MessageDigest.isEqual(this.digest, that.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.userName.hashCode();
+        }
+    }
+}
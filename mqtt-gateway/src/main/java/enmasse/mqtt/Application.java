@@ -16,12 +16,16 @@
 
 package enmasse.mqtt;
 
-import io.vertx.core.CompositeFuture;
+import enmasse.metrics.MetricsEndpoint;
+import enmasse.mqtt.metrics.GatewayMetrics;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
@@ -29,8 +33,6 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -43,22 +45,41 @@ public class Application {
 
     private static final Logger LOG = LoggerFactory.getLogger(Application.class);
 
-    private final Vertx vertx = Vertx.vertx();
+    private Vertx vertx;
 
     @Value(value = "${enmasse.mqtt.maxinstances:1}")
     private int maxInstances;
     @Value(value = "${enmasse.mqtt.startuptimeout:20}")
     private int startupTimeout;
+    @Value(value = "${enmasse.mqtt.bindaddress:0.0.0.0}")
+    private String bindAddress;
+    // port for the HTTP metrics endpoint (0 means disabled)
+    @Value(value = "${enmasse.mqtt.metricsport:0}")
+    private int metricsPort;
+    // native transport (epoll on Linux) instead of the NIO one, when available
+    @Value(value = "${enmasse.mqtt.nativetransport:false}")
+    private boolean nativeTransport;
     @Autowired
-    private MqttGateway mqttGateway;
+    private GatewayMetrics metrics;
+    // provides a new MQTT gateway instance (prototype scoped) for every verticle instance
+    @Autowired
+    private ObjectFactory<MqttGateway> mqttGatewayFactory;
 
     private AtomicBoolean running = new AtomicBoolean();
 
+    private String deploymentId;
+
     @PostConstruct
     public void registerVerticles() {
 
         if (this.running.compareAndSet(false, true)) {
 
+            // created here, after the injection of the configuration it depends on
+            this.vertx = Vertx.vertx(new VertxOptions().setPreferNativeTransport(this.nativeTransport));
+            if (this.nativeTransport && !this.vertx.isNativeTransportEnabled()) {
+                LOG.warn("Native transport not available, falling back to the NIO one");
+            }
+
             // instance count is upper bounded to the number of available processors
             int instanceCount =
                     (this.maxInstances > 0 && this.maxInstances < Runtime.getRuntime().availableProcessors()) ?
@@ -108,33 +129,46 @@ public class Application {
 
         LOG.debug("Starting up {} instances of MQTT gateway verticle", instanceCount);
 
-        List<Future> results = new ArrayList<>();
+        // every verticle instance is a different MQTT gateway instance, running on its own event loop;
+        // all the MQTT servers listen on the same port so Vert.x spreads the connections across them
+        this.vertx.registerVerticleFactory(new MqttGatewayVerticleFactory(this.mqttGatewayFactory::getObject));
 
-        for (int i = 1; i <= instanceCount; i++) {
+        DeploymentOptions options = new DeploymentOptions().setInstances(instanceCount);
 
-            int instanceId = i;
-            Future<Void> result = Future.future();
-            results.add(result);
+        this.vertx.deployVerticle(MqttGatewayVerticleFactory.verticleName(), options, done -> {
+            if (done.succeeded()) {
+                LOG.debug("Verticle instances {} deployed [{}]", instanceCount, done.result());
+                this.deploymentId = done.result();
+                this.deployMetricsEndpoint(resultHandler);
+            } else {
+                LOG.debug("Failed to deploy verticle instances", done.cause());
+                resultHandler.fail(done.cause());
+            }
+        });
+    }
 
-            this.vertx.deployVerticle(this.mqttGateway, done -> {
+    /**
+     * Execute the metrics endpoint deploy operation (if enabled)
+     *
+     * @param resultHandler     handler called when the deploy ends
+     */
+    private void deployMetricsEndpoint(Future<Void> resultHandler) {
+
+        if (this.metricsPort > 0) {
+
+            // a single endpoint exposing the metrics of all the MQTT gateway instances
+            this.vertx.deployVerticle(new MetricsEndpoint(this.metrics, this.bindAddress, this.metricsPort), done -> {
                 if (done.succeeded()) {
-                    LOG.debug("Verticle instance {} deployed [{}]", instanceId, done.result());
-                    result.complete();
+                    LOG.debug("Metrics endpoint deployed [{}]", done.result());
+                    resultHandler.complete();
                 } else {
-                    LOG.debug("Failed to deploy verticle instance {}", instanceId, done.cause());
-                    result.fail(done.cause());
+                    LOG.debug("Failed to deploy metrics endpoint", done.cause());
+                    resultHandler.fail(done.cause());
                 }
             });
+        } else {
+            resultHandler.complete();
         }
-
-        // combine all futures related to verticle instances deploy
-        CompositeFuture.all(results).setHandler(done -> {
-            if (done.succeeded()) {
-                resultHandler.complete();
-            } else {
-                resultHandler.fail(done.cause());
-            }
-        });
     }
 
     @PreDestroy
@@ -160,11 +194,26 @@ public class Application {
 
             if (this.vertx != null) {
 
-                this.vertx.close(done -> {
-                    if (done.failed()) {
-                        LOG.error("Could not shut down MQTT gateway cleanly", done.cause());
+                Future<Void> undeployFuture = Future.future();
+
+                // undeploy all the MQTT gateway verticle instances together, each one closes its own
+                // MQTT server and AMQP bridges
+                if (this.deploymentId != null) {
+                    this.vertx.undeploy(this.deploymentId, undeployFuture.completer());
+                } else {
+                    undeployFuture.complete();
+                }
+
+                undeployFuture.setHandler(ar -> {
+                    if (ar.failed()) {
+                        LOG.error("Could not undeploy MQTT gateway verticle instances cleanly", ar.cause());
                     }
-                    latch.countDown();
+                    this.vertx.close(done -> {
+                        if (done.failed()) {
+                            LOG.error("Could not shut down MQTT gateway cleanly", done.cause());
+                        }
+                        latch.countDown();
+                    });
                 });
 
                 if (latch.await(timeout, TimeUnit.SECONDS)) {
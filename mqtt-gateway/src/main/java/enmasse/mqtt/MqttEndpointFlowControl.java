@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import io.vertx.core.net.NetSocket;
+import io.vertx.mqtt.MqttEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+
+/**
+ * Pause/resume reading from the socket of an MQTT endpoint
+ *
+ * NOTE : the Vert.x MQTT endpoint doesn't provide pause/resume so the underlying
+ *        socket is used directly, if not available the flow control is just disabled
+ */
+final class MqttEndpointFlowControl {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MqttEndpointFlowControl.class);
+
+    private static final Field CONN_FIELD;
+
+    static {
+
+        Field field = null;
+        try {
+            field = Class.forName("io.vertx.mqtt.impl.MqttEndpointImpl").getDeclaredField("conn");
+            field.setAccessible(true);
+        } catch (Exception e) {
+            LOG.warn("Flow control on MQTT endpoints not available", e);
+        }
+        CONN_FIELD = field;
+    }
+
+    private MqttEndpointFlowControl() {
+    }
+
+    /**
+     * Stop reading from the socket of the MQTT endpoint
+     *
+     * @param mqttEndpoint  MQTT endpoint
+     * @return  if the socket was paused
+     */
+    static boolean pause(MqttEndpoint mqttEndpoint) {
+
+        NetSocket socket = socket(mqttEndpoint);
+        if (socket != null) {
+            socket.pause();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Start reading again from the socket of the MQTT endpoint
+     *
+     * @param mqttEndpoint  MQTT endpoint
+     * @return  if the socket was resumed
+     */
+    static boolean resume(MqttEndpoint mqttEndpoint) {
+
+        NetSocket socket = socket(mqttEndpoint);
+        if (socket != null) {
+            socket.resume();
+            return true;
+        }
+        return false;
+    }
+
+    private static NetSocket socket(MqttEndpoint mqttEndpoint) {
+
+        if (CONN_FIELD != null && CONN_FIELD.getDeclaringClass().isInstance(mqttEndpoint)) {
+            try {
+                return (NetSocket) CONN_FIELD.get(mqttEndpoint);
+            } catch (IllegalAccessException e) {
+                LOG.warn("Error accessing the MQTT endpoint socket", e);
+            }
+        }
+        return null;
+    }
+}
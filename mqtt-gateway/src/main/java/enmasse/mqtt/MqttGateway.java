@@ -16,29 +16,53 @@
 
 package enmasse.mqtt;
 
+import enmasse.mqtt.lwt.LwtPartitions;
+import enmasse.mqtt.metrics.GatewayMetrics;
+import enmasse.mqtt.metrics.NoopGatewayMetrics;
+import enmasse.mqtt.ratelimit.RateLimitPolicy;
+import enmasse.mqtt.ratelimit.RateLimiter;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.net.OpenSSLEngineOptions;
 import io.vertx.core.net.PemKeyCertOptions;
 import io.vertx.mqtt.MqttEndpoint;
 import io.vertx.mqtt.MqttServer;
 import io.vertx.mqtt.MqttServerOptions;
+import io.vertx.proton.ProtonClientOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 
 /**
  * Vert.x based MQTT gateway for EnMasse
+ *
+ * NOTE : prototype scoped, every deployed verticle instance is a different MQTT gateway instance
  */
 @Component
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
 public class MqttGateway extends AbstractVerticle {
 
     private static final Logger LOG = LoggerFactory.getLogger(MqttGateway.class);
 
+    private static final int AMQP_POOL_CONNECT_TIMEOUT = 5000; // in ms
+    private static final int AMQP_POOL_HEARTBEAT = 10000; // in ms
+    private static final long MIN_PUBLISHER_IDLE_CHECK_PERIOD = 1000; // in ms
+    private static final long IDLE_CHECK_PERIOD = 30000; // in ms
+
     // binding info for listening
     private String bindAddress;
     private int listenPort;
@@ -50,11 +74,63 @@ public class MqttGateway extends AbstractVerticle {
     private boolean ssl;
     private String certFile;
     private String keyFile;
+    // OpenSSL engine (through netty-tcnative) instead of the JDK one
+    private boolean openSsl;
+
+    // number of shared AMQP connections to the messaging service (0 means a dedicated connection per MQTT client)
+    private int amqpConnectionPoolSize;
+    // time for which the MQTT clients credentials authenticated for the shared connections are cached (in ms, 0 for no cache)
+    private long authCacheTtl = AmqpConnectionPool.DEFAULT_AUTH_CACHE_TTL;
+    // max AMQP frame size, sizing the transport buffers of every AMQP connection (0 means the default one)
+    private int amqpMaxFrameSize;
+
+    // publishers (links on topics) cached by every AMQP bridge
+    private int maxPublishers = AmqpBridgeOptions.DEFAULT_MAX_PUBLISHERS;
+    private long publisherIdleTimeout = AmqpBridgeOptions.DEFAULT_PUBLISHER_IDLE_TIMEOUT;
+
+    // flow control from the AMQP publishers to the MQTT clients sockets
+    private int publishHighWatermark = AmqpBridgeOptions.DEFAULT_PUBLISH_HIGH_WATERMARK;
+    private int publishLowWatermark = AmqpBridgeOptions.DEFAULT_PUBLISH_LOW_WATERMARK;
+
+    // messages published to every MQTT client not acknowledged yet
+    private int maxInFlight = AmqpBridgeOptions.DEFAULT_MAX_IN_FLIGHT;
+    private boolean earlyConnack;
+
+    // partitions of the Last Will and Testament Service
+    private int lwtPartitions = LwtPartitions.DEFAULT_PARTITIONS;
+
+    // topic filters subscribed once per instance and fanned out to the MQTT clients
+    private Set<String> sharedTopicFilters = Collections.emptySet();
+    // wildcards of the AMQP address patterns the shared subscriptions attach on
+    private String sharedSingleLevelWildcard = SharedSubscriptions.DEFAULT_SINGLE_LEVEL_WILDCARD;
+    private String sharedMultiLevelWildcard = SharedSubscriptions.DEFAULT_MULTI_LEVEL_WILDCARD;
+
+    // publish rate limits per MQTT client and per username (0 means no limit)
+    private long rateLimitMessages;
+    private long rateLimitBytes;
+    private long tenantRateLimitMessages;
+    private long tenantRateLimitBytes;
+    private RateLimitPolicy rateLimitPolicy = RateLimitPolicy.THROTTLE;
+
+    // metrics shared by all the MQTT gateway instances
+    private GatewayMetrics metrics = NoopGatewayMetrics.INSTANCE;
+    private int metricsInstance;
+
+    private AmqpBridgeOptions bridgeOptions;
+    private long publisherIdleTimer = -1;
 
     private MqttServer server;
 
     private Map<String, AmqpBridge> bridges;
 
+    private AmqpConnectionPool connectionPool;
+
+    private SharedSubscriptions sharedSubscriptions;
+    // connection for the shared subscriptions, when the MQTT clients don't use shared connections
+    private AmqpConnectionPool sharedSubscriptionsPool;
+
+    private RateLimiter rateLimiter;
+
     /**
      * Set the IP address the MQTT gateway will bind to
      *
@@ -139,6 +215,285 @@ public class MqttGateway extends AbstractVerticle {
         return this;
     }
 
+    /**
+     * Set the SSL/TLS engine for the MQTT connections : "jdk" (default) or "openssl".
+     * The OpenSSL engine (through netty-tcnative) needs far less CPU for every handshake
+     * and it's used with the session cache enabled, so the reconnecting clients can resume
+     * their TLS sessions. When OpenSSL isn't available, the JDK engine is used
+     *
+     * @param sslEngine SSL/TLS engine
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.sslengine:jdk}")
+    public MqttGateway setSslEngine(String sslEngine) {
+
+        switch (sslEngine.trim().toLowerCase()) {
+            case "jdk":
+                this.openSsl = false;
+                break;
+            case "openssl":
+                this.openSsl = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown SSL/TLS engine " + sslEngine);
+        }
+        return this;
+    }
+
+    /**
+     * Set the number of shared AMQP connections to the messaging service. Every MQTT client
+     * uses its own AMQP session on one of them instead of a dedicated connection.
+     * With 0 (default), a dedicated AMQP connection is opened for every MQTT client.
+     *
+     * NOTE : the shared connections are opened without the MQTT clients credentials
+     *
+     * @param amqpConnectionPoolSize    number of shared AMQP connections
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.amqpconnectionpoolsize:0}")
+    public MqttGateway setAmqpConnectionPoolSize(int amqpConnectionPoolSize) {
+        this.amqpConnectionPoolSize = amqpConnectionPoolSize;
+        return this;
+    }
+
+    /**
+     * Set the time for which the MQTT clients credentials authenticated for using the shared
+     * AMQP connections are cached, so a reconnecting client isn't authenticated again with
+     * a short-lived connection. A password changed or a user removed on the messaging service
+     * is still accepted by a gateway instance until the cached entry expires
+     *
+     * @param authCacheTtl  time to live of the cached credentials (in ms, 0 for no cache)
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.authcachettl:" + AmqpConnectionPool.DEFAULT_AUTH_CACHE_TTL + "}")
+    public MqttGateway setAuthCacheTtl(long authCacheTtl) {
+        this.authCacheTtl = authCacheTtl;
+        return this;
+    }
+
+    /**
+     * Set the max AMQP frame size for the connections to the messaging service. The AMQP
+     * transport of every connection holds input and output buffers of this size, so it
+     * decides the memory needed by every MQTT client with a dedicated AMQP connection.
+     * With 0 (default), the Vert.x Proton default is used
+     *
+     * @param amqpMaxFrameSize  max frame size in bytes
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.amqpmaxframesize:0}")
+    public MqttGateway setAmqpMaxFrameSize(int amqpMaxFrameSize) {
+        this.amqpMaxFrameSize = amqpMaxFrameSize;
+        return this;
+    }
+
+    /**
+     * Set the max number of publishers (links on a topic) cached by every AMQP bridge.
+     * When the limit is reached, the least recently used publisher is detached
+     *
+     * @param maxPublishers max number of publishers (0 for no limit)
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.maxpublishers:" + AmqpBridgeOptions.DEFAULT_MAX_PUBLISHERS + "}")
+    public MqttGateway setMaxPublishers(int maxPublishers) {
+        this.maxPublishers = maxPublishers;
+        return this;
+    }
+
+    /**
+     * Set the time after which a publisher (links on a topic) not used is detached
+     *
+     * @param publisherIdleTimeout  idle timeout in ms (0 for no timeout)
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.publisheridletimeout:" + AmqpBridgeOptions.DEFAULT_PUBLISHER_IDLE_TIMEOUT + "}")
+    public MqttGateway setPublisherIdleTimeout(long publisherIdleTimeout) {
+        this.publisherIdleTimeout = publisherIdleTimeout;
+        return this;
+    }
+
+    /**
+     * Set the number of messages published by an MQTT client, without a disposition from the
+     * AMQP side yet, which pauses reading from the client socket
+     *
+     * @param publishHighWatermark  high watermark (0 for no flow control)
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.publishhighwatermark:" + AmqpBridgeOptions.DEFAULT_PUBLISH_HIGH_WATERMARK + "}")
+    public MqttGateway setPublishHighWatermark(int publishHighWatermark) {
+        this.publishHighWatermark = publishHighWatermark;
+        return this;
+    }
+
+    /**
+     * Set the number of messages published by an MQTT client, without a disposition from the
+     * AMQP side yet, which resumes reading from the (paused) client socket
+     *
+     * @param publishLowWatermark   low watermark
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.publishlowwatermark:" + AmqpBridgeOptions.DEFAULT_PUBLISH_LOW_WATERMARK + "}")
+    public MqttGateway setPublishLowWatermark(int publishLowWatermark) {
+        this.publishLowWatermark = publishLowWatermark;
+        return this;
+    }
+
+    /**
+     * Set the max number of messages published to an MQTT client not acknowledged yet.
+     * No more messages are received from the AMQP side for the client when reached
+     *
+     * @param maxInFlight   max number of in flight messages (1..65535)
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.maxinflight:" + AmqpBridgeOptions.DEFAULT_MAX_IN_FLIGHT + "}")
+    public MqttGateway setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Set the number of partitions of the Last Will and Testament Service,
+     * matching the partitions of the service instances
+     *
+     * @param lwtPartitions number of partitions (1 for a not partitioned service)
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.lwt.partitions:" + LwtPartitions.DEFAULT_PARTITIONS + "}")
+    public MqttGateway setLwtPartitions(int lwtPartitions) {
+        this.lwtPartitions = lwtPartitions;
+        return this;
+    }
+
+    /**
+     * Set if the CONNACK is sent to "clean session" MQTT clients without will
+     * before the Subscription Service has closed the previous session
+     *
+     * @param earlyConnack  if the CONNACK is sent without waiting for the AMQP_CLOSE
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.earlyconnack:false}")
+    public MqttGateway setEarlyConnack(boolean earlyConnack) {
+        this.earlyConnack = earlyConnack;
+        return this;
+    }
+
+    /**
+     * Set the topic filters subscribed just once by every MQTT gateway instance, with a single
+     * AMQP receiver, for delivering the received messages to all the local "clean session"
+     * MQTT clients subscribed to them. Useful for popular topic filters with a lot of subscribers
+     *
+     * @param sharedTopicFilters    comma separated topic filters (empty for no shared subscriptions)
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.sharedtopicfilters:}")
+    public MqttGateway setSharedTopicFilters(String sharedTopicFilters) {
+        this.sharedTopicFilters = Arrays.stream(sharedTopicFilters.split(","))
+                .map(String::trim)
+                .filter(topicFilter -> !topicFilter.isEmpty())
+                .collect(Collectors.toSet());
+        return this;
+    }
+
+    /**
+     * Set the wildcard replacing the MQTT "+" one in the AMQP address pattern a shared
+     * subscription attaches on ("*" for the router address patterns)
+     *
+     * @param sharedSingleLevelWildcard wildcard matching exactly one level
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.sharedsinglelevelwildcard:" + SharedSubscriptions.DEFAULT_SINGLE_LEVEL_WILDCARD + "}")
+    public MqttGateway setSharedSingleLevelWildcard(String sharedSingleLevelWildcard) {
+        this.sharedSingleLevelWildcard = sharedSingleLevelWildcard;
+        return this;
+    }
+
+    /**
+     * Set the wildcard replacing the MQTT "#" one in the AMQP address pattern a shared
+     * subscription attaches on ("#" for the router address patterns)
+     *
+     * @param sharedMultiLevelWildcard  wildcard matching zero or more levels
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.sharedmultilevelwildcard:" + SharedSubscriptions.DEFAULT_MULTI_LEVEL_WILDCARD + "}")
+    public MqttGateway setSharedMultiLevelWildcard(String sharedMultiLevelWildcard) {
+        this.sharedMultiLevelWildcard = sharedMultiLevelWildcard;
+        return this;
+    }
+
+    /**
+     * Set the max number of messages published per second by every MQTT client
+     *
+     * @param rateLimitMessages max messages per second (0 for no limit)
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.ratelimitmessages:0}")
+    public MqttGateway setRateLimitMessages(long rateLimitMessages) {
+        this.rateLimitMessages = rateLimitMessages;
+        return this;
+    }
+
+    /**
+     * Set the max number of payload bytes published per second by every MQTT client
+     *
+     * @param rateLimitBytes    max bytes per second (0 for no limit)
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.ratelimitbytes:0}")
+    public MqttGateway setRateLimitBytes(long rateLimitBytes) {
+        this.rateLimitBytes = rateLimitBytes;
+        return this;
+    }
+
+    /**
+     * Set the max number of messages published per second by all the MQTT clients
+     * connected to a gateway instance with the same username
+     *
+     * @param tenantRateLimitMessages   max messages per second (0 for no limit)
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.tenantratelimitmessages:0}")
+    public MqttGateway setTenantRateLimitMessages(long tenantRateLimitMessages) {
+        this.tenantRateLimitMessages = tenantRateLimitMessages;
+        return this;
+    }
+
+    /**
+     * Set the max number of payload bytes published per second by all the MQTT clients
+     * connected to a gateway instance with the same username
+     *
+     * @param tenantRateLimitBytes  max bytes per second (0 for no limit)
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.tenantratelimitbytes:0}")
+    public MqttGateway setTenantRateLimitBytes(long tenantRateLimitBytes) {
+        this.tenantRateLimitBytes = tenantRateLimitBytes;
+        return this;
+    }
+
+    /**
+     * Set what to do with an MQTT client publishing over its rate limit : "throttle" for pausing
+     * the reading from its socket, "drop" for dropping QoS 0 messages and disconnecting on QoS 1/2
+     *
+     * @param rateLimitPolicy   rate limit policy
+     * @return  current MQTT gateway instance
+     */
+    @Value(value = "${enmasse.mqtt.ratelimitpolicy:throttle}")
+    public MqttGateway setRateLimitPolicy(String rateLimitPolicy) {
+        this.rateLimitPolicy = RateLimitPolicy.valueOf(rateLimitPolicy.trim().toUpperCase());
+        return this;
+    }
+
+    /**
+     * Set the metrics updated by the MQTT gateway
+     *
+     * @param metrics   metrics shared by all the MQTT gateway instances
+     * @return  current MQTT gateway instance
+     */
+    @Autowired
+    public MqttGateway setMetrics(GatewayMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
     /**
      * Start the MQTT server component
      *
@@ -158,9 +513,23 @@ public class MqttGateway extends AbstractVerticle {
             options.setKeyCertOptions(pemKeyCertOptions)
                     .setSsl(this.ssl);
 
-            LOG.info("SSL/TLS support enabled key {} cert {}", this.keyFile, this.certFile);
+            boolean openSsl = false;
+            if (this.openSsl) {
+                if (OpenSSLEngineOptions.isAvailable()) {
+                    options.setOpenSslEngineOptions(new OpenSSLEngineOptions().setSessionCacheEnabled(true));
+                    openSsl = true;
+                } else {
+                    LOG.warn("OpenSSL engine not available, falling back to the JDK one");
+                }
+            }
+
+            LOG.info("SSL/TLS support enabled key {} cert {} engine {}", this.keyFile, this.certFile, openSsl ? "openssl" : "jdk");
         }
 
+        // AMQP bridges registry of this instance, it has to be ready before accepting connections
+        // because other instances could be already listening on the same (shared) port
+        this.bridges = new HashMap<>();
+
         this.server = MqttServer.create(this.vertx, options);
 
         this.server
@@ -169,8 +538,6 @@ public class MqttGateway extends AbstractVerticle {
 
                     if (done.succeeded()) {
 
-                        this.bridges = new HashMap<>();
-
                         LOG.info("MQTT gateway running on {}:{}", this.bindAddress, this.server.actualPort());
                         LOG.info("AMQP messaging service on {}:{}", this.messagingServiceHost, this.messagingServicePort);
                         startFuture.complete();
@@ -191,30 +558,123 @@ public class MqttGateway extends AbstractVerticle {
 
         LOG.info("CONNECT from MQTT client {}", mqttEndpoint.clientIdentifier());
 
-        AmqpBridge bridge = new AmqpBridge(this.vertx, mqttEndpoint);
+        long connectTime = System.nanoTime();
+
+        AmqpBridge bridge = new AmqpBridge(this.vertx, mqttEndpoint, this.bridgeOptions);
 
         bridge.mqttEndpointCloseHandler(amqpBridge -> {
 
-            this.bridges.remove(amqpBridge.id());
+            if (this.bridges.remove(amqpBridge.id()) != null) {
+                this.metrics.clientDisconnected(this.metricsInstance);
+            }
             amqpBridge.close();
             LOG.info("Closed AMQP bridge for client {}", amqpBridge.id());
 
-        }).open(this.messagingServiceHost, this.messagingServicePort, done -> {
+        });
+
+        Handler<AsyncResult<AmqpBridge>> openHandler = done -> {
 
             if (done.succeeded()) {
 
                 LOG.info("Opened AMQP bridge for client {}", done.result().id());
                 this.bridges.put(done.result().id(), done.result());
+                this.metrics.clientConnected(this.metricsInstance, System.nanoTime() - connectTime);
+            } else if (this.connectionPool != null && done.cause() instanceof SecurityException) {
+                // the shared connections are anonymous, the client is refused when its credentials aren't valid
+                LOG.error("Refused MQTT client {} sharing AMQP connections, credentials not authenticated by the messaging service",
+                        mqttEndpoint.clientIdentifier(), done.cause());
             } else {
                 LOG.info("Error opening the AMQP bridge ...", done.cause());
             }
-        });
+        };
+
+        if (this.connectionPool != null) {
+            bridge.open(this.connectionPool, openHandler);
+        } else {
+            bridge.open(this.messagingServiceHost, this.messagingServicePort, openHandler);
+        }
     }
 
     @Override
     public void start(Future<Void> startFuture) throws Exception {
 
         LOG.info("Starting MQTT gateway verticle...");
+
+        this.metricsInstance = this.metrics.addInstance();
+
+        this.bridgeOptions = new AmqpBridgeOptions()
+                .setMaxPublishers(this.maxPublishers)
+                .setPublisherIdleTimeout(this.publisherIdleTimeout)
+                .setPublishHighWatermark(this.publishHighWatermark)
+                .setPublishLowWatermark(this.publishLowWatermark)
+                .setMaxInFlight(this.maxInFlight)
+                .setLwtPartitions(this.lwtPartitions)
+                .setEarlyConnack(this.earlyConnack)
+                .setAmqpMaxFrameSize(this.amqpMaxFrameSize)
+                .setMetrics(this.metrics);
+
+        // a single timer for all the AMQP bridges of this instance, for detaching idle publishers
+        // and releasing the memory for tracking the deliveries of the idle clients
+        long period = (this.publisherIdleTimeout > 0) ?
+                Math.max(MIN_PUBLISHER_IDLE_CHECK_PERIOD, this.publisherIdleTimeout / 2) :
+                IDLE_CHECK_PERIOD;
+        this.publisherIdleTimer = this.vertx.setPeriodic(period, timer -> {
+
+            long now = System.nanoTime();
+            this.bridges.values().forEach(bridge -> {
+                bridge.evictIdlePublishers(now);
+                bridge.trim();
+            });
+        });
+
+        ProtonClientOptions options = new ProtonClientOptions();
+        options.setConnectTimeout(AMQP_POOL_CONNECT_TIMEOUT)
+                .setHeartbeat(AMQP_POOL_HEARTBEAT);
+        if (this.amqpMaxFrameSize > 0) {
+            options.setMaxFrameSize(this.amqpMaxFrameSize);
+        }
+
+        if (this.amqpConnectionPoolSize > 0) {
+
+            this.connectionPool = new AmqpConnectionPool(this.vertx,
+                    this.messagingServiceHost, this.messagingServicePort, this.amqpConnectionPoolSize, options)
+                    .authCacheTtl(this.authCacheTtl);
+
+            LOG.info("Sharing {} AMQP connections between MQTT clients", this.amqpConnectionPoolSize);
+            LOG.warn("Shared AMQP connections use SASL ANONYMOUS, the MQTT clients credentials are authenticated " +
+                    "with a short-lived connection on CONNECT (cached for {} ms) and the messaging service has to allow anonymous access",
+                    this.authCacheTtl);
+        }
+
+        if (!this.sharedTopicFilters.isEmpty()) {
+
+            // the shared receivers go on one of the shared connections or on a dedicated one
+            AmqpConnectionPool pool = this.connectionPool;
+            if (pool == null) {
+                this.sharedSubscriptionsPool = new AmqpConnectionPool(this.vertx,
+                        this.messagingServiceHost, this.messagingServicePort, 1, options);
+                pool = this.sharedSubscriptionsPool;
+            }
+
+            this.sharedSubscriptions = new SharedSubscriptions(this.vertx, this.sharedTopicFilters, pool)
+                    .addressWildcards(this.sharedSingleLevelWildcard, this.sharedMultiLevelWildcard);
+            this.bridgeOptions.setSharedSubscriptions(this.sharedSubscriptions);
+
+            LOG.info("Shared subscriptions on {}", this.sharedTopicFilters);
+        }
+
+        if (this.rateLimitMessages > 0 || this.rateLimitBytes > 0 ||
+                this.tenantRateLimitMessages > 0 || this.tenantRateLimitBytes > 0) {
+
+            this.rateLimiter = new RateLimiter(this.vertx, this.rateLimitPolicy,
+                    this.rateLimitMessages, this.rateLimitBytes, this.tenantRateLimitMessages, this.tenantRateLimitBytes);
+            this.bridgeOptions.setRateLimiter(this.rateLimiter);
+
+            LOG.info("Publish rate limit [{}] per client {} msg/s {} bytes/s, per username {} msg/s {} bytes/s",
+                    this.rateLimitPolicy, this.rateLimitMessages, this.rateLimitBytes,
+                    this.tenantRateLimitMessages, this.tenantRateLimitBytes);
+        }
+
         this.bindMqttServer(startFuture);
     }
 
@@ -234,12 +694,34 @@ public class MqttGateway extends AbstractVerticle {
            }
         });
 
+        if (this.publisherIdleTimer != -1) {
+            this.vertx.cancelTimer(this.publisherIdleTimer);
+        }
+
+        this.metrics.removeInstance(this.metricsInstance);
+
         if (this.server != null) {
 
             this.bridges.entrySet().stream().forEach(entry -> {
                 entry.getValue().close();
             });
 
+            if (this.sharedSubscriptions != null) {
+                this.sharedSubscriptions.close();
+            }
+
+            if (this.sharedSubscriptionsPool != null) {
+                this.sharedSubscriptionsPool.close();
+            }
+
+            if (this.connectionPool != null) {
+                this.connectionPool.close();
+            }
+
+            if (this.rateLimiter != null) {
+                this.rateLimiter.close();
+            }
+
             this.server.close(shutdownTracker.completer());
         } else {
             shutdownTracker.complete();
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import io.vertx.core.Verticle;
+import io.vertx.core.spi.VerticleFactory;
+
+import java.util.function.Supplier;
+
+/**
+ * Verticle factory providing a new MQTT gateway instance for every deployed verticle,
+ * so that every instance has its own state (MQTT server, AMQP bridges, ...) and runs
+ * on its own event loop
+ */
+public class MqttGatewayVerticleFactory implements VerticleFactory {
+
+    public static final String PREFIX = "enmasse-mqtt";
+
+    private final Supplier<MqttGateway> mqttGatewaySupplier;
+
+    /**
+     * Constructor
+     *
+     * @param mqttGatewaySupplier   supplier of new (and already configured) MQTT gateway instances
+     */
+    public MqttGatewayVerticleFactory(Supplier<MqttGateway> mqttGatewaySupplier) {
+        this.mqttGatewaySupplier = mqttGatewaySupplier;
+    }
+
+    /**
+     * Name to use for deploying the MQTT gateway verticle through this factory
+     *
+     * @return  verticle name
+     */
+    public static String verticleName() {
+        return PREFIX + ":" + MqttGateway.class.getName();
+    }
+
+    @Override
+    public String prefix() {
+        return PREFIX;
+    }
+
+    @Override
+    public Verticle createVerticle(String verticleName, ClassLoader classLoader) throws Exception {
+        return this.mqttGatewaySupplier.get();
+    }
+}
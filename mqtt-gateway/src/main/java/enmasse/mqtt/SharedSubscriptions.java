@@ -0,0 +1,436 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.mqtt.messages.AmqpPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.proton.ProtonConnection;
+import io.vertx.proton.ProtonDelivery;
+import io.vertx.proton.ProtonQoS;
+import io.vertx.proton.ProtonReceiver;
+import io.vertx.proton.ProtonSession;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.apache.qpid.proton.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Subscriptions to popular topic filters shared by the AMQP bridges of an MQTT gateway instance.
+ *
+ * A single AMQP receiver is attached for every shared topic filter with at least one subscriber
+ * and every message received on it is fanned out to all the local subscribers (with the QoS
+ * downgraded to the one granted to every subscriber), so the messaging service delivers it
+ * once per gateway instance instead of once per MQTT client.
+ *
+ * The receiver attaches on the AMQP address pattern translated from the MQTT topic filter and a
+ * message is accepted at the source only when all the local subscribers it was published to with
+ * QoS 1/2 acknowledged it (or were disconnected before, a "clean session" client isn't owed it anymore);
+ * until then it's redelivered by the messaging service if the receiver or the connection is lost.
+ *
+ * NOTE : not thread safe, it has to be used only from the event loop of the owning verticle
+ */
+public class SharedSubscriptions {
+
+    // default wildcards of the AMQP address patterns (as for the router)
+    public static final String DEFAULT_SINGLE_LEVEL_WILDCARD = "*";
+    public static final String DEFAULT_MULTI_LEVEL_WILDCARD = "#";
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedSubscriptions.class);
+
+    private static final long REATTACH_DELAY = 1000; // in ms
+
+    private static final String PLUS_WILDCARD = "+";
+    private static final String SHARP_WILDCARD = "#";
+    private static final String TOPIC_SEPARATOR = "/";
+
+    private final Vertx vertx;
+    private final Set<String> topicFilters;
+    private final AmqpConnectionPool connectionPool;
+    private final Handler<ProtonConnection> connectionLostHandler = this::handleConnectionLost;
+
+    // wildcards of the AMQP address patterns for the MQTT "+" and "#" ones
+    private String singleLevelWildcard = DEFAULT_SINGLE_LEVEL_WILDCARD;
+    private String multiLevelWildcard = DEFAULT_MULTI_LEVEL_WILDCARD;
+
+    // topic filter -> shared subscription (only the ones with subscribers)
+    private final Map<String, SharedSubscription> subscriptions = new HashMap<>();
+
+    private ProtonConnection connection;
+    private ProtonSession session;
+    private boolean connecting;
+    private boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param vertx Vert.x instance
+     * @param topicFilters  topic filters subscribed through the shared subscriptions
+     * @param connectionPool    pool providing the connection for the shared receivers
+     */
+    public SharedSubscriptions(Vertx vertx, Set<String> topicFilters, AmqpConnectionPool connectionPool) {
+        this.vertx = vertx;
+        this.topicFilters = new HashSet<>(topicFilters);
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Set the wildcards used in the AMQP address patterns for the MQTT "+" and "#" ones
+     *
+     * @param singleLevelWildcard   wildcard matching exactly one level
+     * @param multiLevelWildcard    wildcard matching zero or more levels
+     * @return  current shared subscriptions instance
+     */
+    public SharedSubscriptions addressWildcards(String singleLevelWildcard, String multiLevelWildcard) {
+        this.singleLevelWildcard = singleLevelWildcard;
+        this.multiLevelWildcard = multiLevelWildcard;
+        return this;
+    }
+
+    /**
+     * Translate an MQTT topic filter into the AMQP address pattern the receiver attaches on,
+     * replacing the "+" and "#" levels with the corresponding address wildcards
+     *
+     * @param topicFilter   MQTT topic filter
+     * @return  AMQP address pattern
+     */
+    public String address(String topicFilter) {
+
+        String[] levels = topicFilter.split(TOPIC_SEPARATOR, -1);
+        for (int i = 0; i < levels.length; i++) {
+
+            if (levels[i].equals(PLUS_WILDCARD)) {
+                levels[i] = this.singleLevelWildcard;
+            } else if (levels[i].equals(SHARP_WILDCARD)) {
+                levels[i] = this.multiLevelWildcard;
+            }
+        }
+        return String.join(TOPIC_SEPARATOR, levels);
+    }
+
+    /**
+     * If the provided topic filter is subscribed through a shared subscription
+     *
+     * @param topicFilter   topic filter
+     * @return
+     */
+    public boolean isShared(String topicFilter) {
+        return this.topicFilters.contains(topicFilter);
+    }
+
+    /**
+     * Add a subscriber to a shared topic filter. The AMQP receiver is attached on the first one
+     *
+     * @param topicFilter   shared topic filter
+     * @param bridge    AMQP bridge of the subscribing MQTT client
+     * @param qos   QoS level granted to the MQTT client
+     * @param handler   handler called when the AMQP receiver is attached (with success or not)
+     */
+    public void subscribe(String topicFilter, AmqpBridge bridge, MqttQoS qos, Handler<AsyncResult<Void>> handler) {
+
+        if (this.closed) {
+            handler.handle(Future.failedFuture(new IllegalStateException("Shared subscriptions closed")));
+            return;
+        }
+
+        SharedSubscription subscription = this.subscriptions.get(topicFilter);
+        if (subscription == null) {
+
+            subscription = new SharedSubscription(topicFilter);
+            this.subscriptions.put(topicFilter, subscription);
+        }
+
+        subscription.subscribers.put(bridge, qos);
+
+        if (subscription.receiver != null && subscription.attached) {
+            handler.handle(Future.succeededFuture());
+        } else {
+
+            subscription.waiters.add(handler);
+            if (this.session != null) {
+                if (subscription.receiver == null) {
+                    this.attach(subscription);
+                }
+            } else {
+                this.connect();
+            }
+        }
+    }
+
+    /**
+     * Remove a subscriber from a shared topic filter. The AMQP receiver is detached on the last one
+     *
+     * @param topicFilter   shared topic filter
+     * @param bridge    AMQP bridge of the unsubscribing MQTT client
+     */
+    public void unsubscribe(String topicFilter, AmqpBridge bridge) {
+
+        SharedSubscription subscription = this.subscriptions.get(topicFilter);
+        if (subscription != null && subscription.subscribers.remove(bridge) != null &&
+                subscription.subscribers.isEmpty()) {
+
+            this.subscriptions.remove(topicFilter);
+            if (subscription.receiver != null) {
+                ProtonReceiver receiver = subscription.receiver;
+                subscription.receiver = null;
+                receiver.close();
+            }
+            LOG.info("Shared subscription on {} detached", topicFilter);
+        }
+    }
+
+    /**
+     * Remove a subscriber from all the shared topic filters
+     *
+     * @param bridge    AMQP bridge of the MQTT client
+     */
+    public void unsubscribeAll(AmqpBridge bridge) {
+
+        List<String> topicFilters = new ArrayList<>(this.subscriptions.keySet());
+        topicFilters.forEach(topicFilter -> this.unsubscribe(topicFilter, bridge));
+    }
+
+    /**
+     * Number of shared topic filters with an attached AMQP receiver
+     *
+     * @return
+     */
+    public int receiversCount() {
+
+        int count = 0;
+        for (SharedSubscription subscription : this.subscriptions.values()) {
+            if (subscription.attached) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Close all the shared subscriptions
+     */
+    public void close() {
+
+        this.closed = true;
+
+        this.subscriptions.values().forEach(subscription -> subscription.failed(new IllegalStateException("Shared subscriptions closed")));
+        this.subscriptions.clear();
+
+        if (this.session != null) {
+            this.session.close();
+            this.connectionPool.release(this.connection, this.connectionLostHandler);
+            this.session = null;
+            this.connection = null;
+        }
+    }
+
+    private void connect() {
+
+        if (this.connecting || this.closed) {
+            return;
+        }
+        this.connecting = true;
+
+        this.connectionPool.acquire(this.connectionLostHandler, done -> {
+
+            this.connecting = false;
+
+            if (done.succeeded() && !this.closed) {
+
+                this.connection = done.result();
+                this.session = this.connection.createSession();
+                this.session.open();
+
+                this.subscriptions.values().forEach(this::attach);
+
+            } else if (done.failed()) {
+
+                LOG.error("Error connecting for the shared subscriptions", done.cause());
+                this.subscriptions.values().forEach(subscription -> subscription.failed(done.cause()));
+                this.retry();
+            }
+        });
+    }
+
+    private void attach(SharedSubscription subscription) {
+
+        ProtonReceiver receiver = this.session.createReceiver(this.address(subscription.topicFilter));
+        subscription.receiver = receiver;
+
+        receiver
+                .setQoS(ProtonQoS.AT_LEAST_ONCE)
+                .setAutoAccept(false)
+                .handler((delivery, message) -> this.messageHandler(subscription, delivery, message))
+                .openHandler(ar -> {
+
+                    if (ar.succeeded() && receiver.getRemoteSource() != null) {
+
+                        LOG.info("Shared subscription on {} attached", subscription.topicFilter);
+                        subscription.attached = true;
+                        subscription.attached();
+                    }
+                })
+                .closeHandler(ar -> {
+
+                    receiver.close();
+                    if (subscription.receiver != receiver) {
+                        return;
+                    }
+                    subscription.receiver = null;
+                    subscription.attached = false;
+
+                    LOG.error("Shared subscription on {} detached by the remote", subscription.topicFilter, ar.cause());
+                    subscription.failed(ar.cause() != null ? ar.cause() : new IllegalStateException("Receiver detached"));
+                    this.retry();
+                })
+                .open();
+    }
+
+    private void handleConnectionLost(ProtonConnection connection) {
+
+        LOG.info("Connection lost for the shared subscriptions");
+
+        this.connection = null;
+        this.session = null;
+
+        // the receivers are lost with the connection, attached again on a new one
+        this.subscriptions.values().forEach(subscription -> {
+            subscription.receiver = null;
+            subscription.attached = false;
+        });
+        this.retry();
+    }
+
+    private void retry() {
+
+        this.vertx.setTimer(REATTACH_DELAY, timer -> {
+
+            if (this.closed || this.subscriptions.isEmpty()) {
+                return;
+            }
+
+            if (this.session == null) {
+                this.connect();
+            } else {
+                this.subscriptions.values().stream()
+                        .filter(subscription -> subscription.receiver == null)
+                        .forEach(this::attach);
+            }
+        });
+    }
+
+    /**
+     * Handler for a message received on a shared topic filter
+     *
+     * @param subscription  shared subscription which received the message
+     * @param delivery  AMQP delivery
+     * @param message   AMQP message
+     */
+    private void messageHandler(SharedSubscription subscription, ProtonDelivery delivery, Message message) {
+
+        // decoded once, the payload buffer is the same for all the subscribers
+        AmqpPublishMessage amqpPublishMessage = AmqpPublishMessage.from(message);
+
+        SharedDelivery sharedDelivery = new SharedDelivery(delivery);
+
+        List<Map.Entry<AmqpBridge, MqttQoS>> subscribers = new ArrayList<>(subscription.subscribers.entrySet());
+        subscribers.forEach(entry -> entry.getKey().publishShared(amqpPublishMessage, entry.getValue(), sharedDelivery));
+
+        // accepted right away if no subscriber has to acknowledge it
+        sharedDelivery.settled();
+    }
+
+    /**
+     * Message received on a shared subscription, accepted at the source when all the subscribers
+     * which have to acknowledge it did (or went away)
+     */
+    static class SharedDelivery {
+
+        private final ProtonDelivery delivery;
+        // subscribers which didn't acknowledge the message yet, plus one for the fan out in progress
+        private int pending = 1;
+
+        SharedDelivery(ProtonDelivery delivery) {
+            this.delivery = delivery;
+        }
+
+        /**
+         * Add a subscriber which has to acknowledge the message
+         */
+        void retain() {
+            this.pending++;
+        }
+
+        /**
+         * A subscriber acknowledged the message (or doesn't need it anymore)
+         */
+        void settled() {
+
+            if (--this.pending == 0) {
+                this.delivery.disposition(Accepted.getInstance(), true);
+            }
+        }
+    }
+
+    /**
+     * Shared subscription on a topic filter with the local subscribers
+     */
+    private static class SharedSubscription {
+
+        private final String topicFilter;
+        // subscribers with the granted QoS level
+        private final Map<AmqpBridge, MqttQoS> subscribers = new IdentityHashMap<>();
+        // subscribers waiting for the receiver to be attached
+        private final List<Handler<AsyncResult<Void>>> waiters = new ArrayList<>();
+
+        private ProtonReceiver receiver;
+        private boolean attached;
+
+        private SharedSubscription(String topicFilter) {
+            this.topicFilter = topicFilter;
+        }
+
+        private void attached() {
+            this.complete(Future.succeededFuture());
+        }
+
+        private void failed(Throwable cause) {
+            this.complete(Future.failedFuture(cause));
+        }
+
+        private void complete(AsyncResult<Void> result) {
+
+            if (this.waiters.isEmpty()) {
+                return;
+            }
+            List<Handler<AsyncResult<Void>>> waiters = new ArrayList<>(this.waiters);
+            this.waiters.clear();
+            waiters.forEach(waiter -> waiter.handle(result));
+        }
+    }
+}
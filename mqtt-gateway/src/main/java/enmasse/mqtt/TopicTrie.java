@@ -0,0 +1,368 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * Topic level trie holding the topic filters (with "+" and "#" wildcards) a client
+ * is subscribed to together with the related granted QoS levels.
+ *
+ * Matching a published topic walks the topic levels in place, without splitting
+ * the topic or allocating any object, so it can be used on the hot path for every
+ * message delivered to the client. Adding and removing filters update the trie
+ * incrementally.
+ *
+ * NOTE : not thread safe, it's meant to be used from the event loop of the owning AMQP bridge
+ */
+public class TopicTrie {
+
+    private static final String LEVEL_SEPARATOR = "/";
+    private static final String PLUS_WILDCARD = "+";
+    private static final String SHARP_WILDCARD = "#";
+
+    private final Node root = new Node(null);
+
+    // number of topic filters stored
+    private int size;
+
+    /**
+     * Add (or replace) a topic filter with the related granted QoS level
+     *
+     * @param filter    topic filter (could have wildcards)
+     * @param qos   granted QoS level
+     */
+    public void put(String filter, MqttQoS qos) {
+
+        Node node = this.root;
+
+        String[] levels = filter.split(LEVEL_SEPARATOR, -1);
+        for (int i = 0; i < levels.length; i++) {
+
+            String level = levels[i];
+
+            // NOTE : a "#" which isn't the last level makes an invalid topic filter; it's stored
+            //        as a fixed level which never matches because a published topic can't have wildcards
+            if (level.equals(SHARP_WILDCARD) && (i == levels.length - 1)) {
+
+                if (node.sharp == null) {
+                    node.sharp = new Node(level);
+                }
+                node = node.sharp;
+
+            } else if (level.equals(PLUS_WILDCARD)) {
+
+                if (node.plus == null) {
+                    node.plus = new Node(level);
+                }
+                node = node.plus;
+
+            } else {
+
+                node = node.childOrCreate(level);
+            }
+        }
+
+        if (node.filter == null) {
+            this.size++;
+        }
+        node.filter = filter;
+        node.qos = qos;
+    }
+
+    /**
+     * Remove a topic filter
+     *
+     * @param filter    topic filter to remove
+     * @return  if the topic filter was present
+     */
+    public boolean remove(String filter) {
+
+        String[] levels = filter.split(LEVEL_SEPARATOR, -1);
+        if (remove(this.root, levels, 0)) {
+            this.size--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return the subscribed topic filter matching the provided topic. If more filters
+     * match the topic, the one with the highest granted QoS level is returned
+     *
+     * @param topic fixed topic (for publishing)
+     * @return  matching subscription or null if there is no match
+     */
+    public Node match(String topic) {
+
+        if (this.size == 0) {
+            return null;
+        }
+
+        // MQTT 3.1.1 spec : topic filters starting with a wildcard don't match topics
+        // beginning with a '$' character
+        boolean dollar = !topic.isEmpty() && topic.charAt(0) == '$';
+        return match(this.root, topic, 0, dollar);
+    }
+
+    /**
+     * Number of topic filters stored
+     *
+     * @return
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * If there are no topic filters stored
+     *
+     * @return
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Remove all topic filters
+     */
+    public void clear() {
+
+        this.root.children = null;
+        this.root.childrenCount = 0;
+        this.root.plus = null;
+        this.root.sharp = null;
+        this.size = 0;
+    }
+
+    private static Node match(Node node, String topic, int start, boolean dollar) {
+
+        Node best = null;
+
+        // "#" matches all the remaining levels (and the parent one as well)
+        if (!dollar && node.sharp != null) {
+            best = node.sharp;
+            if (best.qos == MqttQoS.EXACTLY_ONCE) {
+                return best;
+            }
+        }
+
+        // all topic levels consumed
+        if (start > topic.length()) {
+            return (node.filter != null) ? higherQoS(best, node) : best;
+        }
+
+        int end = topic.indexOf(LEVEL_SEPARATOR, start);
+        if (end == -1) {
+            end = topic.length();
+        }
+
+        Node child = node.child(topic, start, end);
+        if (child != null) {
+            best = higherQoS(best, match(child, topic, end + 1, false));
+            if (best != null && best.qos == MqttQoS.EXACTLY_ONCE) {
+                return best;
+            }
+        }
+
+        if (!dollar && node.plus != null) {
+            best = higherQoS(best, match(node.plus, topic, end + 1, false));
+        }
+
+        return best;
+    }
+
+    private static boolean remove(Node node, String[] levels, int index) {
+
+        if (index == levels.length) {
+
+            if (node.filter == null) {
+                return false;
+            }
+            node.filter = null;
+            node.qos = null;
+            return true;
+        }
+
+        String level = levels[index];
+        Node child;
+        if (level.equals(SHARP_WILDCARD) && (index == levels.length - 1)) {
+            child = node.sharp;
+        } else if (level.equals(PLUS_WILDCARD)) {
+            child = node.plus;
+        } else {
+            child = node.child(level, 0, level.length());
+        }
+
+        if (child == null || !remove(child, levels, index + 1)) {
+            return false;
+        }
+
+        // prune the branch if it isn't used anymore
+        if (child.isEmpty()) {
+            if (child == node.sharp) {
+                node.sharp = null;
+            } else if (child == node.plus) {
+                node.plus = null;
+            } else {
+                node.removeChild(child);
+            }
+        }
+        return true;
+    }
+
+    private static Node higherQoS(Node node1, Node node2) {
+
+        if (node1 == null) {
+            return node2;
+        }
+        if (node2 == null) {
+            return node1;
+        }
+        return (node2.qos.value() > node1.qos.value()) ? node2 : node1;
+    }
+
+    /**
+     * Trie node related to a topic level, it's a subscription when a
+     * topic filter ends on it
+     */
+    public static final class Node {
+
+        private final String level;
+
+        // subscribed topic filter and granted QoS level (if a topic filter ends on this node)
+        private String filter;
+        private MqttQoS qos;
+
+        // children on fixed topic levels as open addressing hash table (size is a power of two)
+        private Node[] children;
+        private int childrenCount;
+        // children on wildcards
+        private Node plus;
+        private Node sharp;
+
+        private Node(String level) {
+            this.level = level;
+        }
+
+        /**
+         * Subscribed topic filter
+         * @return
+         */
+        public String filter() {
+            return this.filter;
+        }
+
+        /**
+         * Granted QoS level for the subscribed topic filter
+         * @return
+         */
+        public MqttQoS qos() {
+            return this.qos;
+        }
+
+        private boolean isEmpty() {
+            return this.filter == null && this.childrenCount == 0 && this.plus == null && this.sharp == null;
+        }
+
+        private Node child(String topic, int start, int end) {
+
+            if (this.children == null) {
+                return null;
+            }
+
+            int length = end - start;
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + topic.charAt(i);
+            }
+
+            int mask = this.children.length - 1;
+            for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+
+                Node child = this.children[i];
+                if (child == null) {
+                    return null;
+                }
+                if (child.level.length() == length && child.level.regionMatches(0, topic, start, length)) {
+                    return child;
+                }
+            }
+        }
+
+        private Node childOrCreate(String level) {
+
+            Node child = this.child(level, 0, level.length());
+            if (child == null) {
+
+                // keep the load factor under 0.5, so there is always a free slot
+                if (this.children == null) {
+                    this.children = new Node[4];
+                } else if ((this.childrenCount + 1) * 2 > this.children.length) {
+                    this.rehash(this.children.length * 2);
+                }
+
+                child = new Node(level);
+                insert(this.children, child);
+                this.childrenCount++;
+            }
+            return child;
+        }
+
+        private void removeChild(Node child) {
+
+            this.childrenCount--;
+            if (this.childrenCount == 0) {
+                this.children = null;
+            } else {
+                // subscription changes are rare, just rebuild the table without the removed child
+                Node[] old = this.children;
+                this.children = new Node[old.length];
+                for (Node node : old) {
+                    if (node != null && node != child) {
+                        insert(this.children, node);
+                    }
+                }
+            }
+        }
+
+        private void rehash(int capacity) {
+
+            Node[] old = this.children;
+            this.children = new Node[capacity];
+            for (Node node : old) {
+                if (node != null) {
+                    insert(this.children, node);
+                }
+            }
+        }
+
+        private static void insert(Node[] table, Node node) {
+
+            int mask = table.length - 1;
+            int i = spread(node.level.hashCode()) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = node;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
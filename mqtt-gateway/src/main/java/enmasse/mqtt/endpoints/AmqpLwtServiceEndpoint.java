@@ -16,6 +16,7 @@
 
 package enmasse.mqtt.endpoints;
 
+import enmasse.mqtt.lwt.LwtPartitions;
 import enmasse.mqtt.messages.AmqpWillMessage;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
@@ -36,7 +37,7 @@ public class AmqpLwtServiceEndpoint {
 
     private static final Logger LOG = LoggerFactory.getLogger(AmqpLwtServiceEndpoint.class);
 
-    public static final String LWT_SERVICE_ENDPOINT = "$lwt";
+    public static final String LWT_SERVICE_ENDPOINT = LwtPartitions.LWT_SERVICE_ENDPOINT;
 
     private ProtonSender sender;
 
@@ -17,6 +17,7 @@
 package enmasse.mqtt.endpoints;
 
 import enmasse.mqtt.messages.AmqpPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
 
 /**
  * Class for bringing AMQP_PUBLISH to an MQTT client and the
@@ -26,6 +27,7 @@ public class AmqpPublishData {
 
     private AmqpPublishMessage amqpPublishMessage;
     private int messageId;
+    private MqttQoS qos;
 
     /**
      * AMQP_PUBLISH message to send
@@ -62,4 +64,22 @@ public class AmqpPublishData {
         this.messageId = messageId;
         return this;
     }
+
+    /**
+     * QoS level used for the PUBLISH message sent to the MQTT client (null if not sent)
+     * @return
+     */
+    public MqttQoS qos() {
+        return this.qos;
+    }
+
+    /**
+     * Set the QoS level used for the PUBLISH message sent to the MQTT client
+     * @param qos   QoS level
+     * @return  current instance of the AmqpPublishData
+     */
+    public AmqpPublishData setQos(MqttQoS qos) {
+        this.qos = qos;
+        return this;
+    }
 }
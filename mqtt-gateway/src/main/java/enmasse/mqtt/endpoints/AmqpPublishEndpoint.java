@@ -18,6 +18,8 @@ package enmasse.mqtt.endpoints;
 
 import enmasse.mqtt.messages.AmqpPublishMessage;
 import enmasse.mqtt.messages.AmqpPubrelMessage;
+import enmasse.mqtt.metrics.GatewayMetrics;
+import enmasse.mqtt.metrics.NoopGatewayMetrics;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
@@ -29,8 +31,11 @@ import org.apache.qpid.proton.amqp.messaging.Accepted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Publisher endpoint
@@ -42,19 +47,121 @@ public class AmqpPublishEndpoint {
     public static final String AMQP_CLIENT_PUBREL_ENDPOINT_TEMPLATE = "$mqtt.%s.pubrel";
 
     // all delivery for published messages if they need settlement (messageId -> delivery)
-    private Map<Object, ProtonDelivery> deliveries;
-    // links for publishing message on topic (topic -> link/senders couple)
-    private Map<String, AmqpPublisher> publishers;
-    // sender for PUBREL messages
+    private InFlightWindow<PendingDelivery> deliveries;
+    // links for publishing message on topic (topic -> link/senders couple), in access order (LRU first)
+    private LinkedHashMap<String, AmqpPublisher> publishers;
+    // sender for PUBREL messages, created and attached on the first one
+    private final Supplier<ProtonSender> senderPubrelFactory;
     private ProtonSender senderPubrel;
+    // handler called when a message has to be sent on a link without credit
+    private Handler<AmqpPublishMessage> creditStallHandler;
+
+    // max number of cached publishers (0 for no limit)
+    private final int maxPublishers;
+    // time after which an unused publisher is detached (in ns, 0 for no timeout)
+    private final long publisherIdleTimeout;
+
+    // messages sent on the publishers links without a remote disposition yet
+    // (or queued without credit, for the pre-settled ones)
+    private int pendingDeliveries;
+    // pending deliveries for pausing/resuming the publishing (0 for no flow control)
+    private int highWatermark;
+    private int lowWatermark;
+    private boolean paused;
+    // handlers called when the publishing has to be paused/resumed
+    private Handler<Void> pauseHandler;
+    private Handler<Void> resumeHandler;
+
+    // publishers cache statistics, also recorded in the gateway metrics
+    private GatewayMetrics metrics = NoopGatewayMetrics.INSTANCE;
+    private long hits;
+    private long misses;
+    private long evictions;
 
     /**
      * Constructor
      *
-     * @param senderPubrel  ProtonSender instance related to client PUBREL address
+     * @param senderPubrelFactory   factory of the ProtonSender instance related to client PUBREL address
      */
-    public AmqpPublishEndpoint(ProtonSender senderPubrel) {
-        this.senderPubrel = senderPubrel;
+    public AmqpPublishEndpoint(Supplier<ProtonSender> senderPubrelFactory) {
+        this(senderPubrelFactory, 0, 0);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param senderPubrelFactory   factory of the ProtonSender instance related to client PUBREL address
+     * @param maxPublishers max number of cached publishers (0 for no limit)
+     * @param publisherIdleTimeout  time after which an unused publisher is detached (in ms, 0 for no timeout)
+     */
+    public AmqpPublishEndpoint(Supplier<ProtonSender> senderPubrelFactory, int maxPublishers, long publisherIdleTimeout) {
+        this.senderPubrelFactory = senderPubrelFactory;
+        this.maxPublishers = maxPublishers;
+        this.publisherIdleTimeout = TimeUnit.MILLISECONDS.toNanos(publisherIdleTimeout);
+    }
+
+    /**
+     * Set the handler called when an AMQP_PUBLISH has to be sent on a link without credit
+     * (it's buffered locally until the credit is granted)
+     *
+     * @param handler   the handler
+     * @return  the current AmqpPublishEndpoint instance
+     */
+    public AmqpPublishEndpoint creditStallHandler(Handler<AmqpPublishMessage> handler) {
+
+        this.creditStallHandler = handler;
+        return this;
+    }
+
+    /**
+     * Set the gateway metrics recording the publishers cache hits, misses and evictions
+     *
+     * @param metrics   the gateway metrics
+     * @return  the current AmqpPublishEndpoint instance
+     */
+    public AmqpPublishEndpoint metrics(GatewayMetrics metrics) {
+
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Set the watermarks on the pending deliveries (sent without a remote disposition yet)
+     * for pausing and resuming the publishing
+     *
+     * @param highWatermark pending deliveries for pausing (0 for no flow control)
+     * @param lowWatermark  pending deliveries for resuming
+     * @return  the current AmqpPublishEndpoint instance
+     */
+    public AmqpPublishEndpoint watermarks(int highWatermark, int lowWatermark) {
+
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        return this;
+    }
+
+    /**
+     * Set the handler called when the pending deliveries reach the high watermark
+     *
+     * @param handler   the handler
+     * @return  the current AmqpPublishEndpoint instance
+     */
+    public AmqpPublishEndpoint pauseHandler(Handler<Void> handler) {
+
+        this.pauseHandler = handler;
+        return this;
+    }
+
+    /**
+     * Set the handler called when the pending deliveries go down to the low watermark (after a pause)
+     *
+     * @param handler   the handler
+     * @return  the current AmqpPublishEndpoint instance
+     */
+    public AmqpPublishEndpoint resumeHandler(Handler<Void> handler) {
+
+        this.resumeHandler = handler;
+        return this;
     }
 
     /**
@@ -62,23 +169,35 @@ public class AmqpPublishEndpoint {
      */
     public void open() {
 
-        this.deliveries = new HashMap<>();
-        this.publishers = new HashMap<>();
+        // QoS 2 messages in flight are bounded by the MQTT message identifiers
+        this.deliveries = new InFlightWindow<>(InFlightWindow.MAX_MESSAGE_ID);
+        this.publishers = new LinkedHashMap<>(16, 0.75f, true);
     }
 
     /**
-     * Check if a publisher already exists for the specified topic
+     * Check if a publisher already exists for the specified topic.
+     * It's accounted as a hit/miss on the publishers cache
      *
      * @param topic topic to check the publisher
      * @return  if publisher already exists
      */
     public boolean isPublisher(String topic) {
 
-        return this.publishers.containsKey(topic);
+        // get (instead of containsKey) for updating the access order
+        if (this.publishers.get(topic) != null) {
+            this.hits++;
+            this.metrics.publisherHit();
+            return true;
+        } else {
+            this.misses++;
+            this.metrics.publisherMiss();
+            return false;
+        }
     }
 
     /**
-     * Add a publisher to the endpoint
+     * Add a publisher to the endpoint. If the max number of publishers is reached,
+     * the least recently used one (without messages in flight) is detached
      *
      * @param topic topic for which adding the publisher
      * @param amqpPublisher publisher to add
@@ -88,9 +207,140 @@ public class AmqpPublishEndpoint {
         if (this.publishers.containsKey(topic)) {
             throw new IllegalStateException(String.format("AMQP publisher for %s already exists !", topic));
         }
+
+        if (this.maxPublishers > 0 && this.publishers.size() >= this.maxPublishers) {
+
+            Iterator<Map.Entry<String, AmqpPublisher>> iterator = this.publishers.entrySet().iterator();
+            while (iterator.hasNext()) {
+
+                Map.Entry<String, AmqpPublisher> entry = iterator.next();
+                if (!entry.getValue().isInFlight()) {
+                    this.evict(iterator, entry);
+                    break;
+                }
+            }
+        }
+
+        // a link refused or detached by the remote peer fails the messages in flight on the publisher
+        Handler<AsyncResult<ProtonSender>> closeHandler = done -> this.publisherClosed(topic, amqpPublisher, done);
+        amqpPublisher.senderQoS0().closeHandler(closeHandler);
+        amqpPublisher.senderQoS1().closeHandler(closeHandler);
+        amqpPublisher.senderQoS2().closeHandler(closeHandler);
+
+        amqpPublisher.touch(System.nanoTime());
         this.publishers.put(topic, amqpPublisher);
     }
 
+    /**
+     * Handle a publisher link refused or detached by the remote peer : the publisher is removed
+     * from the cache (attached again on the next publish) and its pending deliveries are failed,
+     * so they don't keep the publishing paused
+     *
+     * @param topic topic of the publisher
+     * @param publisher publisher with the closed link
+     * @param result    result of the link close, with the remote error condition
+     */
+    private void publisherClosed(String topic, AmqpPublisher publisher, AsyncResult<ProtonSender> result) {
+
+        if (publisher.isClosed()) {
+            // detached locally, the remote peer is just answering
+            return;
+        }
+
+        String cause = result.failed() ? result.cause().getMessage() : "no error";
+        LOG.debug("AMQP publisher on {} detached by the remote peer ({})", topic, cause);
+
+        if (this.publishers.get(topic) == publisher) {
+            this.publishers.remove(topic);
+        }
+        publisher.close();
+
+        // the pre-settled messages queued without credit are lost with the link
+        this.queueDrained(publisher);
+
+        for (Handler<AsyncResult<ProtonDelivery>> handler : publisher.removeAllUnsettled()) {
+            publisher.removeInFlight();
+            this.deliveryCompleted();
+            handler.handle(Future.failedFuture(String.format("AMQP publisher on %s detached : %s", topic, cause)));
+        }
+    }
+
+    /**
+     * Detach the publishers not used for more than the idle timeout
+     *
+     * @param now   current time in ns
+     */
+    public void evictIdlePublishers(long now) {
+
+        if (this.publisherIdleTimeout <= 0 || this.publishers == null) {
+            return;
+        }
+
+        // access ordered, so the least recently used publishers come first
+        Iterator<Map.Entry<String, AmqpPublisher>> iterator = this.publishers.entrySet().iterator();
+        while (iterator.hasNext()) {
+
+            Map.Entry<String, AmqpPublisher> entry = iterator.next();
+            if (now - entry.getValue().lastUsed() < this.publisherIdleTimeout) {
+                break;
+            }
+            if (!entry.getValue().isInFlight()) {
+                this.evict(iterator, entry);
+            }
+        }
+    }
+
+    /**
+     * Release the memory for the pending deliveries if there are none
+     */
+    public void trim() {
+
+        if (this.deliveries != null) {
+            this.deliveries.trim();
+        }
+    }
+
+    private void evict(Iterator<Map.Entry<String, AmqpPublisher>> iterator, Map.Entry<String, AmqpPublisher> entry) {
+
+        iterator.remove();
+        entry.getValue().close();
+        this.evictions++;
+        this.metrics.publisherEvicted();
+        LOG.debug("AMQP publisher on {} detached", entry.getKey());
+    }
+
+    /**
+     * Number of publishers currently cached
+     * @return
+     */
+    public int publishersCount() {
+        return (this.publishers != null) ? this.publishers.size() : 0;
+    }
+
+    /**
+     * Number of publishes for which the publisher was already cached
+     * @return
+     */
+    public long hits() {
+        return this.hits;
+    }
+
+    /**
+     * Number of publishes for which the publisher had to be attached
+     * @return
+     */
+    public long misses() {
+        return this.misses;
+    }
+
+    /**
+     * Number of publishers detached because of max number or idle timeout reached
+     * @return
+     */
+    public long evictions() {
+        return this.evictions;
+    }
+
     /**
      * Send the AMQP_PUBLISH to the attached topic/address
      *
@@ -101,69 +351,185 @@ public class AmqpPublishEndpoint {
         // send AMQP_PUBLISH message
 
         AmqpPublisher publisher = this.publishers.get(amqpPublishMessage.topic());
+        publisher.touch(System.nanoTime());
 
-        // use sender for QoS 0/1 messages
-        if (amqpPublishMessage.qos() != MqttQoS.EXACTLY_ONCE) {
+        // use pre-settled sender for QoS 0 messages
+        if (amqpPublishMessage.qos() == MqttQoS.AT_MOST_ONCE) {
 
             // attach sender link on "topic" (if doesn't exist yet)
-            if (!publisher.senderQoS01().isOpen()) {
+            if (!publisher.senderQoS0().isOpen()) {
 
-                publisher.senderQoS01()
-                        .setQoS(ProtonQoS.AT_LEAST_ONCE)
+                // NOTE : detached by the publishers cache when not used for the idle timeout
+                publisher.senderQoS0()
+                        .setQoS(ProtonQoS.AT_MOST_ONCE)
+                        .sendQueueDrainHandler(sender -> this.queueDrained(publisher))
                         .open();
-
-                // TODO: think about starting a timer for inactivity on this link for detaching ?
             }
 
-            if (amqpPublishMessage.qos() == MqttQoS.AT_MOST_ONCE) {
+            this.checkCredit(publisher.senderQoS0(), amqpPublishMessage);
 
-                publisher.senderQoS01().send(amqpPublishMessage.toAmqp());
-                handler.handle(Future.succeededFuture(null));
+            // there is no disposition for a pre-settled message, so for the flow control it's pending
+            // only when queued locally without credit (until the link has credit again)
+            if (publisher.senderQoS0().sendQueueFull()) {
 
-            } else {
+                publisher.addQueuedQoS0();
+                publisher.addInFlight();
+                this.deliveryStarted();
+            }
 
-                publisher.senderQoS01().send(amqpPublishMessage.toAmqp(), delivery -> {
+            publisher.senderQoS0().send(amqpPublishMessage.toAmqp());
+            handler.handle(Future.succeededFuture(null));
 
-                    if (delivery.getRemoteState() == Accepted.getInstance()) {
-                        LOG.info("AMQP publish delivery {}", delivery.getRemoteState());
-                        handler.handle(Future.succeededFuture(delivery));
-                    } else {
-                        handler.handle(Future.failedFuture(String.format("AMQP publish delivery %s", delivery.getRemoteState())));
-                    }
-                });
+        // use sender for QoS 1 messages
+        } else if (amqpPublishMessage.qos() == MqttQoS.AT_LEAST_ONCE) {
 
+            // attach sender link on "topic" (if doesn't exist yet)
+            if (!publisher.senderQoS1().isOpen()) {
+
+                // NOTE : detached by the publishers cache when not used for the idle timeout
+                publisher.senderQoS1()
+                        .setQoS(ProtonQoS.AT_LEAST_ONCE)
+                        .open();
             }
 
+            this.checkCredit(publisher.senderQoS1(), amqpPublishMessage);
+
+            publisher.addInFlight();
+            this.deliveryStarted();
+            ProtonDelivery sent = publisher.senderQoS1().send(amqpPublishMessage.toAmqp(), delivery -> {
+
+                if (publisher.removeUnsettled(delivery) == null) {
+                    // already failed by the link detach
+                    return;
+                }
+                publisher.removeInFlight();
+                this.deliveryCompleted();
+                if (delivery.getRemoteState() == Accepted.getInstance()) {
+                    LOG.debug("AMQP publish delivery {}", delivery.getRemoteState());
+                    handler.handle(Future.succeededFuture(delivery));
+                } else {
+                    handler.handle(Future.failedFuture(String.format("AMQP publish delivery %s", delivery.getRemoteState())));
+                }
+            });
+            publisher.addUnsettled(sent, handler);
+
         // use sender for QoS 2 messages
         } else {
 
             // attach sender link on "topic" (if doesn't exist yet)
             if (!publisher.senderQoS2().isOpen()) {
 
+                // NOTE : detached by the publishers cache when not used for the idle timeout
                 publisher.senderQoS2()
                         // TODO: Vert.x Proton doesn't support EXACTLY_ONCE
                         .open();
-
-                // TODO: think about starting a timer for inactivity on this link for detaching ?
             }
 
-            publisher.senderQoS2().send(amqpPublishMessage.toAmqp(), delivery -> {
+            this.checkCredit(publisher.senderQoS2(), amqpPublishMessage);
+
+            publisher.addInFlight();
+            this.deliveryStarted();
+            ProtonDelivery sent = publisher.senderQoS2().send(amqpPublishMessage.toAmqp(), delivery -> {
 
+                if (publisher.removeUnsettled(delivery) == null) {
+                    // already failed by the link detach
+                    return;
+                }
+                this.deliveryCompleted();
                 if (delivery.getRemoteState() == Accepted.getInstance()) {
-                    LOG.info("AMQP publish delivery {}", delivery.getRemoteState());
+                    LOG.debug("AMQP publish delivery {}", delivery.getRemoteState());
 
                     // received disposition not settled, store for future settlement
+                    // (the publisher stays in flight until then)
                     if (!delivery.remotelySettled()) {
-                        this.deliveries.put(amqpPublishMessage.messageId(), delivery);
+                        this.deliveries.put((int) amqpPublishMessage.messageId(), new PendingDelivery(delivery, publisher));
+                    } else {
+                        publisher.removeInFlight();
                     }
 
                     handler.handle(Future.succeededFuture(delivery));
                 } else {
+                    publisher.removeInFlight();
                     handler.handle(Future.failedFuture(String.format("AMQP publish delivery %s", delivery.getRemoteState())));
                 }
             });
+            publisher.addUnsettled(sent, handler);
+        }
+
+    }
+
+    /**
+     * Release the pre-settled messages queued on the QoS 0 link of a publisher, when it has credit again
+     *
+     * @param publisher publisher with the QoS 0 link
+     */
+    private void queueDrained(AmqpPublisher publisher) {
+
+        int released = publisher.releaseQueuedQoS0();
+        for (int i = 0; i < released; i++) {
+            publisher.removeInFlight();
+            this.deliveryCompleted();
         }
+    }
+
+    /**
+     * Account a delivery sent on a publisher link, pausing the publishing at the high watermark
+     */
+    private void deliveryStarted() {
+
+        this.pendingDeliveries++;
+        if (this.highWatermark > 0 && !this.paused && this.pendingDeliveries >= this.highWatermark) {
+
+            this.paused = true;
+            if (this.pauseHandler != null) {
+                this.pauseHandler.handle(null);
+            }
+        }
+    }
+
+    /**
+     * Account a remote disposition on a publisher link, resuming the publishing at the low watermark
+     */
+    private void deliveryCompleted() {
+
+        this.pendingDeliveries--;
+        if (this.paused && this.pendingDeliveries <= this.lowWatermark) {
+
+            this.paused = false;
+            if (this.resumeHandler != null) {
+                this.resumeHandler.handle(null);
+            }
+        }
+    }
+
+    /**
+     * Number of deliveries sent on the publishers links without a remote disposition yet
+     * (or queued without credit, for the pre-settled ones)
+     * @return
+     */
+    public int pendingDeliveries() {
+        return this.pendingDeliveries;
+    }
+
+    /**
+     * If the publishing is paused (pending deliveries reached the high watermark)
+     * @return
+     */
+    public boolean isPaused() {
+        return this.paused;
+    }
 
+    /**
+     * Check if the sender has credit for sending the AMQP_PUBLISH message
+     *
+     * @param sender    sender for the message
+     * @param amqpPublishMessage    AMQP_PUBLISH message to send
+     */
+    private void checkCredit(ProtonSender sender, AmqpPublishMessage amqpPublishMessage) {
+
+        if (sender.sendQueueFull() && this.creditStallHandler != null) {
+            this.creditStallHandler.handle(amqpPublishMessage);
+        }
     }
 
     /**
@@ -175,8 +541,10 @@ public class AmqpPublishEndpoint {
 
         // send AMQP_PUBREL message
 
-        if (!this.senderPubrel.isOpen()) {
+        // only the MQTT clients receiving QoS 2 messages need the link
+        if (this.senderPubrel == null) {
 
+            this.senderPubrel = this.senderPubrelFactory.get();
             this.senderPubrel
                     .setQoS(ProtonQoS.AT_LEAST_ONCE)
                     .open();
@@ -187,7 +555,7 @@ public class AmqpPublishEndpoint {
         this.senderPubrel.send(amqpPubrelMessage.toAmqp(), delivery -> {
 
             if (delivery.getRemoteState() == Accepted.getInstance()) {
-                LOG.info("AMQP pubrel delivery {}", delivery.getRemoteState());
+                LOG.debug("AMQP pubrel delivery {}", delivery.getRemoteState());
                 handler.handle(Future.succeededFuture(delivery));
             } else {
                 handler.handle(Future.failedFuture(String.format("AMQP pubrel delivery %s", delivery.getRemoteState())));
@@ -201,16 +569,10 @@ public class AmqpPublishEndpoint {
      */
     public void close() {
 
-        // detach links
-        for (Map.Entry<String, AmqpPublisher> entry: this.publishers.entrySet()) {
+        // detach links (marked as closed even if not attached, so a late remote detach is ignored)
+        this.publishers.values().forEach(AmqpPublisher::close);
 
-            AmqpPublisher publisher = entry.getValue();
-            if (publisher.isOpen()) {
-                publisher.close();
-            }
-        }
-
-        if (this.senderPubrel.isOpen()) {
+        if (this.senderPubrel != null && this.senderPubrel.isOpen()) {
             this.senderPubrel.close();
         }
 
@@ -223,11 +585,26 @@ public class AmqpPublishEndpoint {
      *
      * @param messageId message identifier to settle
      */
-    public void settle(Object messageId) {
+    public void settle(int messageId) {
+
+        PendingDelivery pendingDelivery = this.deliveries.remove(messageId);
+        if (pendingDelivery != null) {
+            pendingDelivery.delivery.disposition(Accepted.getInstance(), true);
+            pendingDelivery.publisher.removeInFlight();
+        }
+    }
+
+    /**
+     * Delivery waiting for settlement with the publisher used for sending it
+     */
+    private static class PendingDelivery {
+
+        private final ProtonDelivery delivery;
+        private final AmqpPublisher publisher;
 
-        if (this.deliveries.containsKey(messageId)) {
-            ProtonDelivery delivery = this.deliveries.remove(messageId);
-            delivery.disposition(Accepted.getInstance(), true);
+        private PendingDelivery(ProtonDelivery delivery, AmqpPublisher publisher) {
+            this.delivery = delivery;
+            this.publisher = publisher;
         }
     }
 }
@@ -16,24 +16,46 @@
 
 package enmasse.mqtt.endpoints;
 
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.proton.ProtonDelivery;
 import io.vertx.proton.ProtonSender;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
- * AMQP publisher with links couple for publishing with QoS 0/1 and QoS 2
+ * AMQP publisher with links for publishing with QoS 0 (pre-settled), QoS 1 and QoS 2
  */
 public class AmqpPublisher {
 
-    private final ProtonSender senderQoS01;
+    private final ProtonSender senderQoS0;
+    private final ProtonSender senderQoS1;
     private final ProtonSender senderQoS2;
 
+    // last time (in ns) the publisher was used
+    private long lastUsed;
+    // number of sent messages still waiting for disposition/settlement
+    private int inFlight;
+    // number of pre-settled messages queued locally on the QoS 0 link waiting for credit
+    private int queuedQoS0;
+    // handlers of the QoS 1/2 messages waiting for the remote disposition
+    private final Map<ProtonDelivery, Handler<AsyncResult<ProtonDelivery>>> unsettled = new LinkedHashMap<>();
+    // if the links are closed (detached locally or by the remote peer)
+    private boolean closed;
+
     /**
      * Constructor
      *
-     * @param senderQoS01   ProtonSender instance related to the publishing address for QoS 0 and 1
+     * @param senderQoS0    ProtonSender instance related to the publishing address for QoS 0
+     * @param senderQoS1    ProtonSender instance related to the publishing address for QoS 1
      * @param senderQoS2    ProtonSender instance related to the publishing address for QoS 2
      */
-    public AmqpPublisher(ProtonSender senderQoS01, ProtonSender senderQoS2) {
-        this.senderQoS01 = senderQoS01;
+    public AmqpPublisher(ProtonSender senderQoS0, ProtonSender senderQoS1, ProtonSender senderQoS2) {
+        this.senderQoS0 = senderQoS0;
+        this.senderQoS1 = senderQoS1;
         this.senderQoS2 = senderQoS2;
     }
 
@@ -42,8 +64,14 @@ public class AmqpPublisher {
      */
     public void close() {
 
-        if (this.senderQoS01.isOpen()) {
-            this.senderQoS01.close();
+        this.closed = true;
+
+        if (this.senderQoS0.isOpen()) {
+            this.senderQoS0.close();
+        }
+
+        if (this.senderQoS1.isOpen()) {
+            this.senderQoS1.close();
         }
 
         if (this.senderQoS2.isOpen()) {
@@ -57,15 +85,121 @@ public class AmqpPublisher {
      */
     public boolean isOpen() {
 
-        return (this.senderQoS01.isOpen() || this.senderQoS2.isOpen());
+        return (this.senderQoS0.isOpen() || this.senderQoS1.isOpen() || this.senderQoS2.isOpen());
+    }
+
+    /**
+     * If the publisher is closed, so it can't be used anymore
+     * @return
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Mark the publisher as used
+     *
+     * @param now   current time in ns
+     */
+    public void touch(long now) {
+        this.lastUsed = now;
+    }
+
+    /**
+     * Last time (in ns) the publisher was used
+     * @return
+     */
+    public long lastUsed() {
+        return this.lastUsed;
+    }
+
+    /**
+     * Track a sent message waiting for disposition/settlement
+     */
+    public void addInFlight() {
+        this.inFlight++;
+    }
+
+    /**
+     * Release a sent message after its disposition/settlement
+     */
+    public void removeInFlight() {
+        this.inFlight--;
+    }
+
+    /**
+     * If there are sent messages waiting for disposition/settlement, so links can't be detached
+     * @return
+     */
+    public boolean isInFlight() {
+        return this.inFlight > 0;
+    }
+
+    /**
+     * Track a pre-settled message queued locally on the QoS 0 link because of no credit
+     */
+    public void addQueuedQoS0() {
+        this.queuedQoS0++;
+    }
+
+    /**
+     * Release all the pre-settled messages queued locally on the QoS 0 link (credit is available)
+     *
+     * @return  number of released messages
+     */
+    public int releaseQueuedQoS0() {
+
+        int released = this.queuedQoS0;
+        this.queuedQoS0 = 0;
+        return released;
+    }
+
+    /**
+     * Track the handler of a QoS 1/2 message waiting for the remote disposition
+     *
+     * @param delivery  delivery of the sent message
+     * @param handler   handler to call with the remote disposition
+     */
+    public void addUnsettled(ProtonDelivery delivery, Handler<AsyncResult<ProtonDelivery>> handler) {
+        this.unsettled.put(delivery, handler);
+    }
+
+    /**
+     * Release the handler of a QoS 1/2 message after its remote disposition
+     *
+     * @param delivery  delivery of the sent message
+     * @return  the handler, null if already released by the link detach
+     */
+    public Handler<AsyncResult<ProtonDelivery>> removeUnsettled(ProtonDelivery delivery) {
+        return this.unsettled.remove(delivery);
+    }
+
+    /**
+     * Release the handlers of all the QoS 1/2 messages waiting for the remote disposition
+     *
+     * @return  the released handlers
+     */
+    public List<Handler<AsyncResult<ProtonDelivery>>> removeAllUnsettled() {
+
+        List<Handler<AsyncResult<ProtonDelivery>>> handlers = new ArrayList<>(this.unsettled.values());
+        this.unsettled.clear();
+        return handlers;
+    }
+
+    /**
+     * ProtonSender instance related to the publishing address for QoS 0
+     * @return
+     */
+    public ProtonSender senderQoS0() {
+        return this.senderQoS0;
     }
 
     /**
-     * ProtonSender instance related to the publishing address for QoS 0 and 1
+     * ProtonSender instance related to the publishing address for QoS 1
      * @return
      */
-    public ProtonSender senderQoS01() {
-        return this.senderQoS01;
+    public ProtonSender senderQoS1() {
+        return this.senderQoS1;
     }
 
     /**
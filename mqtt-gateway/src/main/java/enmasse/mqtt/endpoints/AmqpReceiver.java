@@ -18,22 +18,26 @@ package enmasse.mqtt.endpoints;
 
 import io.vertx.proton.ProtonReceiver;
 
+import java.util.function.Supplier;
+
 /**
  * AMQP receiver with links couple for receiving on control and publish addresses
  */
 public class AmqpReceiver {
 
-    private final ProtonReceiver receiverControl;
+    // provides the control receiver, created only when needed
+    private final Supplier<ProtonReceiver> receiverControlFactory;
+    private ProtonReceiver receiverControl;
     private final ProtonReceiver receiverPublish;
 
     /**
      * Constructor
      *
-     * @param receiverControl   ProtonReceiver instance related to the control address
+     * @param receiverControlFactory    provider of the ProtonReceiver instance related to the control address
      * @param receiverPublish   ProtonReceiver instance related to the publish address
      */
-    public AmqpReceiver(ProtonReceiver receiverControl, ProtonReceiver receiverPublish) {
-        this.receiverControl = receiverControl;
+    public AmqpReceiver(Supplier<ProtonReceiver> receiverControlFactory, ProtonReceiver receiverPublish) {
+        this.receiverControlFactory = receiverControlFactory;
         this.receiverPublish = receiverPublish;
     }
 
@@ -42,29 +46,44 @@ public class AmqpReceiver {
      */
     public void close() {
 
-        if (this.receiverControl.isOpen()) {
-            this.receiverControl.close();
-        }
+        this.closeControl();
 
         if (this.receiverPublish.isOpen()) {
             this.receiverPublish.close();
         }
     }
 
+    /**
+     * Close and detach the link on the control address, releasing the receiver
+     */
+    public void closeControl() {
+
+        if (this.receiverControl != null) {
+            if (this.receiverControl.isOpen()) {
+                this.receiverControl.close();
+            }
+            this.receiverControl = null;
+        }
+    }
+
     /**
      * If the receiver is opened
      * @return
      */
     public boolean isOpen() {
 
-        return (this.receiverControl.isOpen() || this.receiverPublish.isOpen());
+        return ((this.receiverControl != null && this.receiverControl.isOpen()) || this.receiverPublish.isOpen());
     }
 
     /**
-     * ProtonReceiver instance related to the control address
+     * ProtonReceiver instance related to the control address (created on the first call)
      * @return
      */
     public ProtonReceiver receiverControl() {
+
+        if (this.receiverControl == null) {
+            this.receiverControl = this.receiverControlFactory.get();
+        }
         return this.receiverControl;
     }
 
@@ -19,6 +19,7 @@ package enmasse.mqtt.endpoints;
 import enmasse.mqtt.messages.AmqpPublishMessage;
 import enmasse.mqtt.messages.AmqpPubrelMessage;
 import enmasse.mqtt.messages.AmqpSubscriptionsMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
 import io.vertx.core.Handler;
 import io.vertx.proton.ProtonDelivery;
 import io.vertx.proton.ProtonQoS;
@@ -27,9 +28,6 @@ import org.apache.qpid.proton.message.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Receiver endpoint
  */
@@ -40,6 +38,8 @@ public class AmqpReceiverEndpoint {
     public static final String CLIENT_CONTROL_ENDPOINT_TEMPLATE = "$mqtt.to.%s.control";
     public static final String CLIENT_PUBLISH_ENDPOINT_TEMPLATE = "$mqtt.to.%s.publish";
 
+    public static final int DEFAULT_MAX_IN_FLIGHT = 100;
+
     private AmqpReceiver receiver;
 
     // handler called when AMQP_SUBSCRIPTIONS is received
@@ -49,7 +49,9 @@ public class AmqpReceiverEndpoint {
     // handler called when AMQP_PUBREL is received
     private Handler<AmqpPubrelMessage> pubrelHandler;
     // all delivery for received messages if they need settlement (messageId -> delivery)
-    private Map<Object, ProtonDelivery> deliveries;
+    private InFlightWindow<ProtonDelivery> deliveries;
+    // max number of received messages not settled yet (credit on the publish address)
+    private final int maxInFlight;
 
     /**
      * Constructor
@@ -57,7 +59,26 @@ public class AmqpReceiverEndpoint {
      * @param receiver  receiver instance related to unique client addresses
      */
     public AmqpReceiverEndpoint(AmqpReceiver receiver) {
+        this(receiver, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param receiver  receiver instance related to unique client addresses
+     * @param maxInFlight   max number of received messages not settled yet
+     */
+    public AmqpReceiverEndpoint(AmqpReceiver receiver, int maxInFlight) {
         this.receiver = receiver;
+        this.maxInFlight = maxInFlight;
+        this.deliveries = new InFlightWindow<>(this.maxInFlight);
+    }
+
+    /**
+     * Release the memory for the in flight deliveries if there are none
+     */
+    public void trim() {
+        this.deliveries.trim();
     }
 
     /**
@@ -105,7 +126,7 @@ public class AmqpReceiverEndpoint {
      */
     private void messageHandler(ProtonDelivery delivery, Message message) {
 
-        LOG.info("Received {}", message);
+        LOG.debug("Received {}", message);
 
         // messages without subject are just AMQP_PUBLISH messages
         if (message.getSubject() == null) {
@@ -116,8 +137,12 @@ public class AmqpReceiverEndpoint {
             this.handlePublish(amqpPublishData);
             // settlement depends on the QoS levels that could be different from the current one in the
             // publish message. The AMQP bridge checks the granted QoS as well (MQTT 3.1.1)
-            if (!delivery.remotelySettled()) {
-                this.deliveries.put(amqpPublishData.messageId(), delivery);
+            if (amqpPublishData.qos() == null || amqpPublishData.qos() == MqttQoS.AT_MOST_ONCE) {
+
+                // not published to the MQTT client or without acknowledgement, settled immediately
+                this.settle(delivery);
+            } else {
+                this.addInFlight(amqpPublishData.messageId(), delivery);
             }
 
         } else {
@@ -126,17 +151,17 @@ public class AmqpReceiverEndpoint {
 
                 case AmqpSubscriptionsMessage.AMQP_SUBJECT:
 
-                    this.handleSession(AmqpSubscriptionsMessage.from(message));
+                    // accepted before handling, the control link could be detached by the handler
                     delivery.disposition(Accepted.getInstance(), true);
+                    this.handleSession(AmqpSubscriptionsMessage.from(message));
 
                     break;
 
                 case AmqpPubrelMessage.AMQP_SUBJECT:
 
-                    if (!delivery.remotelySettled()) {
-                        this.deliveries.put(message.getMessageId(), delivery);
-                    }
-                    this.handlePubrel(AmqpPubrelMessage.from(message));
+                    AmqpPubrelMessage amqpPubrelMessage = AmqpPubrelMessage.from(message);
+                    this.addInFlight((int) amqpPubrelMessage.messageId(), delivery);
+                    this.handlePubrel(amqpPubrelMessage);
 
                     break;
             }
@@ -146,12 +171,11 @@ public class AmqpReceiverEndpoint {
     }
 
     /**
-     * Open the control endpoint, attaching the link
+     * Open the control endpoint, attaching the link. It's needed only for getting the
+     * AMQP_SUBSCRIPTIONS reply to the AMQP_LIST
      */
     public void openControl() {
 
-        this.deliveries = new HashMap<>();
-
         // attach receiver link on the $mqtt.to.<client-id>.control address for receiving messages (from SS)
         // define handler for received messages
         // - AMQP_SUBSCRIPTIONS after sent AMQP_LIST -> for writing CONNACK (session-present)
@@ -161,6 +185,13 @@ public class AmqpReceiverEndpoint {
                 .open();
     }
 
+    /**
+     * Close the control endpoint, detaching the link
+     */
+    public void closeControl() {
+        this.receiver.closeControl();
+    }
+
     /**
      * Open the publish endpoint, attaching the link
      */
@@ -170,10 +201,16 @@ public class AmqpReceiverEndpoint {
         // define handler for received messages
         // - AMQP_PUBLISH for every AMQP published message
         // - AMQP_PUBREL for handling QoS 2
+        // credit is granted for free slots in the in flight window, deliveries are
+        // settled only when acknowledged by the MQTT client (or pre-settled by the sender)
         this.receiver.receiverPublish()
                 .setQoS(ProtonQoS.AT_LEAST_ONCE)
+                .setPrefetch(0)
+                .setAutoAccept(false)
                 .handler(this::messageHandler)
                 .open();
+
+        this.receiver.receiverPublish().flow(this.deliveries.free());
     }
 
     /**
@@ -194,13 +231,51 @@ public class AmqpReceiverEndpoint {
      *
      * @param messageId message identifier to settle
      */
-    public void settle(Object messageId) {
+    public void settle(int messageId) {
+
+        ProtonDelivery delivery = this.deliveries.remove(messageId);
+        if (delivery != null) {
+            this.settle(delivery);
+            LOG.debug("AMQP message [{}] settled", messageId);
+        }
+    }
+
+    /**
+     * Add a received message, not settled yet, to the in flight window
+     *
+     * @param messageId message identifier
+     * @param delivery  delivery to settle
+     */
+    private void addInFlight(int messageId, ProtonDelivery delivery) {
 
-        if (this.deliveries.containsKey(messageId)) {
-            ProtonDelivery delivery = this.deliveries.remove(messageId);
+        // nothing to acknowledge, the slot is free again
+        if (delivery.remotelySettled()) {
+            this.settle(delivery);
+            return;
+        }
+
+        // a message identifier still in flight (not acknowledged by the MQTT client) is re-used
+        ProtonDelivery previous = this.deliveries.put(messageId, delivery);
+        if (previous != null) {
+            LOG.warn("AMQP message [{}] replaced while in flight", messageId);
+            this.settle(previous);
+        }
+    }
+
+    /**
+     * Settle a received message delivery, granting the credit for a new one
+     *
+     * @param delivery  delivery to settle
+     */
+    private void settle(ProtonDelivery delivery) {
+
+        if (delivery.remotelySettled()) {
+            // pre-settled (i.e. QoS 0) by the sender, no disposition to send back
+            delivery.settle();
+        } else {
             delivery.disposition(Accepted.getInstance(), true);
-            LOG.info("AMQP message [{}] settled", messageId);
         }
+        this.receiver.receiverPublish().flow(1);
     }
 
     /**
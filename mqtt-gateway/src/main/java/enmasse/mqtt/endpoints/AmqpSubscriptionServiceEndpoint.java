@@ -28,11 +28,17 @@ import io.vertx.proton.ProtonQoS;
 import io.vertx.proton.ProtonSender;
 import org.apache.qpid.proton.amqp.messaging.Accepted;
 import org.apache.qpid.proton.amqp.messaging.Rejected;
+import org.apache.qpid.proton.message.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.function.Supplier;
+
 /**
  * Subscription Service (SS) endpoint class
+ *
+ * After the connection steps, the link is attached only while there are requests
+ * (AMQP_SUBSCRIBE/AMQP_UNSUBSCRIBE) waiting for a disposition
  */
 public class AmqpSubscriptionServiceEndpoint {
 
@@ -40,15 +46,22 @@ public class AmqpSubscriptionServiceEndpoint {
 
     public static final String SUBSCRIPTION_SERVICE_ENDPOINT = "$subctrl";
     
+    // provides a new sender every time the link has to be attached
+    private final Supplier<ProtonSender> senderFactory;
     private ProtonSender sender;
 
+    // requests sent without a disposition yet
+    private int pendingRequests;
+    // if the link is detached as soon as there are no pending requests
+    private boolean onDemand;
+
     /**
      * Constructor
      *
-     * @param sender    ProtonSender instance related to control address
+     * @param senderFactory factory of ProtonSender instances related to control address
      */
-    public AmqpSubscriptionServiceEndpoint(ProtonSender sender) {
-        this.sender = sender;
+    public AmqpSubscriptionServiceEndpoint(Supplier<ProtonSender> senderFactory) {
+        this.senderFactory = senderFactory;
     }
 
     /**
@@ -60,7 +73,7 @@ public class AmqpSubscriptionServiceEndpoint {
     public void sendList(AmqpListMessage amqpSessionMessage, Handler<AsyncResult<ProtonDelivery>> handler) {
 
         // send AMQP_LIST message
-        this.sender.send(amqpSessionMessage.toAmqp(), delivery -> {
+        this.send(amqpSessionMessage.toAmqp(), delivery -> {
 
             if (delivery.getRemoteState() == Accepted.getInstance()) {
                 LOG.info("AMQP list delivery {}", delivery.getRemoteState());
@@ -80,7 +93,7 @@ public class AmqpSubscriptionServiceEndpoint {
     public void sendClose(AmqpCloseMessage amqpCloseMessage, Handler<AsyncResult<ProtonDelivery>> handler) {
 
         // send AMQP_CLOSE message
-        this.sender.send(amqpCloseMessage.toAmqp(), delivery -> {
+        this.send(amqpCloseMessage.toAmqp(), delivery -> {
 
             if (delivery.getRemoteState() == Accepted.getInstance()) {
                 LOG.info("AMQP close delivery {}", delivery.getRemoteState());
@@ -100,7 +113,7 @@ public class AmqpSubscriptionServiceEndpoint {
     public void sendSubscribe(AmqpSubscribeMessage amqpSubscribeMessage, Handler<AsyncResult<ProtonDelivery>> handler) {
 
         // send AMQP_SUBSCRIBE message
-        this.sender.send(amqpSubscribeMessage.toAmqp(), delivery -> {
+        this.send(amqpSubscribeMessage.toAmqp(), delivery -> {
 
             if ((delivery.getRemoteState() == Accepted.getInstance()) ||
                 (delivery.getRemoteState() instanceof Rejected)) {
@@ -121,7 +134,7 @@ public class AmqpSubscriptionServiceEndpoint {
     public void sendUnsubscribe(AmqpUnsubscribeMessage amqpUnsubscribeMessage, Handler<AsyncResult<ProtonDelivery>> handler) {
 
         // send AMQP_UNSUBSCRIBE message
-        this.sender.send(amqpUnsubscribeMessage.toAmqp(), delivery -> {
+        this.send(amqpUnsubscribeMessage.toAmqp(), delivery -> {
 
             if (delivery.getRemoteState() == Accepted.getInstance()) {
                 LOG.info("AMQP unsubscribe delivery {}", delivery.getRemoteState());
@@ -132,15 +145,68 @@ public class AmqpSubscriptionServiceEndpoint {
         });
     }
 
+    /**
+     * Send a message to the Subscription Service, attaching the link if needed
+     *
+     * @param message   raw AMQP message
+     * @param handler   callback called on message delivered
+     */
+    private void send(Message message, Handler<ProtonDelivery> handler) {
+
+        this.attach();
+
+        this.pendingRequests++;
+        this.sender.send(message, delivery -> {
+
+            this.pendingRequests--;
+            handler.handle(delivery);
+
+            if (this.onDemand && this.pendingRequests == 0) {
+                this.close();
+            }
+        });
+    }
+
+    /**
+     * Attach the link (if not already attached)
+     */
+    private void attach() {
+
+        if (this.sender == null) {
+
+            // attach sender link to $subctrl
+            this.sender = this.senderFactory.get();
+            this.sender
+                    .setQoS(ProtonQoS.AT_LEAST_ONCE)
+                    .open();
+        }
+    }
+
     /**
      * Open the endpoint, attaching the link
      */
     public void open() {
+        this.attach();
+    }
+
+    /**
+     * Detach the link as soon as there are no pending requests, from now on it's attached
+     * again only for sending the next requests
+     */
+    public void detach() {
+
+        this.onDemand = true;
+        if (this.pendingRequests == 0) {
+            this.close();
+        }
+    }
 
-        // attach sender link to $subctrl
-        this.sender
-                .setQoS(ProtonQoS.AT_LEAST_ONCE)
-                .open();
+    /**
+     * If the link is attached
+     * @return
+     */
+    public boolean isAttached() {
+        return this.sender != null;
     }
 
     /**
@@ -148,9 +214,13 @@ public class AmqpSubscriptionServiceEndpoint {
      */
     public void close() {
 
-        if (this.sender.isOpen()) {
-            // detach link
-            this.sender.close();
+        if (this.sender != null) {
+
+            if (this.sender.isOpen()) {
+                // detach link
+                this.sender.close();
+            }
+            this.sender = null;
         }
     }
 }
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.endpoints;
+
+import java.util.function.Consumer;
+
+/**
+ * Window of in flight deliveries keyed by MQTT message identifier (1..65535),
+ * with a max number of deliveries. Message identifiers are used as they are (no boxing)
+ * for indexing a table which grows on demand up to the size needed by the max number.
+ * The table is allocated on the first delivery and can be released when the window
+ * is empty, so idle clients don't keep it. A primitive time can be kept with every
+ * delivery (as for measuring its latency), in a column allocated on the first use
+ *
+ * @param <T>   type of the in flight delivery
+ */
+public class InFlightWindow<T> {
+
+    public static final int MAX_MESSAGE_ID = 65535;
+
+    private static final int INITIAL_TABLE_SIZE = 16;
+
+    private final int maxInFlight;
+    private final int maxTableSize;
+
+    // 0 is not a valid MQTT message identifier, used for empty slots (null until the first delivery)
+    private int[] keys;
+    private Object[] values;
+    // null until the first delivery with a time
+    private long[] times;
+    private int mask;
+    private int size;
+
+    /**
+     * Constructor
+     *
+     * @param maxInFlight   max number of in flight deliveries (up to 65535)
+     */
+    public InFlightWindow(int maxInFlight) {
+
+        if (maxInFlight <= 0 || maxInFlight > MAX_MESSAGE_ID) {
+            throw new IllegalArgumentException("Max in flight deliveries must be in 1.." + MAX_MESSAGE_ID);
+        }
+        this.maxInFlight = maxInFlight;
+        // load factor at most 0.5 when full
+        this.maxTableSize = Integer.highestOneBit(maxInFlight * 2 - 1) << 1;
+    }
+
+    private void allocate(int tableSize) {
+
+        this.keys = new int[tableSize];
+        this.values = new Object[tableSize];
+        this.mask = tableSize - 1;
+    }
+
+    /**
+     * Add an in flight delivery
+     *
+     * @param messageId message identifier
+     * @param value in flight delivery
+     * @return  previous delivery with same message identifier, null if there wasn't
+     */
+    public T put(int messageId, T value) {
+        return this.put(messageId, value, 0);
+    }
+
+    /**
+     * Add an in flight delivery with its time
+     *
+     * @param messageId message identifier
+     * @param value in flight delivery
+     * @param time  time of the delivery (as from System.nanoTime())
+     * @return  previous delivery with same message identifier, null if there wasn't
+     */
+    public T putWithTime(int messageId, T value, long time) {
+
+        if (this.times == null) {
+            if (this.keys == null) {
+                this.allocate(Math.min(INITIAL_TABLE_SIZE, this.maxTableSize));
+            }
+            this.times = new long[this.keys.length];
+        }
+        return this.put(messageId, value, time);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T put(int messageId, T value, long time) {
+
+        checkMessageId(messageId);
+
+        if (this.keys == null) {
+            this.allocate(Math.min(INITIAL_TABLE_SIZE, this.maxTableSize));
+        }
+
+        int i = this.indexOf(messageId);
+        if (this.keys[i] == messageId) {
+            T previous = (T) this.values[i];
+            this.values[i] = value;
+            if (this.times != null) {
+                this.times[i] = time;
+            }
+            return previous;
+        }
+
+        if (this.size == this.maxInFlight) {
+            throw new IllegalStateException("In flight window full");
+        }
+
+        if ((this.size + 1) * 2 > this.keys.length && this.keys.length < this.maxTableSize) {
+            this.grow();
+            i = this.indexOf(messageId);
+        }
+
+        this.keys[i] = messageId;
+        this.values[i] = value;
+        if (this.times != null) {
+            this.times[i] = time;
+        }
+        this.size++;
+        return null;
+    }
+
+    /**
+     * Get an in flight delivery
+     *
+     * @param messageId message identifier
+     * @return  in flight delivery, null if there isn't
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int messageId) {
+
+        if (messageId <= 0 || messageId > MAX_MESSAGE_ID || this.keys == null) {
+            return null;
+        }
+        int i = this.indexOf(messageId);
+        return (this.keys[i] == messageId) ? (T) this.values[i] : null;
+    }
+
+    /**
+     * Get the time of an in flight delivery
+     *
+     * @param messageId message identifier
+     * @return  time of the delivery, 0 if there isn't or it was added without time
+     */
+    public long time(int messageId) {
+
+        if (messageId <= 0 || messageId > MAX_MESSAGE_ID || this.times == null) {
+            return 0;
+        }
+        int i = this.indexOf(messageId);
+        return (this.keys[i] == messageId) ? this.times[i] : 0;
+    }
+
+    /**
+     * Remove an in flight delivery
+     *
+     * @param messageId message identifier
+     * @return  removed in flight delivery, null if there wasn't
+     */
+    @SuppressWarnings("unchecked")
+    public T remove(int messageId) {
+
+        if (messageId <= 0 || messageId > MAX_MESSAGE_ID || this.keys == null) {
+            return null;
+        }
+
+        int i = this.indexOf(messageId);
+        if (this.keys[i] != messageId) {
+            return null;
+        }
+
+        T removed = (T) this.values[i];
+        this.size--;
+
+        // backward shift of the following entries in the same cluster (linear probing)
+        int hole = i;
+        int j = (i + 1) & this.mask;
+        while (this.keys[j] != 0) {
+
+            int home = this.keys[j] & this.mask;
+            // the entry at j can fill the hole only if its home slot isn't between hole and j (cyclically)
+            if (((j - home) & this.mask) >= ((j - hole) & this.mask)) {
+                this.keys[hole] = this.keys[j];
+                this.values[hole] = this.values[j];
+                if (this.times != null) {
+                    this.times[hole] = this.times[j];
+                }
+                hole = j;
+            }
+            j = (j + 1) & this.mask;
+        }
+        this.keys[hole] = 0;
+        this.values[hole] = null;
+
+        return removed;
+    }
+
+    /**
+     * Execute an action on all the in flight deliveries
+     *
+     * @param action    action to execute
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<T> action) {
+
+        if (this.keys == null) {
+            return;
+        }
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.keys[i] != 0) {
+                action.accept((T) this.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Remove all the in flight deliveries
+     */
+    public void clear() {
+
+        this.release();
+        this.size = 0;
+    }
+
+    /**
+     * Release the table if there are no in flight deliveries, it's allocated again on the next one
+     *
+     * @return  if the table was released
+     */
+    public boolean trim() {
+
+        if (this.size == 0 && this.keys != null) {
+            this.release();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Number of in flight deliveries
+     * @return
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Max number of in flight deliveries
+     * @return
+     */
+    public int maxInFlight() {
+        return this.maxInFlight;
+    }
+
+    /**
+     * Number of deliveries which can be added
+     * @return
+     */
+    public int free() {
+        return this.maxInFlight - this.size;
+    }
+
+    private void release() {
+
+        this.keys = null;
+        this.values = null;
+        this.times = null;
+        this.mask = 0;
+    }
+
+    private int indexOf(int messageId) {
+
+        // message identifiers are mostly sequential, no need to spread them
+        int i = messageId & this.mask;
+        while (this.keys[i] != 0 && this.keys[i] != messageId) {
+            i = (i + 1) & this.mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+
+        int[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        long[] oldTimes = this.times;
+
+        this.allocate(oldKeys.length * 2);
+        if (oldTimes != null) {
+            this.times = new long[this.keys.length];
+        }
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int j = this.indexOf(oldKeys[i]);
+                this.keys[j] = oldKeys[i];
+                this.values[j] = oldValues[i];
+                if (oldTimes != null) {
+                    this.times[j] = oldTimes[i];
+                }
+            }
+        }
+    }
+
+    private static void checkMessageId(int messageId) {
+
+        if (messageId <= 0 || messageId > MAX_MESSAGE_ID) {
+            throw new IllegalArgumentException("Invalid message identifier " + messageId);
+        }
+    }
+}
@@ -16,6 +16,11 @@
 
 package enmasse.mqtt.messages;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import org.apache.qpid.proton.amqp.Binary;
+
 /**
  * Helper class for AMQP side
  */
@@ -69,6 +74,43 @@ public final class AmqpHelper {
         return String.format(AMQP_CLIENT_PUBLISH_ADDRESS_TEMPLATE, clientId);
     }
 
+    /**
+     * Return an AMQP binary with the payload content. The bytes of the underlying
+     * Netty buffer are wrapped without copying them when it's heap based; a direct
+     * buffer is copied once, because the AMQP binary is backed by a byte array.
+     * The payloads of the received MQTT PUBLISH are heap based: Vert.x MQTT already
+     * copies them out of the direct (pooled) buffer read from the socket
+     *
+     * NOTE : the payload must not change until the AMQP message is encoded on sending
+     *
+     * @param payload   payload to wrap
+     * @return  the AMQP binary
+     */
+    public static Binary toBinary(Buffer payload) {
+
+        ByteBuf byteBuf = payload.getByteBuf();
+        if (byteBuf.hasArray()) {
+            return new Binary(byteBuf.array(), byteBuf.arrayOffset() + byteBuf.readerIndex(), byteBuf.readableBytes());
+        }
+
+        // direct buffer, the bytes need to be copied on the heap
+        byte[] bytes = new byte[byteBuf.readableBytes()];
+        byteBuf.getBytes(byteBuf.readerIndex(), bytes);
+        return new Binary(bytes);
+    }
+
+    /**
+     * Return a payload with the AMQP binary content. The bytes are wrapped
+     * (as a slice of the binary array) without copying them
+     *
+     * @param binary    AMQP binary to wrap
+     * @return  the payload
+     */
+    public static Buffer toBuffer(Binary binary) {
+
+        return Buffer.buffer(Unpooled.wrappedBuffer(binary.getArray(), binary.getArrayOffset(), binary.getLength()));
+    }
+
     /**
      * Return client identifier from the pubrel client address
      *
@@ -123,7 +123,7 @@ public class AmqpPublishMessage {
         Section section = message.getBody();
         if ((section != null) && (section instanceof Data)) {
 
-            Buffer payload = Buffer.buffer(((Data) section).getValue().getArray());
+            Buffer payload = AmqpHelper.toBuffer(((Data) section).getValue());
             return new AmqpPublishMessage(message.getMessageId(), qos, isDup, isRetain, topic, payload);
 
         } else {
@@ -158,7 +158,7 @@ public class AmqpPublishMessage {
 
         // the payload could be null (or empty)
         if (this.payload != null)
-            message.setBody(new Data(new Binary(this.payload.getBytes())));
+            message.setBody(new Data(AmqpHelper.toBinary(this.payload)));
 
         return message;
     }
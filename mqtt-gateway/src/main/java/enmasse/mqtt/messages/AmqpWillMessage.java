@@ -103,7 +103,7 @@ public class AmqpWillMessage {
             Section section = message.getBody();
             if ((section != null) && (section instanceof Data)) {
 
-                Buffer payload = Buffer.buffer(((Data) section).getValue().getArray());
+                Buffer payload = AmqpHelper.toBuffer(((Data) section).getValue());
                 return new AmqpWillMessage(isRetain, topic, qos, payload);
 
             } else {
@@ -137,7 +137,7 @@ public class AmqpWillMessage {
 
         // the payload could be null (or empty)
         if (this.payload != null)
-            message.setBody(new Data(new Binary(this.payload.getBytes())));
+            message.setBody(new Data(AmqpHelper.toBinary(this.payload)));
 
         return message;
     }
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.metrics;
+
+import enmasse.metrics.LatencyHistogram;
+import enmasse.metrics.PrometheusMetrics;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the MQTT gateway, shared by all the verticle instances and their AMQP bridges.
+ * Values are recorded on the event loops with striped counters and read only on scraping.
+ * When the metrics aren't exposed, NoopGatewayMetrics records nothing
+ */
+public class GatewayMetrics implements PrometheusMetrics {
+
+    private static final String PREFIX = "enmasse_mqtt_";
+
+    private final AtomicInteger instances = new AtomicInteger();
+    private final ConcurrentMap<Integer, LongAdder> connectedClients = new ConcurrentSkipListMap<>();
+
+    private final LatencyHistogram connectLatency =
+            new LatencyHistogram(PREFIX + "connect_connack_seconds", "Time from CONNECT to CONNACK");
+    private final LatencyHistogram pubackLatency =
+            new LatencyHistogram(PREFIX + "publish_puback_seconds", "Time from PUBLISH (QoS 1) to PUBACK");
+    private final LatencyHistogram pubcompLatency =
+            new LatencyHistogram(PREFIX + "publish_pubcomp_seconds", "Time from PUBLISH (QoS 2) to PUBCOMP");
+
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    private final LongAdder inFlightQoS1 = new LongAdder();
+    private final LongAdder inFlightQoS2 = new LongAdder();
+
+    private final LongAdder creditStalls = new LongAdder();
+    private final LongAdder pausedClients = new LongAdder();
+
+    private final LongAdder rateLimitThrottled = new LongAdder();
+    private final LongAdder rateLimitDropped = new LongAdder();
+    private final LongAdder rateLimitDisconnected = new LongAdder();
+
+    private final LongAdder publisherHits = new LongAdder();
+    private final LongAdder publisherMisses = new LongAdder();
+    private final LongAdder publisherEvictions = new LongAdder();
+
+    private final LongAdder sharedQueued = new LongAdder();
+    private final LongAdder sharedDropped = new LongAdder();
+
+    /**
+     * Register a new MQTT gateway verticle instance
+     *
+     * @return  identifier of the instance
+     */
+    public int addInstance() {
+
+        int instance = this.instances.getAndIncrement();
+        this.connectedClients.put(instance, new LongAdder());
+        return instance;
+    }
+
+    /**
+     * Unregister an MQTT gateway verticle instance
+     *
+     * @param instance  identifier of the instance
+     */
+    public void removeInstance(int instance) {
+        this.connectedClients.remove(instance);
+    }
+
+    /**
+     * Record an MQTT client connected (CONNACK sent) to an instance
+     *
+     * @param instance  identifier of the instance
+     * @param nanos time from CONNECT to CONNACK in ns
+     */
+    public void clientConnected(int instance, long nanos) {
+
+        LongAdder clients = this.connectedClients.get(instance);
+        if (clients != null) {
+            clients.increment();
+        }
+        this.connectLatency.record(nanos);
+    }
+
+    /**
+     * Record an MQTT client disconnected from an instance
+     *
+     * @param instance  identifier of the instance
+     */
+    public void clientDisconnected(int instance) {
+
+        LongAdder clients = this.connectedClients.get(instance);
+        if (clients != null) {
+            clients.decrement();
+        }
+    }
+
+    /**
+     * Record a PUBLISH received from an MQTT client
+     *
+     * @param bytes payload size
+     */
+    public void messageIn(int bytes) {
+        this.messagesIn.increment();
+        this.bytesIn.add(bytes);
+    }
+
+    /**
+     * Record a PUBLISH sent to an MQTT client
+     *
+     * @param bytes payload size
+     */
+    public void messageOut(int bytes) {
+        this.messagesOut.increment();
+        this.bytesOut.add(bytes);
+    }
+
+    /**
+     * Update the number of in flight deliveries (received from MQTT clients, not acknowledged yet)
+     *
+     * @param qos   QoS level of the deliveries
+     * @param delta number of deliveries started (positive) or completed (negative)
+     */
+    public void inFlight(MqttQoS qos, int delta) {
+
+        if (qos == MqttQoS.AT_LEAST_ONCE) {
+            this.inFlightQoS1.add(delta);
+        } else if (qos == MqttQoS.EXACTLY_ONCE) {
+            this.inFlightQoS2.add(delta);
+        }
+    }
+
+    /**
+     * Record the time from a PUBLISH to the related PUBACK or PUBCOMP
+     *
+     * @param qos   QoS level of the PUBLISH
+     * @param nanos latency in ns
+     */
+    public void publishCompleted(MqttQoS qos, long nanos) {
+
+        if (qos == MqttQoS.AT_LEAST_ONCE) {
+            this.pubackLatency.record(nanos);
+        } else if (qos == MqttQoS.EXACTLY_ONCE) {
+            this.pubcompLatency.record(nanos);
+        }
+    }
+
+    /**
+     * Record a message to send on an AMQP link without credit
+     */
+    public void creditStall() {
+        this.creditStalls.increment();
+    }
+
+    /**
+     * Update the number of MQTT clients with reading paused (by the flow control or the rate limit)
+     *
+     * @param delta number of clients paused (positive) or resumed (negative)
+     */
+    public void clientPaused(int delta) {
+        this.pausedClients.add(delta);
+    }
+
+    /**
+     * Record an MQTT client throttled for publishing over its rate limit
+     */
+    public void rateLimitThrottled() {
+        this.rateLimitThrottled.increment();
+    }
+
+    /**
+     * Record a QoS 0 message dropped for being over the rate limit of the MQTT client
+     */
+    public void rateLimitDropped() {
+        this.rateLimitDropped.increment();
+    }
+
+    /**
+     * Record an MQTT client disconnected for publishing QoS 1/2 messages over its rate limit
+     */
+    public void rateLimitDisconnected() {
+        this.rateLimitDisconnected.increment();
+    }
+
+    /**
+     * Record a PUBLISH from an MQTT client for a topic with an AMQP publisher already cached
+     */
+    public void publisherHit() {
+        this.publisherHits.increment();
+    }
+
+    /**
+     * Record a PUBLISH from an MQTT client for a topic without an AMQP publisher cached (it's attached)
+     */
+    public void publisherMiss() {
+        this.publisherMisses.increment();
+    }
+
+    /**
+     * Record an AMQP publisher detached for the max number of publishers or the idle timeout
+     */
+    public void publisherEvicted() {
+        this.publisherEvictions.increment();
+    }
+
+    /**
+     * Record a QoS 1/2 message from a shared subscription queued for an MQTT client with too many in flight
+     */
+    public void sharedQueued() {
+        this.sharedQueued.increment();
+    }
+
+    /**
+     * Record QoS 1/2 messages from the shared subscriptions dropped for an MQTT client disconnected
+     * with its queue full (or closed with queued messages)
+     *
+     * @param count number of messages dropped
+     */
+    public void sharedDropped(int count) {
+        this.sharedDropped.add(count);
+    }
+
+    /**
+     * Write all the metrics in the Prometheus text format
+     *
+     * @return  metrics text
+     */
+    @Override
+    public String scrape() {
+
+        StringBuilder out = new StringBuilder(4096);
+
+        out.append("# HELP ").append(PREFIX).append("connected_clients Connected MQTT clients\n");
+        out.append("# TYPE ").append(PREFIX).append("connected_clients gauge\n");
+        for (Map.Entry<Integer, LongAdder> entry : this.connectedClients.entrySet()) {
+            out.append(PREFIX).append("connected_clients{instance=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+
+        this.connectLatency.writeTo(out);
+        this.pubackLatency.writeTo(out);
+        this.pubcompLatency.writeTo(out);
+
+        counter(out, "messages_received_total", "PUBLISH received from MQTT clients", this.messagesIn);
+        counter(out, "bytes_received_total", "Payload bytes received from MQTT clients", this.bytesIn);
+        counter(out, "messages_sent_total", "PUBLISH sent to MQTT clients", this.messagesOut);
+        counter(out, "bytes_sent_total", "Payload bytes sent to MQTT clients", this.bytesOut);
+
+        out.append("# HELP ").append(PREFIX).append("inflight_deliveries Deliveries from MQTT clients not acknowledged yet\n");
+        out.append("# TYPE ").append(PREFIX).append("inflight_deliveries gauge\n");
+        out.append(PREFIX).append("inflight_deliveries{qos=\"1\"} ").append(this.inFlightQoS1.sum()).append('\n');
+        out.append(PREFIX).append("inflight_deliveries{qos=\"2\"} ").append(this.inFlightQoS2.sum()).append('\n');
+
+        counter(out, "amqp_credit_stalls_total", "Messages to send on AMQP links without credit", this.creditStalls);
+
+        out.append("# HELP ").append(PREFIX).append("paused_clients MQTT clients with reading paused by the flow control or the rate limit\n");
+        out.append("# TYPE ").append(PREFIX).append("paused_clients gauge\n");
+        out.append(PREFIX).append("paused_clients ").append(this.pausedClients.sum()).append('\n');
+
+        counter(out, "rate_limit_throttled_total", "MQTT clients paused for publishing over the rate limit", this.rateLimitThrottled);
+        counter(out, "rate_limit_dropped_total", "QoS 0 PUBLISH dropped for being over the rate limit", this.rateLimitDropped);
+        counter(out, "rate_limit_disconnected_total", "MQTT clients disconnected for publishing over the rate limit", this.rateLimitDisconnected);
+
+        counter(out, "publisher_cache_hits_total", "PUBLISH from MQTT clients on a cached AMQP publisher", this.publisherHits);
+        counter(out, "publisher_cache_misses_total", "PUBLISH from MQTT clients attaching an AMQP publisher", this.publisherMisses);
+        counter(out, "publisher_cache_evictions_total", "AMQP publishers detached for the max number of publishers or the idle timeout", this.publisherEvictions);
+
+        counter(out, "shared_queued_total", "Shared subscription messages queued for MQTT clients with too many in flight", this.sharedQueued);
+        counter(out, "shared_dropped_total", "Shared subscription messages dropped for MQTT clients disconnected with a full queue", this.sharedDropped);
+
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, LongAdder value) {
+
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(" counter\n");
+        out.append(PREFIX).append(name).append(' ').append(value.sum()).append('\n');
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.metrics;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Provides the metrics shared by the MQTT gateway instances, recorded only
+ * when they are exposed by the metrics endpoint
+ */
+@Configuration
+public class MetricsConfig {
+
+    // port for the HTTP metrics endpoint (0 means disabled)
+    @Value(value = "${enmasse.mqtt.metricsport:0}")
+    private int metricsPort;
+
+    @Bean
+    public GatewayMetrics gatewayMetrics() {
+        return (this.metricsPort > 0) ? new GatewayMetrics() : NoopGatewayMetrics.INSTANCE;
+    }
+}
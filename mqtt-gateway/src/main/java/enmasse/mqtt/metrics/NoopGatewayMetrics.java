@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.metrics;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * Metrics recording nothing, used when the metrics endpoint isn't enabled
+ * so the AMQP bridges don't pay for updating the shared counters
+ */
+public final class NoopGatewayMetrics extends GatewayMetrics {
+
+    public static final NoopGatewayMetrics INSTANCE = new NoopGatewayMetrics();
+
+    private NoopGatewayMetrics() {
+    }
+
+    @Override
+    public int addInstance() {
+        return 0;
+    }
+
+    @Override
+    public void removeInstance(int instance) {
+    }
+
+    @Override
+    public void clientConnected(int instance, long nanos) {
+    }
+
+    @Override
+    public void clientDisconnected(int instance) {
+    }
+
+    @Override
+    public void messageIn(int bytes) {
+    }
+
+    @Override
+    public void messageOut(int bytes) {
+    }
+
+    @Override
+    public void inFlight(MqttQoS qos, int delta) {
+    }
+
+    @Override
+    public void publishCompleted(MqttQoS qos, long nanos) {
+    }
+
+    @Override
+    public void creditStall() {
+    }
+
+    @Override
+    public void clientPaused(int delta) {
+    }
+
+    @Override
+    public void rateLimitThrottled() {
+    }
+
+    @Override
+    public void rateLimitDropped() {
+    }
+
+    @Override
+    public void rateLimitDisconnected() {
+    }
+
+    @Override
+    public void publisherHit() {
+    }
+
+    @Override
+    public void publisherMiss() {
+    }
+
+    @Override
+    public void publisherEvicted() {
+    }
+
+    @Override
+    public void sharedQueued() {
+    }
+
+    @Override
+    public void sharedDropped(int count) {
+    }
+
+    @Override
+    public String scrape() {
+        return "";
+    }
+}
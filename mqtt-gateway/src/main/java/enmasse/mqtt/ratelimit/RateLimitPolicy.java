@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.ratelimit;
+
+/**
+ * What to do with an MQTT client publishing over its rate limit
+ */
+public enum RateLimitPolicy {
+
+    /**
+     * The message is published and reading from the client socket is paused
+     * until the client is back in budget
+     */
+    THROTTLE,
+
+    /**
+     * A QoS 0 message is dropped, with QoS 1/2 the client is disconnected
+     */
+    DROP
+}
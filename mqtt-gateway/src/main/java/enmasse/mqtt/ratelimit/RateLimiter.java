@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.ratelimit;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publish rate limits of the MQTT clients connected to an MQTT gateway instance.
+ *
+ * Every client has token buckets for the messages and the payload bytes published per second
+ * and, when the client provides a username, shares the buckets of its tenant with the other
+ * clients of the same username. A bucket can hold up to one second of its rate, that is the
+ * allowed burst. The limiter also provides the timer wheel used for resuming the throttled
+ * clients, with a single periodic timer running only while there are scheduled timeouts.
+ *
+ * NOTE : not thread safe, it has to be used only from the event loop of the owning verticle.
+ *        The tenant limits are enforced per gateway instance.
+ */
+public class RateLimiter {
+
+    private static final long TIMER_WHEEL_TICK = 10; // in ms
+
+    private final Vertx vertx;
+    private final RateLimitPolicy policy;
+    private final long clientMessages;
+    private final long clientBytes;
+    private final long tenantMessages;
+    private final long tenantBytes;
+
+    private final TimerWheel timerWheel = new TimerWheel(TIMER_WHEEL_TICK);
+    private long timerId = -1;
+
+    // username -> rate limit shared by the clients of the tenant
+    private final Map<String, Tenant> tenants = new HashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param vertx Vert.x instance
+     * @param policy    what to do with a client publishing over its rate limit
+     * @param clientMessages    max messages per second published by a client (0 for no limit)
+     * @param clientBytes   max payload bytes per second published by a client (0 for no limit)
+     * @param tenantMessages    max messages per second published by the clients of a username (0 for no limit)
+     * @param tenantBytes   max payload bytes per second published by the clients of a username (0 for no limit)
+     */
+    public RateLimiter(Vertx vertx, RateLimitPolicy policy,
+                       long clientMessages, long clientBytes, long tenantMessages, long tenantBytes) {
+        this.vertx = vertx;
+        this.policy = policy;
+        this.clientMessages = clientMessages;
+        this.clientBytes = clientBytes;
+        this.tenantMessages = tenantMessages;
+        this.tenantBytes = tenantBytes;
+    }
+
+    /**
+     * What to do with a client publishing over its rate limit
+     * @return
+     */
+    public RateLimitPolicy policy() {
+        return this.policy;
+    }
+
+    /**
+     * Register a connected client
+     *
+     * @param username  username provided by the client (null if not provided)
+     * @return  rate limit of the client
+     */
+    public ClientRateLimit register(String username) {
+
+        long now = System.nanoTime();
+
+        Tenant tenant = null;
+        if (username != null && (this.tenantMessages > 0 || this.tenantBytes > 0)) {
+            tenant = this.tenants.computeIfAbsent(username, u -> new Tenant(u, this.bucket(this.tenantMessages, now), this.bucket(this.tenantBytes, now)));
+            tenant.clients++;
+        }
+
+        return new ClientRateLimit(this.bucket(this.clientMessages, now), this.bucket(this.clientBytes, now), tenant);
+    }
+
+    /**
+     * Unregister a disconnected client
+     *
+     * @param rateLimit rate limit of the client
+     */
+    public void unregister(ClientRateLimit rateLimit) {
+
+        Tenant tenant = rateLimit.tenant;
+        if (tenant != null && --tenant.clients == 0) {
+            this.tenants.remove(tenant.username);
+        }
+    }
+
+    /**
+     * Schedule a timeout on the timer wheel
+     *
+     * @param delay delay in ns
+     * @param handler   handler called when the timeout expires
+     * @return  the scheduled timeout
+     */
+    public TimerWheel.Timeout schedule(long delay, Handler<Void> handler) {
+
+        TimerWheel.Timeout timeout = this.timerWheel.schedule(TimeUnit.NANOSECONDS.toMillis(delay), handler);
+
+        if (this.timerId == -1) {
+            this.timerId = this.vertx.setPeriodic(this.timerWheel.tick(), id -> {
+
+                this.timerWheel.advance();
+                if (this.timerWheel.isEmpty()) {
+                    this.vertx.cancelTimer(id);
+                    this.timerId = -1;
+                }
+            });
+        }
+        return timeout;
+    }
+
+    /**
+     * Number of tenants with connected clients
+     * @return
+     */
+    public int tenantsCount() {
+        return this.tenants.size();
+    }
+
+    /**
+     * Close the rate limiter, cancelling the scheduled timeouts
+     */
+    public void close() {
+
+        if (this.timerId != -1) {
+            this.vertx.cancelTimer(this.timerId);
+            this.timerId = -1;
+        }
+        this.timerWheel.clear();
+        this.tenants.clear();
+    }
+
+    private TokenBucket bucket(long rate, long now) {
+        return (rate > 0) ? new TokenBucket(rate, rate, now) : null;
+    }
+
+    /**
+     * Rate limit shared by the clients of the same username
+     */
+    private static final class Tenant {
+
+        private final String username;
+        private final TokenBucket messages;
+        private final TokenBucket bytes;
+        private int clients;
+
+        private Tenant(String username, TokenBucket messages, TokenBucket bytes) {
+            this.username = username;
+            this.messages = messages;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Rate limit of a connected client
+     */
+    public static final class ClientRateLimit {
+
+        private final TokenBucket messages;
+        private final TokenBucket bytes;
+        private final Tenant tenant;
+
+        private ClientRateLimit(TokenBucket messages, TokenBucket bytes, Tenant tenant) {
+            this.messages = messages;
+            this.bytes = bytes;
+            this.tenant = tenant;
+        }
+
+        /**
+         * Account a message published by the client, even if over the rate limit
+         *
+         * @param bytes payload size
+         * @param now   current time in ns
+         * @return  time to wait for being back in budget in ns (0 if in budget)
+         */
+        public long acquire(long bytes, long now) {
+
+            long delay = consume(this.messages, 1, now);
+            delay = Math.max(delay, consume(this.bytes, bytes, now));
+            if (this.tenant != null) {
+                delay = Math.max(delay, consume(this.tenant.messages, 1, now));
+                delay = Math.max(delay, consume(this.tenant.bytes, bytes, now));
+            }
+            return delay;
+        }
+
+        /**
+         * Account a message published by the client, only if in the rate limit
+         *
+         * @param bytes payload size
+         * @param now   current time in ns
+         * @return  if the message is in the rate limit
+         */
+        public boolean tryAcquire(long bytes, long now) {
+
+            // all the buckets are checked before consuming, a refused message doesn't consume anything
+            boolean available = isAvailable(this.messages, 1, now) && isAvailable(this.bytes, bytes, now);
+            if (this.tenant != null) {
+                available = available && isAvailable(this.tenant.messages, 1, now) && isAvailable(this.tenant.bytes, bytes, now);
+            }
+            if (available) {
+                this.acquire(bytes, now);
+            }
+            return available;
+        }
+
+        /**
+         * Time to wait for being back in budget
+         *
+         * @param now   current time in ns
+         * @return  time in ns (0 if in budget)
+         */
+        public long delay(long now) {
+
+            long delay = Math.max(delay(this.messages, now), delay(this.bytes, now));
+            if (this.tenant != null) {
+                delay = Math.max(delay, Math.max(delay(this.tenant.messages, now), delay(this.tenant.bytes, now)));
+            }
+            return delay;
+        }
+
+        private static long delay(TokenBucket bucket, long now) {
+            return (bucket != null) ? bucket.delay(now) : 0;
+        }
+
+        private static long consume(TokenBucket bucket, long amount, long now) {
+            return (bucket != null) ? bucket.consume(amount, now) : 0;
+        }
+
+        private static boolean isAvailable(TokenBucket bucket, long amount, long now) {
+            return (bucket == null) || bucket.isAvailable(amount, now);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.ratelimit;
+
+import io.vertx.core.Handler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timer wheel : timeouts are put in the slot of the tick they expire at and
+ * a single periodic timer advances the wheel, instead of a timer for every timeout.
+ * The wheel itself doesn't own the timer, its owner calls {@link #advance()} every tick
+ *
+ * NOTE : not thread safe, it has to be used only from the event loop of the owning verticle
+ */
+public class TimerWheel {
+
+    private static final int SLOTS = 512;
+
+    private final long tick;
+    private final List<List<Timeout>> slots;
+
+    private int cursor;
+    // scheduled timeouts (including the cancelled ones not removed yet)
+    private int size;
+
+    /**
+     * Constructor
+     *
+     * @param tick  duration of a tick in ms
+     */
+    public TimerWheel(long tick) {
+
+        if (tick <= 0) {
+            throw new IllegalArgumentException("Timer wheel tick must be greater than 0");
+        }
+        this.tick = tick;
+        this.slots = new ArrayList<>(SLOTS);
+        for (int i = 0; i < SLOTS; i++) {
+            this.slots.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Schedule a timeout
+     *
+     * @param delay delay in ms (rounded up to the tick)
+     * @param handler   handler called when the timeout expires
+     * @return  the scheduled timeout
+     */
+    public Timeout schedule(long delay, Handler<Void> handler) {
+
+        long ticks = Math.max(1, (delay + this.tick - 1) / this.tick);
+
+        Timeout timeout = new Timeout(handler, (ticks - 1) / SLOTS);
+        this.slots.get((int) ((this.cursor + ticks) % SLOTS)).add(timeout);
+        this.size++;
+        return timeout;
+    }
+
+    /**
+     * Advance the wheel of a tick, calling the handlers of the expired timeouts
+     */
+    public void advance() {
+
+        this.cursor = (this.cursor + 1) % SLOTS;
+
+        List<Timeout> slot = this.slots.get(this.cursor);
+        if (slot.isEmpty()) {
+            return;
+        }
+
+        List<Timeout> expired = new ArrayList<>();
+        Iterator<Timeout> iterator = slot.iterator();
+        while (iterator.hasNext()) {
+
+            Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+                this.size--;
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                iterator.remove();
+                this.size--;
+                expired.add(timeout);
+            }
+        }
+
+        // called after the slot update, the handlers could schedule new timeouts
+        expired.forEach(timeout -> timeout.handler.handle(null));
+    }
+
+    /**
+     * Duration of a tick in ms
+     * @return
+     */
+    public long tick() {
+        return this.tick;
+    }
+
+    /**
+     * If there are no scheduled timeouts
+     * @return
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Remove all the scheduled timeouts
+     */
+    public void clear() {
+
+        this.slots.forEach(List::clear);
+        this.size = 0;
+    }
+
+    /**
+     * Timeout scheduled on the wheel
+     */
+    public static final class Timeout {
+
+        private final Handler<Void> handler;
+        // full turns of the wheel before expiring
+        private long rounds;
+        private boolean cancelled;
+
+        private Timeout(Handler<Void> handler, long rounds) {
+            this.handler = handler;
+            this.rounds = rounds;
+        }
+
+        /**
+         * Cancel the timeout, the handler won't be called
+         */
+        public void cancel() {
+            this.cancelled = true;
+        }
+    }
+}
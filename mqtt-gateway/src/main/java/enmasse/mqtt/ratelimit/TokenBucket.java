@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.ratelimit;
+
+/**
+ * Token bucket refilled at a fixed rate, up to its capacity. The refill is computed
+ * from the elapsed time when the bucket is used, so no timer is needed.
+ *
+ * Tokens can be consumed beyond the available ones (going in debt) : it's the case
+ * of a message already read from the socket, then the time to repay the debt is
+ * the time for slowing down the MQTT client
+ *
+ * NOTE : not thread safe, it has to be used only from the event loop of the owning verticle
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long rate;
+    private final long capacity;
+
+    // available tokens (negative when in debt)
+    private long tokens;
+    private long lastRefill;
+
+    /**
+     * Constructor
+     *
+     * @param rate  tokens added every second
+     * @param capacity  max tokens (the allowed burst)
+     * @param now   current time in ns
+     */
+    public TokenBucket(long rate, long capacity, long now) {
+
+        if (rate <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Token bucket rate and capacity must be greater than 0");
+        }
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = now;
+    }
+
+    /**
+     * Consume tokens only if available. When the bucket is full, the tokens are consumed
+     * even if they are more than the capacity (so an amount bigger than the bucket isn't
+     * refused forever) going in debt
+     *
+     * @param amount    tokens to consume
+     * @param now   current time in ns
+     * @return  if the tokens were consumed
+     */
+    public boolean tryConsume(long amount, long now) {
+
+        if (!this.isAvailable(amount, now)) {
+            return false;
+        }
+        this.tokens -= amount;
+        return true;
+    }
+
+    /**
+     * Check if tokens are available, without consuming them (see {@link #tryConsume(long, long)})
+     *
+     * @param amount    tokens to check
+     * @param now   current time in ns
+     * @return  if the tokens are available
+     */
+    public boolean isAvailable(long amount, long now) {
+
+        this.refill(now);
+        return (this.tokens >= amount) || (this.tokens == this.capacity);
+    }
+
+    /**
+     * Consume tokens, going in debt if not available
+     *
+     * @param amount    tokens to consume
+     * @param now   current time in ns
+     * @return  time to wait for repaying the debt in ns (0 if not in debt)
+     */
+    public long consume(long amount, long now) {
+
+        this.refill(now);
+        this.tokens -= amount;
+        return this.delay(now);
+    }
+
+    /**
+     * Time to wait for repaying the debt
+     *
+     * @param now   current time in ns
+     * @return  time in ns (0 if not in debt)
+     */
+    public long delay(long now) {
+
+        this.refill(now);
+        // the time already elapsed for the next partial token is taken into account
+        return (this.tokens >= 0) ? 0 : Math.max(0, this.nanosFor(-this.tokens) - (now - this.lastRefill));
+    }
+
+    /**
+     * Available tokens (negative when in debt)
+     *
+     * @param now   current time in ns
+     * @return
+     */
+    public long tokens(long now) {
+
+        this.refill(now);
+        return this.tokens;
+    }
+
+    private void refill(long now) {
+
+        long elapsed = now - this.lastRefill;
+        if (elapsed <= 0) {
+            return;
+        }
+
+        // no need to account more time than the one for filling the bucket
+        long missing = this.capacity - this.tokens;
+        if (missing <= 0 || elapsed >= this.nanosFor(missing)) {
+            this.tokens = this.capacity;
+            this.lastRefill = now;
+            return;
+        }
+
+        long added = elapsed * this.rate / NANOS_PER_SECOND;
+        this.tokens += added;
+        // the time of a partial token is kept for the next refill
+        this.lastRefill += added * NANOS_PER_SECOND / this.rate;
+    }
+
+    private long nanosFor(long amount) {
+        return (amount * NANOS_PER_SECOND + this.rate - 1) / this.rate;
+    }
+}
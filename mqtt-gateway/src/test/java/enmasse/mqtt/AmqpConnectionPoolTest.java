@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import io.vertx.core.Handler;
+import io.vertx.core.net.NetSocket;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.RunTestOnContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import io.vertx.proton.ProtonClientOptions;
+import io.vertx.proton.ProtonConnection;
+import io.vertx.proton.ProtonServer;
+import io.vertx.proton.ProtonServerOptions;
+import io.vertx.proton.sasl.ProtonSaslAuthenticator;
+import org.apache.qpid.proton.engine.Sasl;
+import org.apache.qpid.proton.engine.Transport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests related to the authentication of the MQTT clients credentials for the shared connections
+ */
+@RunWith(VertxUnitRunner.class)
+public class AmqpConnectionPoolTest {
+
+    private static final String USERNAME = "user";
+    private static final String PASSWORD = "password";
+    private static final String BAD_PASSWORD = "bad_password";
+
+    @Rule
+    public RunTestOnContext rule = new RunTestOnContext();
+
+    private ProtonServer server;
+    private AmqpConnectionPool pool;
+    // SASL PLAIN exchanges handled by the server
+    private int authentications;
+
+    @Before
+    public void before(TestContext context) {
+
+        this.server = ProtonServer.create(this.rule.vertx(), new ProtonServerOptions())
+                .saslAuthenticatorFactory(() -> new PlainAuthenticator())
+                .connectHandler(connection -> {
+                    connection.openHandler(o -> connection.open());
+                });
+        this.server.listen(0, context.asyncAssertSuccess(s -> {
+            this.pool = new AmqpConnectionPool(this.rule.vertx(), "localhost", s.actualPort(), 1, new ProtonClientOptions());
+        }));
+    }
+
+    @After
+    public void after(TestContext context) {
+
+        this.pool.close();
+        this.server.close();
+    }
+
+    @Test
+    public void cachedAuthentication(TestContext context) {
+
+        Async async = context.async();
+
+        this.pool.authenticate(USERNAME, PASSWORD, context.asyncAssertSuccess(v -> {
+
+            this.pool.authenticate(USERNAME, PASSWORD, context.asyncAssertSuccess(v2 -> {
+
+                context.assertEquals(1, this.authentications);
+                context.assertEquals(1L, this.pool.authentications());
+                async.complete();
+            }));
+        }));
+    }
+
+    @Test
+    public void concurrentAuthentications(TestContext context) {
+
+        Async async = context.async(3);
+
+        for (int i = 0; i < 3; i++) {
+
+            this.pool.authenticate(USERNAME, PASSWORD, context.asyncAssertSuccess(v -> {
+
+                context.assertEquals(1, this.authentications);
+                async.countDown();
+            }));
+        }
+    }
+
+    @Test
+    public void badPasswordNotCached(TestContext context) {
+
+        Async async = context.async();
+
+        this.pool.authenticate(USERNAME, PASSWORD, context.asyncAssertSuccess(v -> {
+
+            // the cached credentials don't match a different password
+            this.pool.authenticate(USERNAME, BAD_PASSWORD, context.asyncAssertFailure(t -> {
+
+                this.pool.authenticate(USERNAME, BAD_PASSWORD, context.asyncAssertFailure(t2 -> {
+
+                    context.assertEquals(3, this.authentications);
+                    async.complete();
+                }));
+            }));
+        }));
+    }
+
+    @Test
+    public void expiredAuthentication(TestContext context) {
+
+        Async async = context.async();
+
+        this.pool.authCacheTtl(50);
+        this.pool.authenticate(USERNAME, PASSWORD, context.asyncAssertSuccess(v -> {
+
+            this.rule.vertx().setTimer(100, t -> {
+
+                this.pool.authenticate(USERNAME, PASSWORD, context.asyncAssertSuccess(v2 -> {
+
+                    context.assertEquals(2, this.authentications);
+                    async.complete();
+                }));
+            });
+        }));
+    }
+
+    @Test
+    public void noCache(TestContext context) {
+
+        Async async = context.async();
+
+        this.pool.authCacheTtl(0);
+        this.pool.authenticate(USERNAME, PASSWORD, context.asyncAssertSuccess(v -> {
+
+            this.pool.authenticate(USERNAME, PASSWORD, context.asyncAssertSuccess(v2 -> {
+
+                context.assertEquals(2, this.authentications);
+                async.complete();
+            }));
+        }));
+    }
+
+    /**
+     * Server side SASL PLAIN authenticator accepting only USERNAME/PASSWORD
+     */
+    private class PlainAuthenticator implements ProtonSaslAuthenticator {
+
+        private Sasl sasl;
+        private boolean succeeded;
+
+        @Override
+        public void init(NetSocket socket, ProtonConnection protonConnection, Transport transport) {
+
+            this.sasl = transport.sasl();
+            this.sasl.server();
+            this.sasl.allowSkip(false);
+            this.sasl.setMechanisms("PLAIN");
+        }
+
+        @Override
+        public void process(Handler<Boolean> completionHandler) {
+
+            if (this.sasl.getRemoteMechanisms().length == 0) {
+                completionHandler.handle(false);
+                return;
+            }
+
+            byte[] response = new byte[this.sasl.pending()];
+            this.sasl.recv(response, 0, response.length);
+
+            // authzid NUL authcid NUL password
+            String[] fields = new String(response, StandardCharsets.UTF_8).split("\0", -1);
+            AmqpConnectionPoolTest.this.authentications++;
+            this.succeeded = fields.length == 3 && USERNAME.equals(fields[1]) && PASSWORD.equals(fields[2]);
+            this.sasl.done(this.succeeded ? Sasl.SaslOutcome.PN_SASL_OK : Sasl.SaslOutcome.PN_SASL_AUTH);
+            completionHandler.handle(true);
+        }
+
+        @Override
+        public boolean succeeded() {
+            return this.succeeded;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests related to the CONNACK sent without waiting for the AMQP_CLOSE (clean session without will)
+ */
+@RunWith(VertxUnitRunner.class)
+public class EarlyConnackTest extends MockMqttGatewayTestBase {
+
+    private static final String MQTT_TOPIC = "mytopic";
+    private static final String MQTT_MESSAGE = "Hello MQTT on EnMasse";
+    private static final String SUBSCRIBER_ID = "my_subscriber_id";
+    private static final String PUBLISHER_ID = "my_publisher_id";
+
+    @Before
+    public void before(TestContext context) {
+        super.setup(context, false);
+    }
+
+    @Override
+    protected void configure(MqttGateway mqttGateway) {
+        mqttGateway.setEarlyConnack(true);
+    }
+
+    @After
+    public void after(TestContext context) {
+        super.tearDown(context);
+    }
+
+    @Test
+    public void subscribeAfterEarlyConnack(TestContext context) throws MqttException {
+
+        Async async = context.async();
+
+        MqttClient subscriber = new MqttClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), SUBSCRIBER_ID, new MemoryPersistence());
+        subscriber.connect();
+        // the SUBSCRIBE goes to the Subscription Service after the AMQP_CLOSE still in progress
+        subscriber.subscribe(MQTT_TOPIC, 1, (t, m) -> async.countDown());
+
+        MqttClient publisher = new MqttClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), PUBLISHER_ID, new MemoryPersistence());
+        publisher.connect();
+
+        publisher.publish(MQTT_TOPIC, MQTT_MESSAGE.getBytes(), 1, false);
+
+        async.await();
+
+        publisher.disconnect();
+        subscriber.disconnect();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.mqtt.metrics.GatewayMetrics;
+import enmasse.mqtt.mocks.MockBroker;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests related to the flow control from the AMQP publishers to the MQTT clients sockets
+ */
+@RunWith(VertxUnitRunner.class)
+public class FlowControlTest extends MockMqttGatewayTestBase {
+
+    private static final String MQTT_TOPIC = "mytopic";
+    private static final String PUBLISHER_ID = "my_publisher_id";
+
+    private static final int HIGH_WATERMARK = 50;
+    private static final int LOW_WATERMARK = 25;
+    private static final long ACCEPT_PERIOD = 1; // in ms
+
+    private static final int MESSAGES_COUNT = 1000;
+    private static final byte[] PAYLOAD = new byte[1024];
+    // PUBLISH messages already read from the socket (in one chunk) when the reading is paused
+    private static final int MAX_READ_AHEAD = 100;
+
+    private static final long TIMEOUT = 30000; // in ms
+
+    private static final int RATE_LIMIT = 200; // messages per second
+
+    @Rule
+    public TestName testName = new TestName();
+
+    private GatewayMetrics metrics = new GatewayMetrics();
+
+    @Before
+    public void before(TestContext context) {
+        super.setup(context, false);
+    }
+
+    @Override
+    protected void configure(MqttGateway mqttGateway) {
+        mqttGateway
+                .setPublishHighWatermark(HIGH_WATERMARK)
+                .setPublishLowWatermark(LOW_WATERMARK)
+                .setMetrics(this.metrics);
+
+        if (this.testName.getMethodName().endsWith("RateLimit")) {
+            mqttGateway
+                    .setRateLimitMessages(RATE_LIMIT)
+                    .setRateLimitPolicy("throttle");
+        }
+    }
+
+    @Override
+    protected void configure(MockBroker broker) {
+        broker.setAcceptPeriod(ACCEPT_PERIOD);
+    }
+
+    @After
+    public void after(TestContext context) {
+        super.tearDown(context);
+    }
+
+    @Test
+    public void publishToSlowBroker(TestContext context) throws Exception {
+
+        MqttAsyncClient publisher = new MqttAsyncClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), PUBLISHER_ID, new MemoryPersistence());
+
+        // all the messages can be in flight, the client doesn't wait for the PUBACK before the next PUBLISH
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setMaxInflight(MESSAGES_COUNT);
+        publisher.connect(options).waitForCompletion();
+
+        // QoS 1 messages (QoS 0 ones are pre-settled, so without the disposition from the broker)
+        for (int i = 0; i < MESSAGES_COUNT; i++) {
+            publisher.publish(MQTT_TOPIC, PAYLOAD, 1, false);
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (this.broker.acceptedCount() < MESSAGES_COUNT && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+
+        LOG.info("accepted {}, max pending {}", this.broker.acceptedCount(), this.broker.maxPendingAccepts());
+
+        // all the messages are delivered but the gateway never has more than the high watermark
+        // (plus the ones already read from the socket) waiting for the slow broker
+        context.assertEquals((long) MESSAGES_COUNT, this.broker.acceptedCount());
+        context.assertTrue(this.broker.maxPendingAccepts() <= HIGH_WATERMARK + MAX_READ_AHEAD);
+
+        publisher.disconnect().waitForCompletion();
+    }
+
+    @Test
+    public void pausedByFlowControlAndRateLimit(TestContext context) throws Exception {
+
+        MqttAsyncClient publisher = new MqttAsyncClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), PUBLISHER_ID, new MemoryPersistence());
+
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setMaxInflight(MESSAGES_COUNT);
+        publisher.connect(options).waitForCompletion();
+
+        for (int i = 0; i < MESSAGES_COUNT; i++) {
+            publisher.publish(MQTT_TOPIC, PAYLOAD, 1, false);
+        }
+
+        // paused by the slow broker and by the rate limit, one client is counted once
+        long deadline = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < deadline) {
+            long paused = this.metric("enmasse_mqtt_paused_clients");
+            context.assertTrue(paused == 0 || paused == 1, "paused clients " + paused);
+            Thread.sleep(10);
+        }
+        context.assertTrue(this.metric("enmasse_mqtt_rate_limit_throttled_total") > 0);
+
+        // closed while paused, the client isn't counted anymore
+        publisher.disconnectForcibly(0, 0);
+        publisher.close();
+
+        deadline = System.currentTimeMillis() + TIMEOUT;
+        while (this.metric("enmasse_mqtt_paused_clients") != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        context.assertEquals(0L, this.metric("enmasse_mqtt_paused_clients"));
+    }
+
+    private long metric(String name) {
+
+        for (String line : this.metrics.scrape().split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return Long.parseLong(line.substring(name.length() + 1));
+            }
+        }
+        throw new IllegalArgumentException("No metric " + name);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests related to the number of AMQP links attached on the router for every MQTT client
+ */
+@RunWith(VertxUnitRunner.class)
+public class LinkCountTest extends MockMqttGatewayTestBase {
+
+    private static final String MQTT_TOPIC = "mytopic";
+    private static final String MQTT_MESSAGE = "Hello MQTT on EnMasse";
+    private static final String CLIENT_ID = "my_client_id_%d";
+    private static final String SUBSCRIBER_ID = "my_subscriber_id";
+
+    private static final int CLIENTS_COUNT = 10;
+    private static final long LINKS_TIMEOUT = 5000; // in ms
+
+    private List<MqttClient> clients = new ArrayList<>();
+
+    @Before
+    public void before(TestContext context) {
+        super.setup(context, false);
+    }
+
+    @After
+    public void after(TestContext context) throws MqttException {
+
+        for (MqttClient client : this.clients) {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+        }
+        super.tearDown(context);
+    }
+
+    @Test
+    public void connectedClients(TestContext context) throws Exception {
+
+        for (int i = 0; i < CLIENTS_COUNT; i++) {
+            this.client(String.format(CLIENT_ID, i), i % 2 == 0);
+        }
+
+        // just the receiver on the unique client publish address, both for clean and not clean sessions
+        int links = this.awaitLinks(CLIENTS_COUNT);
+        LOG.info("links per connected client : {}", (double) links / CLIENTS_COUNT);
+        context.assertEquals(CLIENTS_COUNT, links);
+    }
+
+    @Test
+    public void subscribeAndUnsubscribe(TestContext context) throws Exception {
+
+        MqttClient client = this.client(SUBSCRIBER_ID, true);
+        context.assertEquals(1, this.awaitLinks(1));
+
+        // the Subscription Service link is attached again just for the requests
+        client.subscribe(MQTT_TOPIC, 1);
+        context.assertEquals(1, this.awaitLinks(1));
+
+        client.unsubscribe(MQTT_TOPIC);
+        context.assertEquals(1, this.awaitLinks(1));
+    }
+
+    @Test
+    public void publishQoS2(TestContext context) throws Exception {
+
+        Async async = context.async();
+
+        MqttClient client = this.client(SUBSCRIBER_ID, true);
+        client.subscribe(MQTT_TOPIC, 2, (t, m) -> async.complete());
+
+        // the client publishes to itself : a QoS 2 link on the topic and
+        // the link for PUBREL attached for the QoS 2 message received
+        client.publish(MQTT_TOPIC, MQTT_MESSAGE.getBytes(), 2, false);
+        async.await();
+
+        int links = this.awaitLinks(3);
+        LOG.info("links for the QoS 2 publisher/subscriber client : {}", links);
+        context.assertEquals(3, links);
+    }
+
+    private MqttClient client(String clientId, boolean cleanSession) throws MqttException {
+
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(cleanSession);
+
+        MqttClient client = new MqttClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), clientId, new MemoryPersistence());
+        client.connect(options);
+        this.clients.add(client);
+        return client;
+    }
+
+    /**
+     * Wait for the client links on the router to be the expected ones (the detaches are asynchronous)
+     *
+     * @param expected  expected number of links
+     * @return  number of links at the end of the wait
+     */
+    private int awaitLinks(int expected) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + LINKS_TIMEOUT;
+        while (this.router.getClientLinkCount() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return this.router.getClientLinkCount();
+    }
+}
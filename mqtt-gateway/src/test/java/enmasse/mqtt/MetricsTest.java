@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.metrics.MetricsEndpoint;
+import enmasse.mqtt.metrics.GatewayMetrics;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests related to the metrics exposed by the MQTT gateway
+ */
+@RunWith(VertxUnitRunner.class)
+public class MetricsTest extends MockMqttGatewayTestBase {
+
+    private static final String MQTT_TOPIC = "mytopic";
+    private static final String MQTT_MESSAGE = "Hello MQTT on EnMasse";
+    private static final String CLIENT_ID = "my_client_id";
+
+    private static final int METRICS_PORT = 8080;
+
+    private GatewayMetrics metrics = new GatewayMetrics();
+
+    @Before
+    public void before(TestContext context) {
+        super.setup(context, false);
+        this.deployVerticle(new MetricsEndpoint(this.metrics, MQTT_BIND_ADDRESS, METRICS_PORT), context);
+    }
+
+    @Override
+    protected void configure(MqttGateway mqttGateway) {
+        mqttGateway.setMetrics(this.metrics);
+    }
+
+    @After
+    public void after(TestContext context) {
+        super.tearDown(context);
+    }
+
+    @Test
+    public void publishMetrics(TestContext context) throws MqttException {
+
+        Async received = context.async();
+
+        MqttClient client = new MqttClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), CLIENT_ID, new MemoryPersistence());
+        client.connect();
+        client.subscribe(MQTT_TOPIC, 1, (t, m) -> received.complete());
+
+        // QoS 1 publish returns after PUBACK
+        client.publish(MQTT_TOPIC, MQTT_MESSAGE.getBytes(), 1, false);
+
+        received.await();
+
+        Async scraped = context.async();
+
+        this.vertx.createHttpClient().getNow(METRICS_PORT, MQTT_BIND_ADDRESS, "/metrics", response -> {
+
+            context.assertEquals(200, response.statusCode());
+            response.bodyHandler(body -> {
+
+                String text = body.toString();
+                LOG.info(text);
+
+                context.assertTrue(text.contains("enmasse_mqtt_connected_clients{instance=\"0\"} 1"));
+                context.assertTrue(text.contains("enmasse_mqtt_connect_connack_seconds_count 1"));
+                context.assertTrue(text.contains("enmasse_mqtt_publish_puback_seconds_count 1"));
+                context.assertTrue(text.contains("enmasse_mqtt_messages_received_total 1"));
+                context.assertTrue(text.contains("enmasse_mqtt_bytes_received_total " + MQTT_MESSAGE.length()));
+                context.assertTrue(text.contains("enmasse_mqtt_inflight_deliveries{qos=\"1\"} 0"));
+                scraped.complete();
+            });
+        });
+
+        scraped.await();
+
+        client.disconnect();
+    }
+}
@@ -89,12 +89,16 @@ public abstract class MockMqttGatewayTestBase {
                     .setCertFile(SERVER_CERT);
         }
 
+        this.configure(this.mqttGateway);
+
         // create and setup mock Broker instance
         this.broker = new MockBroker();
         this.broker
                 .setInternalServiceHost(INTERNAL_SERVICE_HOST)
                 .setInternalServicePort(router.getRouteContainerPort());
 
+        this.configure(this.broker);
+
         // create and setup mock Last Will and Testament Service instance
         this.lwtService = new MockLwtService();
         this.lwtService
@@ -114,6 +118,22 @@ public abstract class MockMqttGatewayTestBase {
         deployVerticle(this.mqttGateway, context);
     }
 
+    /**
+     * Additional configuration of the MQTT gateway instance before deploying it
+     *
+     * @param mqttGateway   MQTT gateway instance
+     */
+    protected void configure(MqttGateway mqttGateway) {
+    }
+
+    /**
+     * Additional configuration of the mock broker instance before deploying it
+     *
+     * @param broker    mock broker instance
+     */
+    protected void configure(MockBroker broker) {
+    }
+
     protected void deployVerticle(Verticle verticle, TestContext context) {
 
         Async async = context.async();
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.mqtt.benchmarks.MockGatewayEnvironment;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests related to more MQTT gateway verticle instances sharing the listening port
+ */
+public class MultiInstanceTest {
+
+    private static final String MQTT_TOPIC = "mytopic";
+    private static final String MQTT_MESSAGE = "Hello MQTT on EnMasse";
+    private static final String SUBSCRIBER_ID = "my_subscriber_id_%d";
+    private static final String PUBLISHER_ID = "my_publisher_id";
+
+    private static final int INSTANCES = 2;
+    private static final int SUBSCRIBERS_COUNT = 4;
+
+    private MockGatewayEnvironment environment;
+    private List<MqttClient> clients = new ArrayList<>();
+
+    @Before
+    public void before() throws Exception {
+        this.environment = new MockGatewayEnvironment(INSTANCES, mqttGateway -> { });
+    }
+
+    @After
+    public void after() throws Exception {
+
+        for (MqttClient client : this.clients) {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+        }
+        this.environment.close();
+    }
+
+    @Test
+    public void publishAcrossInstances() throws Exception {
+
+        CountDownLatch latch = new CountDownLatch(SUBSCRIBERS_COUNT);
+
+        // connections are spread across the instances, each one with its own AMQP bridges
+        for (int i = 0; i < SUBSCRIBERS_COUNT; i++) {
+
+            MqttClient subscriber = this.client(String.format(SUBSCRIBER_ID, i));
+            subscriber.subscribe(MQTT_TOPIC, 1, (t, m) -> latch.countDown());
+        }
+
+        MqttClient publisher = this.client(PUBLISHER_ID);
+        publisher.publish(MQTT_TOPIC, MQTT_MESSAGE.getBytes(), 1, false);
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+
+    private MqttClient client(String clientId) throws Exception {
+
+        MqttClient client = new MqttClient(this.environment.serverURI(), clientId, new MemoryPersistence());
+        client.connect();
+        this.clients.add(client);
+        return client;
+    }
+}
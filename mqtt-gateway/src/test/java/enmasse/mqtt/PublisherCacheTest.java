@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.mqtt.metrics.GatewayMetrics;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests related to the publishers (links on topics) cached by the AMQP bridge
+ */
+@RunWith(VertxUnitRunner.class)
+public class PublisherCacheTest extends MockMqttGatewayTestBase {
+
+    private static final String MQTT_TOPIC = "mytopic";
+    private static final String MQTT_OTHER_TOPIC = "will";
+    private static final String MQTT_MESSAGE = "Hello MQTT on EnMasse";
+    private static final String SUBSCRIBER_ID = "my_subscriber_id";
+    private static final String PUBLISHER_ID = "my_publisher_id";
+
+    private static final String[] PUBLISH_TOPICS = { MQTT_TOPIC, MQTT_OTHER_TOPIC, MQTT_TOPIC, MQTT_OTHER_TOPIC };
+
+    private static final long PUBLISHER_IDLE_TIMEOUT = 500; // in ms
+
+    @Rule
+    public TestName testName = new TestName();
+
+    private GatewayMetrics metrics = new GatewayMetrics();
+
+    @Before
+    public void before(TestContext context) {
+        super.setup(context, false);
+    }
+
+    @Override
+    protected void configure(MqttGateway mqttGateway) {
+        mqttGateway.setMetrics(this.metrics);
+
+        if (this.testName.getMethodName().startsWith("idle")) {
+            // publishers not limited in number, just detached when idle
+            mqttGateway.setPublisherIdleTimeout(PUBLISHER_IDLE_TIMEOUT);
+        } else {
+            // just one publisher cached, every publish on a different topic evicts the previous one
+            mqttGateway.setMaxPublishers(1);
+        }
+    }
+
+    @After
+    public void after(TestContext context) {
+        super.tearDown(context);
+    }
+
+    @Test
+    public void publishWithEvictedPublishers(TestContext context) throws MqttException {
+
+        Async async = context.async(PUBLISH_TOPICS.length);
+
+        MqttClient subscriber = new MqttClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), SUBSCRIBER_ID, new MemoryPersistence());
+        subscriber.connect();
+        subscriber.subscribe(MQTT_TOPIC, 1, (t, m) -> async.countDown());
+        subscriber.subscribe(MQTT_OTHER_TOPIC, 1, (t, m) -> async.countDown());
+
+        MqttClient publisher = new MqttClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), PUBLISHER_ID, new MemoryPersistence());
+        publisher.connect();
+
+        // publishers are re-attached on demand after being evicted
+        for (String topic : PUBLISH_TOPICS) {
+            publisher.publish(topic, MQTT_MESSAGE.getBytes(), 1, false);
+        }
+
+        async.await();
+
+        publisher.disconnect();
+        subscriber.disconnect();
+    }
+
+    @Test
+    public void cacheCounts(TestContext context) throws MqttException {
+
+        MqttClient publisher = new MqttClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), PUBLISHER_ID, new MemoryPersistence());
+        publisher.connect();
+
+        // a hit on the same topic, then every different topic evicts the only publisher cached
+        publisher.publish(MQTT_TOPIC, MQTT_MESSAGE.getBytes(), 1, false);
+        publisher.publish(MQTT_TOPIC, MQTT_MESSAGE.getBytes(), 1, false);
+        for (String topic : PUBLISH_TOPICS) {
+            publisher.publish(topic, MQTT_MESSAGE.getBytes(), 1, false);
+        }
+
+        context.assertEquals(2L, this.metric("enmasse_mqtt_publisher_cache_hits_total"));
+        context.assertEquals(4L, this.metric("enmasse_mqtt_publisher_cache_misses_total"));
+        context.assertEquals(3L, this.metric("enmasse_mqtt_publisher_cache_evictions_total"));
+
+        publisher.disconnect();
+    }
+
+    @Test
+    public void idlePublisherDetached(TestContext context) throws Exception {
+
+        MqttClient publisher = new MqttClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), PUBLISHER_ID, new MemoryPersistence());
+        publisher.connect();
+
+        publisher.publish(MQTT_TOPIC, MQTT_MESSAGE.getBytes(), 1, false);
+        context.assertEquals(0L, this.metric("enmasse_mqtt_publisher_cache_evictions_total"));
+
+        // detached by the periodic check once the idle timeout is elapsed
+        long deadline = System.currentTimeMillis() + 5000;
+        while (this.metric("enmasse_mqtt_publisher_cache_evictions_total") == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        context.assertEquals(1L, this.metric("enmasse_mqtt_publisher_cache_evictions_total"));
+
+        // attached again on the next publish
+        publisher.publish(MQTT_TOPIC, MQTT_MESSAGE.getBytes(), 1, false);
+        context.assertEquals(2L, this.metric("enmasse_mqtt_publisher_cache_misses_total"));
+        context.assertEquals(0L, this.metric("enmasse_mqtt_publisher_cache_hits_total"));
+
+        publisher.disconnect();
+    }
+
+    private long metric(String name) {
+
+        for (String line : this.metrics.scrape().split("\\n")) {
+            if (line.startsWith(name + " ")) {
+                return Long.parseLong(line.substring(name.length() + 1));
+            }
+        }
+        throw new IllegalArgumentException("No metric " + name);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests related to the publish rate limit of the MQTT clients
+ */
+@RunWith(VertxUnitRunner.class)
+public class RateLimitTest extends MockMqttGatewayTestBase {
+
+    private static final String MQTT_TOPIC = "mytopic";
+    private static final String PUBLISHER_ID = "my_publisher_id";
+
+    private static final int RATE_LIMIT = 100; // messages per second
+    private static final int MESSAGES_COUNT = 300;
+    private static final byte[] PAYLOAD = new byte[64];
+
+    private static final long TIMEOUT = 30000; // in ms
+
+    @Rule
+    public TestName testName = new TestName();
+
+    private MqttAsyncClient publisher;
+
+    @Before
+    public void before(TestContext context) throws MqttException {
+        super.setup(context, false);
+
+        this.publisher = new MqttAsyncClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), PUBLISHER_ID, new MemoryPersistence());
+
+        // all the messages can be in flight, the client doesn't wait for the PUBACK before the next PUBLISH
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setMaxInflight(MESSAGES_COUNT);
+        this.publisher.connect(options).waitForCompletion();
+    }
+
+    @Override
+    protected void configure(MqttGateway mqttGateway) {
+        mqttGateway
+                .setRateLimitMessages(RATE_LIMIT)
+                .setRateLimitPolicy(this.testName.getMethodName().startsWith("throttle") ? "throttle" : "drop");
+    }
+
+    @After
+    public void after(TestContext context) throws MqttException {
+
+        if (this.publisher.isConnected()) {
+            this.publisher.disconnect().waitForCompletion();
+        }
+        super.tearDown(context);
+    }
+
+    @Test
+    public void throttle(TestContext context) throws Exception {
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < MESSAGES_COUNT; i++) {
+            this.publisher.publish(MQTT_TOPIC, PAYLOAD, 1, false);
+        }
+
+        long deadline = start + TIMEOUT;
+        while (this.broker.acceptedCount() < MESSAGES_COUNT && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        LOG.info("accepted {} in {} ms", this.broker.acceptedCount(), elapsed);
+
+        // all the messages are delivered, after the burst at the rate limit
+        context.assertEquals((long) MESSAGES_COUNT, this.broker.acceptedCount());
+        context.assertTrue(elapsed >= (MESSAGES_COUNT - 2 * RATE_LIMIT) * 1000L / RATE_LIMIT);
+        context.assertTrue(this.publisher.isConnected());
+    }
+
+    @Test
+    public void dropQoS0(TestContext context) throws Exception {
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < MESSAGES_COUNT; i++) {
+            this.publisher.publish(MQTT_TOPIC, PAYLOAD, 0, false).waitForCompletion();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        // QoS 0 messages aren't acknowledged, wait for the ones in budget
+        Thread.sleep(1000);
+
+        LOG.info("pre-settled {} of {} in {} ms", this.broker.preSettledCount(), MESSAGES_COUNT, elapsed);
+
+        // the burst plus the refill while publishing, the other ones are dropped
+        context.assertTrue(this.broker.preSettledCount() > 0);
+        context.assertTrue(this.broker.preSettledCount() <= RATE_LIMIT + (elapsed * RATE_LIMIT / 1000) + 1);
+        context.assertTrue(this.publisher.isConnected());
+    }
+
+    @Test
+    public void disconnectQoS1(TestContext context) throws Exception {
+
+        for (int i = 0; i < MESSAGES_COUNT; i++) {
+            if (!this.publisher.isConnected()) {
+                break;
+            }
+            try {
+                this.publisher.publish(MQTT_TOPIC, PAYLOAD, 1, false);
+            } catch (MqttException e) {
+                // disconnected while publishing
+                break;
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (this.publisher.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // QoS 1 messages can't be dropped, the client is disconnected
+        context.assertFalse(this.publisher.isConnected());
+        context.assertTrue(this.broker.acceptedCount() <= RATE_LIMIT + 1);
+    }
+}
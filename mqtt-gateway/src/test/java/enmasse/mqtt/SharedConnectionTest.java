@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests related to MQTT clients sharing the AMQP connections
+ */
+@RunWith(VertxUnitRunner.class)
+public class SharedConnectionTest extends MockMqttGatewayTestBase {
+
+    private static final String MQTT_TOPIC = "mytopic";
+    private static final String MQTT_MESSAGE = "Hello MQTT on EnMasse";
+    private static final String SUBSCRIBER_ID = "my_subscriber_id_%d";
+    private static final String PUBLISHER_ID = "my_publisher_id";
+    private static final String BAD_USERNAME = "bad_user";
+    private static final String BAD_PASSWORD = "bad_password";
+
+    private static final int AMQP_CONNECTION_POOL_SIZE = 2;
+    private static final int SUBSCRIBERS_COUNT = 5;
+
+    private List<MqttClient> clients = new ArrayList<>();
+
+    @Before
+    public void before(TestContext context) {
+        super.setup(context, false);
+    }
+
+    @Override
+    protected void configure(MqttGateway mqttGateway) {
+        mqttGateway.setAmqpConnectionPoolSize(AMQP_CONNECTION_POOL_SIZE);
+    }
+
+    @After
+    public void after(TestContext context) throws MqttException {
+
+        for (MqttClient client : this.clients) {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+        }
+        super.tearDown(context);
+    }
+
+    @Test
+    public void publishToSubscribersOnSharedConnections(TestContext context) throws MqttException {
+
+        Async async = context.async(SUBSCRIBERS_COUNT);
+
+        // more MQTT clients than AMQP connections, each one with its own session
+        for (int i = 0; i < SUBSCRIBERS_COUNT; i++) {
+
+            MqttClient subscriber = this.client(String.format(SUBSCRIBER_ID, i));
+            subscriber.subscribe(MQTT_TOPIC, 1, (t, m) -> {
+
+                LOG.info("topic: {}, message: {}", t, m);
+                context.assertEquals(MQTT_MESSAGE, new String(m.getPayload()));
+                async.countDown();
+            });
+        }
+
+        MqttClient publisher = this.client(PUBLISHER_ID);
+        publisher.publish(MQTT_TOPIC, MQTT_MESSAGE.getBytes(), 1, false);
+
+        async.await();
+    }
+
+    @Test
+    public void disconnectDoesNotAffectOtherClients(TestContext context) throws MqttException {
+
+        Async async = context.async();
+
+        MqttClient subscriber = this.client(String.format(SUBSCRIBER_ID, 0));
+        subscriber.subscribe(MQTT_TOPIC, 1, (t, m) -> {
+
+            LOG.info("topic: {}, message: {}", t, m);
+            async.complete();
+        });
+
+        // other clients sharing the same AMQP connections come and go
+        for (int i = 1; i < SUBSCRIBERS_COUNT; i++) {
+            this.client(String.format(SUBSCRIBER_ID, i)).disconnect();
+        }
+
+        MqttClient publisher = this.client(PUBLISHER_ID);
+        publisher.publish(MQTT_TOPIC, MQTT_MESSAGE.getBytes(), 1, false);
+
+        async.await();
+    }
+
+    @Test
+    public void badCredentialsRefused(TestContext context) throws MqttException {
+
+        // the shared connections are anonymous, the client credentials are authenticated on their own
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setUserName(BAD_USERNAME);
+        options.setPassword(BAD_PASSWORD.toCharArray());
+
+        MemoryPersistence persistence = new MemoryPersistence();
+        MqttClient client = new MqttClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), String.format(SUBSCRIBER_ID, 0), persistence);
+        try {
+            client.connect(options);
+            this.clients.add(client);
+            context.fail("MQTT client with bad credentials connected on a shared connection");
+        } catch (MqttException e) {
+            context.assertEquals((int) MqttException.REASON_CODE_NOT_AUTHORIZED, e.getReasonCode());
+        }
+
+        // anonymous clients still share the AMQP connections
+        context.assertTrue(this.client(PUBLISHER_ID).isConnected());
+    }
+
+    private MqttClient client(String clientId) throws MqttException {
+
+        MemoryPersistence persistence = new MemoryPersistence();
+        MqttClient client = new MqttClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), clientId, persistence);
+        client.connect();
+        this.clients.add(client);
+        return client;
+    }
+}
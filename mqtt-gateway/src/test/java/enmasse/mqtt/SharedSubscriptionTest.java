@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.mqtt.metrics.GatewayMetrics;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests related to the topic filters subscribed once by the gateway and shared between the MQTT clients
+ */
+@RunWith(VertxUnitRunner.class)
+public class SharedSubscriptionTest extends MockMqttGatewayTestBase {
+
+    private static final String MQTT_SHARED_TOPIC_FILTER = "mytopic/shared/#";
+    private static final String MQTT_TOPIC = "mytopic/shared/news";
+    private static final String MQTT_MESSAGE = "Hello MQTT on EnMasse";
+    private static final String SUBSCRIBER_ID = "my_subscriber_id_%d";
+    private static final String PUBLISHER_ID = "my_publisher_id";
+
+    private static final int SUBSCRIBERS_COUNT = 5;
+    private static final int MAX_IN_FLIGHT = 5;
+
+    private List<MqttClient> clients = new ArrayList<>();
+
+    private GatewayMetrics metrics = new GatewayMetrics();
+
+    @Before
+    public void before(TestContext context) {
+        super.setup(context, false);
+    }
+
+    @Override
+    protected void configure(MqttGateway mqttGateway) {
+        mqttGateway
+                .setSharedTopicFilters(MQTT_SHARED_TOPIC_FILTER)
+                .setMaxInFlight(MAX_IN_FLIGHT)
+                .setMetrics(this.metrics);
+    }
+
+    @After
+    public void after(TestContext context) throws MqttException {
+
+        for (MqttClient client : this.clients) {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+        }
+        super.tearDown(context);
+    }
+
+    @Test
+    public void fanOutToSubscribers(TestContext context) throws MqttException {
+
+        Async async = context.async(SUBSCRIBERS_COUNT);
+
+        for (int i = 0; i < SUBSCRIBERS_COUNT; i++) {
+
+            MqttClient subscriber = this.client(String.format(SUBSCRIBER_ID, i));
+            subscriber.subscribe(MQTT_SHARED_TOPIC_FILTER, 1, (t, m) -> {
+
+                LOG.info("topic: {}, message: {}", t, m);
+                context.assertEquals(MQTT_MESSAGE, new String(m.getPayload()));
+                async.countDown();
+            });
+        }
+
+        // just one AMQP receiver for all the subscribers
+        context.assertEquals(1, this.broker.nativeReceiversCount());
+
+        MqttClient publisher = this.client(PUBLISHER_ID);
+        publisher.publish(MQTT_TOPIC, MQTT_MESSAGE.getBytes(), 1, false);
+
+        async.await();
+    }
+
+    @Test
+    public void downgradeQoS(TestContext context) throws MqttException {
+
+        Async async = context.async(2);
+
+        MqttClient subscriberQoS0 = this.client(String.format(SUBSCRIBER_ID, 0));
+        subscriberQoS0.subscribe(MQTT_SHARED_TOPIC_FILTER, 0, (t, m) -> {
+
+            context.assertEquals(0, m.getQos());
+            async.countDown();
+        });
+
+        MqttClient subscriberQoS2 = this.client(String.format(SUBSCRIBER_ID, 1));
+        subscriberQoS2.subscribe(MQTT_SHARED_TOPIC_FILTER, 2, (t, m) -> {
+
+            // the QoS of the published message, lower than the granted one
+            context.assertEquals(1, m.getQos());
+            async.countDown();
+        });
+
+        MqttClient publisher = this.client(PUBLISHER_ID);
+        publisher.publish(MQTT_TOPIC, MQTT_MESSAGE.getBytes(), 1, false);
+
+        async.await();
+    }
+
+    @Test
+    public void detachOnLastUnsubscribe(TestContext context) throws Exception {
+
+        MqttClient subscriber1 = this.client(String.format(SUBSCRIBER_ID, 0));
+        subscriber1.subscribe(MQTT_SHARED_TOPIC_FILTER, 1);
+        MqttClient subscriber2 = this.client(String.format(SUBSCRIBER_ID, 1));
+        subscriber2.subscribe(MQTT_SHARED_TOPIC_FILTER, 1);
+
+        context.assertEquals(1, this.broker.nativeReceiversCount());
+
+        subscriber1.unsubscribe(MQTT_SHARED_TOPIC_FILTER);
+        context.assertEquals(1, this.broker.nativeReceiversCount());
+
+        // the last subscriber leaves with the disconnection
+        subscriber2.disconnect();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (this.broker.nativeReceiversCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        context.assertEquals(0, this.broker.nativeReceiversCount());
+    }
+
+    @Test
+    public void slowSubscriberQueued(TestContext context) throws Exception {
+
+        // the in flight window and the queue, all delivered in order
+        int count = 2 * MAX_IN_FLIGHT;
+        Async async = context.async(count);
+        List<String> received = new ArrayList<>();
+
+        MqttClient subscriber = this.client(String.format(SUBSCRIBER_ID, 0));
+        subscriber.subscribe(MQTT_SHARED_TOPIC_FILTER, 1, (t, m) -> {
+
+            // PUBACK is sent by the client only when the callback returns
+            Thread.sleep(100);
+            received.add(new String(m.getPayload()));
+            async.countDown();
+        });
+
+        MqttClient publisher = this.client(PUBLISHER_ID);
+        List<String> published = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            published.add(MQTT_MESSAGE + i);
+            publisher.publish(MQTT_TOPIC, (MQTT_MESSAGE + i).getBytes(), 1, false);
+        }
+
+        async.await();
+
+        context.assertEquals(published, received);
+        context.assertTrue(this.metric("enmasse_mqtt_shared_queued_total") > 0);
+        context.assertEquals(0L, this.metric("enmasse_mqtt_shared_dropped_total"));
+    }
+
+    @Test
+    public void slowSubscriberDisconnected(TestContext context) throws Exception {
+
+        MqttClient subscriber = this.client(String.format(SUBSCRIBER_ID, 0));
+        subscriber.subscribe(MQTT_SHARED_TOPIC_FILTER, 1, (t, m) -> Thread.sleep(1000));
+
+        // more than the in flight window and the queue
+        MqttClient publisher = this.client(PUBLISHER_ID);
+        for (int i = 0; i < 3 * MAX_IN_FLIGHT; i++) {
+            publisher.publish(MQTT_TOPIC, (MQTT_MESSAGE + i).getBytes(), 1, false);
+        }
+
+        // the QoS 1 messages aren't dropped silently, the client is disconnected
+        long deadline = System.currentTimeMillis() + 10000;
+        while (subscriber.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        context.assertFalse(subscriber.isConnected());
+        context.assertTrue(this.metric("enmasse_mqtt_shared_dropped_total") > 0);
+        context.assertTrue(publisher.isConnected());
+    }
+
+    private long metric(String name) {
+
+        for (String line : this.metrics.scrape().split("\\n")) {
+            if (line.startsWith(name + " ")) {
+                return Long.parseLong(line.substring(name.length() + 1));
+            }
+        }
+        throw new IllegalArgumentException("No metric " + name);
+    }
+
+    private MqttClient client(String clientId) throws MqttException {
+
+        MemoryPersistence persistence = new MemoryPersistence();
+        MqttClient client = new MqttClient(String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT), clientId, persistence);
+        client.connect();
+        this.clients.add(client);
+        return client;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.RunTestOnContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import io.vertx.proton.ProtonClient;
+import io.vertx.proton.ProtonClientOptions;
+import io.vertx.proton.ProtonHelper;
+import io.vertx.proton.ProtonServer;
+import io.vertx.proton.ProtonSession;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+/**
+ * Tests related to the AMQP side of the shared subscriptions, against a local AMQP peer
+ */
+@RunWith(VertxUnitRunner.class)
+public class SharedSubscriptionsTest {
+
+    private static final String MQTT_SHARED_TOPIC_FILTER = "mytopic/+/news/#";
+    private static final String SEND_ADDRESS = "send";
+    private static final long SETTLE_CHECK_DELAY = 100; // in ms
+
+    @Rule
+    public RunTestOnContext rule = new RunTestOnContext();
+
+    private ProtonServer server;
+    // source address of the last link attached on the server
+    private String attachedAddress;
+    // outcome of the message sent on the SEND_ADDRESS
+    private Async accepted;
+    // if all the subscribers settled the message on the client side
+    private boolean allSettled;
+
+    private AmqpConnectionPool pool;
+
+    @Before
+    public void before(TestContext context) {
+
+        // a receiver on SEND_ADDRESS gets a message, which has to be accepted by the client
+        this.server = ProtonServer.create(this.rule.vertx()).connectHandler(connection -> {
+
+            connection.openHandler(o -> connection.open());
+            connection.sessionOpenHandler(ProtonSession::open);
+            connection.senderOpenHandler(sender -> {
+
+                this.attachedAddress = sender.getRemoteSource().getAddress();
+                sender.setSource(sender.getRemoteSource()).open();
+
+                if (SEND_ADDRESS.equals(this.attachedAddress)) {
+
+                    sender.send(ProtonHelper.message("Hello"), delivery -> {
+
+                        context.assertTrue(delivery.getRemoteState() instanceof Accepted);
+                        context.assertTrue(delivery.remotelySettled());
+                        context.assertTrue(this.allSettled);
+                        this.accepted.complete();
+                    });
+                }
+            });
+        });
+        this.server.listen(0, context.asyncAssertSuccess(s -> {
+            this.pool = new AmqpConnectionPool(this.rule.vertx(), "localhost", s.actualPort(), 1, new ProtonClientOptions());
+        }));
+    }
+
+    @After
+    public void after(TestContext context) {
+
+        this.pool.close();
+        this.server.close();
+    }
+
+    @Test
+    public void addressPattern(TestContext context) {
+
+        SharedSubscriptions sharedSubscriptions = new SharedSubscriptions(this.rule.vertx(), Collections.singleton(MQTT_SHARED_TOPIC_FILTER), this.pool);
+
+        context.assertEquals("mytopic/*/news/#", sharedSubscriptions.address(MQTT_SHARED_TOPIC_FILTER));
+        context.assertEquals("#", sharedSubscriptions.address("#"));
+        context.assertEquals("mytopic/news", sharedSubscriptions.address("mytopic/news"));
+        // only the whole levels are wildcards
+        context.assertEquals("mytopic/a+/b#", sharedSubscriptions.address("mytopic/a+/b#"));
+
+        sharedSubscriptions.addressWildcards("+", "#");
+        context.assertEquals(MQTT_SHARED_TOPIC_FILTER, sharedSubscriptions.address(MQTT_SHARED_TOPIC_FILTER));
+
+        // the receiver attaches on the address pattern
+        sharedSubscriptions.addressWildcards(SharedSubscriptions.DEFAULT_SINGLE_LEVEL_WILDCARD, SharedSubscriptions.DEFAULT_MULTI_LEVEL_WILDCARD);
+        sharedSubscriptions.subscribe(MQTT_SHARED_TOPIC_FILTER, null, MqttQoS.AT_LEAST_ONCE, context.asyncAssertSuccess(v -> {
+
+            context.assertEquals("mytopic/*/news/#", this.attachedAddress);
+            sharedSubscriptions.close();
+        }));
+    }
+
+    @Test
+    public void acceptedWhenAllSettled(TestContext context) {
+
+        this.accepted = context.async();
+
+        ProtonClient.create(this.rule.vertx()).connect("localhost", this.server.actualPort(), context.asyncAssertSuccess(connection -> {
+
+            connection.open();
+            connection.createReceiver(SEND_ADDRESS)
+                    .setAutoAccept(false)
+                    .handler((delivery, message) -> {
+
+                        // two subscribers to acknowledge the message
+                        SharedSubscriptions.SharedDelivery sharedDelivery = new SharedSubscriptions.SharedDelivery(delivery);
+                        sharedDelivery.retain();
+                        sharedDelivery.retain();
+                        sharedDelivery.settled();
+                        sharedDelivery.settled();
+
+                        // not accepted until the last subscriber settles it
+                        this.rule.vertx().setTimer(SETTLE_CHECK_DELAY, t -> {
+
+                            context.assertNull(delivery.getLocalState());
+                            this.allSettled = true;
+                            sharedDelivery.settled();
+                            context.assertTrue(delivery.getLocalState() instanceof Accepted);
+                        });
+                    })
+                    .open();
+        }));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests related to the topic filters trie
+ */
+public class TopicTrieTest {
+
+    @Test
+    public void testFixedTopicMatch() {
+
+        TopicTrie trie = new TopicTrie();
+        trie.put("mytopic/foo", MqttQoS.AT_LEAST_ONCE);
+
+        TopicTrie.Node subscription = trie.match("mytopic/foo");
+        assertNotNull(subscription);
+        assertEquals("mytopic/foo", subscription.filter());
+        assertEquals(MqttQoS.AT_LEAST_ONCE, subscription.qos());
+
+        assertNull(trie.match("mytopic/bar"));
+        assertNull(trie.match("mytopic"));
+        assertNull(trie.match("mytopic/foo/bar"));
+    }
+
+    @Test
+    public void testTopicSharpWildcardMatch() {
+
+        TopicTrie trie = new TopicTrie();
+        trie.put("mytopic/#", MqttQoS.AT_MOST_ONCE);
+
+        assertNotNull(trie.match("mytopic/foo"));
+        assertNotNull(trie.match("mytopic/foo/bar"));
+        // MQTT 3.1.1 spec : "#" matches the parent level as well
+        assertNotNull(trie.match("mytopic"));
+        assertNull(trie.match("anothertopic/foo"));
+    }
+
+    @Test
+    public void testTopicPlusWildcardMatch() {
+
+        TopicTrie trie = new TopicTrie();
+        trie.put("mytopic/+/bar", MqttQoS.AT_MOST_ONCE);
+        trie.put("mytopic/+/bar/+/foo", MqttQoS.AT_MOST_ONCE);
+
+        assertEquals("mytopic/+/bar", trie.match("mytopic/foo/bar").filter());
+        assertEquals("mytopic/+/bar", trie.match("mytopic/another/bar").filter());
+        assertEquals("mytopic/+/bar/+/foo", trie.match("mytopic/a/bar/b/foo").filter());
+
+        assertNull(trie.match("mytopic/bar"));
+        assertNull(trie.match("mytopic/a/bar/b/foo/c"));
+    }
+
+    @Test
+    public void testDollarTopicNotMatch() {
+
+        TopicTrie trie = new TopicTrie();
+        trie.put("#", MqttQoS.AT_MOST_ONCE);
+        trie.put("+/monitor", MqttQoS.AT_MOST_ONCE);
+
+        assertNull(trie.match("$SYS/monitor"));
+        assertNotNull(trie.match("sys/monitor"));
+
+        trie.put("$SYS/#", MqttQoS.AT_MOST_ONCE);
+        assertEquals("$SYS/#", trie.match("$SYS/monitor").filter());
+    }
+
+    @Test
+    public void testHighestQoSMatch() {
+
+        TopicTrie trie = new TopicTrie();
+        trie.put("mytopic/#", MqttQoS.AT_MOST_ONCE);
+        trie.put("mytopic/+", MqttQoS.EXACTLY_ONCE);
+        trie.put("mytopic/foo", MqttQoS.AT_LEAST_ONCE);
+
+        TopicTrie.Node subscription = trie.match("mytopic/foo");
+        assertEquals("mytopic/+", subscription.filter());
+        assertEquals(MqttQoS.EXACTLY_ONCE, subscription.qos());
+    }
+
+    @Test
+    public void testUpdateAndRemove() {
+
+        TopicTrie trie = new TopicTrie();
+        for (int i = 0; i < 100; i++) {
+            trie.put("mytopic/" + i, MqttQoS.AT_MOST_ONCE);
+        }
+        trie.put("mytopic/#", MqttQoS.AT_MOST_ONCE);
+        assertEquals(101, trie.size());
+
+        // re-subscribing replaces the granted QoS level
+        trie.put("mytopic/10", MqttQoS.AT_LEAST_ONCE);
+        assertEquals(101, trie.size());
+        assertEquals(MqttQoS.AT_LEAST_ONCE, trie.match("mytopic/10").qos());
+
+        assertTrue(trie.remove("mytopic/#"));
+        assertFalse(trie.remove("mytopic/#"));
+        assertNull(trie.match("mytopic/foo"));
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("mytopic/" + i, trie.match("mytopic/" + i).filter());
+            assertTrue(trie.remove("mytopic/" + i));
+        }
+        assertTrue(trie.isEmpty());
+        assertNull(trie.match("mytopic/10"));
+    }
+}
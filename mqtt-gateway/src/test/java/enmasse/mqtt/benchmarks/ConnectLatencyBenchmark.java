@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.benchmarks;
+
+import io.vertx.core.Vertx;
+import io.vertx.mqtt.MqttClient;
+import io.vertx.mqtt.MqttClientOptions;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the CONNECT to CONNACK latency (p50/p99) of the MQTT gateway during a storm of
+ * reconnecting clients, with the Subscription Service and the Last Will and Testament Service
+ * mocks taking some time for processing every request.
+ *
+ * The (Vert.x based) MQTT clients run on their own Vert.x instance, a client disconnects
+ * as soon as it gets the CONNACK and the next one starts connecting.
+ *
+ * System properties :
+ * - clients : number of MQTT clients connecting (default 1000)
+ * - concurrency : number of clients connecting at same time (default 50)
+ * - delay : processing time of the AMQP services mocks in ms (default 5)
+ */
+public class ConnectLatencyBenchmark {
+
+    private static final String MQTT_WILL_TOPIC = "will";
+    private static final String WILL_PAYLOAD = "will-payload-will-payload-will-p";
+    private static final int CONNECT_TIMEOUT = 5; // in seconds, for each client
+
+    public static void main(String[] args) throws Exception {
+
+        int clients = Integer.getInteger("clients", 1000);
+        int concurrency = Integer.getInteger("concurrency", 50);
+        long delay = Long.getLong("delay", 5);
+
+        // clean session with will : AMQP_WILL and AMQP_CLOSE sent at same time
+        run("clean-will", false, true, true, clients, concurrency, delay);
+        // not clean session with will : AMQP_WILL and AMQP_LIST sent at same time
+        run("session-will", false, false, true, clients, concurrency, delay);
+        // clean session without will, waiting for the AMQP_CLOSE or not
+        run("clean", false, true, false, clients, concurrency, delay);
+        run("clean-early", true, true, false, clients, concurrency, delay);
+    }
+
+    private static void run(String scenario, boolean earlyConnack, boolean cleanSession, boolean will,
+                            int clients, int concurrency, long delay) throws Exception {
+
+        try (MockGatewayEnvironment environment =
+                     new MockGatewayEnvironment(1, mqttGateway -> mqttGateway.setEarlyConnack(earlyConnack))) {
+
+            environment.lwtService().setProcessingDelay(delay);
+            environment.subscriptionService().setProcessingDelay(delay);
+
+            Vertx vertx = Vertx.vertx();
+            long[] latencies = new long[clients];
+
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            AtomicInteger started = new AtomicInteger();
+            AtomicInteger completed = new AtomicInteger();
+
+            // a bounded number of CONNECT in progress, every completed one starts the next
+            Runnable[] next = new Runnable[1];
+            next[0] = () -> {
+
+                int i = started.getAndIncrement();
+                if (i >= clients) {
+                    return;
+                }
+
+                MqttClientOptions options = new MqttClientOptions()
+                        .setClientId(String.format("connect-%s-%d", scenario, i))
+                        .setCleanSession(cleanSession);
+                if (will) {
+                    options.setWillFlag(true)
+                            .setWillTopic(MQTT_WILL_TOPIC)
+                            .setWillMessage(WILL_PAYLOAD)
+                            .setWillQoS(1);
+                }
+
+                MqttClient client = MqttClient.create(vertx, options);
+
+                long start = System.nanoTime();
+                client.connect(MockGatewayEnvironment.MQTT_LISTEN_PORT, MockGatewayEnvironment.MQTT_BIND_ADDRESS, ar -> {
+
+                    if (ar.succeeded()) {
+                        latencies[i] = System.nanoTime() - start;
+                        client.disconnect();
+                    } else {
+                        done.completeExceptionally(ar.cause());
+                        return;
+                    }
+                    if (completed.incrementAndGet() == clients) {
+                        done.complete(null);
+                    } else {
+                        next[0].run();
+                    }
+                });
+            };
+
+            for (int i = 0; i < Math.min(concurrency, clients); i++) {
+                vertx.runOnContext(v -> next[0].run());
+            }
+
+            try {
+                done.get((long) clients * CONNECT_TIMEOUT, TimeUnit.SECONDS);
+            } finally {
+                CompletableFuture<Void> closed = new CompletableFuture<>();
+                vertx.close(ar -> closed.complete(null));
+                closed.get(CONNECT_TIMEOUT, TimeUnit.SECONDS);
+            }
+
+            Arrays.sort(latencies);
+
+            System.out.println(String.format("scenario=%s clients=%d concurrency=%d delay=%dms p50=%.2fms p99=%.2fms",
+                    scenario, clients, concurrency, delay,
+                    percentile(latencies, 0.50) / 1e6,
+                    percentile(latencies, 0.99) / 1e6));
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+}
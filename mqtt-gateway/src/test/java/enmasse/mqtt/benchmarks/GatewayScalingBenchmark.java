@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.benchmarks;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures CONNECT and PUBLISH throughput of the MQTT gateway for an increasing
+ * number of verticle instances (as with enmasse.mqtt.maxinstances)
+ *
+ * System properties :
+ * - instances : comma separated list of verticle instances counts (default 1,2,4)
+ * - clients : number of concurrent MQTT clients (default 100)
+ * - messages : number of messages published by every client (default 1000)
+ * - qos : QoS level for publishing (default 0)
+ */
+public class GatewayScalingBenchmark {
+
+    private static final String MQTT_TOPIC = "mytopic";
+    private static final byte[] PAYLOAD = new byte[128];
+
+    public static void main(String[] args) throws Exception {
+
+        String[] instances = System.getProperty("instances", "1,2,4").split(",");
+        int clients = Integer.getInteger("clients", 100);
+        int messages = Integer.getInteger("messages", 1000);
+        int qos = Integer.getInteger("qos", 0);
+
+        for (String instanceCount : instances) {
+            run(Integer.parseInt(instanceCount.trim()), clients, messages, qos);
+        }
+    }
+
+    private static void run(int instances, int clients, int messages, int qos) throws Exception {
+
+        try (MockGatewayEnvironment environment = new MockGatewayEnvironment(instances, mqttGateway -> { })) {
+
+            ExecutorService executor = Executors.newFixedThreadPool(clients);
+            AtomicLong connectNanos = new AtomicLong();
+            AtomicLong publishNanos = new AtomicLong();
+
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+
+                String clientId = String.format("scaling-%d-%d", instances, i);
+                results.add(executor.submit(() -> {
+
+                    MqttConnectOptions options = new MqttConnectOptions();
+                    options.setCleanSession(true);
+                    options.setMaxInflight(Math.max(10, messages));
+
+                    MqttClient client = new MqttClient(environment.serverURI(), clientId, new MemoryPersistence());
+
+                    long start = System.nanoTime();
+                    client.connect(options);
+                    long connected = System.nanoTime();
+
+                    for (int j = 0; j < messages; j++) {
+                        client.publish(MQTT_TOPIC, PAYLOAD, qos, false);
+                    }
+                    long published = System.nanoTime();
+
+                    // elapsed times are summed up, then averaged over the clients running in parallel
+                    connectNanos.addAndGet(connected - start);
+                    publishNanos.addAndGet(published - connected);
+
+                    client.disconnect();
+                    client.close();
+                    return null;
+                }));
+            }
+
+            for (Future<?> result : results) {
+                result.get();
+            }
+            executor.shutdown();
+
+            double connectSeconds = connectNanos.get() / 1e9 / clients;
+            double publishSeconds = publishNanos.get() / 1e9 / clients;
+
+            System.out.println(String.format("instances=%d clients=%d connect/s=%.0f publish/s=%.0f",
+                    instances, clients,
+                    clients / connectSeconds,
+                    ((double) clients * messages) / publishSeconds));
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.benchmarks;
+
+import enmasse.mqtt.MqttGateway;
+import enmasse.mqtt.MqttGatewayVerticleFactory;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.mqtt.MqttClient;
+import io.vertx.mqtt.MqttClientOptions;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the heap retained by the MQTT gateway for every idle MQTT client connection,
+ * for an increasing number of connections.
+ *
+ * The MQTT gateway runs in this JVM while the router, the AMQP services mocks and the
+ * (Vert.x based) MQTT clients run in a forked JVM, so only the gateway heap is measured.
+ * The clients connect from different loopback addresses (127.0.0.x), 20000 for each of them,
+ * for not running out of local ports; raise the open files limit (ulimit -n) accordingly.
+ * With a dedicated AMQP connection for every client, the gateway connections to the router
+ * are bounded by the local ports range, so use the pool for more than ~28000 clients.
+ *
+ * System properties :
+ * - connections : comma separated list of idle connections counts (default 10000,50000,100000)
+ * - instances : number of MQTT gateway verticle instances (default 1)
+ * - poolsize : number of shared AMQP connections (default 0, a dedicated one for every client)
+ * - maxframesize : max AMQP frame size (default 0, the Vert.x Proton default)
+ * - peerjvmargs : JVM arguments for the forked JVM (default -Xmx4g)
+ */
+public class IdleConnectionBenchmark {
+
+    private static final int CLIENTS_PER_LOCAL_ADDRESS = 20000;
+    private static final int MAX_CONNECTING = 500;
+    private static final int KEEP_ALIVE = 600; // in seconds
+    private static final long SETTLE_TIME = 5000; // in ms
+    private static final int DEPLOY_TIMEOUT = 30; // in seconds
+
+    private static final String PEER = "peer";
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length > 0 && PEER.equals(args[0])) {
+            peer();
+            return;
+        }
+
+        String[] connections = System.getProperty("connections", "10000,50000,100000").split(",");
+        int instances = Integer.getInteger("instances", 1);
+        int poolSize = Integer.getInteger("poolsize", 0);
+        int maxFrameSize = Integer.getInteger("maxframesize", 0);
+
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + "/bin/java");
+        command.addAll(Arrays.asList(System.getProperty("peerjvmargs", "-Xmx4g").trim().split("\\s+")));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(IdleConnectionBenchmark.class.getName());
+        command.add(PEER);
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        BufferedReader peerOut = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        PrintWriter peerIn = new PrintWriter(new OutputStreamWriter(process.getOutputStream()), true);
+
+        Vertx vertx = Vertx.vertx();
+        try {
+
+            int routerPort = Integer.parseInt(reply(peerOut, "router"));
+
+            vertx.registerVerticleFactory(new MqttGatewayVerticleFactory(() -> {
+
+                MqttGateway mqttGateway = new MqttGateway();
+                mqttGateway
+                        .setBindAddress(MockGatewayEnvironment.MQTT_BIND_ADDRESS)
+                        .setListenPort(MockGatewayEnvironment.MQTT_LISTEN_PORT)
+                        .setMessagingServiceHost(MockGatewayEnvironment.MQTT_BIND_ADDRESS)
+                        .setMessagingServicePort(routerPort)
+                        .setAmqpConnectionPoolSize(poolSize)
+                        .setAmqpMaxFrameSize(maxFrameSize);
+                return mqttGateway;
+            }));
+
+            CompletableFuture<String> deployed = new CompletableFuture<>();
+            vertx.deployVerticle(MqttGatewayVerticleFactory.verticleName(), new DeploymentOptions().setInstances(instances), ar -> {
+                if (ar.succeeded()) {
+                    deployed.complete(ar.result());
+                } else {
+                    deployed.completeExceptionally(ar.cause());
+                }
+            });
+            deployed.get(DEPLOY_TIMEOUT, TimeUnit.SECONDS);
+
+            for (String count : connections) {
+
+                int clients = Integer.parseInt(count.trim());
+
+                long before = usedHeap();
+
+                long start = System.nanoTime();
+                peerIn.println("connect " + clients);
+                int connected = Integer.parseInt(reply(peerOut, "connected"));
+                long elapsed = System.nanoTime() - start;
+
+                // let the AMQP side complete the attaches before measuring
+                Thread.sleep(SETTLE_TIME);
+                long after = usedHeap();
+
+                System.out.println(String.format("connections=%d connected=%d poolsize=%d maxframesize=%d connect/s=%.0f heap=%d MB bytes/connection=%d",
+                        clients, connected, poolSize, maxFrameSize,
+                        connected / (elapsed / 1e9),
+                        (after - before) / (1024 * 1024),
+                        (connected > 0) ? (after - before) / connected : 0));
+
+                peerIn.println("disconnect");
+                reply(peerOut, "disconnected");
+                Thread.sleep(SETTLE_TIME);
+            }
+
+            peerIn.println("exit");
+
+        } finally {
+
+            process.waitFor(DEPLOY_TIMEOUT, TimeUnit.SECONDS);
+            process.destroy();
+
+            CompletableFuture<Void> closed = new CompletableFuture<>();
+            vertx.close(ar -> closed.complete(null));
+            closed.get(DEPLOY_TIMEOUT, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Forked JVM, running the router, the AMQP services mocks and the MQTT clients
+     * driven by the commands on the standard input
+     */
+    private static void peer() throws Exception {
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+
+        try (MockGatewayEnvironment environment = new MockGatewayEnvironment(0, mqttGateway -> { })) {
+
+            System.out.println("router " + environment.routerPort());
+
+            List<MqttClient> clients = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+
+                String[] command = line.trim().split(" ");
+                if (command[0].equals("connect")) {
+
+                    int connected = connect(environment.vertx(), clients, Integer.parseInt(command[1]));
+                    System.out.println("connected " + connected);
+
+                } else if (command[0].equals("disconnect")) {
+
+                    int disconnected = clients.size();
+                    clients.forEach(MqttClient::disconnect);
+                    clients.clear();
+                    System.out.println("disconnected " + disconnected);
+
+                } else if (command[0].equals("exit")) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static int connect(Vertx vertx, List<MqttClient> clients, int count) throws Exception {
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger connected = new AtomicInteger();
+
+        // a bounded number of CONNECT in progress, every completed one starts the next
+        Runnable[] next = new Runnable[1];
+        next[0] = () -> {
+
+            int i = started.getAndIncrement();
+            if (i >= count) {
+                return;
+            }
+
+            MqttClientOptions options = new MqttClientOptions()
+                    .setClientId("idle-" + i)
+                    .setCleanSession(true)
+                    .setKeepAliveTimeSeconds(KEEP_ALIVE);
+            options.setLocalAddress("127.0.0." + (1 + i / CLIENTS_PER_LOCAL_ADDRESS));
+
+            MqttClient client = MqttClient.create(vertx, options);
+            client.connect(MockGatewayEnvironment.MQTT_LISTEN_PORT, MockGatewayEnvironment.MQTT_BIND_ADDRESS, ar -> {
+
+                if (ar.succeeded()) {
+                    synchronized (clients) {
+                        clients.add(client);
+                    }
+                    connected.incrementAndGet();
+                }
+                if (completed.incrementAndGet() == count) {
+                    done.complete(null);
+                } else {
+                    next[0].run();
+                }
+            });
+        };
+
+        for (int i = 0; i < Math.min(MAX_CONNECTING, count); i++) {
+            vertx.runOnContext(v -> next[0].run());
+        }
+        done.get(count, TimeUnit.SECONDS);
+        return connected.get();
+    }
+
+    private static String reply(BufferedReader peerOut, String prefix) throws Exception {
+
+        String line;
+        while ((line = peerOut.readLine()) != null) {
+            if (line.startsWith(prefix + " ")) {
+                return line.substring(prefix.length() + 1);
+            }
+        }
+        throw new IllegalStateException("Forked JVM terminated");
+    }
+
+    private static long usedHeap() throws InterruptedException {
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
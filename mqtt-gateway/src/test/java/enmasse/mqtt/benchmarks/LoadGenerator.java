@@ -0,0 +1,410 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.benchmarks;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Load generator driving simulated MQTT clients against the MQTT gateway, running with the
+ * in-process router and AMQP services mocks. It reports throughput and latency percentiles
+ * (HdrHistogram) as JSON for every scenario, for catching performance regressions without a cluster
+ *
+ * Scenarios :
+ * - connect : all the clients connecting at same time, CONNECT to CONNACK latency
+ * - fanin : all the clients publishing on the same topic to one subscriber, PUBLISH to delivery latency
+ * - fanout : one publisher on topics matching the wildcarded subscriptions of all the clients, PUBLISH to delivery latency
+ * - disconnect : all the clients (with a will) disconnecting at same time, disconnection to will delivery latency
+ *
+ * System properties :
+ * - scenarios : comma separated list of scenarios (default connect,fanin,fanout,disconnect)
+ * - clients : number of MQTT clients (default 100)
+ * - messages : number of messages sent by every publisher (default 100)
+ * - qos : comma separated list of QoS levels for fanin and fanout (default 0,1,2)
+ * - instances : number of MQTT gateway verticle instances (default 1)
+ * - payload : payload size in bytes, at least 8 for the timestamp (default 128)
+ * - timeout : max time for every scenario in s (default 60)
+ * - output : file for the JSON report (default standard output)
+ */
+public class LoadGenerator {
+
+    private static final String MQTT_TOPIC = "mytopic";
+    private static final String MQTT_WILL_TOPIC = "will";
+    // the mock Last Will and Testament Service publishes the will of these clients even on DISCONNECT
+    private static final String WILL_CLIENT_ID_PREFIX = "ignore-disconnect";
+
+    private static final int MAX_THREADS = 200;
+
+    private final int clients;
+    private final int messages;
+    private final int instances;
+    private final int payloadSize;
+    private final long timeout;
+
+    private final ExecutorService executor;
+
+    /**
+     * Constructor
+     *
+     * @param clients   number of MQTT clients
+     * @param messages  number of messages sent by every publisher
+     * @param instances number of MQTT gateway verticle instances
+     * @param payloadSize   payload size in bytes
+     * @param timeout   max time for every scenario in s
+     */
+    public LoadGenerator(int clients, int messages, int instances, int payloadSize, long timeout) {
+
+        this.clients = clients;
+        this.messages = messages;
+        this.instances = instances;
+        this.payloadSize = Math.max(Long.BYTES, payloadSize);
+        this.timeout = timeout;
+        this.executor = Executors.newFixedThreadPool(Math.min(clients, MAX_THREADS));
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        String[] scenarios = System.getProperty("scenarios", "connect,fanin,fanout,disconnect").split(",");
+        String[] qosLevels = System.getProperty("qos", "0,1,2").split(",");
+        String output = System.getProperty("output");
+
+        LoadGenerator generator = new LoadGenerator(
+                Integer.getInteger("clients", 100),
+                Integer.getInteger("messages", 100),
+                Integer.getInteger("instances", 1),
+                Integer.getInteger("payload", 128),
+                Long.getLong("timeout", 60));
+
+        JsonArray results = new JsonArray();
+        try {
+
+            for (String scenario : scenarios) {
+
+                switch (scenario.trim()) {
+
+                    case "connect":
+                        results.add(generator.connect());
+                        break;
+
+                    case "fanin":
+                        for (String qos : qosLevels) {
+                            results.add(generator.fanIn(Integer.parseInt(qos.trim())));
+                        }
+                        break;
+
+                    case "fanout":
+                        for (String qos : qosLevels) {
+                            results.add(generator.fanOut(Integer.parseInt(qos.trim())));
+                        }
+                        break;
+
+                    case "disconnect":
+                        results.add(generator.disconnect());
+                        break;
+
+                    default:
+                        throw new IllegalArgumentException("Unknown scenario " + scenario);
+                }
+            }
+
+        } finally {
+            generator.executor.shutdownNow();
+        }
+
+        JsonObject report = new JsonObject()
+                .put("clients", generator.clients)
+                .put("messages", generator.messages)
+                .put("instances", generator.instances)
+                .put("payload", generator.payloadSize)
+                .put("results", results);
+
+        if (output != null) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+                writer.write(report.encodePrettily());
+            }
+        } else {
+            System.out.println(report.encodePrettily());
+        }
+    }
+
+    /**
+     * All the clients connecting at same time
+     *
+     * @return  scenario report
+     * @throws Exception
+     */
+    public JsonObject connect() throws Exception {
+
+        Histogram latency = new ConcurrentHistogram(3);
+
+        try (MockGatewayEnvironment environment = this.environment()) {
+
+            long start = System.nanoTime();
+            List<MqttClient> clients = this.connectAll(environment, "storm", this.clients, this::options, latency);
+            long elapsed = System.nanoTime() - start;
+
+            this.disconnectAll(clients);
+
+            return report("connect", this.clients, clients.size(), elapsed, latency);
+        }
+    }
+
+    /**
+     * All the clients publishing on the same topic to one subscriber
+     *
+     * @param qos   QoS level for publishing and subscribing
+     * @return  scenario report
+     * @throws Exception
+     */
+    public JsonObject fanIn(int qos) throws Exception {
+
+        Histogram latency = new ConcurrentHistogram(3);
+        int expected = this.clients * this.messages;
+        CountDownLatch received = new CountDownLatch(expected);
+
+        try (MockGatewayEnvironment environment = this.environment()) {
+
+            MqttClient subscriber = new MqttClient(environment.serverURI(), "fanin-subscriber", new MemoryPersistence());
+            subscriber.connect(this.options());
+            subscriber.subscribe(MQTT_TOPIC, qos, (topic, message) -> {
+                recordLatency(latency, message.getPayload());
+                received.countDown();
+            });
+
+            List<MqttClient> publishers = this.connectAll(environment, "fanin-publisher", this.clients, this::options, null);
+
+            long start = System.nanoTime();
+            this.forAll(publishers, publisher -> {
+                for (int i = 0; i < this.messages; i++) {
+                    publisher.publish(MQTT_TOPIC, this.payload(), qos, false);
+                }
+            });
+            received.await(this.timeout, TimeUnit.SECONDS);
+            long elapsed = System.nanoTime() - start;
+
+            this.disconnectAll(publishers);
+            subscriber.disconnect();
+            subscriber.close();
+
+            return report("fanin-qos" + qos, expected, expected - received.getCount(), elapsed, latency);
+        }
+    }
+
+    /**
+     * One publisher on topics matching the wildcarded subscriptions of all the clients
+     *
+     * @param qos   QoS level for publishing and subscribing
+     * @return  scenario report
+     * @throws Exception
+     */
+    public JsonObject fanOut(int qos) throws Exception {
+
+        Histogram latency = new ConcurrentHistogram(3);
+        int expected = this.clients * this.messages;
+        CountDownLatch received = new CountDownLatch(expected);
+
+        try (MockGatewayEnvironment environment = this.environment()) {
+
+            List<MqttClient> subscribers = this.connectAll(environment, "fanout-subscriber", this.clients, this::options, null);
+            this.forAll(subscribers, subscriber -> {
+                subscriber.subscribe(MQTT_TOPIC + "/#", qos, (topic, message) -> {
+                    recordLatency(latency, message.getPayload());
+                    received.countDown();
+                });
+            });
+
+            MqttClient publisher = new MqttClient(environment.serverURI(), "fanout-publisher", new MemoryPersistence());
+            publisher.connect(this.options());
+
+            long start = System.nanoTime();
+            for (int i = 0; i < this.messages; i++) {
+                publisher.publish(MQTT_TOPIC + "/" + i, this.payload(), qos, false);
+            }
+            received.await(this.timeout, TimeUnit.SECONDS);
+            long elapsed = System.nanoTime() - start;
+
+            publisher.disconnect();
+            publisher.close();
+            this.disconnectAll(subscribers);
+
+            return report("fanout-qos" + qos, expected, expected - received.getCount(), elapsed, latency);
+        }
+    }
+
+    /**
+     * All the clients (with a will) disconnecting at same time
+     *
+     * @return  scenario report
+     * @throws Exception
+     */
+    public JsonObject disconnect() throws Exception {
+
+        Histogram latency = new ConcurrentHistogram(3);
+        CountDownLatch received = new CountDownLatch(this.clients);
+        long[] start = new long[1];
+
+        try (MockGatewayEnvironment environment = this.environment()) {
+
+            MqttClient subscriber = new MqttClient(environment.serverURI(), "will-subscriber", new MemoryPersistence());
+            subscriber.connect(this.options());
+            subscriber.subscribe(MQTT_WILL_TOPIC, 1, (topic, message) -> {
+                latency.recordValue(System.nanoTime() - start[0]);
+                received.countDown();
+            });
+
+            List<MqttClient> clients = this.connectAll(environment, WILL_CLIENT_ID_PREFIX, this.clients, () -> {
+
+                MqttConnectOptions options = this.options();
+                options.setWill(new MqttTopic(MQTT_WILL_TOPIC, null), new byte[this.payloadSize], 1, false);
+                return options;
+            }, null);
+
+            start[0] = System.nanoTime();
+            this.disconnectAll(clients);
+            received.await(this.timeout, TimeUnit.SECONDS);
+            long elapsed = System.nanoTime() - start[0];
+
+            subscriber.disconnect();
+            subscriber.close();
+
+            return report("disconnect", this.clients, this.clients - received.getCount(), elapsed, latency);
+        }
+    }
+
+    private MockGatewayEnvironment environment() throws Exception {
+        return new MockGatewayEnvironment(this.instances, mqttGateway -> { });
+    }
+
+    private MqttConnectOptions options() {
+
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setMaxInflight(Math.max(10, this.messages));
+        return options;
+    }
+
+    private byte[] payload() {
+
+        // the send time is in the payload for measuring the latency on the receiver side
+        byte[] payload = new byte[this.payloadSize];
+        ByteBuffer.wrap(payload).putLong(System.nanoTime());
+        return payload;
+    }
+
+    private static void recordLatency(Histogram latency, byte[] payload) {
+        latency.recordValue(System.nanoTime() - ByteBuffer.wrap(payload).getLong());
+    }
+
+    /**
+     * Connect MQTT clients in parallel
+     *
+     * @param environment   environment running the MQTT gateway
+     * @param prefix    prefix for the client identifiers
+     * @param count number of clients
+     * @param options   provider of the connect options for every client
+     * @param latency   histogram for the CONNECT to CONNACK latency (null for not recording it)
+     * @return  connected clients
+     * @throws Exception
+     */
+    private List<MqttClient> connectAll(MockGatewayEnvironment environment, String prefix, int count,
+                                        Supplier<MqttConnectOptions> options, Histogram latency) throws Exception {
+
+        List<MqttClient> clients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            clients.add(new MqttClient(environment.serverURI(), String.format("%s-%d", prefix, i), new MemoryPersistence()));
+        }
+
+        this.forAll(clients, client -> {
+
+            long start = System.nanoTime();
+            client.connect(options.get());
+            if (latency != null) {
+                latency.recordValue(System.nanoTime() - start);
+            }
+        });
+        return clients;
+    }
+
+    private void disconnectAll(List<MqttClient> clients) throws Exception {
+
+        this.forAll(clients, client -> {
+            client.disconnect();
+            client.close();
+        });
+    }
+
+    private void forAll(List<MqttClient> clients, ClientAction action) throws Exception {
+
+        List<Future<?>> results = new ArrayList<>();
+        for (MqttClient client : clients) {
+            results.add(this.executor.submit(() -> {
+                action.execute(client);
+                return null;
+            }));
+        }
+
+        for (Future<?> result : results) {
+            result.get(this.timeout, TimeUnit.SECONDS);
+        }
+    }
+
+    private static JsonObject report(String scenario, long expected, long completed, long elapsedNanos, Histogram latency) {
+
+        double seconds = elapsedNanos / 1e9;
+
+        return new JsonObject()
+                .put("scenario", scenario)
+                .put("expected", expected)
+                .put("completed", completed)
+                .put("durationMs", elapsedNanos / 1e6)
+                .put("throughput", completed / seconds)
+                .put("latencyMs", new JsonObject()
+                        .put("count", latency.getTotalCount())
+                        .put("mean", latency.getMean() / 1e6)
+                        .put("p50", latency.getValueAtPercentile(50) / 1e6)
+                        .put("p90", latency.getValueAtPercentile(90) / 1e6)
+                        .put("p99", latency.getValueAtPercentile(99) / 1e6)
+                        .put("p999", latency.getValueAtPercentile(99.9) / 1e6)
+                        .put("max", latency.getMaxValue() / 1e6));
+    }
+
+    @FunctionalInterface
+    private interface ClientAction {
+        void execute(MqttClient client) throws MqttException;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.benchmarks;
+
+import enmasse.mqtt.MqttGateway;
+import enmasse.mqtt.MqttGatewayVerticleFactory;
+import enmasse.mqtt.mocks.MockBroker;
+import enmasse.mqtt.mocks.MockLwtService;
+import enmasse.mqtt.mocks.MockSubscriptionService;
+import io.enmasse.amqp.DispatchRouterJ;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.Verticle;
+import io.vertx.core.Vertx;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * In-process environment for benchmarks, running the MQTT gateway (with the provided
+ * number of verticle instances) against the router and the AMQP services mocks
+ */
+public class MockGatewayEnvironment implements AutoCloseable {
+
+    public static final String MQTT_BIND_ADDRESS = "localhost";
+    public static final int MQTT_LISTEN_PORT = 1883;
+
+    private static final String INTERNAL_SERVICE_HOST = "localhost";
+    private static final int DEPLOY_TIMEOUT = 30; // in seconds
+
+    private final Vertx vertx;
+    private final DispatchRouterJ router;
+    private final MockBroker broker;
+    private final MockLwtService lwtService;
+    private final MockSubscriptionService subscriptionService;
+
+    /**
+     * Start the environment
+     *
+     * @param instances number of MQTT gateway verticle instances (0 for just the router and the mocks)
+     * @param configurer    additional configuration for every MQTT gateway instance
+     * @throws Exception
+     */
+    public MockGatewayEnvironment(int instances, Consumer<MqttGateway> configurer) throws Exception {
+
+        this.vertx = Vertx.vertx();
+
+        DispatchRouterJ router = new DispatchRouterJ(null);
+        this.router = router;
+        router.addLinkRoute("$lwt", "lwt-service");
+        router.addLinkRoute("mytopic", "broker");
+        router.addLinkRoute("will", "broker");
+        this.deploy(router);
+
+        this.broker = new MockBroker();
+        this.broker.setInternalServiceHost(INTERNAL_SERVICE_HOST)
+                .setInternalServicePort(router.getRouteContainerPort());
+
+        this.lwtService = new MockLwtService();
+        this.lwtService.setInternalServiceHost(INTERNAL_SERVICE_HOST)
+                .setInternalServicePort(router.getRouteContainerPort());
+
+        this.subscriptionService = new MockSubscriptionService();
+        this.subscriptionService.setInternalServiceHost(INTERNAL_SERVICE_HOST)
+                .setInternalServicePort(router.getRouteContainerPort());
+
+        this.deploy(this.broker);
+        this.deploy(this.lwtService);
+        this.deploy(this.subscriptionService);
+
+        if (instances == 0) {
+            return;
+        }
+
+        // every verticle instance is a new MQTT gateway instance
+        this.vertx.registerVerticleFactory(new MqttGatewayVerticleFactory(() -> {
+
+            MqttGateway mqttGateway = new MqttGateway();
+            mqttGateway
+                    .setBindAddress(MQTT_BIND_ADDRESS)
+                    .setListenPort(MQTT_LISTEN_PORT)
+                    .setMessagingServiceHost(INTERNAL_SERVICE_HOST)
+                    .setMessagingServicePort(router.getNormalPort());
+            configurer.accept(mqttGateway);
+            return mqttGateway;
+        }));
+
+        CompletableFuture<String> deployed = new CompletableFuture<>();
+        this.vertx.deployVerticle(MqttGatewayVerticleFactory.verticleName(),
+                new DeploymentOptions().setInstances(instances), completer(deployed));
+        deployed.get(DEPLOY_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Vert.x instance running the environment
+     *
+     * @return
+     */
+    public Vertx vertx() {
+        return this.vertx;
+    }
+
+    /**
+     * Router port for the AMQP connections from the MQTT gateway
+     *
+     * @return
+     */
+    public int routerPort() {
+        return this.router.getNormalPort();
+    }
+
+    /**
+     * Mock broker
+     *
+     * @return
+     */
+    public MockBroker broker() {
+        return this.broker;
+    }
+
+    /**
+     * Mock Last Will and Testament Service
+     *
+     * @return
+     */
+    public MockLwtService lwtService() {
+        return this.lwtService;
+    }
+
+    /**
+     * Mock Subscription Service
+     *
+     * @return
+     */
+    public MockSubscriptionService subscriptionService() {
+        return this.subscriptionService;
+    }
+
+    /**
+     * MQTT server URI for the clients
+     *
+     * @return
+     */
+    public String serverURI() {
+        return String.format("tcp://%s:%d", MQTT_BIND_ADDRESS, MQTT_LISTEN_PORT);
+    }
+
+    @Override
+    public void close() throws Exception {
+
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        this.vertx.close(completer(closed));
+        closed.get(DEPLOY_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    private void deploy(Verticle verticle) throws Exception {
+
+        CompletableFuture<String> deployed = new CompletableFuture<>();
+        this.vertx.deployVerticle(verticle, completer(deployed));
+        deployed.get(DEPLOY_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    private static <T> Handler<AsyncResult<T>> completer(CompletableFuture<T> future) {
+
+        return ar -> {
+            if (ar.succeeded()) {
+                future.complete(ar.result());
+            } else {
+                future.completeExceptionally(ar.cause());
+            }
+        };
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.benchmarks;
+
+import enmasse.mqtt.messages.AmqpHelper;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import org.apache.qpid.proton.amqp.Binary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares copying the payload bytes between the MQTT buffer and the AMQP binary
+ * (as it was done in the AMQP messages conversion) against wrapping them.
+ * The GC profiler reports the allocation rate (gc.alloc.rate.norm) per operation.
+ * A payload in a direct buffer can't be wrapped by the AMQP binary, toAmqpWrap
+ * copies it once like toAmqpCopy; the from AMQP cases don't depend on it
+ *
+ * Run with : mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=enmasse.mqtt.benchmarks.PayloadCopyBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadCopyBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    private int size;
+
+    // payload in a heap or in a direct Netty buffer
+    @Param({"false", "true"})
+    private boolean direct;
+
+    private Buffer payload;
+    private Binary binary;
+
+    @Setup
+    public void setup() {
+
+        byte[] bytes = new byte[this.size];
+        this.payload = this.direct ?
+                Buffer.buffer(Unpooled.directBuffer(this.size).writeBytes(bytes)) :
+                Buffer.buffer(bytes);
+        this.binary = new Binary(bytes);
+    }
+
+    @Benchmark
+    public Binary toAmqpCopy() {
+        return new Binary(this.payload.getBytes());
+    }
+
+    @Benchmark
+    public Binary toAmqpWrap() {
+        return AmqpHelper.toBinary(this.payload);
+    }
+
+    @Benchmark
+    public Buffer fromAmqpCopy() {
+        return Buffer.buffer(this.binary.getArray());
+    }
+
+    @Benchmark
+    public Buffer fromAmqpWrap() {
+        return AmqpHelper.toBuffer(this.binary);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder()
+                .include(PayloadCopyBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+}
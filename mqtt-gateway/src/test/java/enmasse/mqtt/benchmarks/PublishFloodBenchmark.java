@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.benchmarks;
+
+import enmasse.mqtt.mocks.MockBroker;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the throughput of a publish flood from MQTT clients to the broker, with the number of
+ * AMQP dispositions sent back by the broker : QoS 0 messages are published pre-settled (no
+ * disposition at all) while QoS 1 messages (as QoS 0 ones before) get a disposition for every message
+ *
+ * System properties :
+ * - clients : number of publishing MQTT clients (default 10)
+ * - messages : number of messages published by every client (default 10000)
+ * - qos : comma separated list of QoS levels for publishing (default 0,1)
+ * - timeout : max time for every run in s (default 60)
+ */
+public class PublishFloodBenchmark {
+
+    private static final String MQTT_TOPIC = "mytopic";
+    private static final byte[] PAYLOAD = new byte[128];
+
+    public static void main(String[] args) throws Exception {
+
+        int clients = Integer.getInteger("clients", 10);
+        int messages = Integer.getInteger("messages", 10000);
+        String[] qosLevels = System.getProperty("qos", "0,1").split(",");
+        long timeout = Long.getLong("timeout", 60);
+
+        for (String qos : qosLevels) {
+            run(clients, messages, Integer.parseInt(qos.trim()), timeout);
+        }
+    }
+
+    private static void run(int clients, int messages, int qos, long timeout) throws Exception {
+
+        try (MockGatewayEnvironment environment = new MockGatewayEnvironment(1, mqttGateway -> { })) {
+
+            MockBroker broker = environment.broker();
+
+            List<MqttAsyncClient> publishers = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+
+                MqttConnectOptions options = new MqttConnectOptions();
+                options.setMaxInflight(messages);
+
+                MqttAsyncClient publisher = new MqttAsyncClient(environment.serverURI(), String.format("flood-%d-%d", qos, i), new MemoryPersistence());
+                publisher.connect(options).waitForCompletion();
+                publishers.add(publisher);
+            }
+
+            long expected = (long) clients * messages;
+            long start = System.nanoTime();
+
+            // messages interleaved between the clients, not waiting for any acknowledgement
+            for (int j = 0; j < messages; j++) {
+                for (MqttAsyncClient publisher : publishers) {
+                    publisher.publish(MQTT_TOPIC, PAYLOAD, qos, false);
+                }
+            }
+
+            long deadline = System.nanoTime() + timeout * 1_000_000_000L;
+            while (broker.acceptedCount() + broker.preSettledCount() < expected && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            long elapsed = System.nanoTime() - start;
+            long received = broker.acceptedCount() + broker.preSettledCount();
+
+            System.out.println(String.format("qos=%d clients=%d received=%d/%d msg/s=%.0f dispositions=%d pre-settled=%d",
+                    qos, clients, received, expected,
+                    received / (elapsed / 1e9),
+                    broker.acceptedCount(), broker.preSettledCount()));
+
+            for (MqttAsyncClient publisher : publishers) {
+                publisher.disconnect().waitForCompletion();
+                publisher.close();
+            }
+        }
+    }
+}
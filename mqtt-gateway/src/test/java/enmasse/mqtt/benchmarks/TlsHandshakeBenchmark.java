@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.benchmarks;
+
+import io.vertx.core.net.OpenSSLEngineOptions;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the TLS handshakes throughput of the MQTT gateway listener, with the JDK and the
+ * OpenSSL engines, for full handshakes (every connection with a new client SSL context)
+ * and resumed ones (all the connections sharing the client SSL context, so its session cache).
+ *
+ * The handshakes are TLS 1.2 ones, a session is resumed when it was created before the
+ * connection itself. The OpenSSL engine is skipped when netty-tcnative isn't available
+ *
+ * System properties :
+ * - engines : comma separated list of SSL/TLS engines (default jdk,openssl)
+ * - handshakes : number of handshakes for every run (default 2000)
+ * - concurrency : number of clients doing handshakes at same time (default 8)
+ */
+public class TlsHandshakeBenchmark {
+
+    private static final String TRUSTSTORE = "/tls/client-truststore.jks";
+    private static final String TRUSTSTORE_PASSWORD = "wibble";
+    private static final String PROTOCOL = "TLSv1.2";
+    // handshakes not measured, for warming up the JIT and the server session cache
+    private static final int WARMUP = 200;
+
+    public static void main(String[] args) throws Exception {
+
+        String[] engines = System.getProperty("engines", "jdk,openssl").split(",");
+        int handshakes = Integer.getInteger("handshakes", 2000);
+        int concurrency = Integer.getInteger("concurrency", 8);
+
+        for (String engine : engines) {
+
+            engine = engine.trim();
+            if (engine.equals("openssl") && !OpenSSLEngineOptions.isAvailable()) {
+                System.out.println(String.format("engine=%s skipped, OpenSSL not available", engine));
+                continue;
+            }
+
+            String sslEngine = engine;
+            try (MockGatewayEnvironment environment =
+                         new MockGatewayEnvironment(1, mqttGateway -> mqttGateway.setSsl(true).setSslEngine(sslEngine))) {
+
+                run(engine, false, WARMUP, concurrency);
+                run(engine, false, handshakes, concurrency);
+                run(engine, true, WARMUP, concurrency);
+                run(engine, true, handshakes, concurrency);
+            }
+        }
+    }
+
+    private static void run(String engine, boolean resume, int handshakes, int concurrency) throws Exception {
+
+        TrustManagerFactory trustManagerFactory = trustManagerFactory();
+        SSLContext shared = sslContext(trustManagerFactory);
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        AtomicInteger resumed = new AtomicInteger();
+
+        long start = System.nanoTime();
+
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < handshakes; i++) {
+
+            results.add(executor.submit(() -> {
+
+                // a new client SSL context has no session to resume
+                SSLContext sslContext = resume ? shared : sslContext(trustManagerFactory);
+
+                long connected = System.currentTimeMillis();
+                try (SSLSocket socket = (SSLSocket) sslContext.getSocketFactory()
+                        .createSocket(MockGatewayEnvironment.MQTT_BIND_ADDRESS, MockGatewayEnvironment.MQTT_LISTEN_PORT)) {
+
+                    socket.setEnabledProtocols(new String[] { PROTOCOL });
+                    socket.startHandshake();
+                    if (socket.getSession().getCreationTime() < connected) {
+                        resumed.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        if (handshakes > WARMUP) {
+            System.out.println(String.format("engine=%s handshakes=%s count=%d resumed=%d concurrency=%d handshakes/s=%.0f avg=%.2f ms",
+                    engine, resume ? "resumed" : "full", handshakes, resumed.get(), concurrency,
+                    handshakes / (elapsed / 1e9),
+                    (elapsed / 1e6) * concurrency / handshakes));
+        }
+    }
+
+    private static TrustManagerFactory trustManagerFactory() throws Exception {
+
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        try (InputStream in = TlsHandshakeBenchmark.class.getResourceAsStream(TRUSTSTORE)) {
+            trustStore.load(in, TRUSTSTORE_PASSWORD.toCharArray());
+        }
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        return trustManagerFactory;
+    }
+
+    private static SSLContext sslContext(TrustManagerFactory trustManagerFactory) throws Exception {
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+}
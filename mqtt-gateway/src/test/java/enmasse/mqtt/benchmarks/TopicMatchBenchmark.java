@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.benchmarks;
+
+import enmasse.mqtt.TopicMatcher;
+import enmasse.mqtt.TopicTrie;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the regex based topic matching (as it was done in the AMQP bridge for
+ * every AMQP_PUBLISH) against the topic filters trie
+ *
+ * Run with : mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=enmasse.mqtt.benchmarks.TopicMatchBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicMatchBenchmark {
+
+    @Param({"1", "10", "50"})
+    private int subscriptions;
+
+    private Map<String, MqttQoS> grantedQoSLevels;
+    private TopicTrie trie;
+
+    private String[] topics;
+    private int index;
+
+    @Setup
+    public void setup() {
+
+        this.grantedQoSLevels = new HashMap<>();
+        this.trie = new TopicTrie();
+
+        // a device subscribed to a mix of fixed and wildcarded topic filters
+        for (int i = 0; i < this.subscriptions; i++) {
+
+            String filter;
+            switch (i % 3) {
+                case 0:
+                    filter = String.format("devices/device%d/commands/#", i);
+                    break;
+                case 1:
+                    filter = String.format("fleet/+/region%d/config", i);
+                    break;
+                default:
+                    filter = String.format("fleet/broadcast/%d", i);
+                    break;
+            }
+            this.grantedQoSLevels.put(filter, MqttQoS.AT_LEAST_ONCE);
+            this.trie.put(filter, MqttQoS.AT_LEAST_ONCE);
+        }
+
+        List<String> topics = new ArrayList<>();
+        for (int i = 0; i < this.subscriptions; i++) {
+            topics.add(String.format("devices/device%d/commands/reboot", i));
+            topics.add(String.format("fleet/vehicles/region%d/config", i));
+            topics.add(String.format("fleet/broadcast/%d", i));
+        }
+        this.topics = topics.toArray(new String[topics.size()]);
+    }
+
+    private String nextTopic() {
+
+        this.index = (this.index + 1) % this.topics.length;
+        return this.topics[this.index];
+    }
+
+    @Benchmark
+    public MqttQoS regex() {
+
+        // same path as the AMQP bridge before using the topic filters trie
+        String topic = TopicMatcher.match(this.grantedQoSLevels.keySet().stream().collect(Collectors.toList()), this.nextTopic());
+        return (topic != null) ? this.grantedQoSLevels.get(topic) : null;
+    }
+
+    @Benchmark
+    public MqttQoS trie() {
+
+        TopicTrie.Node subscription = this.trie.match(this.nextTopic());
+        return (subscription != null) ? subscription.qos() : null;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder()
+                .include(TopicMatchBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.endpoints;
+
+import enmasse.mqtt.messages.AmqpPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.RunTestOnContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import io.vertx.proton.ProtonClient;
+import io.vertx.proton.ProtonServer;
+import io.vertx.proton.ProtonSession;
+import org.apache.qpid.proton.amqp.transport.AmqpError;
+import org.apache.qpid.proton.amqp.transport.ErrorCondition;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests related to the publisher links, against a local AMQP peer refusing them
+ */
+@RunWith(VertxUnitRunner.class)
+public class AmqpPublishEndpointTest {
+
+    private static final String TOPIC = "mytopic";
+
+    @Rule
+    public RunTestOnContext rule = new RunTestOnContext();
+
+    private ProtonServer server;
+
+    @Before
+    public void before(TestContext context) {
+
+        // every link attach is refused, as for a not existing address
+        this.server = ProtonServer.create(this.rule.vertx()).connectHandler(connection -> {
+
+            connection.openHandler(o -> connection.open());
+            connection.sessionOpenHandler(ProtonSession::open);
+            connection.receiverOpenHandler(receiver -> {
+
+                receiver.setTarget(null);
+                receiver.setCondition(new ErrorCondition(AmqpError.NOT_FOUND, "no address"));
+                receiver.open();
+                receiver.close();
+            });
+        });
+        this.server.listen(0, context.asyncAssertSuccess());
+    }
+
+    @Test
+    public void refusedAttach(TestContext context) {
+
+        Async async = context.async();
+        Async failed = context.async(2);
+
+        int[] paused = new int[2];
+        this.connect(context, (session, endpoint) -> {
+
+            endpoint.watermarks(2, 1)
+                    .pauseHandler(v -> paused[0]++)
+                    .resumeHandler(v -> paused[1]++);
+
+            endpoint.addPublisher(TOPIC, new AmqpPublisher(session.createSender(TOPIC), session.createSender(TOPIC), session.createSender(TOPIC)));
+            endpoint.publish(message(1, MqttQoS.AT_LEAST_ONCE), done -> {
+                context.assertTrue(done.failed());
+                failed.countDown();
+            });
+            endpoint.publish(message(2, MqttQoS.EXACTLY_ONCE), done -> {
+                context.assertTrue(done.failed());
+                failed.countDown();
+            });
+            // queued without credit, so pending too
+            endpoint.publish(message(0, MqttQoS.AT_MOST_ONCE), context.asyncAssertSuccess());
+
+            context.assertEquals(3, endpoint.pendingDeliveries());
+            context.assertTrue(endpoint.isPaused());
+
+            this.rule.vertx().setPeriodic(10, t -> {
+
+                if (failed.isCompleted()) {
+
+                    this.rule.vertx().cancelTimer(t);
+                    // the publishing isn't paused forever and the publisher is attached again on the next publish
+                    context.assertEquals(0, endpoint.pendingDeliveries());
+                    context.assertFalse(endpoint.isPaused());
+                    context.assertEquals(1, paused[0]);
+                    context.assertEquals(1, paused[1]);
+                    context.assertEquals(0, endpoint.publishersCount());
+                    context.assertFalse(endpoint.isPublisher(TOPIC));
+                    async.complete();
+                }
+            });
+        });
+    }
+
+    private void connect(TestContext context, PublishEndpointHandler handler) {
+
+        Vertx vertx = this.rule.vertx();
+        ProtonClient.create(vertx).connect("localhost", this.server.actualPort(), context.asyncAssertSuccess(connection -> {
+
+            connection.openHandler(context.asyncAssertSuccess(c -> {
+
+                ProtonSession session = connection.createSession().open();
+                AmqpPublishEndpoint endpoint = new AmqpPublishEndpoint(() -> session.createSender("pubrel"));
+                endpoint.open();
+                handler.handle(session, endpoint);
+            }));
+            connection.open();
+        }));
+    }
+
+    private static AmqpPublishMessage message(int messageId, MqttQoS qos) {
+        return new AmqpPublishMessage(messageId, qos, false, false, TOPIC, Buffer.buffer("Hello"));
+    }
+
+    @FunctionalInterface
+    private interface PublishEndpointHandler {
+
+        void handle(ProtonSession session, AmqpPublishEndpoint endpoint);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.endpoints;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests related to the in flight window
+ */
+public class InFlightWindowTest {
+
+    @Test
+    public void testPutGetRemove() {
+
+        InFlightWindow<String> window = new InFlightWindow<>(10);
+
+        assertNull(window.put(1, "one"));
+        assertNull(window.put(2, "two"));
+        assertEquals(2, window.size());
+        assertEquals(8, window.free());
+
+        assertEquals("one", window.get(1));
+        assertEquals("one", window.put(1, "uno"));
+        assertEquals(2, window.size());
+
+        assertEquals("uno", window.remove(1));
+        assertNull(window.remove(1));
+        assertNull(window.get(1));
+        assertEquals("two", window.get(2));
+        assertEquals(1, window.size());
+
+        // not valid message identifiers are never in the window
+        assertNull(window.get(0));
+        assertNull(window.remove(InFlightWindow.MAX_MESSAGE_ID + 1));
+    }
+
+    @Test
+    public void testTimes() {
+
+        InFlightWindow<String> window = new InFlightWindow<>(100);
+
+        // the times are moved with the deliveries when the table grows and on removals
+        for (int i = 1; i <= 50; i++) {
+            assertNull(window.putWithTime(i, "delivery", i * 1000L));
+        }
+        for (int i = 1; i <= 50; i += 2) {
+            assertEquals("delivery", window.remove(i));
+        }
+        for (int i = 2; i <= 50; i += 2) {
+            assertEquals(i * 1000L, window.time(i));
+        }
+        assertEquals(0, window.time(1));
+
+        // a re-sent delivery gets the new time
+        assertEquals("delivery", window.putWithTime(2, "delivery", 7L));
+        assertEquals(7L, window.time(2));
+
+        window.clear();
+        assertEquals(0, window.time(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFull() {
+
+        InFlightWindow<String> window = new InFlightWindow<>(2);
+        window.put(1, "one");
+        window.put(2, "two");
+        window.put(3, "three");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMessageId() {
+
+        InFlightWindow<String> window = new InFlightWindow<>(2);
+        window.put(0, "zero");
+    }
+
+    @Test
+    public void testWrappingMessageIds() {
+
+        InFlightWindow<Integer> window = new InFlightWindow<>(100);
+
+        // message identifiers assigned in sequence (wrapping at 65535), with some of them
+        // acknowledged late so they collide with the following ones in the table
+        int messageId = 0;
+        int late = 0;
+        for (int i = 0; i < 200000; i++) {
+
+            messageId = (messageId % InFlightWindow.MAX_MESSAGE_ID) + 1;
+            window.put(messageId, messageId);
+
+            if (i % 50 == 0) {
+                if (late != 0) {
+                    assertEquals(Integer.valueOf(late), window.remove(late));
+                }
+                late = messageId;
+            } else {
+                assertEquals(Integer.valueOf(messageId), window.remove(messageId));
+            }
+        }
+
+        assertEquals(1, window.size());
+        assertEquals(Integer.valueOf(late), window.get(late));
+    }
+
+    @Test
+    public void testTrim() {
+
+        InFlightWindow<String> window = new InFlightWindow<>(10);
+
+        // nothing allocated yet
+        assertNull(window.get(1));
+        assertNull(window.remove(1));
+        assertFalse(window.trim());
+
+        window.put(1, "one");
+        assertFalse(window.trim());
+        assertEquals("one", window.get(1));
+
+        window.remove(1);
+        assertTrue(window.trim());
+        assertNull(window.get(1));
+
+        // allocated again on the next delivery
+        window.put(2, "two");
+        assertEquals("two", window.get(2));
+        assertEquals(1, window.size());
+
+        window.clear();
+        assertEquals(0, window.size());
+        assertFalse(window.trim());
+        window.forEach(v -> fail());
+    }
+
+    @Test
+    public void testRandomOperations() {
+
+        InFlightWindow<Integer> window = new InFlightWindow<>(64);
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(1);
+
+        for (int i = 0; i < 100000; i++) {
+
+            int messageId = 1 + random.nextInt(256);
+            if (random.nextBoolean() && expected.size() < 64) {
+                assertEquals(expected.put(messageId, i), window.put(messageId, i));
+            } else {
+                assertEquals(expected.remove(messageId), window.remove(messageId));
+            }
+            assertEquals(expected.size(), window.size());
+        }
+
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), window.get(entry.getKey()));
+        }
+    }
+}
@@ -19,6 +19,7 @@ package enmasse.mqtt.mocks;
 import enmasse.mqtt.AmqpSubscribeData;
 import enmasse.mqtt.AmqpUnsubscribeData;
 import enmasse.mqtt.AmqpWillData;
+import enmasse.mqtt.TopicMatcher;
 import enmasse.mqtt.messages.AmqpHelper;
 import enmasse.mqtt.messages.AmqpPublishMessage;
 import enmasse.mqtt.messages.AmqpPubrelMessage;
@@ -43,7 +44,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -92,6 +95,17 @@ public class MockBroker extends AbstractVerticle {
 
     private List<String> topics;
 
+    // period for accepting a published message (0 for accepting immediately), for simulating a slow broker
+    private long acceptPeriod;
+    private long acceptTimer = -1;
+    // published messages not accepted yet
+    private Deque<ProtonDelivery> pendingAccepts;
+    private volatile int maxPendingAccepts;
+    private volatile long acceptedCount;
+    private volatile long preSettledCount;
+    // native AMQP receivers attached for a topic
+    private volatile int nativeReceiversCount;
+
     /**
      * Constructor
      */
@@ -105,6 +119,7 @@ public class MockBroker extends AbstractVerticle {
         this.topics = Arrays.asList("mytopic", "will");
         this.wills = new HashMap<>();
         this.receiversPubrel = new HashMap<>();
+        this.pendingAccepts = new ArrayDeque<>();
     }
 
     @Override
@@ -124,6 +139,19 @@ public class MockBroker extends AbstractVerticle {
                 // the mock broker works with link routing (like for EnMasse) so
                 // no more receiver attached from broker to router but handling
                 // incoming attaching requests for receivers and senders
+                if (this.acceptPeriod > 0) {
+
+                    // accept the pending published messages one by one
+                    this.acceptTimer = this.vertx.setPeriodic(this.acceptPeriod, timer -> {
+
+                        ProtonDelivery delivery = this.pendingAccepts.poll();
+                        if (delivery != null) {
+                            delivery.disposition(Accepted.getInstance(), true);
+                            this.acceptedCount++;
+                        }
+                    });
+                }
+
                 this.connection
                         .sessionOpenHandler(session -> session.open())
                         .receiverOpenHandler(this::receiverHandler)
@@ -286,6 +314,9 @@ public class MockBroker extends AbstractVerticle {
     @Override
     public void stop(Future<Void> stopFuture) throws Exception {
 
+        if (this.acceptTimer != -1) {
+            this.vertx.cancelTimer(this.acceptTimer);
+        }
         this.connection.close();
         LOG.info("Broker has been shut down successfully");
         stopFuture.complete();
@@ -420,11 +451,16 @@ public class MockBroker extends AbstractVerticle {
                             if (this.subscriptions.get(topic).size() == 0) {
                                 this.subscriptions.remove(topic);
                             }
+
+                            this.senders.remove(sender.getName());
+                            this.nativeReceiversCount--;
+                            sender.close();
                         }
                     })
                     .open();
 
             this.senders.put(sender.getName(), sender);
+            this.nativeReceiversCount++;
         }
 
         // add the subscription to the requested topic by the link name
@@ -450,7 +486,21 @@ public class MockBroker extends AbstractVerticle {
                 this.retained.put(amqpPublishMessage.topic(), amqpPublishMessage);
             }
 
-            delivery.disposition(Accepted.getInstance(), true);
+            if (delivery.remotelySettled()) {
+
+                // pre-settled (QoS 0), nothing to accept
+                delivery.settle();
+                this.preSettledCount++;
+
+            } else if (this.acceptPeriod > 0) {
+
+                this.pendingAccepts.add(delivery);
+                this.maxPendingAccepts = Math.max(this.maxPendingAccepts, this.pendingAccepts.size());
+            } else {
+
+                delivery.disposition(Accepted.getInstance(), true);
+                this.acceptedCount++;
+            }
 
             List<String> subscribers = this.subscriptions.get(topic);
 
@@ -458,9 +508,20 @@ public class MockBroker extends AbstractVerticle {
 
                 for (String clientId : subscribers) {
 
-                    // QoS already set at AT_LEAST_ONCE as requested by the receiver side
-                    this.senders.get(clientId).send(message);
+                    this.forward(clientId, delivery, message);
+                }
+            }
+
+            // subscribers with a wildcarded topic matching the published one (the native AMQP
+            // receivers use the address pattern with "*" as the single level wildcard)
+            for (Map.Entry<String, List<String>> entry : this.subscriptions.entrySet()) {
+
+                if ((entry.getKey().contains("+") || entry.getKey().contains("#") || entry.getKey().contains("*")) &&
+                        TopicMatcher.isMatch(entry.getKey().replace("*", "+"), topic)) {
 
+                    for (String clientId : entry.getValue()) {
+                        this.forward(clientId, delivery, message);
+                    }
                 }
             }
 
@@ -479,6 +540,23 @@ public class MockBroker extends AbstractVerticle {
         }
     }
 
+    /**
+     * Forward a published message to a subscriber
+     *
+     * @param clientId  subscriber client identifier (or link name)
+     * @param delivery  delivery of the published message
+     * @param message   published message
+     */
+    private void forward(String clientId, ProtonDelivery delivery, Message message) {
+
+        // QoS already set at AT_LEAST_ONCE as requested by the receiver side,
+        // but messages published pre-settled (QoS 0) are forwarded pre-settled
+        ProtonDelivery forwarded = this.senders.get(clientId).send(message);
+        if (delivery.remotelySettled()) {
+            forwarded.settle();
+        }
+    }
+
     /**
      * Set the address for connecting to the AMQP services
      *
@@ -501,4 +579,47 @@ public class MockBroker extends AbstractVerticle {
         return this;
     }
 
+    /**
+     * Set the period for accepting published messages, one at time, simulating a slow broker
+     *
+     * @param acceptPeriod  period in ms (0 for accepting immediately)
+     * @return  current MockBroker instance
+     */
+    public MockBroker setAcceptPeriod(long acceptPeriod) {
+        this.acceptPeriod = acceptPeriod;
+        return this;
+    }
+
+    /**
+     * Max number of published messages waiting to be accepted at same time
+     * @return
+     */
+    public int maxPendingAccepts() {
+        return this.maxPendingAccepts;
+    }
+
+    /**
+     * Number of published messages accepted
+     * @return
+     */
+    public long acceptedCount() {
+        return this.acceptedCount;
+    }
+
+    /**
+     * Number of published messages received pre-settled (without disposition)
+     * @return
+     */
+    public long preSettledCount() {
+        return this.preSettledCount;
+    }
+
+    /**
+     * Number of native AMQP receivers attached for a topic
+     * @return
+     */
+    public int nativeReceiversCount() {
+        return this.nativeReceiversCount;
+    }
+
 }
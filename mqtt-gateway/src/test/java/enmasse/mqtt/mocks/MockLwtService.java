@@ -52,6 +52,9 @@ public class MockLwtService extends AbstractVerticle {
     private ProtonClient client;
     private ProtonConnection connection;
 
+    // simulated time for processing every request (in ms)
+    private long processingDelay;
+
     // handler called when the service publish a will (or not) on detached link
     // NOTE : it's useful for disconnection tests
     private Handler<Boolean> willHandler;
@@ -110,9 +113,15 @@ public class MockLwtService extends AbstractVerticle {
             receiver
                     .setTarget(receiver.getRemoteTarget())
                     .setQoS(ProtonQoS.AT_LEAST_ONCE)
+                    // with a delay, the disposition is sent only when the will is saved
+                    .setAutoAccept(this.processingDelay == 0)
                     .handler((delivery, message) -> {
 
-                        this.messageHandler(receiver, delivery, message);
+                        if (this.processingDelay > 0) {
+                            this.vertx.setTimer(this.processingDelay, t -> this.messageHandler(receiver, delivery, message));
+                        } else {
+                            this.messageHandler(receiver, delivery, message);
+                        }
                     })
                     .closeHandler(ar -> {
 
@@ -234,4 +243,15 @@ public class MockLwtService extends AbstractVerticle {
         this.willHandler = handler;
         return this;
     }
+
+    /**
+     * Set a simulated time for processing every request
+     *
+     * @param processingDelay   processing delay in ms (0 for none)
+     * @return  current Mock Last Will and Testament Service instance
+     */
+    public MockLwtService setProcessingDelay(long processingDelay) {
+        this.processingDelay = processingDelay;
+        return this;
+    }
 }
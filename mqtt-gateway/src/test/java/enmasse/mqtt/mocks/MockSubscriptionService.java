@@ -60,6 +60,10 @@ public class MockSubscriptionService extends AbstractVerticle {
 
     private ProtonClient client;
     private ProtonConnection connection;
+    private ProtonReceiver receiver;
+
+    // simulated time for processing every request (in ms)
+    private long processingDelay;
 
     @Override
     public void start(Future<Void> startFuture) throws Exception {
@@ -79,11 +83,12 @@ public class MockSubscriptionService extends AbstractVerticle {
                         .sessionOpenHandler(session -> session.open())
                         .open();
 
-                ProtonReceiver receiver = this.connection.createReceiver(SUBSCRIPTION_SERVICE_ENDPOINT);
+                this.receiver = this.connection.createReceiver(SUBSCRIPTION_SERVICE_ENDPOINT);
 
-                receiver
-                        .setTarget(receiver.getRemoteTarget())
-                        .handler(this::messageHandler)
+                this.receiver
+                        .setTarget(this.receiver.getRemoteTarget())
+                        .setAutoAccept(this.processingDelay == 0)
+                        .handler(this::delayedMessageHandler)
                         .open();
 
                 startFuture.complete();
@@ -105,6 +110,15 @@ public class MockSubscriptionService extends AbstractVerticle {
         stopFuture.complete();
     }
 
+    private void delayedMessageHandler(ProtonDelivery delivery, Message message) {
+
+        if (this.processingDelay > 0) {
+            this.vertx.setTimer(this.processingDelay, t -> this.messageHandler(delivery, message));
+        } else {
+            this.messageHandler(delivery, message);
+        }
+    }
+
     private void messageHandler(ProtonDelivery delivery, Message message) {
 
         LOG.info("Received {}", message);
@@ -257,4 +271,19 @@ public class MockSubscriptionService extends AbstractVerticle {
         this.internalServicePort = internalServicePort;
         return this;
     }
+
+    /**
+     * Set a simulated time for processing every request
+     *
+     * @param processingDelay   processing delay in ms (0 for none)
+     * @return  current Mock Subscription Service instance
+     */
+    public MockSubscriptionService setProcessingDelay(long processingDelay) {
+        this.processingDelay = processingDelay;
+        // with a delay, the disposition is sent only when the request is processed
+        if (this.receiver != null) {
+            this.receiver.setAutoAccept(processingDelay == 0);
+        }
+        return this;
+    }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.ratelimit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests related to the timer wheel
+ */
+public class TimerWheelTest {
+
+    private static final long TICK = 10; // in ms
+
+    @Test
+    public void testExpiration() {
+
+        TimerWheel wheel = new TimerWheel(TICK);
+        List<Long> expired = new ArrayList<>();
+
+        wheel.schedule(0, v -> expired.add(0L));
+        wheel.schedule(25, v -> expired.add(25L));
+        wheel.schedule(30, v -> expired.add(30L));
+        assertFalse(wheel.isEmpty());
+
+        wheel.advance();
+        assertEquals(1, expired.size());
+        wheel.advance();
+        assertEquals(1, expired.size());
+
+        // the delay is rounded up to the tick
+        wheel.advance();
+        assertEquals(3, expired.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testRounds() {
+
+        TimerWheel wheel = new TimerWheel(TICK);
+        List<Integer> expired = new ArrayList<>();
+
+        // more than a full turn of the wheel
+        long delay = 1300 * TICK;
+        wheel.schedule(delay, v -> expired.add(1));
+
+        for (int i = 0; i < 1299; i++) {
+            wheel.advance();
+        }
+        assertTrue(expired.isEmpty());
+        wheel.advance();
+        assertEquals(1, expired.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testCancel() {
+
+        TimerWheel wheel = new TimerWheel(TICK);
+        List<Integer> expired = new ArrayList<>();
+
+        TimerWheel.Timeout timeout = wheel.schedule(TICK, v -> expired.add(1));
+        wheel.schedule(TICK, v -> expired.add(2));
+        timeout.cancel();
+
+        wheel.advance();
+        assertEquals(1, expired.size());
+        assertEquals(2, (int) expired.get(0));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testRescheduleFromHandler() {
+
+        TimerWheel wheel = new TimerWheel(TICK);
+        List<Integer> expired = new ArrayList<>();
+
+        wheel.schedule(TICK, v -> {
+            expired.add(1);
+            wheel.schedule(TICK, w -> expired.add(2));
+        });
+
+        wheel.advance();
+        assertEquals(1, expired.size());
+        assertFalse(wheel.isEmpty());
+        wheel.advance();
+        assertEquals(2, expired.size());
+        assertTrue(wheel.isEmpty());
+    }
+}
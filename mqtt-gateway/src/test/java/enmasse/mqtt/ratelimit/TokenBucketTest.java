@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.ratelimit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests related to the token bucket
+ */
+public class TokenBucketTest {
+
+    private static final long SECOND = 1_000_000_000L; // in ns
+
+    @Test
+    public void testTryConsume() {
+
+        TokenBucket bucket = new TokenBucket(10, 10, 0);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(bucket.tryConsume(1, 0));
+        }
+        assertFalse(bucket.tryConsume(1, 0));
+        assertEquals(0, bucket.tokens(0));
+
+        // a token every 100 ms
+        assertFalse(bucket.tryConsume(1, SECOND / 10 - 1));
+        assertTrue(bucket.tryConsume(1, SECOND / 10));
+        assertFalse(bucket.tryConsume(1, SECOND / 10));
+    }
+
+    @Test
+    public void testRefillUpToCapacity() {
+
+        TokenBucket bucket = new TokenBucket(10, 5, 0);
+
+        assertTrue(bucket.tryConsume(5, 0));
+        assertEquals(5, bucket.tokens(10 * SECOND));
+    }
+
+    @Test
+    public void testPartialTokens() {
+
+        TokenBucket bucket = new TokenBucket(3, 3, 0);
+        assertTrue(bucket.tryConsume(3, 0));
+
+        // the time of the partial tokens isn't lost between refills
+        long now = 0;
+        for (int i = 0; i < 9; i++) {
+            now += SECOND / 9;
+            bucket.tokens(now);
+        }
+        assertEquals(2, bucket.tokens(now));
+        assertEquals(3, bucket.tokens(SECOND));
+    }
+
+    @Test
+    public void testBiggerThanCapacity() {
+
+        TokenBucket bucket = new TokenBucket(100, 100, 0);
+
+        // taken only with the bucket full, going in debt
+        assertTrue(bucket.tryConsume(250, 0));
+        assertEquals(-150, bucket.tokens(0));
+        assertFalse(bucket.tryConsume(250, SECOND));
+        assertTrue(bucket.tryConsume(250, 3 * SECOND));
+    }
+
+    @Test
+    public void testDebt() {
+
+        TokenBucket bucket = new TokenBucket(10, 10, 0);
+
+        assertEquals(0, bucket.consume(10, 0));
+        assertEquals(SECOND / 2, bucket.consume(5, 0));
+        assertEquals(SECOND / 2, bucket.delay(0));
+        assertEquals(SECOND / 4, bucket.delay(SECOND / 4));
+        assertEquals(0, bucket.delay(SECOND / 2));
+        assertEquals(0, bucket.tokens(SECOND / 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoRate() {
+        new TokenBucket(0, 10, 0);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.lwt;
+
+/**
+ * Partitions of the client identifiers for the Last Will and Testament Service, shared by the
+ * MQTT gateway (attaching the will link) and the service (owning the partitions) so they agree
+ */
+public final class LwtPartitions {
+
+    public static final String LWT_SERVICE_ENDPOINT = "$lwt";
+    public static final String CONTAINER_ID = "lwt-service";
+    public static final int DEFAULT_PARTITIONS = 1;
+
+    private LwtPartitions() {
+    }
+
+    /**
+     * Partition owning the "will" information of a client
+     *
+     * @param clientId  client identifier
+     * @param partitions    number of partitions
+     * @return  the partition
+     */
+    public static int partition(String clientId, int partitions) {
+        // String hash code is the same on every JVM, so it's the same on the gateway and on the service
+        return (clientId.hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * Address of a partition, "$lwt.<partition>" when partitioned or just "$lwt" otherwise
+     *
+     * @param partition partition
+     * @param partitions    number of partitions
+     * @return  the address
+     */
+    public static String address(int partition, int partitions) {
+        return (partitions > 1) ? LWT_SERVICE_ENDPOINT + "." + partition : LWT_SERVICE_ENDPOINT;
+    }
+
+    /**
+     * Address of the partition owning the "will" information of a client
+     *
+     * @param clientId  client identifier
+     * @param partitions    number of partitions
+     * @return  the address
+     */
+    public static String address(String clientId, int partitions) {
+        return address(partition(clientId, partitions), partitions);
+    }
+
+    /**
+     * Container identifier for the route container connection of a partition, having
+     * the link route for its address
+     *
+     * @param partition partition
+     * @param partitions    number of partitions
+     * @return  the container identifier
+     */
+    public static String containerId(int partition, int partitions) {
+        return (partitions > 1) ? CONTAINER_ID + "-" + partition : CONTAINER_ID;
+    }
+}
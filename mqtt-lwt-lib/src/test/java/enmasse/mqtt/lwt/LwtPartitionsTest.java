@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.lwt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LwtPartitionsTest {
+
+    @Test
+    public void testNotPartitioned() {
+        assertEquals("$lwt", LwtPartitions.address("client", 1));
+        assertEquals("lwt-service", LwtPartitions.containerId(0, 1));
+    }
+
+    @Test
+    public void testPartitioned() {
+        // a negative hash code still maps to a valid partition
+        String clientId = "polygenelubricants";
+        assertTrue(clientId.hashCode() < 0);
+
+        int partition = LwtPartitions.partition(clientId, 4);
+        assertTrue(partition >= 0 && partition < 4);
+        assertEquals("$lwt." + partition, LwtPartitions.address(clientId, 4));
+        assertEquals("lwt-service-" + partition, LwtPartitions.containerId(partition, 4));
+    }
+}
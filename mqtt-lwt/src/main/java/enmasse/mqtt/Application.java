@@ -16,12 +16,15 @@
 
 package enmasse.mqtt;
 
+import enmasse.metrics.MetricsEndpoint;
+import enmasse.mqtt.metrics.LwtMetrics;
 import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
@@ -45,12 +48,26 @@ public class Application {
 
     private final Vertx vertx = Vertx.vertx();
 
-    @Value(value = "${enmasse.mqtt.maxinstances:1}")
-    private int maxInstances;
+    // partitions of the client identifiers, the ones owned by this replica each on an instance
+    @Value(value = "${enmasse.mqtt.lwt.partitions:1}")
+    private int partitions;
+    @Value(value = "${enmasse.mqtt.lwt.replicas:1}")
+    private int replicas;
+    // index of this replica, from the ordinal of the StatefulSet pod (hostname "<name>-<ordinal>") if not set
+    @Value(value = "${enmasse.mqtt.lwt.replica:-1}")
+    private int replica;
     @Value(value = "${enmasse.mqtt.startuptimeout:20}")
     private int startupTimeout;
+    // port for the HTTP metrics endpoint (0 means disabled)
+    @Value(value = "${enmasse.mqtt.metricsport:0}")
+    private int metricsPort;
+    @Value(value = "${enmasse.mqtt.metricsbindaddress:0.0.0.0}")
+    private String metricsBindAddress;
+    // provides a new MQTT LWT instance (prototype scoped, with its own storage) for every partition
     @Autowired
-    private MqttLwt mqttLwt;
+    private ObjectFactory<MqttLwt> mqttLwtFactory;
+    @Autowired
+    private LwtMetrics metrics;
 
     private AtomicBoolean running = new AtomicBoolean();
 
@@ -59,11 +76,19 @@ public class Application {
 
         if (this.running.compareAndSet(false, true)) {
 
-            // instance count is upper bounded to the number of available processors
-            int instanceCount =
-                    (this.maxInstances > 0 && this.maxInstances < Runtime.getRuntime().availableProcessors()) ?
-                            this.maxInstances :
-                            Runtime.getRuntime().availableProcessors();
+            if (this.replica < 0) {
+                this.replica = replicaOf(System.getenv("HOSTNAME"), this.replicas);
+            }
+            if (this.replica >= this.replicas) {
+                throw new IllegalStateException(String.format("Replica %d out of the %d replicas of the MQTT LWT service, " +
+                        "enmasse.mqtt.lwt.replicas doesn't match the replicas of the StatefulSet", this.replica, this.replicas));
+            }
+
+            // the partitions are spread across the replicas, this one owns every "replicas"-th partition
+            List<Integer> ownedPartitions = new ArrayList<>();
+            for (int partition = this.replica; partition < this.partitions; partition += this.replicas) {
+                ownedPartitions.add(partition);
+            }
 
 
             try {
@@ -79,7 +104,7 @@ public class Application {
                 });
 
                 // start deploying more verticle instances
-                this.deployVerticles(instanceCount, startFuture);
+                this.deployVerticles(ownedPartitions, startFuture);
 
                 // wait for deploying end
                 if (latch.await(this.startupTimeout, TimeUnit.SECONDS)) {
@@ -97,30 +122,56 @@ public class Application {
         }
     }
 
+    /**
+     * Index of a replica from the pod hostname, "<name>-<ordinal>" for the pods of a StatefulSet
+     *
+     * @param hostname  pod hostname
+     * @param replicas  number of replicas
+     * @return  the replica index
+     */
+    static int replicaOf(String hostname, int replicas) {
+
+        int dash = (hostname != null) ? hostname.lastIndexOf('-') : -1;
+        if (dash >= 0) {
+            try {
+                return Integer.parseInt(hostname.substring(dash + 1));
+            } catch (NumberFormatException e) {
+                // not a StatefulSet pod
+            }
+        }
+        if (replicas > 1) {
+            throw new IllegalStateException(String.format("No replica index in the hostname %s, " +
+                    "the MQTT LWT service with more replicas has to be deployed as a StatefulSet", hostname));
+        }
+        return 0;
+    }
+
     /**
      * Execute verticles deploy operation
      *
-     * @param instanceCount     number of verticle instances to deploy
+     * @param ownedPartitions   partitions owned by this replica, one verticle instance for each of them
      * @param resultHandler     handler called when the deploy ends
      */
-    private void deployVerticles(int instanceCount, Future<Void> resultHandler) {
+    private void deployVerticles(List<Integer> ownedPartitions, Future<Void> resultHandler) {
 
-        LOG.debug("Starting up {} instances of MQTT LWT service verticle", instanceCount);
+        LOG.debug("Starting up {} instances of MQTT LWT service verticle for partitions {} of {}",
+                ownedPartitions.size(), ownedPartitions, this.partitions);
 
         List<Future> results = new ArrayList<>();
 
-        for (int i = 1; i <= instanceCount; i++) {
+        for (int partition : ownedPartitions) {
 
-            int instanceId = i;
             Future<Void> result = Future.future();
             results.add(result);
 
-            this.vertx.deployVerticle(this.mqttLwt, done -> {
+            // every instance deployed on its own event loop
+            MqttLwt mqttLwt = this.mqttLwtFactory.getObject().setPartition(partition, this.partitions);
+            this.vertx.deployVerticle(mqttLwt, done -> {
                 if (done.succeeded()) {
-                    LOG.debug("Verticle instance {} deployed [{}]", instanceId, done.result());
+                    LOG.debug("Verticle instance for partition {} deployed [{}]", partition, done.result());
                     result.complete();
                 } else {
-                    LOG.debug("Failed to deploy verticle instance {}", instanceId, done.cause());
+                    LOG.debug("Failed to deploy verticle instance for partition {}", partition, done.cause());
                     result.fail(done.cause());
                 }
             });
@@ -129,13 +180,37 @@ public class Application {
         // combine all futures related to verticle instances deploy
         CompositeFuture.all(results).setHandler(done -> {
            if (done.succeeded()) {
-               resultHandler.complete();
+               this.deployMetricsEndpoint(resultHandler);
            } else {
                resultHandler.fail(done.cause());
            }
         });
     }
 
+    /**
+     * Execute the metrics endpoint deploy operation (if enabled)
+     *
+     * @param resultHandler     handler called when the deploy ends
+     */
+    private void deployMetricsEndpoint(Future<Void> resultHandler) {
+
+        if (this.metricsPort > 0) {
+
+            // a single endpoint exposing the metrics of all the MQTT LWT instances
+            this.vertx.deployVerticle(new MetricsEndpoint(this.metrics, this.metricsBindAddress, this.metricsPort), done -> {
+                if (done.succeeded()) {
+                    LOG.debug("Metrics endpoint deployed [{}]", done.result());
+                    resultHandler.complete();
+                } else {
+                    LOG.debug("Failed to deploy metrics endpoint", done.cause());
+                    resultHandler.fail(done.cause());
+                }
+            });
+        } else {
+            resultHandler.complete();
+        }
+    }
+
     @PreDestroy
     public void shutdown() {
         if (this.running.compareAndSet(true, false)) {
@@ -18,11 +18,16 @@ package enmasse.mqtt;
 
 import enmasse.mqtt.endpoints.AmqpLwtEndpoint;
 import enmasse.mqtt.endpoints.AmqpPublishEndpoint;
+import enmasse.mqtt.lwt.LwtPartitions;
 import enmasse.mqtt.messages.AmqpPublishMessage;
 import enmasse.mqtt.messages.AmqpWillMessage;
+import enmasse.mqtt.metrics.LwtMetrics;
 import enmasse.mqtt.storage.LwtStorage;
+import enmasse.mqtt.storage.impl.WriteBehindLwtStorage;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.net.PemKeyCertOptions;
 import io.vertx.core.net.PemTrustOptions;
 import io.vertx.proton.ProtonClient;
@@ -32,6 +37,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
@@ -40,13 +47,14 @@ import java.io.File;
  * Vert.x based MQTT Last Will and Testament service for EnMasse
  */
 @Component
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
 public class MqttLwt extends AbstractVerticle {
 
     private static final Logger LOG = LoggerFactory.getLogger(MqttLwt.class);
 
-    private static final String CONTAINER_ID = "lwt-service";
-
     private static final int MAX_MESSAGE_ID = 65535;
+    // min period for checking the idle will publishers (in ms)
+    private static final long MIN_EVICTION_PERIOD = 1000;
 
     private String certDir;
 
@@ -59,7 +67,24 @@ public class MqttLwt extends AbstractVerticle {
 
     private AmqpLwtEndpoint lwtEndpoint;
     private LwtStorage lwtStorage;
+
+    // partition of the client identifiers owned by this instance
+    private int partition;
+    private int partitions = 1;
+    private long writeBehindWindow;
     private AmqpPublishEndpoint publishEndpoint;
+    private int maxPublishers = AmqpPublishEndpoint.DEFAULT_MAX_PUBLISHERS;
+    private long publisherIdleTimeout = AmqpPublishEndpoint.DEFAULT_PUBLISHER_IDLE_TIMEOUT;
+    private long evictionTimerId = -1;
+
+    private WillDispatcher willDispatcher;
+    private int dispatchCapacity = WillDispatcher.DEFAULT_CAPACITY;
+    private int dispatchWindow = WillDispatcher.DEFAULT_WINDOW;
+    private int dispatchBatchSize = WillDispatcher.DEFAULT_BATCH_SIZE;
+    private long dispatchPublishTimeout = WillDispatcher.DEFAULT_PUBLISH_TIMEOUT;
+
+    // metrics shared by all the MQTT LWT instances
+    private LwtMetrics metrics = new LwtMetrics();
 
     // counter for the message identifier
     private int messageIdCounter;
@@ -67,13 +92,32 @@ public class MqttLwt extends AbstractVerticle {
     @Override
     public void start(Future<Void> startFuture) throws Exception {
 
-        LOG.info("Starting MQTT LWT service verticle...");
+        LOG.info("Starting MQTT LWT service verticle for partition {}/{}...", this.partition, this.partitions);
+
+        // every partition has its own storage, apart from the other ones
+        if (this.partitions > 1) {
+            this.lwtStorage.setPartition(this.partition);
+        }
+        if (this.writeBehindWindow > 0) {
+            this.lwtStorage = new WriteBehindLwtStorage(this.lwtStorage, this.vertx, this.writeBehindWindow);
+        }
+
+        this.willDispatcher = new WillDispatcher(this.vertx, this.lwtStorage, this::publishWill, this.metrics,
+                this.dispatchCapacity, this.dispatchWindow, this.dispatchBatchSize, this.dispatchPublishTimeout);
+        this.willDispatcher
+                .pauseHandler(v -> this.lwtEndpoint.pause())
+                .resumeHandler(v -> this.lwtEndpoint.resume());
+
         this.connect(startFuture);
     }
 
     @Override
     public void stop(Future<Void> stopFuture) throws Exception {
 
+        if (this.evictionTimerId != -1) {
+            this.vertx.cancelTimer(this.evictionTimerId);
+        }
+        this.willDispatcher.close();
         this.lwtEndpoint.close();
         this.publishEndpoint.close();
         this.lwtStorage.close();
@@ -101,10 +145,11 @@ public class MqttLwt extends AbstractVerticle {
             if (done.succeeded()) {
 
                 ProtonConnection connection = done.result();
-                connection.setContainer(CONTAINER_ID);
+                // the link route for the partition is on its own container identifier
+                connection.setContainer(LwtPartitions.containerId(this.partition, this.partitions));
 
                 // TODO
-                this.lwtEndpoint = new AmqpLwtEndpoint(connection);
+                this.lwtEndpoint = new AmqpLwtEndpoint(connection, this.partition, this.partitions);
                 this.lwtEndpoint
                         .willHandler(this::handleWill)
                         .disconnectionHandler(this::handleDisconnection);
@@ -135,12 +180,18 @@ public class MqttLwt extends AbstractVerticle {
 
 
                     ProtonConnection connection = done.result();
-                    connection.setContainer(CONTAINER_ID);
+                    connection.setContainer(LwtPartitions.containerId(this.partition, this.partitions));
 
                     // TODO
-                    this.publishEndpoint = new AmqpPublishEndpoint(connection);
+                    this.publishEndpoint = new AmqpPublishEndpoint(connection, this.maxPublishers, this.publisherIdleTimeout);
                     this.publishEndpoint.open();
 
+                    if (this.publisherIdleTimeout > 0) {
+                        this.evictionTimerId = this.vertx.setPeriodic(Math.max(MIN_EVICTION_PERIOD, this.publisherIdleTimeout / 2), t -> {
+                            this.publishEndpoint.evictIdlePublishers(System.nanoTime());
+                        });
+                    }
+
                     connection.openHandler(o -> {
                         LOG.info("MQTT LWT service connected to the messaging service ...");
                         publishConnFuture.complete();
@@ -209,63 +260,44 @@ public class MqttLwt extends AbstractVerticle {
 
     private void handleWill(WillData willData) {
 
-        // will message received, check for updating or adding
-        this.lwtStorage.get(willData.clientId(), done -> {
+        // a will of a previous session still queued is published before storing the new one
+        this.willDispatcher.willReceived(willData.clientId());
 
-            if (done.succeeded()) {
-                this.lwtStorage.update(willData.clientId(), willData.amqpWillMessage(), ar -> {
+        // will message received, adding it or replacing the current one
+        this.lwtStorage.upsert(willData.clientId(), willData.amqpWillMessage(), done -> {
 
-                    LOG.info("Updated will for client {}", willData.clientId());
-                });
+            if (done.succeeded()) {
+                LOG.info("Stored will for client {}", willData.clientId());
             } else {
-                this.lwtStorage.add(willData.clientId(), willData.amqpWillMessage(), ar -> {
-
-                    LOG.info("Added will for client {}", willData.clientId());
-                });
+                LOG.error("Error storing will for client {}", willData.clientId(), done.cause());
             }
         });
     }
 
     private void handleDisconnection(DisconnectionData disconnectionData) {
 
-        // clean disconnection, just delete will message
-        if (!disconnectionData.isError()) {
-
-            this.lwtStorage.delete(disconnectionData.clientId(), done -> {
-
-                LOG.info("Deleted will for client {}", disconnectionData.clientId());
-            });
-        } else {
-
-            // brute disconnection, get will message and deliver it
-            this.lwtStorage.get(disconnectionData.clientId(), ar -> {
-
-                if (ar.succeeded()) {
-
-                    AmqpWillMessage amqpWillMessage = ar.result();
-
-                    // TODO : workaround ...
-                    // check why with a message-id null or String the Artemis broker change "To" property
-                    // so that the message isn't delivered by MQTT gateway
-                    Object messageId = this.nextMessageId();
-                    AmqpPublishMessage amqpPublishMessage =
-                            new AmqpPublishMessage(messageId, amqpWillMessage.qos(), false, amqpWillMessage.isRetain(), amqpWillMessage.topic(), amqpWillMessage.payload());
-
-                    this.publishEndpoint.publish(amqpPublishMessage, ar1 -> {
+        // wills published or deleted by the dispatch queue
+        this.willDispatcher.disconnected(disconnectionData);
+    }
 
-                        if (ar1.succeeded()) {
+    private void publishWill(String clientId, AmqpWillMessage amqpWillMessage, Handler<AsyncResult<Void>> handler) {
 
-                            LOG.info("Published will message for client {}", disconnectionData.clientId());
+        // TODO : workaround ...
+        // check why with a message-id null or String the Artemis broker change "To" property
+        // so that the message isn't delivered by MQTT gateway
+        Object messageId = this.nextMessageId();
+        AmqpPublishMessage amqpPublishMessage =
+                new AmqpPublishMessage(messageId, amqpWillMessage.qos(), false, amqpWillMessage.isRetain(), amqpWillMessage.topic(), amqpWillMessage.payload());
 
-                            this.lwtStorage.delete(disconnectionData.clientId(), ar2 -> {
+        this.publishEndpoint.publish(amqpPublishMessage, done -> {
 
-                                LOG.info("Deleted will for client {}", disconnectionData.clientId());
-                            });
-                        }
-                    });
-                }
-            });
-        }
+            if (done.succeeded()) {
+                LOG.info("Published will message for client {}", clientId);
+                handler.handle(Future.succeededFuture());
+            } else {
+                handler.handle(Future.failedFuture(done.cause()));
+            }
+        });
     }
 
     /**
@@ -340,4 +372,119 @@ public class MqttLwt extends AbstractVerticle {
         this.lwtStorage = lwtStorage;
         return this;
     }
+
+    /**
+     * Set the partition of the client identifiers owned by this instance,
+     * with the related route container connection and storage
+     *
+     * @param partition partition owned by this instance (0..partitions - 1)
+     * @param partitions    number of partitions
+     * @return  current MQTT LWT instance
+     */
+    public MqttLwt setPartition(int partition, int partitions) {
+
+        if (partitions <= 0 || partition < 0 || partition >= partitions) {
+            throw new IllegalArgumentException(String.format("Invalid partition %d/%d", partition, partitions));
+        }
+        this.partition = partition;
+        this.partitions = partitions;
+        return this;
+    }
+
+    /**
+     * Set the time window for coalescing the changes of the "will" information
+     * before writing them to the LWT Storage service (write-behind)
+     *
+     * @param writeBehindWindow time window in ms, 0 for writing every change immediately
+     * @return  current MQTT LWT instance
+     */
+    @Value(value = "${enmasse.mqtt.lwt.storage.writebehind:0}")
+    public MqttLwt setWriteBehindWindow(long writeBehindWindow) {
+        this.writeBehindWindow = writeBehindWindow;
+        return this;
+    }
+
+    /**
+     * Set the max number of links kept attached for publishing the wills
+     *
+     * @param maxPublishers max number of publishers (on different topics), 0 for no limit
+     * @return  current MQTT LWT instance
+     */
+    @Value(value = "${enmasse.mqtt.lwt.maxpublishers:" + AmqpPublishEndpoint.DEFAULT_MAX_PUBLISHERS + "}")
+    public MqttLwt setMaxPublishers(int maxPublishers) {
+        this.maxPublishers = maxPublishers;
+        return this;
+    }
+
+    /**
+     * Set the time after which a link not used for publishing the wills is detached
+     *
+     * @param publisherIdleTimeout  idle timeout in ms, 0 for keeping the links attached
+     * @return  current MQTT LWT instance
+     */
+    @Value(value = "${enmasse.mqtt.lwt.publisheridletimeout:" + AmqpPublishEndpoint.DEFAULT_PUBLISHER_IDLE_TIMEOUT + "}")
+    public MqttLwt setPublisherIdleTimeout(long publisherIdleTimeout) {
+        this.publisherIdleTimeout = publisherIdleTimeout;
+        return this;
+    }
+
+    /**
+     * Set the number of queued disconnections at which credits aren't granted to the clients anymore
+     *
+     * @param dispatchCapacity  dispatch queue capacity
+     * @return  current MQTT LWT instance
+     */
+    @Value(value = "${enmasse.mqtt.lwt.dispatch.capacity:" + WillDispatcher.DEFAULT_CAPACITY + "}")
+    public MqttLwt setDispatchCapacity(int dispatchCapacity) {
+        this.dispatchCapacity = dispatchCapacity;
+        return this;
+    }
+
+    /**
+     * Set the max number of wills read from the storage and not published yet
+     *
+     * @param dispatchWindow    in flight window
+     * @return  current MQTT LWT instance
+     */
+    @Value(value = "${enmasse.mqtt.lwt.dispatch.window:" + WillDispatcher.DEFAULT_WINDOW + "}")
+    public MqttLwt setDispatchWindow(int dispatchWindow) {
+        this.dispatchWindow = dispatchWindow;
+        return this;
+    }
+
+    /**
+     * Set the max number of clients for which reading the wills from the storage in a single operation
+     *
+     * @param dispatchBatchSize storage read batch size
+     * @return  current MQTT LWT instance
+     */
+    @Value(value = "${enmasse.mqtt.lwt.dispatch.batchsize:" + WillDispatcher.DEFAULT_BATCH_SIZE + "}")
+    public MqttLwt setDispatchBatchSize(int dispatchBatchSize) {
+        this.dispatchBatchSize = dispatchBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the time after which a will not published yet is failed and restored in the storage
+     *
+     * @param dispatchPublishTimeout    publish timeout (in ms, 0 for no timeout)
+     * @return  current MQTT LWT instance
+     */
+    @Value(value = "${enmasse.mqtt.lwt.dispatch.publishtimeout:" + WillDispatcher.DEFAULT_PUBLISH_TIMEOUT + "}")
+    public MqttLwt setDispatchPublishTimeout(long dispatchPublishTimeout) {
+        this.dispatchPublishTimeout = dispatchPublishTimeout;
+        return this;
+    }
+
+    /**
+     * Set the metrics updated by the MQTT LWT service
+     *
+     * @param metrics   metrics shared by all the MQTT LWT instances
+     * @return  current MQTT LWT instance
+     */
+    @Autowired
+    public MqttLwt setMetrics(LwtMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
 }
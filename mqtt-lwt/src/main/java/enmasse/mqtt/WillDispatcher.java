@@ -0,0 +1,415 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.mqtt.messages.AmqpWillMessage;
+import enmasse.mqtt.metrics.LwtMetrics;
+import enmasse.mqtt.storage.LwtStorage;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Dispatch queue for the client disconnections.
+ *
+ * The brute disconnections (with the "will" to publish) are dispatched before the clean ones
+ * (with the "will" just to delete). The "will" information is read from the storage in batches
+ * and no more than the in flight window are read and not published yet at same time, so a mass
+ * disconnection doesn't hit the storage and the messaging service all at once.
+ *
+ * The disconnections can't be refused, so the capacity is the queue depth at which the pause
+ * handler is called, for stopping granting credits to the clients; the resume handler is called
+ * when the queue is drained to half of it.
+ *
+ * A will not published in the publish timeout is failed and restored in the storage, so a
+ * publisher never answering doesn't hold its slot in the window forever (a will published
+ * after the timeout can be published again on the next brute disconnection of the client).
+ *
+ * All the methods have to be called on the same event loop
+ */
+public class WillDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WillDispatcher.class);
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_WINDOW = 256;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final long DEFAULT_PUBLISH_TIMEOUT = 30000; // in ms
+
+    /**
+     * Publisher of the "will" messages
+     */
+    @FunctionalInterface
+    public interface WillPublisher {
+
+        /**
+         * Publish the "will" message of a client
+         *
+         * @param clientId  client identifier
+         * @param willMessage   "will" information to publish
+         * @param handler   handler called when the message is published
+         */
+        void publish(String clientId, AmqpWillMessage willMessage, Handler<AsyncResult<Void>> handler);
+    }
+
+    private final Vertx vertx;
+    private final LwtStorage lwtStorage;
+    private final WillPublisher publisher;
+    private final LwtMetrics metrics;
+
+    private final int capacity;
+    private final int window;
+    private final int batchSize;
+    private final long publishTimeout;
+
+    // client identifier -> disconnection time (in ns), in arrival order
+    private final LinkedHashMap<String, Long> bruteDisconnections = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> cleanDisconnections = new LinkedHashMap<>();
+
+    private int inFlight;
+    private boolean deleting;
+    private boolean dispatching;
+    private boolean paused;
+
+    private Handler<Void> pauseHandler;
+    private Handler<Void> resumeHandler;
+
+    /**
+     * Constructor
+     *
+     * @param vertx Vert.x instance for the publish timeouts
+     * @param lwtStorage    LWT storage with the "will" information
+     * @param publisher publisher of the "will" messages
+     * @param metrics   metrics to update
+     * @param capacity  queue depth at which to stop granting credits to the clients
+     * @param window    max number of wills read from the storage and not published yet
+     * @param batchSize max number of clients in a single storage read
+     * @param publishTimeout    time after which a will not published yet is failed (in ms, 0 for no timeout)
+     */
+    public WillDispatcher(Vertx vertx, LwtStorage lwtStorage, WillPublisher publisher, LwtMetrics metrics,
+                          int capacity, int window, int batchSize, long publishTimeout) {
+
+        if (capacity <= 0 || window <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Capacity, window and batch size must be greater than 0");
+        }
+
+        this.vertx = vertx;
+        this.lwtStorage = lwtStorage;
+        this.publisher = publisher;
+        this.metrics = metrics;
+        this.capacity = capacity;
+        this.window = window;
+        this.batchSize = Math.min(batchSize, window);
+        this.publishTimeout = publishTimeout;
+    }
+
+    /**
+     * Queue a client disconnection for the dispatch
+     *
+     * @param disconnectionData information about the disconnection
+     */
+    public void disconnected(DisconnectionData disconnectionData) {
+
+        String clientId = disconnectionData.clientId();
+        long now = System.nanoTime();
+
+        if (disconnectionData.isError()) {
+
+            // a new session disconnected brutely, its "will" replaced the one to delete
+            if (this.cleanDisconnections.remove(clientId) != null) {
+                this.metrics.queued(-1);
+            }
+            if (this.bruteDisconnections.putIfAbsent(clientId, now) == null) {
+                this.metrics.queued(1);
+            }
+
+        } else {
+
+            // a "will" to publish for a previous session is still queued, it's not deleted
+            if (!this.bruteDisconnections.containsKey(clientId) &&
+                this.cleanDisconnections.putIfAbsent(clientId, now) == null) {
+                this.metrics.queued(1);
+            }
+        }
+
+        this.dispatch();
+    }
+
+    /**
+     * Dispatch a queued disconnection of the client before storing the "will" of a new session.
+     * It has to be called before the storage update, so the storage gets the operations in order
+     *
+     * @param clientId  client identifier
+     */
+    public void willReceived(String clientId) {
+
+        // the new "will" replaces the one to delete
+        if (this.cleanDisconnections.remove(clientId) != null) {
+            this.metrics.queued(-1);
+        }
+
+        // the "will" of the previous session is published now, even if over the window
+        Long disconnected = this.bruteDisconnections.remove(clientId);
+        if (disconnected != null) {
+            this.metrics.queued(-1);
+            this.dispatchWills(Collections.singletonMap(clientId, disconnected));
+        }
+        this.checkCapacity();
+    }
+
+    /**
+     * Number of disconnections waiting for the dispatch
+     * @return
+     */
+    public int queueDepth() {
+        return this.bruteDisconnections.size() + this.cleanDisconnections.size();
+    }
+
+    /**
+     * Number of wills read from the storage and not published yet
+     * @return
+     */
+    public int inFlight() {
+        return this.inFlight;
+    }
+
+    /**
+     * If the queue is over capacity, so the clients shouldn't get credits
+     * @return
+     */
+    public boolean isPaused() {
+        return this.paused;
+    }
+
+    /**
+     * Set the handler called when the queue reaches the capacity
+     *
+     * @param handler   the handler
+     * @return  a reference to the current WillDispatcher instance
+     */
+    public WillDispatcher pauseHandler(Handler<Void> handler) {
+        this.pauseHandler = handler;
+        return this;
+    }
+
+    /**
+     * Set the handler called when the queue is drained to half of the capacity
+     *
+     * @param handler   the handler
+     * @return  a reference to the current WillDispatcher instance
+     */
+    public WillDispatcher resumeHandler(Handler<Void> handler) {
+        this.resumeHandler = handler;
+        return this;
+    }
+
+    /**
+     * Close the dispatcher, leaving the queued "will" information in the storage
+     */
+    public void close() {
+
+        this.metrics.queued(-this.queueDepth());
+        this.bruteDisconnections.clear();
+        this.cleanDisconnections.clear();
+        if (this.paused) {
+            this.paused = false;
+            this.metrics.paused(-1);
+        }
+    }
+
+    private void dispatch() {
+
+        // handlers called synchronously by the storage/publisher don't nest, the loop goes on
+        if (this.dispatching) {
+            return;
+        }
+        this.dispatching = true;
+
+        try {
+
+            boolean progress;
+            do {
+
+                progress = false;
+
+                // under load waiting for room in the window for a whole batch, so the reads aren't split
+                while (!this.bruteDisconnections.isEmpty() &&
+                       this.window - this.inFlight >= Math.min(this.batchSize, this.bruteDisconnections.size())) {
+                    this.dispatchWills(take(this.bruteDisconnections, Math.min(this.batchSize, this.window - this.inFlight)));
+                    progress = true;
+                }
+
+                // clean disconnections only when there are no wills to publish
+                if (this.bruteDisconnections.isEmpty() && !this.cleanDisconnections.isEmpty() && !this.deleting) {
+                    this.deleteWills(take(this.cleanDisconnections, this.batchSize));
+                    progress = true;
+                }
+
+            } while (progress);
+
+        } finally {
+            this.dispatching = false;
+        }
+
+        this.checkCapacity();
+    }
+
+    private void dispatchWills(Map<String, Long> disconnections) {
+
+        this.inFlight += disconnections.size();
+        this.metrics.queued(-disconnections.size());
+        this.metrics.inFlight(disconnections.size());
+
+        this.lwtStorage.getAndDeleteAll(disconnections.keySet(), done -> {
+
+            if (done.failed()) {
+
+                LOG.error("Error reading wills for {} clients", disconnections.size(), done.cause());
+                this.completed(disconnections.size());
+                return;
+            }
+
+            Map<String, AmqpWillMessage> wills = done.result();
+
+            // clients without "will" have nothing to publish
+            this.completed(disconnections.size() - wills.size());
+
+            wills.forEach((clientId, willMessage) -> {
+
+                this.publisher.publish(clientId, willMessage, this.withTimeout(clientId, ar -> {
+
+                    if (ar.succeeded()) {
+
+                        LOG.debug("Published will message for client {}", clientId);
+                        this.metrics.willPublished(System.nanoTime() - disconnections.get(clientId));
+
+                    } else {
+
+                        this.metrics.willFailed();
+
+                        // will message restored, unless the client has already sent a new one in the meantime
+                        this.lwtStorage.add(clientId, willMessage, ar1 -> {
+
+                            LOG.info("Restored will for client {} not published", clientId);
+                        });
+                    }
+                    this.completed(1);
+                }));
+            });
+        });
+    }
+
+    /**
+     * Handler called just once, with the publish result or with a failure after the publish timeout
+     *
+     * @param clientId  client identifier
+     * @param handler   handler of the publish result
+     * @return  the handler to pass to the publisher
+     */
+    private Handler<AsyncResult<Void>> withTimeout(String clientId, Handler<AsyncResult<Void>> handler) {
+
+        if (this.publishTimeout <= 0) {
+            return handler;
+        }
+
+        boolean[] completed = new boolean[1];
+        long timerId = this.vertx.setTimer(this.publishTimeout, t -> {
+
+            completed[0] = true;
+            LOG.warn("Will message for client {} not published in {} ms", clientId, this.publishTimeout);
+            handler.handle(Future.failedFuture(String.format("Will message not published in %d ms", this.publishTimeout)));
+        });
+
+        return ar -> {
+            if (!completed[0]) {
+                completed[0] = true;
+                this.vertx.cancelTimer(timerId);
+                handler.handle(ar);
+            }
+        };
+    }
+
+    private void deleteWills(Map<String, Long> disconnections) {
+
+        this.deleting = true;
+        this.metrics.queued(-disconnections.size());
+
+        this.lwtStorage.removeAll(disconnections.keySet(), done -> {
+
+            if (done.succeeded()) {
+                LOG.debug("Deleted wills for {} clients", done.result());
+                this.metrics.willsDeleted(done.result());
+            } else {
+                LOG.error("Error deleting wills for {} clients", disconnections.size(), done.cause());
+            }
+            this.deleting = false;
+            this.dispatch();
+        });
+    }
+
+    private void completed(int count) {
+
+        if (count > 0) {
+            this.inFlight -= count;
+            this.metrics.inFlight(-count);
+            this.dispatch();
+        }
+    }
+
+    private void checkCapacity() {
+
+        int depth = this.queueDepth();
+        if (!this.paused && depth >= this.capacity) {
+
+            LOG.warn("Will dispatch queue full ({} disconnections), stop granting credits", depth);
+            this.paused = true;
+            this.metrics.paused(1);
+            if (this.pauseHandler != null) {
+                this.pauseHandler.handle(null);
+            }
+
+        } else if (this.paused && depth <= this.capacity / 2) {
+
+            LOG.info("Will dispatch queue drained ({} disconnections), granting credits", depth);
+            this.paused = false;
+            this.metrics.paused(-1);
+            if (this.resumeHandler != null) {
+                this.resumeHandler.handle(null);
+            }
+        }
+    }
+
+    private static Map<String, Long> take(LinkedHashMap<String, Long> disconnections, int count) {
+
+        Map<String, Long> taken = new LinkedHashMap<>(count * 2);
+        Iterator<Map.Entry<String, Long>> iterator = disconnections.entrySet().iterator();
+        while (taken.size() < count && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            taken.put(entry.getKey(), entry.getValue());
+            iterator.remove();
+        }
+        return taken;
+    }
+}
@@ -18,6 +18,7 @@ package enmasse.mqtt.endpoints;
 
 import enmasse.mqtt.DisconnectionData;
 import enmasse.mqtt.WillData;
+import enmasse.mqtt.lwt.LwtPartitions;
 import enmasse.mqtt.messages.AmqpWillMessage;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
@@ -32,6 +33,9 @@ import org.apache.qpid.proton.message.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 /**
  * LWT endpoint
  */
@@ -40,20 +44,44 @@ public class AmqpLwtEndpoint {
     private static final Logger LOG = LoggerFactory.getLogger(AmqpLwtEndpoint.class);
 
     public static final int AMQP_WILL_CREDITS = 1;
-    public static final String LWT_SERVICE_ENDPOINT = "$lwt";
+    public static final String LWT_SERVICE_ENDPOINT = LwtPartitions.LWT_SERVICE_ENDPOINT;
 
     private ProtonConnection connection;
 
+    // partition of the client identifiers owned by the endpoint
+    private final int partition;
+    private final int partitions;
+    private final String address;
+
     private Handler<WillData> willHandler;
     private Handler<DisconnectionData> disconnectionHandler;
 
+    // when paused, credits aren't granted to the clients
+    private boolean paused;
+    // receivers waiting for a credit while paused
+    private final Set<ProtonReceiver> stalledReceivers = new LinkedHashSet<>();
+
     /**
      * Constructor
      *
      * @param connection    ProtonConnection instance
      */
     public AmqpLwtEndpoint(ProtonConnection connection) {
+        this(connection, 0, 1);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param connection    ProtonConnection instance
+     * @param partition partition of the client identifiers owned by the endpoint
+     * @param partitions    number of partitions
+     */
+    public AmqpLwtEndpoint(ProtonConnection connection, int partition, int partitions) {
         this.connection = connection;
+        this.partition = partition;
+        this.partitions = partitions;
+        this.address = LwtPartitions.address(partition, partitions);
     }
 
     /**
@@ -72,6 +100,29 @@ public class AmqpLwtEndpoint {
                 .open();
     }
 
+    /**
+     * Stop granting credits to the clients, for sending new "will" messages
+     * or attaching new links
+     */
+    public void pause() {
+        this.paused = true;
+    }
+
+    /**
+     * Grant credits to the clients again, to the ones waiting for them first
+     */
+    public void resume() {
+
+        this.paused = false;
+
+        for (ProtonReceiver receiver : this.stalledReceivers) {
+            if (receiver.isOpen()) {
+                receiver.flow(AMQP_WILL_CREDITS);
+            }
+        }
+        this.stalledReceivers.clear();
+    }
+
     /**
      * Close the endpoint, closing the connection
      */
@@ -87,14 +138,23 @@ public class AmqpLwtEndpoint {
 
         LOG.info("Attaching link request");
 
-        // the LWT service supports only the control address
-        if (!receiver.getRemoteTarget().getAddress().equals(LWT_SERVICE_ENDPOINT)) {
+        // the LWT service supports only the control address (of the partition)
+        if (!receiver.getRemoteTarget().getAddress().equals(this.address)) {
 
             ErrorCondition errorCondition =
                     new ErrorCondition(AmqpError.NOT_FOUND, "The provided address isn't supported");
 
             receiver.setCondition(errorCondition)
                     .close();
+
+        // the client "will" would be stored in the wrong partition (different partitions on the sender side)
+        } else if (LwtPartitions.partition(receiver.getName(), this.partitions) != this.partition) {
+
+            ErrorCondition errorCondition =
+                    new ErrorCondition(AmqpError.NOT_ALLOWED, "The client isn't owned by this partition");
+
+            receiver.setCondition(errorCondition)
+                    .close();
         } else {
 
             receiver.setTarget(receiver.getRemoteTarget())
@@ -111,7 +171,7 @@ public class AmqpLwtEndpoint {
                     .setPrefetch(0)
                     .open();
 
-            receiver.flow(AMQP_WILL_CREDITS);
+            this.flow(receiver);
         }
     }
 
@@ -130,7 +190,7 @@ public class AmqpLwtEndpoint {
 
             // NOTE : after receiving the AMQP_WILL, a new credit is issued because
             //        with AMQP we want to change the "will" message during the client life
-            receiver.flow(AMQP_WILL_CREDITS);
+            this.flow(receiver);
 
         } catch (IllegalArgumentException ex) {
 
@@ -165,12 +225,22 @@ public class AmqpLwtEndpoint {
         }
 
         receiver.close();
+        this.stalledReceivers.remove(receiver);
 
         if (this.disconnectionHandler != null) {
             this.disconnectionHandler.handle(new DisconnectionData(receiver.getName(), ar.failed()));
         }
     }
 
+    private void flow(ProtonReceiver receiver) {
+
+        if (this.paused) {
+            this.stalledReceivers.add(receiver);
+        } else {
+            receiver.flow(AMQP_WILL_CREDITS);
+        }
+    }
+
     /**
      * Set the handler called when an AMQP_WILL message is received on the endpoint
      *
@@ -17,34 +17,68 @@
 package enmasse.mqtt.endpoints;
 
 import enmasse.mqtt.messages.AmqpPublishMessage;
-import io.netty.handler.codec.mqtt.MqttQoS;
 import io.vertx.core.AsyncResult;
-import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.proton.ProtonConnection;
 import io.vertx.proton.ProtonDelivery;
-import io.vertx.proton.ProtonQoS;
-import io.vertx.proton.ProtonSender;
-import org.apache.qpid.proton.amqp.messaging.Accepted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 /**
- * Publisher endpoint
+ * Publisher endpoint.
+ *
+ * The links for publishing the will messages are cached by topic and reused, so a burst of
+ * brute disconnections with wills on the same topics doesn't attach and detach a link
+ * for every will. The least recently used links are detached when the max number of
+ * publishers is reached or when they are not used for the idle timeout
  */
 public class AmqpPublishEndpoint {
 
     private static final Logger LOG = LoggerFactory.getLogger(AmqpPublishEndpoint.class);
 
+    public static final int DEFAULT_MAX_PUBLISHERS = 1000;
+    public static final long DEFAULT_PUBLISHER_IDLE_TIMEOUT = 60000; // in ms
+
     private ProtonConnection connection;
 
+    // links for publishing message on topic (topic -> publisher), in access order (LRU first)
+    private final LinkedHashMap<String, AmqpPublisher> publishers = new LinkedHashMap<>(16, 0.75f, true);
+
+    // max number of cached publishers (0 for no limit)
+    private final int maxPublishers;
+    // time after which an unused publisher is detached (in ns, 0 for no timeout)
+    private final long publisherIdleTimeout;
+
+    // publishers cache statistics
+    private long hits;
+    private long misses;
+    private long evictions;
+
     /**
      * Constructor
      *
      * @param connection    ProtonConnection instance
      */
     public AmqpPublishEndpoint(ProtonConnection connection) {
+        this(connection, DEFAULT_MAX_PUBLISHERS, DEFAULT_PUBLISHER_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param connection    ProtonConnection instance
+     * @param maxPublishers max number of cached publishers (0 for no limit)
+     * @param publisherIdleTimeout  time after which an unused publisher is detached (in ms, 0 for no timeout)
+     */
+    public AmqpPublishEndpoint(ProtonConnection connection, int maxPublishers, long publisherIdleTimeout) {
         this.connection = connection;
+        this.maxPublishers = maxPublishers;
+        this.publisherIdleTimeout = TimeUnit.MILLISECONDS.toNanos(publisherIdleTimeout);
     }
 
     /**
@@ -68,42 +102,64 @@ public class AmqpPublishEndpoint {
 
         LOG.info("Will ready for publishing on topic [{}]", amqpPublishMessage.topic());
 
-        // use sender for QoS 0/1 messages
-        if (amqpPublishMessage.qos() != MqttQoS.EXACTLY_ONCE) {
-
-            ProtonSender sender = this.connection.createSender(amqpPublishMessage.topic());
-
-            sender.setQoS(ProtonQoS.AT_LEAST_ONCE)
-                  .open();
-
-            if (amqpPublishMessage.qos() == MqttQoS.AT_MOST_ONCE) {
+        this.publisher(amqpPublishMessage.topic()).send(amqpPublishMessage, handler);
+    }
 
-                sender.send(amqpPublishMessage.toAmqp());
-                sender.close();
-                LOG.info("AMQP published on {}", amqpPublishMessage.topic());
+    /**
+     * Detach the publishers not used for more than the idle timeout
+     *
+     * @param now   current time in ns
+     */
+    public void evictIdlePublishers(long now) {
 
-                handler.handle(Future.succeededFuture(null));
+        if (this.publisherIdleTimeout <= 0) {
+            return;
+        }
 
-            } else {
+        // access ordered, so the least recently used publishers come first
+        Iterator<Map.Entry<String, AmqpPublisher>> iterator = this.publishers.entrySet().iterator();
+        while (iterator.hasNext()) {
 
-                sender.send(amqpPublishMessage.toAmqp(), delivery -> {
+            Map.Entry<String, AmqpPublisher> entry = iterator.next();
+            if (now - entry.getValue().lastUsed() < this.publisherIdleTimeout) {
+                break;
+            }
+            if (!entry.getValue().isInFlight()) {
+                this.evict(iterator, entry);
+            }
+        }
+    }
 
-                    if (delivery.getRemoteState() == Accepted.getInstance()) {
-                        LOG.info("AMQP publish delivery {}", delivery.getRemoteState());
-                        handler.handle(Future.succeededFuture(delivery));
-                    } else {
-                        handler.handle(Future.failedFuture(String.format("AMQP publish delivery %s", delivery.getRemoteState())));
-                    }
+    /**
+     * Number of publishers currently cached
+     * @return
+     */
+    public int publishersCount() {
+        return this.publishers.size();
+    }
 
-                    sender.close();
-                });
-            }
+    /**
+     * Number of publishes for which the publisher was already cached
+     * @return
+     */
+    public long hits() {
+        return this.hits;
+    }
 
-        // use sender for QoS 2 messages
-        } else {
+    /**
+     * Number of publishes for which the publisher had to be attached
+     * @return
+     */
+    public long misses() {
+        return this.misses;
+    }
 
-            // TODO
-        }
+    /**
+     * Number of publishers detached because of max number or idle timeout reached
+     * @return
+     */
+    public long evictions() {
+        return this.evictions;
     }
 
     /**
@@ -111,9 +167,61 @@ public class AmqpPublishEndpoint {
      */
     public void close() {
 
-        // TODO : check what to close other than connection while this class evolves
+        this.publishers.values().forEach(AmqpPublisher::close);
+        this.publishers.clear();
+
         if (this.connection != null) {
             this.connection.close();
         }
     }
+
+    /**
+     * Get the publisher for a topic from the cache, creating it if it doesn't exist.
+     * If the max number of publishers is reached, the least recently used one
+     * (without messages in flight) is detached
+     *
+     * @param topic topic for which getting the publisher
+     * @return  the publisher
+     */
+    private AmqpPublisher publisher(String topic) {
+
+        AmqpPublisher publisher = this.publishers.get(topic);
+        if (publisher != null) {
+            this.hits++;
+        } else {
+
+            this.misses++;
+            if (this.maxPublishers > 0 && this.publishers.size() >= this.maxPublishers) {
+
+                Iterator<Map.Entry<String, AmqpPublisher>> iterator = this.publishers.entrySet().iterator();
+                while (iterator.hasNext()) {
+
+                    Map.Entry<String, AmqpPublisher> entry = iterator.next();
+                    if (!entry.getValue().isInFlight()) {
+                        this.evict(iterator, entry);
+                        break;
+                    }
+                }
+            }
+
+            // a link detached by the remote peer is attached again on the next will
+            publisher = new AmqpPublisher(this.connection, topic).closeHandler(closed -> {
+                if (this.publishers.get(topic) == closed) {
+                    this.publishers.remove(topic);
+                }
+            });
+            this.publishers.put(topic, publisher);
+        }
+
+        publisher.touch(System.nanoTime());
+        return publisher;
+    }
+
+    private void evict(Iterator<Map.Entry<String, AmqpPublisher>> iterator, Map.Entry<String, AmqpPublisher> entry) {
+
+        iterator.remove();
+        entry.getValue().close();
+        this.evictions++;
+        LOG.debug("AMQP publisher on {} detached", entry.getKey());
+    }
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.endpoints;
+
+import enmasse.mqtt.messages.AmqpPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.proton.ProtonConnection;
+import io.vertx.proton.ProtonDelivery;
+import io.vertx.proton.ProtonQoS;
+import io.vertx.proton.ProtonSender;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AMQP publisher on a will topic.
+ *
+ * The QoS 1/2 wills are sent on an unsettled link, the QoS 0 ones pre-settled on a link with
+ * the AT_MOST_ONCE settle mode : each link is attached on the first will published with that
+ * settle mode, so most of the topics have just one of them
+ */
+public class AmqpPublisher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AmqpPublisher.class);
+
+    private final ProtonConnection connection;
+    private final String topic;
+
+    private ProtonSender sender;
+    private ProtonSender senderPresettled;
+
+    // sent messages waiting for disposition/settlement, with the related handlers
+    private final Map<ProtonDelivery, Handler<AsyncResult<ProtonDelivery>>> inFlight = new LinkedHashMap<>();
+
+    // last time (in ns) the publisher was used
+    private long lastUsed;
+
+    private Handler<AmqpPublisher> closeHandler;
+    private boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param connection    ProtonConnection instance on which attaching the links
+     * @param topic topic/address on which publishing
+     */
+    public AmqpPublisher(ProtonConnection connection, String topic) {
+        this.connection = connection;
+        this.topic = topic;
+    }
+
+    /**
+     * Send a will message, attaching the link if it doesn't exist yet
+     *
+     * @param amqpPublishMessage    AMQP_PUBLISH message
+     * @param handler   handler called when the message is accepted (QoS 1/2) or sent (QoS 0)
+     */
+    public void send(AmqpPublishMessage amqpPublishMessage, Handler<AsyncResult<ProtonDelivery>> handler) {
+
+        if (amqpPublishMessage.qos() == MqttQoS.AT_MOST_ONCE) {
+
+            if (this.senderPresettled == null) {
+                this.senderPresettled = this.attach(ProtonQoS.AT_MOST_ONCE);
+            }
+            this.senderPresettled.send(amqpPublishMessage.toAmqp());
+            handler.handle(Future.succeededFuture(null));
+
+        } else {
+
+            if (this.sender == null) {
+                // TODO: Vert.x Proton doesn't support EXACTLY_ONCE, the QoS 2 wills are settled
+                // as soon as they are accepted because there is no MQTT client for the PUBREL
+                this.sender = this.attach(ProtonQoS.AT_LEAST_ONCE);
+            }
+            ProtonDelivery sent = this.sender.send(amqpPublishMessage.toAmqp(), delivery -> {
+
+                if (this.inFlight.remove(delivery) == null) {
+                    // already failed by the link detach
+                    return;
+                }
+                if (delivery.getRemoteState() == Accepted.getInstance()) {
+                    LOG.info("AMQP publish delivery {}", delivery.getRemoteState());
+                    handler.handle(Future.succeededFuture(delivery));
+                } else {
+                    handler.handle(Future.failedFuture(String.format("AMQP publish delivery %s", delivery.getRemoteState())));
+                }
+            });
+            this.inFlight.put(sent, handler);
+        }
+    }
+
+    /**
+     * Set the handler called when a link is detached by the remote peer, after failing the
+     * messages in flight
+     *
+     * @param handler   the handler
+     * @return  current AmqpPublisher instance
+     */
+    public AmqpPublisher closeHandler(Handler<AmqpPublisher> handler) {
+        this.closeHandler = handler;
+        return this;
+    }
+
+    /**
+     * Close and detach the links, failing the messages in flight
+     */
+    public void close() {
+
+        this.closed = true;
+        this.failInFlight(String.format("AMQP publisher on %s closed", this.topic));
+
+        if (this.sender != null && this.sender.isOpen()) {
+            this.sender.close();
+        }
+
+        if (this.senderPresettled != null && this.senderPresettled.isOpen()) {
+            this.senderPresettled.close();
+        }
+    }
+
+    /**
+     * Mark the publisher as used
+     *
+     * @param now   current time in ns
+     */
+    public void touch(long now) {
+        this.lastUsed = now;
+    }
+
+    /**
+     * Last time (in ns) the publisher was used
+     * @return
+     */
+    public long lastUsed() {
+        return this.lastUsed;
+    }
+
+    /**
+     * If there are sent messages waiting for disposition/settlement, so links can't be detached
+     * @return
+     */
+    public boolean isInFlight() {
+        return !this.inFlight.isEmpty();
+    }
+
+    private ProtonSender attach(ProtonQoS qos) {
+
+        // NOTE : detached by the publishers cache when not used for the idle timeout
+        ProtonSender sender = this.connection.createSender(this.topic);
+        sender.setQoS(qos)
+                .closeHandler(done -> {
+
+                    if (this.closed) {
+                        // the remote peer answering to the local detach
+                        return;
+                    }
+                    String cause = done.failed() ? done.cause().getMessage() : "no error";
+                    LOG.debug("AMQP publisher on {} detached by the remote peer ({})", this.topic, cause);
+                    this.failInFlight(String.format("AMQP publisher on %s detached : %s", this.topic, cause));
+                    this.close();
+                    if (this.closeHandler != null) {
+                        this.closeHandler.handle(this);
+                    }
+                })
+                .open();
+        return sender;
+    }
+
+    private void failInFlight(String cause) {
+
+        // the handlers release the wills to the dispatcher, so it doesn't wait for them anymore
+        List<Handler<AsyncResult<ProtonDelivery>>> handlers = new ArrayList<>(this.inFlight.values());
+        this.inFlight.clear();
+        handlers.forEach(handler -> handler.handle(Future.failedFuture(cause)));
+    }
+}
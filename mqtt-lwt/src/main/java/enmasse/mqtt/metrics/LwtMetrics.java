@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.metrics;
+
+import enmasse.metrics.LatencyHistogram;
+import enmasse.metrics.PrometheusMetrics;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the MQTT LWT service, shared by all the verticle instances.
+ * Values are recorded on the event loops with striped counters and read only on scraping
+ */
+@Component
+public class LwtMetrics implements PrometheusMetrics {
+
+    private static final String PREFIX = "enmasse_mqtt_lwt_";
+
+    private final LatencyHistogram dispatchLatency =
+            new LatencyHistogram(PREFIX + "dispatch_seconds", "Time from a brute disconnection to the will published");
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder paused = new LongAdder();
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+
+    /**
+     * Update the number of disconnections waiting for dispatch
+     *
+     * @param delta number of disconnections queued (positive) or dispatched (negative)
+     */
+    public void queued(int delta) {
+        this.queued.add(delta);
+    }
+
+    /**
+     * Update the number of wills read from the storage and not published yet
+     *
+     * @param delta number of wills dispatched (positive) or completed (negative)
+     */
+    public void inFlight(int delta) {
+        this.inFlight.add(delta);
+    }
+
+    /**
+     * Update the number of dispatch queues not granting credits to the clients
+     *
+     * @param delta number of queues paused (positive) or resumed (negative)
+     */
+    public void paused(int delta) {
+        this.paused.add(delta);
+    }
+
+    /**
+     * Record a will published after a brute disconnection
+     *
+     * @param nanos time from the disconnection in ns
+     */
+    public void willPublished(long nanos) {
+        this.published.increment();
+        this.dispatchLatency.record(nanos);
+    }
+
+    /**
+     * Record a will not published, restored in the storage
+     */
+    public void willFailed() {
+        this.failed.increment();
+    }
+
+    /**
+     * Record wills deleted after clean disconnections
+     *
+     * @param count number of wills deleted
+     */
+    public void willsDeleted(int count) {
+        this.deleted.add(count);
+    }
+
+    /**
+     * Write all the metrics in the Prometheus text format
+     *
+     * @return  metrics text
+     */
+    @Override
+    public String scrape() {
+
+        StringBuilder out = new StringBuilder(2048);
+
+        gauge(out, "dispatch_queue_depth", "Disconnections waiting for the will dispatch", this.queued);
+        gauge(out, "dispatch_inflight", "Wills read from the storage and not published yet", this.inFlight);
+        gauge(out, "dispatch_paused", "Dispatch queues not granting credits to the clients", this.paused);
+
+        this.dispatchLatency.writeTo(out);
+
+        counter(out, "wills_published_total", "Wills published after a brute disconnection", this.published);
+        counter(out, "wills_failed_total", "Wills not published and restored in the storage", this.failed);
+        counter(out, "wills_deleted_total", "Wills deleted after a clean disconnection", this.deleted);
+
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, LongAdder value) {
+
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(" gauge\n");
+        out.append(PREFIX).append(name).append(' ').append(value.sum()).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, LongAdder value) {
+
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(" counter\n");
+        out.append(PREFIX).append(name).append(' ').append(value.sum()).append('\n');
+    }
+}
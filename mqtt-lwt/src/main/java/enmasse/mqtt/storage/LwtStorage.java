@@ -20,11 +20,24 @@ import enmasse.mqtt.messages.AmqpWillMessage;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * LWT Storage Service interface
  */
 public interface LwtStorage {
 
+    /**
+     * Set the partition of the client identifiers for which the storage keeps the "will"
+     * information, apart from the other partitions. Storages not shared by more instances
+     * are already apart, so by default it does nothing
+     *
+     * @param partition partition of the client identifiers
+     */
+    default void setPartition(int partition) {
+    }
+
     /**
      * Open and connect to the storage service
      *
@@ -66,6 +79,49 @@ public interface LwtStorage {
      */
     void delete(String clientId, Handler<AsyncResult<Integer>> handler);
 
+    /**
+     * Store the provided "will" information, replacing the current one (if any)
+     * in a single operation
+     *
+     * @param clientId  client identifier for the "will" information
+     * @param willMessage   "will" information to store
+     * @param handler   handler called with the result code
+     */
+    void upsert(String clientId, AmqpWillMessage willMessage, Handler<AsyncResult<Integer>> handler);
+
+    /**
+     * Get and delete "will" information for the specified client in a single operation
+     *
+     * @param clientId  client identifier for which getting and deleting "will" information
+     * @param handler   handler called with the "will" information deleted
+     */
+    void getAndDelete(String clientId, Handler<AsyncResult<AmqpWillMessage>> handler);
+
+    /**
+     * Store the provided "will" information for more clients, replacing the current ones (if any)
+     *
+     * @param wills "will" information to store, by client identifier
+     * @param handler   handler called with the number of stored "will" information
+     */
+    void putAll(Map<String, AmqpWillMessage> wills, Handler<AsyncResult<Integer>> handler);
+
+    /**
+     * Delete "will" information for more clients, ignoring the clients without it
+     *
+     * @param clientIds client identifiers for which deleting "will" information
+     * @param handler   handler called with the number of deleted "will" information
+     */
+    void removeAll(Collection<String> clientIds, Handler<AsyncResult<Integer>> handler);
+
+    /**
+     * Get and delete "will" information for more clients in a single operation,
+     * ignoring the clients without it
+     *
+     * @param clientIds client identifiers for which getting and deleting "will" information
+     * @param handler   handler called with the "will" information deleted, by client identifier
+     */
+    void getAndDeleteAll(Collection<String> clientIds, Handler<AsyncResult<Map<String, AmqpWillMessage>>> handler);
+
     /**
      * Close and disconnect from the storage service
      */
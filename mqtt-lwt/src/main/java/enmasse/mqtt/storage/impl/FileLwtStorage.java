@@ -0,0 +1,1025 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.storage.impl;
+
+import enmasse.mqtt.messages.AmqpWillMessage;
+import enmasse.mqtt.storage.LwtStorage;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File based implementation of the LWT Storage service, surviving the service restarts.
+ *
+ * Every change is appended to a log of checksummed records, split in segments, while an
+ * in memory index keeps the log location of the current "will" of every client. The sealed
+ * segments are compacted (copying just the live records) when their garbage is more than
+ * the live records, so the log size stays proportional to the stored "will" information.
+ * The compaction writes a hint file with the index entries of the compacted segment, so on
+ * startup the index is rebuilt from the hint files and only the segments written after the
+ * last compaction are read (a torn record at the end of the log is truncated). A marker file
+ * commits every compaction before the replaced segments are deleted, so a compaction
+ * interrupted by a crash is completed on startup.
+ *
+ * All the operations are executed in order by a dedicated storage thread : the records of
+ * the operations queued at same time are written together and, with the BATCH sync mode,
+ * share the same fsync. The handlers are called on the Vert.x context of the caller
+ */
+@Component
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+@ConditionalOnProperty(name = "enmasse.mqtt.lwt.storage", havingValue = "file")
+public class FileLwtStorage implements LwtStorage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileLwtStorage.class);
+
+    public static final String DEFAULT_DIRECTORY = "./lwt-storage";
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL = 1000; // in ms
+
+    // max operations executed before writing (and syncing) their records
+    private static final int MAX_BATCH = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long POLL_TIMEOUT = 1000; // in ms
+    private static final long CLOSE_TIMEOUT = 10000; // in ms
+
+    private Path directory = Paths.get(DEFAULT_DIRECTORY);
+    private SyncMode syncMode = SyncMode.BATCH;
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    private final BlockingQueue<Runnable> operations = new LinkedBlockingQueue<>();
+    private Thread thread;
+    private ExecutorService compactor;
+
+    // NOTE : all the following state is confined to the storage thread
+
+    private boolean running;
+    // I/O error on writing the log, the storage can't be used anymore
+    private IOException failure;
+
+    // client identifier -> location of the record with its "will" information
+    private final Map<String, Location> index = new HashMap<>();
+    private final NavigableMap<Long, LogSegment> segments = new TreeMap<>();
+    private LogSegment active;
+
+    // records appended to the active segment and not written yet, with the operations to complete then
+    private final List<ByteBuffer> pendingRecords = new ArrayList<>();
+    private final List<Runnable> pendingCompletions = new ArrayList<>();
+    private boolean appended;
+    private boolean dirty;
+    private long lastSync;
+
+    private boolean compacting;
+    // compactions requested while another one is running
+    private final List<Runnable> waitingCompactions = new ArrayList<>();
+    // active segment when the last compaction failed, not retried until the next one
+    private long failedCompaction = -1;
+
+    /**
+     * Location of a record in the log
+     */
+    private static final class Location {
+
+        private final long segment;
+        private final long offset;
+        private final int size;
+
+        private Location(long segment, long offset, int size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Operation executed by the storage thread
+     *
+     * @param <T>   type of the operation result
+     */
+    @FunctionalInterface
+    private interface Operation<T> {
+
+        AsyncResult<T> execute() throws IOException;
+    }
+
+    @Override
+    public synchronized void open(Handler<AsyncResult<Void>> handler) {
+
+        Context context = Vertx.currentContext();
+
+        // the storage could be shared by more verticle instances, just the first one opens it
+        if (this.thread == null) {
+
+            this.running = true;
+            this.failure = null;
+            this.index.clear();
+            this.segments.clear();
+
+            this.compactor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "lwt-storage-compactor"));
+            this.thread = new Thread(this::run, "lwt-storage");
+            this.thread.start();
+
+            this.operations.add(() -> {
+
+                long start = System.nanoTime();
+                try {
+                    this.recover();
+                    LOG.info("LWT storage recovered {} wills from {} in {} ms", this.index.size(), this.directory,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                } catch (IOException e) {
+                    LOG.error("Error recovering the LWT storage from {}", this.directory, e);
+                    this.failure = e;
+                }
+            });
+        }
+
+        this.operations.add(() -> complete(context, handler,
+                (this.failure == null) ? Future.succeededFuture() : Future.failedFuture(this.failure)));
+    }
+
+    @Override
+    public void add(String clientId, AmqpWillMessage willMessage, Handler<AsyncResult<Integer>> handler) {
+
+        this.execute(handler, () -> {
+
+            if (this.index.containsKey(clientId)) {
+                LOG.warn("Will already existing for the client {}", clientId);
+                return Future.failedFuture(new IllegalArgumentException("Will already existing for the client"));
+            }
+            this.append(clientId, WillRecord.put(clientId, willMessage), true);
+            LOG.debug("Will added for the client {}", clientId);
+            return Future.succeededFuture();
+        });
+    }
+
+    @Override
+    public void get(String clientId, Handler<AsyncResult<AmqpWillMessage>> handler) {
+
+        this.execute(handler, () -> {
+
+            Location location = this.index.get(clientId);
+            if (location == null) {
+                LOG.warn("No will for the client {}", clientId);
+                return Future.failedFuture(new IllegalArgumentException("No will for the client"));
+            }
+            AmqpWillMessage willMessage = this.read(location).willMessage();
+            LOG.debug("Will retrieved for the client {}", clientId);
+            return Future.succeededFuture(willMessage);
+        });
+    }
+
+    @Override
+    public void update(String clientId, AmqpWillMessage willMessage, Handler<AsyncResult<Integer>> handler) {
+
+        this.execute(handler, () -> {
+
+            if (!this.index.containsKey(clientId)) {
+                LOG.warn("No will for the client {}", clientId);
+                return Future.failedFuture(new IllegalArgumentException("No will for the client"));
+            }
+            this.append(clientId, WillRecord.put(clientId, willMessage), true);
+            LOG.debug("Will updated for the client {}", clientId);
+            return Future.succeededFuture();
+        });
+    }
+
+    @Override
+    public void delete(String clientId, Handler<AsyncResult<Integer>> handler) {
+
+        this.execute(handler, () -> {
+
+            if (!this.index.containsKey(clientId)) {
+                LOG.warn("No will for the client {}", clientId);
+                return Future.failedFuture(new IllegalArgumentException("No will for the client"));
+            }
+            this.append(clientId, WillRecord.delete(clientId), false);
+            LOG.debug("Will deleted for the client {}", clientId);
+            return Future.succeededFuture();
+        });
+    }
+
+    @Override
+    public void upsert(String clientId, AmqpWillMessage willMessage, Handler<AsyncResult<Integer>> handler) {
+
+        this.execute(handler, () -> {
+
+            this.append(clientId, WillRecord.put(clientId, willMessage), true);
+            LOG.debug("Will stored for the client {}", clientId);
+            return Future.succeededFuture();
+        });
+    }
+
+    @Override
+    public void getAndDelete(String clientId, Handler<AsyncResult<AmqpWillMessage>> handler) {
+
+        this.execute(handler, () -> {
+
+            Location location = this.index.get(clientId);
+            if (location == null) {
+                LOG.warn("No will for the client {}", clientId);
+                return Future.failedFuture(new IllegalArgumentException("No will for the client"));
+            }
+            AmqpWillMessage willMessage = this.read(location).willMessage();
+            this.append(clientId, WillRecord.delete(clientId), false);
+            LOG.debug("Will retrieved and deleted for the client {}", clientId);
+            return Future.succeededFuture(willMessage);
+        });
+    }
+
+    @Override
+    public void putAll(Map<String, AmqpWillMessage> wills, Handler<AsyncResult<Integer>> handler) {
+
+        this.execute(handler, () -> {
+
+            wills.forEach((clientId, willMessage) -> this.append(clientId, WillRecord.put(clientId, willMessage), true));
+            LOG.debug("Wills stored for {} clients", wills.size());
+            return Future.succeededFuture(wills.size());
+        });
+    }
+
+    @Override
+    public void removeAll(Collection<String> clientIds, Handler<AsyncResult<Integer>> handler) {
+
+        this.execute(handler, () -> {
+
+            int count = 0;
+            for (String clientId : clientIds) {
+                if (this.index.containsKey(clientId)) {
+                    this.append(clientId, WillRecord.delete(clientId), false);
+                    count++;
+                }
+            }
+            LOG.debug("Wills deleted for {} clients", count);
+            return Future.succeededFuture(count);
+        });
+    }
+
+    @Override
+    public void getAndDeleteAll(Collection<String> clientIds, Handler<AsyncResult<Map<String, AmqpWillMessage>>> handler) {
+
+        this.execute(handler, () -> {
+
+            Map<String, AmqpWillMessage> wills = new HashMap<>();
+            for (String clientId : clientIds) {
+                Location location = this.index.get(clientId);
+                if (location != null) {
+                    wills.put(clientId, this.read(location).willMessage());
+                    this.append(clientId, WillRecord.delete(clientId), false);
+                }
+            }
+            LOG.debug("Wills retrieved and deleted for {} clients", wills.size());
+            return Future.succeededFuture(wills);
+        });
+    }
+
+    /**
+     * Compact the whole log, sealing the active segment
+     *
+     * @param handler   handler called when the compaction ends
+     */
+    public void compact(Handler<AsyncResult<Void>> handler) {
+
+        Context context = Vertx.currentContext();
+        this.operations.add(() -> this.compactAll(context, handler));
+    }
+
+    @Override
+    public void close() {
+
+        Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+            this.thread = null;
+        }
+
+        if (thread != null) {
+            this.operations.add(() -> this.running = false);
+            if (thread == Thread.currentThread()) {
+                // called by a handler without a Vert.x context, closing after it
+                return;
+            }
+            try {
+                thread.join(CLOSE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Set the directory of the log
+     *
+     * @param directory directory path
+     * @return  current LWT storage instance
+     */
+    @Value(value = "${enmasse.mqtt.lwt.storage.dir:" + DEFAULT_DIRECTORY + "}")
+    public FileLwtStorage setDirectory(String directory) {
+        this.directory = Paths.get(directory);
+        return this;
+    }
+
+    /**
+     * Set the partition of the client identifiers, with the log in a "partition-<partition>"
+     * directory under the storage one
+     *
+     * @param partition partition of the client identifiers
+     */
+    @Override
+    public void setPartition(int partition) {
+        this.directory = this.directory.resolve("partition-" + partition);
+    }
+
+    /**
+     * Set when the log is forced to the disk : "batch" (default) acknowledges every write after
+     * the fsync (shared by the writes queued at same time), "periodic" acknowledges the writes
+     * before the fsync done every sync interval, "none" leaves it to the OS
+     *
+     * @param syncMode  sync mode
+     * @return  current LWT storage instance
+     */
+    @Value(value = "${enmasse.mqtt.lwt.storage.sync:batch}")
+    public FileLwtStorage setSyncMode(String syncMode) {
+        this.syncMode = SyncMode.valueOf(syncMode.trim().toUpperCase());
+        return this;
+    }
+
+    /**
+     * Set the interval for forcing the log to the disk with the "periodic" sync mode
+     *
+     * @param syncInterval  sync interval in ms
+     * @return  current LWT storage instance
+     */
+    @Value(value = "${enmasse.mqtt.lwt.storage.syncinterval:" + DEFAULT_SYNC_INTERVAL + "}")
+    public FileLwtStorage setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+        return this;
+    }
+
+    /**
+     * Set the size of a log segment : when the active segment reaches it, a new one
+     * is started and the sealed segments can be compacted
+     *
+     * @param segmentSize   segment size in bytes
+     * @return  current LWT storage instance
+     */
+    @Value(value = "${enmasse.mqtt.lwt.storage.segmentsize:" + DEFAULT_SEGMENT_SIZE + "}")
+    public FileLwtStorage setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * Storage thread : executes the queued operations in batches, writing their records
+     * (and syncing the log) once for every batch
+     */
+    private void run() {
+
+        while (this.running) {
+
+            try {
+
+                Runnable operation = this.operations.poll(
+                        (this.syncMode == SyncMode.PERIODIC) ? this.syncInterval : POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+
+                for (int count = 0; operation != null; ) {
+                    operation.run();
+                    operation = (++count < MAX_BATCH) ? this.operations.poll() : null;
+                }
+
+                if (this.active != null) {
+                    this.commit();
+                    if (this.syncMode == SyncMode.PERIODIC && System.nanoTime() - this.lastSync >= TimeUnit.MILLISECONDS.toNanos(this.syncInterval)) {
+                        this.sync();
+                    }
+                    this.checkCompaction();
+                }
+
+            } catch (InterruptedException e) {
+                this.running = false;
+            } catch (RuntimeException e) {
+                LOG.error("Unexpected error in the LWT storage", e);
+            }
+        }
+
+        this.shutdown();
+    }
+
+    private <T> void execute(Handler<AsyncResult<T>> handler, Operation<T> operation) {
+
+        Context context = Vertx.currentContext();
+        this.operations.add(() -> {
+
+            if (this.failure != null) {
+                complete(context, handler, Future.failedFuture(this.failure));
+                return;
+            }
+
+            this.appended = false;
+            AsyncResult<T> result;
+            try {
+                result = operation.execute();
+            } catch (IOException e) {
+                LOG.error("Error accessing the LWT storage", e);
+                result = Future.failedFuture(e);
+            }
+
+            if (this.appended) {
+                // acknowledged when the record is written (and synced)
+                AsyncResult<T> written = result;
+                this.pendingCompletions.add(() -> complete(context, handler,
+                        (this.failure == null) ? written : Future.failedFuture(this.failure)));
+            } else {
+                complete(context, handler, result);
+            }
+        });
+    }
+
+    private static <T> void complete(Context context, Handler<AsyncResult<T>> handler, AsyncResult<T> result) {
+
+        if (context != null) {
+            context.runOnContext(v -> handler.handle(result));
+        } else {
+            handler.handle(result);
+        }
+    }
+
+    /**
+     * Append a record to the active segment (written at the end of the batch), updating the index
+     *
+     * @param clientId  client identifier
+     * @param record    encoded record
+     * @param put   if the record stores "will" information (or deletes it)
+     */
+    private void append(String clientId, ByteBuffer record, boolean put) {
+
+        int size = record.remaining();
+        this.index(clientId, put ? new Location(this.active.id(), this.active.size(), size) : null);
+        this.active.size(this.active.size() + size);
+        this.pendingRecords.add(record);
+        this.appended = true;
+    }
+
+    /**
+     * Update the index and the live bytes of the segments
+     *
+     * @param clientId  client identifier
+     * @param location  new location of the client record, null if the record was deleted
+     */
+    private void index(String clientId, Location location) {
+
+        Location previous = (location != null) ? this.index.put(clientId, location) : this.index.remove(clientId);
+        if (previous != null) {
+            this.segments.get(previous.segment).addLiveBytes(-previous.size);
+        }
+        if (location != null) {
+            this.segments.get(location.segment).addLiveBytes(location.size);
+        }
+    }
+
+    private WillRecord read(Location location) throws IOException {
+
+        // the record could be still waiting to be written
+        if (location.segment == this.active.id() && !this.pendingRecords.isEmpty()) {
+            this.write();
+        }
+        return WillRecord.read(this.segments.get(location.segment).channel(), location.offset, location.size);
+    }
+
+    /**
+     * Write the pending records (syncing the log with the BATCH sync mode) and complete
+     * the related operations
+     */
+    private void commit() {
+
+        if (!this.pendingRecords.isEmpty()) {
+            try {
+                this.write();
+                if (this.syncMode == SyncMode.BATCH) {
+                    this.sync();
+                }
+            } catch (IOException e) {
+                // already recorded as failure
+            }
+        }
+
+        if (!this.pendingCompletions.isEmpty()) {
+            this.pendingCompletions.forEach(Runnable::run);
+            this.pendingCompletions.clear();
+        }
+
+        if (this.failure == null && this.active.size() >= this.segmentSize) {
+            this.roll();
+        }
+    }
+
+    private void write() throws IOException {
+
+        ByteBuffer[] records = this.pendingRecords.toArray(new ByteBuffer[this.pendingRecords.size()]);
+        this.pendingRecords.clear();
+
+        try {
+            FileChannel channel = this.active.channel();
+            long remaining = 0;
+            for (ByteBuffer record : records) {
+                remaining += record.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(records);
+            }
+            this.dirty = true;
+        } catch (IOException e) {
+            LOG.error("Error writing the LWT storage log, the storage can't be used anymore", e);
+            this.failure = e;
+            throw e;
+        }
+    }
+
+    private void sync() {
+
+        if (this.dirty) {
+            try {
+                this.active.channel().force(false);
+                this.dirty = false;
+            } catch (IOException e) {
+                LOG.error("Error syncing the LWT storage log, the storage can't be used anymore", e);
+                this.failure = e;
+            }
+        }
+        this.lastSync = System.nanoTime();
+    }
+
+    /**
+     * Seal the active segment and start a new one
+     */
+    private void roll() {
+
+        try {
+            if (this.syncMode != SyncMode.NONE) {
+                this.sync();
+            }
+            this.active = new LogSegment(this.directory, this.active.id() + 1).open(true);
+            this.segments.put(this.active.id(), this.active);
+            forceDirectory(this.directory);
+        } catch (IOException e) {
+            LOG.error("Error starting a new LWT storage log segment, the storage can't be used anymore", e);
+            this.failure = e;
+        }
+    }
+
+    /**
+     * Start a compaction when the garbage in the sealed segments is more than their live records
+     */
+    private void checkCompaction() {
+
+        if (this.compacting || this.failure != null || this.failedCompaction == this.active.id()) {
+            return;
+        }
+
+        long size = 0;
+        long liveBytes = 0;
+        for (LogSegment segment : this.segments.headMap(this.active.id(), false).values()) {
+            size += segment.size();
+            liveBytes += segment.liveBytes();
+        }
+        long garbage = size - liveBytes;
+        if (garbage >= this.segmentSize && garbage >= liveBytes) {
+            this.compact(null, result -> {
+                if (result.failed()) {
+                    LOG.warn("Error compacting the LWT storage log", result.cause());
+                }
+            });
+        }
+    }
+
+    private void compactAll(Context context, Handler<AsyncResult<Void>> handler) {
+
+        if (this.failure != null) {
+            complete(context, handler, Future.failedFuture(this.failure));
+        } else if (this.compacting) {
+            // started after the running one, for the segments sealed in the meantime
+            this.waitingCompactions.add(() -> this.compactAll(context, handler));
+        } else {
+            this.commit();
+            if (this.active.size() > 0) {
+                this.roll();
+            }
+            this.compact(context, handler);
+        }
+    }
+
+    private void compactionEnded() {
+
+        this.compacting = false;
+        if (!this.waitingCompactions.isEmpty()) {
+            List<Runnable> waiting = new ArrayList<>(this.waitingCompactions);
+            this.waitingCompactions.clear();
+            waiting.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * Compact all the sealed segments in a new one, taking the identifier of the most recent
+     * of them. All the deleted records and their tombstones are dropped, because no older
+     * segments are left. The copy is done by the compactor thread, then the index and the
+     * files are updated by the storage thread
+     */
+    private void compact(Context context, Handler<AsyncResult<Void>> handler) {
+
+        List<LogSegment> inputs = new ArrayList<>(this.segments.headMap(this.active.id(), false).values());
+        if (inputs.isEmpty()) {
+            complete(context, handler, Future.succeededFuture());
+            return;
+        }
+
+        long outputId = inputs.get(inputs.size() - 1).id();
+        List<Map.Entry<String, Location>> entries = new ArrayList<>();
+        for (Map.Entry<String, Location> entry : this.index.entrySet()) {
+            if (entry.getValue().segment <= outputId) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+        }
+        // copied in log order, reading the segments sequentially
+        entries.sort(Comparator.<Map.Entry<String, Location>>comparingLong(e -> e.getValue().segment)
+                .thenComparingLong(e -> e.getValue().offset));
+
+        this.compacting = true;
+        Map<Long, LogSegment> sources = new HashMap<>();
+        inputs.forEach(segment -> sources.put(segment.id(), segment));
+
+        this.compactor.execute(() -> {
+
+            Path output = LogSegment.path(this.directory, outputId, LogSegment.COMPACT_SUFFIX);
+            Path hint = LogSegment.path(this.directory, outputId, LogSegment.HINT_SUFFIX + LogSegment.TMP_SUFFIX);
+            try {
+
+                List<HintFile.Entry> hints = new ArrayList<>(entries.size());
+                long size = copy(entries, sources, output, hints);
+                HintFile.write(hint, size, hints);
+
+                this.operations.add(() -> this.swap(inputs, outputId, entries, hints, context, handler));
+
+            } catch (IOException e) {
+
+                deleteQuietly(output);
+                deleteQuietly(hint);
+                this.operations.add(() -> {
+                    if (this.active != null) {
+                        this.failedCompaction = this.active.id();
+                    }
+                    complete(context, handler, Future.failedFuture(e));
+                    this.compactionEnded();
+                });
+            }
+        });
+    }
+
+    /**
+     * Copy the live records in the compacted segment (executed by the compactor thread)
+     *
+     * @return  size of the compacted segment
+     */
+    private long copy(List<Map.Entry<String, Location>> entries, Map<Long, LogSegment> sources,
+                      Path output, List<HintFile.Entry> hints) throws IOException {
+
+        long offset = 0;
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE)) {
+
+            for (Map.Entry<String, Location> entry : entries) {
+
+                if (this.compactor.isShutdown()) {
+                    throw new IOException("LWT storage closed during the compaction");
+                }
+
+                Location location = entry.getValue();
+                ByteBuffer record;
+                try {
+                    record = WillRecord.readRaw(sources.get(location.segment).channel(), location.offset, location.size);
+                } catch (WillRecord.CorruptedRecordException e) {
+                    // a corrupted record can't be recovered, the will is lost
+                    LOG.warn("Dropping the corrupted will of the client {} on compaction", entry.getKey(), e);
+                    hints.add(null);
+                    continue;
+                }
+                out.write(record.array());
+                hints.add(new HintFile.Entry(entry.getKey(), offset, location.size));
+                offset += location.size;
+            }
+            out.flush();
+            channel.force(true);
+        }
+
+        // the hint file doesn't include the dropped records
+        hints.removeIf(hint -> hint == null);
+        return offset;
+    }
+
+    /**
+     * Replace the compacted segments with the new one (executed by the storage thread)
+     */
+    private void swap(List<LogSegment> inputs, long outputId, List<Map.Entry<String, Location>> entries,
+                      List<HintFile.Entry> hints, Context context, Handler<AsyncResult<Void>> handler) {
+
+        if (this.failure != null) {
+            complete(context, handler, Future.failedFuture(this.failure));
+            this.compactionEnded();
+            return;
+        }
+
+        try {
+
+            LogSegment compacted = new LogSegment(this.directory, outputId);
+
+            // the clients with a record changed during the compaction keep the new one
+            Map<String, HintFile.Entry> copied = new HashMap<>(hints.size() * 2);
+            hints.forEach(hint -> copied.put(hint.clientId, hint));
+            long liveBytes = 0;
+            for (Map.Entry<String, Location> entry : entries) {
+
+                if (this.index.get(entry.getKey()) == entry.getValue()) {
+                    HintFile.Entry hint = copied.get(entry.getKey());
+                    if (hint != null) {
+                        this.index.put(entry.getKey(), new Location(outputId, hint.offset, hint.size));
+                        liveBytes += hint.size;
+                    } else {
+                        this.index.remove(entry.getKey());
+                    }
+                }
+            }
+
+            // the compacted segment has no tombstones, so it replaces the older ones atomically : the
+            // swap marker commits it before any file is changed and, after a crash, the recovery
+            // completes the swap instead of replaying the older segments over it
+            inputs.forEach(LogSegment::close);
+            Files.createFile(compacted.swapPath());
+            forceDirectory(this.directory);
+            this.completeSwap(compacted);
+            inputs.forEach(input -> this.segments.remove(input.id()));
+            compacted.open(false).addLiveBytes(liveBytes);
+            this.segments.put(outputId, compacted);
+
+            LOG.info("LWT storage log compacted, {} segments in {} bytes", inputs.size(), compacted.size());
+            complete(context, handler, Future.succeededFuture());
+
+        } catch (IOException e) {
+
+            LOG.error("Error replacing the compacted LWT storage log segments, the storage can't be used anymore", e);
+            this.failure = e;
+            complete(context, handler, Future.failedFuture(e));
+        }
+        this.compactionEnded();
+    }
+
+    /**
+     * Replace the segments older than a compacted one, once its swap marker is on the disk
+     * (executed by the storage thread, also when recovering after a crash in the middle)
+     *
+     * @param compacted compacted segment
+     * @throws IOException
+     */
+    private void completeSwap(LogSegment compacted) throws IOException {
+
+        // the stale hint goes before its log is replaced, the new one is moved only if complete
+        Path output = LogSegment.path(this.directory, compacted.id(), LogSegment.COMPACT_SUFFIX);
+        Path hint = LogSegment.path(this.directory, compacted.id(), LogSegment.HINT_SUFFIX + LogSegment.TMP_SUFFIX);
+        if (Files.exists(output)) {
+            Files.deleteIfExists(compacted.hintPath());
+            Files.move(output, compacted.path(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (Files.exists(hint)) {
+            Files.move(hint, compacted.hintPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + LogSegment.LOG_SUFFIX)) {
+
+            for (Path file : files) {
+                long id = LogSegment.id(file.getFileName().toString());
+                if (id >= 0 && id < compacted.id()) {
+                    LogSegment input = new LogSegment(this.directory, id);
+                    Files.deleteIfExists(input.hintPath());
+                    Files.delete(input.path());
+                }
+            }
+        }
+        forceDirectory(this.directory);
+
+        Files.delete(compacted.swapPath());
+        forceDirectory(this.directory);
+    }
+
+    /**
+     * Rebuild the index from the log (executed by the storage thread when opening)
+     */
+    private void recover() throws IOException {
+
+        Files.createDirectories(this.directory);
+
+        // a compaction committed but interrupted by a crash
+        List<Long> swaps = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + LogSegment.SWAP_SUFFIX)) {
+
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                swaps.add(Long.parseLong(name.substring(0, name.length() - LogSegment.SWAP_SUFFIX.length())));
+            }
+        }
+        Collections.sort(swaps);
+        for (long id : swaps) {
+            LOG.info("Completing the interrupted compaction of the LWT storage log segment {}", id);
+            this.completeSwap(new LogSegment(this.directory, id));
+        }
+
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+
+            for (Path file : files) {
+
+                String name = file.getFileName().toString();
+                if (name.endsWith(LogSegment.COMPACT_SUFFIX) || name.endsWith(LogSegment.TMP_SUFFIX)) {
+                    // left by an interrupted compaction
+                    Files.delete(file);
+                } else {
+                    long id = LogSegment.id(name);
+                    if (id >= 0) {
+                        ids.add(id);
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        for (int i = 0; i < ids.size(); i++) {
+
+            boolean last = (i == ids.size() - 1);
+            LogSegment segment = new LogSegment(this.directory, ids.get(i)).open(last);
+            this.segments.put(segment.id(), segment);
+
+            List<HintFile.Entry> hints = HintFile.read(segment.hintPath(), segment.size());
+            if (hints != null) {
+                for (HintFile.Entry hint : hints) {
+                    this.index(hint.clientId, new Location(segment.id(), hint.offset, hint.size));
+                }
+            } else {
+                this.scan(segment, last);
+            }
+        }
+
+        if (!ids.isEmpty() && this.segments.lastEntry().getValue().size() < this.segmentSize) {
+            this.active = this.segments.lastEntry().getValue();
+        } else {
+            this.active = new LogSegment(this.directory, ids.isEmpty() ? 0 : ids.get(ids.size() - 1) + 1).open(true);
+            this.segments.put(this.active.id(), this.active);
+        }
+        this.lastSync = System.nanoTime();
+    }
+
+    /**
+     * Read all the records of a segment, updating the index
+     *
+     * @param segment   log segment
+     * @param last  if it's the last segment of the log
+     */
+    private void scan(LogSegment segment, boolean last) throws IOException {
+
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path()), BUFFER_SIZE))) {
+
+            WillRecord record;
+            while ((record = WillRecord.next(in)) != null) {
+                this.index(record.clientId(),
+                        (record.type() == WillRecord.PUT) ? new Location(segment.id(), offset, record.size()) : null);
+                offset += record.size();
+            }
+        }
+
+        if (offset < segment.size()) {
+            if (last) {
+                // a write interrupted by a crash
+                LOG.warn("Truncating the LWT storage log segment {} at {} bytes, torn record", segment.path(), offset);
+                segment.channel().truncate(offset);
+                segment.channel().position(offset);
+                segment.size(offset);
+            } else {
+                LOG.warn("Corrupted record in the LWT storage log segment {} at {} bytes, the following ones are skipped", segment.path(), offset);
+            }
+        }
+    }
+
+    /**
+     * Write the pending records, sync and close the log (executed by the storage thread when closing)
+     */
+    private void shutdown() {
+
+        // a running compaction stops at the next record
+        this.compactor.shutdown();
+        try {
+            this.compactor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (this.active != null && this.failure == null) {
+            this.commit();
+            if (this.syncMode != SyncMode.NONE) {
+                this.sync();
+            }
+        }
+
+        // operations queued while closing
+        this.failure = new IOException("LWT storage closed");
+        Runnable operation;
+        while ((operation = this.operations.poll()) != null) {
+            operation.run();
+        }
+        this.compactionEnded();
+
+        this.segments.values().forEach(LogSegment::close);
+        this.segments.clear();
+        this.index.clear();
+        this.active = null;
+    }
+
+    /**
+     * Force a file to the disk
+     *
+     * @param path  file path
+     * @throws IOException
+     */
+    static void force(Path path) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static void forceDirectory(Path directory) {
+
+        try {
+            force(directory);
+        } catch (IOException e) {
+            // not supported on every platform
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // deleted on the next recovery
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.storage.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Hint file written with a compacted log segment : the client identifiers with the
+ * offset and size of their records, so the index is rebuilt without reading the records.
+ *
+ * Layout : magic (4 bytes) | log size (8 bytes) | entries count (4 bytes) |
+ * entries (client id length (2 bytes) | client id | offset (8 bytes) | size (4 bytes)) | crc (4 bytes)
+ */
+final class HintFile {
+
+    private static final int MAGIC = 0x4C575448;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private HintFile() {
+    }
+
+    /**
+     * Entry of the hint file
+     */
+    static final class Entry {
+
+        final String clientId;
+        final long offset;
+        final int size;
+
+        Entry(String clientId, long offset, int size) {
+            this.clientId = clientId;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Write a hint file, forcing it to the disk
+     *
+     * @param path  hint file path
+     * @param logSize   size of the described log segment
+     * @param entries   entries
+     * @throws IOException
+     */
+    static void write(Path path, long logSize, List<Entry> entries) throws IOException {
+
+        CRC32 crc = new CRC32();
+        try (OutputStream file = Files.newOutputStream(path);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), BUFFER_SIZE))) {
+
+            out.writeInt(MAGIC);
+            out.writeLong(logSize);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                byte[] id = entry.clientId.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(id.length);
+                out.write(id);
+                out.writeLong(entry.offset);
+                out.writeInt(entry.size);
+            }
+            out.flush();
+            // the crc doesn't cover itself
+            new DataOutputStream(file).writeInt((int) crc.getValue());
+        }
+        FileLwtStorage.force(path);
+    }
+
+    /**
+     * Read a hint file
+     *
+     * @param path  hint file path
+     * @param logSize   size of the described log segment
+     * @return  the entries, null if the hint file is missing, corrupted or describes another log
+     */
+    static List<Entry> read(Path path, long logSize) {
+
+        CRC32 crc = new CRC32();
+        try (InputStream file = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(file, BUFFER_SIZE), crc))) {
+
+            if (in.readInt() != MAGIC || in.readLong() != logSize) {
+                return null;
+            }
+
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(Math.max(0, count));
+            for (int i = 0; i < count; i++) {
+                byte[] id = new byte[in.readUnsignedShort()];
+                in.readFully(id);
+                entries.add(new Entry(new String(id, StandardCharsets.UTF_8), in.readLong(), in.readInt()));
+            }
+
+            int expected = (int) crc.getValue();
+            return (in.readInt() == expected) ? entries : null;
+
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -23,8 +23,12 @@ import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -32,6 +36,8 @@ import java.util.Map;
  * In memory implementation of the LWT Storage service
  */
 @Component
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+@ConditionalOnProperty(name = "enmasse.mqtt.lwt.storage", havingValue = "memory", matchIfMissing = true)
 public class InMemoryLwtStorage implements LwtStorage {
 
     public static final Logger LOG = LoggerFactory.getLogger(InMemoryLwtStorage.class);
@@ -99,6 +105,62 @@ public class InMemoryLwtStorage implements LwtStorage {
         }
     }
 
+    @Override
+    public void upsert(String clientId, AmqpWillMessage willMessage, Handler<AsyncResult<Integer>> handler) {
+
+        this.wills.put(clientId, willMessage);
+        LOG.info("Will stored for the client {}", clientId);
+        handler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public void getAndDelete(String clientId, Handler<AsyncResult<AmqpWillMessage>> handler) {
+
+        AmqpWillMessage willMessage = this.wills.remove(clientId);
+        if (willMessage == null) {
+            LOG.warn("No will for the client {}", clientId);
+            handler.handle(Future.failedFuture(new IllegalArgumentException("No will for the client")));
+        } else {
+            LOG.info("Will retrieved and deleted for the client {}", clientId);
+            handler.handle(Future.succeededFuture(willMessage));
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, AmqpWillMessage> wills, Handler<AsyncResult<Integer>> handler) {
+
+        this.wills.putAll(wills);
+        LOG.info("Wills stored for {} clients", wills.size());
+        handler.handle(Future.succeededFuture(wills.size()));
+    }
+
+    @Override
+    public void removeAll(Collection<String> clientIds, Handler<AsyncResult<Integer>> handler) {
+
+        int count = 0;
+        for (String clientId : clientIds) {
+            if (this.wills.remove(clientId) != null) {
+                count++;
+            }
+        }
+        LOG.info("Wills deleted for {} clients", count);
+        handler.handle(Future.succeededFuture(count));
+    }
+
+    @Override
+    public void getAndDeleteAll(Collection<String> clientIds, Handler<AsyncResult<Map<String, AmqpWillMessage>>> handler) {
+
+        Map<String, AmqpWillMessage> wills = new HashMap<>();
+        for (String clientId : clientIds) {
+            AmqpWillMessage willMessage = this.wills.remove(clientId);
+            if (willMessage != null) {
+                wills.put(clientId, willMessage);
+            }
+        }
+        LOG.info("Wills retrieved and deleted for {} clients", wills.size());
+        handler.handle(Future.succeededFuture(wills));
+    }
+
     @Override
     public void close() {
 
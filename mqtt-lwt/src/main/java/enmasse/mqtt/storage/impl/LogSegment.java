@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.storage.impl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Segment of the LWT storage log : a file of records, appended only while it's the
+ * active segment and then just read (and compacted)
+ */
+final class LogSegment {
+
+    static final String LOG_SUFFIX = ".log";
+    static final String HINT_SUFFIX = ".hint";
+    static final String COMPACT_SUFFIX = ".compact";
+    static final String TMP_SUFFIX = ".tmp";
+    // marker of a committed compaction, the segments older than it are replaced by it
+    static final String SWAP_SUFFIX = ".swap";
+
+    private final long id;
+    private final Path directory;
+    private FileChannel channel;
+
+    // bytes in the segment
+    private long size;
+    // bytes of the records still in the index (the others are garbage for the compaction)
+    private long liveBytes;
+
+    /**
+     * Constructor
+     *
+     * @param directory log directory
+     * @param id    segment identifier, increasing with the segment age
+     */
+    LogSegment(Path directory, long id) {
+        this.directory = directory;
+        this.id = id;
+    }
+
+    /**
+     * Open the segment file
+     *
+     * @param writable  if the segment is the active one
+     * @return  current segment instance
+     * @throws IOException
+     */
+    LogSegment open(boolean writable) throws IOException {
+
+        this.channel = writable ?
+                FileChannel.open(this.path(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                FileChannel.open(this.path(), StandardOpenOption.READ);
+        this.size = this.channel.size();
+        // appending at the end
+        this.channel.position(this.size);
+        return this;
+    }
+
+    /**
+     * Close the segment file
+     */
+    void close() {
+
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // nothing to do, the segment isn't used anymore
+            }
+            this.channel = null;
+        }
+    }
+
+    long id() {
+        return this.id;
+    }
+
+    FileChannel channel() {
+        return this.channel;
+    }
+
+    long size() {
+        return this.size;
+    }
+
+    void size(long size) {
+        this.size = size;
+    }
+
+    long liveBytes() {
+        return this.liveBytes;
+    }
+
+    void addLiveBytes(long bytes) {
+        this.liveBytes += bytes;
+    }
+
+    Path path() {
+        return path(this.directory, this.id, LOG_SUFFIX);
+    }
+
+    Path hintPath() {
+        return path(this.directory, this.id, HINT_SUFFIX);
+    }
+
+    Path swapPath() {
+        return path(this.directory, this.id, SWAP_SUFFIX);
+    }
+
+    static Path path(Path directory, long id, String suffix) {
+        return directory.resolve(String.format("%016d%s", id, suffix));
+    }
+
+    /**
+     * Segment identifier from a log file name
+     *
+     * @param fileName  file name
+     * @return  segment identifier, -1 if it's not a log file
+     */
+    static long id(String fileName) {
+
+        if (!fileName.endsWith(LOG_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(0, fileName.length() - LOG_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
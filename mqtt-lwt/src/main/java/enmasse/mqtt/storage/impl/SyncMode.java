@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.storage.impl;
+
+/**
+ * When the file based LWT storage forces the written "will" information to the disk
+ */
+public enum SyncMode {
+
+    /**
+     * A write is acknowledged after the fsync. The writes queued at same time share
+     * the same fsync (group commit), so nothing acknowledged is lost on a crash
+     */
+    BATCH,
+
+    /**
+     * A write is acknowledged as soon as it's handed to the OS and the log is forced
+     * to the disk periodically : a machine crash loses the last sync interval of writes
+     * (a process crash doesn't lose anything)
+     */
+    PERIODIC,
+
+    /**
+     * The log is never forced to the disk explicitly, it's up to the OS
+     */
+    NONE
+}
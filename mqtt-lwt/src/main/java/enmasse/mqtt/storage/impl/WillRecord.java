@@ -0,0 +1,305 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.storage.impl;
+
+import enmasse.mqtt.messages.AmqpWillMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.buffer.Buffer;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Record of the LWT storage log : the "will" information stored for a client (PUT)
+ * or its deletion (DELETE).
+ *
+ * Layout : crc (4 bytes) | length (4 bytes) | type (1 byte) | client id length (2 bytes) | client id |
+ * and only for PUT : retain (1 byte) | qos (1 byte) | topic length (4 bytes) | topic | payload length (4 bytes) | payload.
+ * The crc covers the length and the body, a null topic/payload has length -1
+ */
+final class WillRecord {
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+
+    // crc and length
+    static final int HEADER_SIZE = 8;
+    // bigger lengths can only come from a corrupted record (MQTT max payload is 256 MB)
+    private static final int MAX_BODY_SIZE = 256 * 1024 * 1024 + 128 * 1024;
+
+    /**
+     * A record that can't be read back as it was written
+     */
+    static final class CorruptedRecordException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        CorruptedRecordException(String message) {
+            super(message);
+        }
+    }
+
+    private final byte type;
+    private final String clientId;
+    private final byte[] body;
+
+    private WillRecord(byte type, String clientId, byte[] body) {
+        this.type = type;
+        this.clientId = clientId;
+        this.body = body;
+    }
+
+    /**
+     * Record type (PUT or DELETE)
+     * @return
+     */
+    byte type() {
+        return this.type;
+    }
+
+    /**
+     * Client identifier
+     * @return
+     */
+    String clientId() {
+        return this.clientId;
+    }
+
+    /**
+     * Size of the record in the log
+     * @return
+     */
+    int size() {
+        return HEADER_SIZE + this.body.length;
+    }
+
+    /**
+     * Encode a PUT record
+     *
+     * @param clientId  client identifier
+     * @param willMessage   "will" information
+     * @return  the encoded record, ready to be written
+     */
+    static ByteBuffer put(String clientId, AmqpWillMessage willMessage) {
+
+        byte[] id = clientId.getBytes(StandardCharsets.UTF_8);
+        byte[] topic = (willMessage.topic() != null) ? willMessage.topic().getBytes(StandardCharsets.UTF_8) : null;
+        byte[] payload = (willMessage.payload() != null) ? willMessage.payload().getBytes() : null;
+
+        int bodySize = 1 + 2 + id.length + 1 + 1 +
+                4 + ((topic != null) ? topic.length : 0) +
+                4 + ((payload != null) ? payload.length : 0);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodySize);
+        buffer.position(HEADER_SIZE);
+        buffer.put(PUT).putShort((short) id.length).put(id)
+                .put((byte) (willMessage.isRetain() ? 1 : 0))
+                .put((byte) willMessage.qos().value());
+        putBytes(buffer, topic);
+        putBytes(buffer, payload);
+        return seal(buffer, bodySize);
+    }
+
+    /**
+     * Encode a DELETE record
+     *
+     * @param clientId  client identifier
+     * @return  the encoded record, ready to be written
+     */
+    static ByteBuffer delete(String clientId) {
+
+        byte[] id = clientId.getBytes(StandardCharsets.UTF_8);
+        int bodySize = 1 + 2 + id.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodySize);
+        buffer.position(HEADER_SIZE);
+        buffer.put(DELETE).putShort((short) id.length).put(id);
+        return seal(buffer, bodySize);
+    }
+
+    /**
+     * Read the next record from a log being scanned
+     *
+     * @param in    log input stream, positioned at the beginning of a record
+     * @return  the record, null at the end of the log or on a torn/corrupted record
+     * @throws IOException
+     */
+    static WillRecord next(DataInputStream in) throws IOException {
+
+        try {
+
+            int crc = in.readInt();
+            int length = in.readInt();
+            if (length < 3 || length > MAX_BODY_SIZE) {
+                return null;
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            if (crc != checksum(length, body)) {
+                return null;
+            }
+            return decode(body);
+
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read a record from the log
+     *
+     * @param channel   log file channel
+     * @param offset    record offset
+     * @param size  record size
+     * @return  the record
+     * @throws IOException  if the record can't be read (CorruptedRecordException if it's corrupted)
+     */
+    static WillRecord read(FileChannel channel, long offset, int size) throws IOException {
+
+        byte[] bytes = readFully(channel, offset, size);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        int crc = buffer.getInt();
+        int length = buffer.getInt();
+        if (length != size - HEADER_SIZE) {
+            throw new CorruptedRecordException("Corrupted record at offset " + offset);
+        }
+        byte[] body = new byte[length];
+        buffer.get(body);
+        WillRecord record = (crc == checksum(length, body)) ? decode(body) : null;
+        if (record == null) {
+            throw new CorruptedRecordException("Corrupted record at offset " + offset);
+        }
+        return record;
+    }
+
+    /**
+     * Read the raw bytes of a record (checking its crc), for copying it to another log
+     *
+     * @param channel   log file channel
+     * @param offset    record offset
+     * @param size  record size
+     * @return  the raw record
+     * @throws IOException  if the record can't be read (CorruptedRecordException if it's corrupted)
+     */
+    static ByteBuffer readRaw(FileChannel channel, long offset, int size) throws IOException {
+
+        byte[] bytes = readFully(channel, offset, size);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        int crc = buffer.getInt(0);
+        int length = buffer.getInt(4);
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes, 4, bytes.length - 4);
+        if (length != size - HEADER_SIZE || crc != (int) checksum.getValue()) {
+            throw new CorruptedRecordException("Corrupted record at offset " + offset);
+        }
+        return buffer;
+    }
+
+    /**
+     * Decode the "will" information of a PUT record
+     *
+     * @return  "will" information
+     */
+    AmqpWillMessage willMessage() {
+
+        if (this.type != PUT) {
+            throw new IllegalStateException("No will in a DELETE record");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(this.body);
+        buffer.position(3 + (buffer.getShort(1) & 0xFFFF));
+
+        boolean isRetain = buffer.get() != 0;
+        MqttQoS qos = MqttQoS.valueOf(buffer.get());
+        byte[] topic = getBytes(buffer);
+        byte[] payload = getBytes(buffer);
+
+        return new AmqpWillMessage(isRetain,
+                (topic != null) ? new String(topic, StandardCharsets.UTF_8) : null,
+                qos,
+                (payload != null) ? Buffer.buffer(payload) : null);
+    }
+
+    private static WillRecord decode(byte[] body) {
+
+        byte type = body[0];
+        int idLength = ((body[1] & 0xFF) << 8) | (body[2] & 0xFF);
+        if ((type != PUT && type != DELETE) || 3 + idLength > body.length) {
+            return null;
+        }
+        return new WillRecord(type, new String(body, 3, idLength, StandardCharsets.UTF_8), body);
+    }
+
+    private static ByteBuffer seal(ByteBuffer buffer, int bodySize) {
+
+        buffer.putInt(4, bodySize);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, 4 + bodySize);
+        buffer.putInt(0, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int checksum(int length, byte[] body) {
+
+        CRC32 crc = new CRC32();
+        crc.update(length >>> 24);
+        crc.update(length >>> 16);
+        crc.update(length >>> 8);
+        crc.update(length);
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] readFully(FileChannel channel, long offset, int size) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new CorruptedRecordException("Record at offset " + offset + " beyond the end of the log");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.storage.impl;
+
+import enmasse.mqtt.messages.AmqpWillMessage;
+import enmasse.mqtt.storage.LwtStorage;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind decorator of an LWT Storage service.
+ *
+ * The changes are acknowledged immediately and kept as pending for a time window, with
+ * just the last one for every client : when the window expires they are written to the
+ * decorated storage with one putAll and one removeAll. So a client updating its "will"
+ * more times (or connecting and then disconnecting cleanly) in the window costs one write
+ * at most. The reads see the pending changes.
+ *
+ * The changes acknowledged in the last window are lost if the service crashes
+ */
+public class WriteBehindLwtStorage implements LwtStorage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindLwtStorage.class);
+
+    // pending changes written before the window expires when reaching this size
+    private static final int MAX_PENDING = 8192;
+    // pending delete marker
+    private static final AmqpWillMessage DELETED = new AmqpWillMessage(false, null, null, null);
+
+    private final LwtStorage storage;
+    private final Vertx vertx;
+    private final long window;
+
+    // client identifier -> pending "will" information, DELETED for a pending delete
+    private Map<String, AmqpWillMessage> pending = new HashMap<>();
+    private long timerId = -1;
+
+    /**
+     * Constructor
+     *
+     * @param storage   decorated LWT storage
+     * @param vertx Vert.x instance for the window timer
+     * @param window    time window for coalescing the changes (in ms)
+     */
+    public WriteBehindLwtStorage(LwtStorage storage, Vertx vertx, long window) {
+        this.storage = storage;
+        this.vertx = vertx;
+        this.window = window;
+    }
+
+    @Override
+    public void open(Handler<AsyncResult<Void>> handler) {
+        this.storage.open(handler);
+    }
+
+    @Override
+    public synchronized void add(String clientId, AmqpWillMessage willMessage, Handler<AsyncResult<Integer>> handler) {
+
+        AmqpWillMessage current = this.pending.get(clientId);
+        if (current == null) {
+            this.storage.add(clientId, willMessage, handler);
+        } else if (current != DELETED) {
+            LOG.warn("Will already existing for the client {}", clientId);
+            handler.handle(Future.failedFuture(new IllegalArgumentException("Will already existing for the client")));
+        } else {
+            this.change(clientId, willMessage);
+            handler.handle(Future.succeededFuture());
+        }
+    }
+
+    @Override
+    public synchronized void get(String clientId, Handler<AsyncResult<AmqpWillMessage>> handler) {
+
+        AmqpWillMessage current = this.pending.get(clientId);
+        if (current == null) {
+            this.storage.get(clientId, handler);
+        } else {
+            this.handlePending(clientId, current, handler);
+        }
+    }
+
+    @Override
+    public synchronized void update(String clientId, AmqpWillMessage willMessage, Handler<AsyncResult<Integer>> handler) {
+
+        AmqpWillMessage current = this.pending.get(clientId);
+        if (current == null) {
+            this.storage.update(clientId, willMessage, handler);
+        } else if (current == DELETED) {
+            LOG.warn("No will for the client {}", clientId);
+            handler.handle(Future.failedFuture(new IllegalArgumentException("No will for the client")));
+        } else {
+            this.change(clientId, willMessage);
+            handler.handle(Future.succeededFuture());
+        }
+    }
+
+    @Override
+    public synchronized void delete(String clientId, Handler<AsyncResult<Integer>> handler) {
+
+        AmqpWillMessage current = this.pending.get(clientId);
+        if (current == null) {
+            this.storage.delete(clientId, handler);
+        } else if (current == DELETED) {
+            LOG.warn("No will for the client {}", clientId);
+            handler.handle(Future.failedFuture(new IllegalArgumentException("No will for the client")));
+        } else {
+            this.change(clientId, DELETED);
+            handler.handle(Future.succeededFuture());
+        }
+    }
+
+    @Override
+    public synchronized void upsert(String clientId, AmqpWillMessage willMessage, Handler<AsyncResult<Integer>> handler) {
+
+        this.change(clientId, willMessage);
+        handler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public synchronized void getAndDelete(String clientId, Handler<AsyncResult<AmqpWillMessage>> handler) {
+
+        AmqpWillMessage current = this.pending.get(clientId);
+        if (current == null) {
+            this.storage.getAndDelete(clientId, handler);
+        } else {
+            if (current != DELETED) {
+                // an older "will" could be in the storage
+                this.change(clientId, DELETED);
+            }
+            this.handlePending(clientId, current, handler);
+        }
+    }
+
+    @Override
+    public synchronized void putAll(Map<String, AmqpWillMessage> wills, Handler<AsyncResult<Integer>> handler) {
+
+        wills.forEach(this::change);
+        handler.handle(Future.succeededFuture(wills.size()));
+    }
+
+    @Override
+    public synchronized void removeAll(Collection<String> clientIds, Handler<AsyncResult<Integer>> handler) {
+
+        clientIds.forEach(clientId -> this.change(clientId, DELETED));
+        // the deleted ones aren't known before writing
+        handler.handle(Future.succeededFuture(clientIds.size()));
+    }
+
+    @Override
+    public synchronized void getAndDeleteAll(Collection<String> clientIds, Handler<AsyncResult<Map<String, AmqpWillMessage>>> handler) {
+
+        Map<String, AmqpWillMessage> wills = new HashMap<>();
+        List<String> stored = new ArrayList<>();
+        for (String clientId : clientIds) {
+            AmqpWillMessage current = this.pending.get(clientId);
+            if (current == null) {
+                stored.add(clientId);
+            } else if (current != DELETED) {
+                // an older "will" could be in the storage
+                this.change(clientId, DELETED);
+                wills.put(clientId, current);
+            }
+        }
+
+        if (stored.isEmpty()) {
+            handler.handle(Future.succeededFuture(wills));
+        } else {
+            this.storage.getAndDeleteAll(stored, done -> {
+                if (done.succeeded()) {
+                    wills.putAll(done.result());
+                    handler.handle(Future.succeededFuture(wills));
+                } else {
+                    handler.handle(done);
+                }
+            });
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+
+        this.flush();
+        this.storage.close();
+    }
+
+    /**
+     * Write all the pending changes to the decorated storage
+     */
+    public synchronized void flush() {
+
+        if (this.timerId != -1) {
+            this.vertx.cancelTimer(this.timerId);
+            this.timerId = -1;
+        }
+        if (this.pending.isEmpty()) {
+            return;
+        }
+
+        Map<String, AmqpWillMessage> wills = new HashMap<>(this.pending.size() * 2);
+        List<String> deleted = new ArrayList<>();
+        this.pending.forEach((clientId, willMessage) -> {
+            if (willMessage == DELETED) {
+                deleted.add(clientId);
+            } else {
+                wills.put(clientId, willMessage);
+            }
+        });
+        this.pending.clear();
+
+        LOG.debug("Writing pending wills for {} clients and deletes for {} clients", wills.size(), deleted.size());
+
+        // the decorated storage gets them before any other operation, keeping the order
+        if (!wills.isEmpty()) {
+            this.storage.putAll(wills, done -> {
+                if (done.failed()) {
+                    LOG.error("Error writing pending wills for {} clients", wills.size(), done.cause());
+                }
+            });
+        }
+        if (!deleted.isEmpty()) {
+            this.storage.removeAll(deleted, done -> {
+                if (done.failed()) {
+                    LOG.error("Error writing pending deletes for {} clients", deleted.size(), done.cause());
+                }
+            });
+        }
+    }
+
+    /**
+     * Record a pending change, starting the window if it's the first one
+     *
+     * @param clientId  client identifier
+     * @param willMessage   "will" information, DELETED for a delete
+     */
+    private void change(String clientId, AmqpWillMessage willMessage) {
+
+        this.pending.put(clientId, willMessage);
+        if (this.pending.size() >= MAX_PENDING) {
+            this.flush();
+        } else if (this.timerId == -1) {
+            this.timerId = this.vertx.setTimer(this.window, t -> {
+                synchronized (this) {
+                    this.timerId = -1;
+                    this.flush();
+                }
+            });
+        }
+    }
+
+    private void handlePending(String clientId, AmqpWillMessage current, Handler<AsyncResult<AmqpWillMessage>> handler) {
+
+        if (current == DELETED) {
+            LOG.warn("No will for the client {}", clientId);
+            handler.handle(Future.failedFuture(new IllegalArgumentException("No will for the client")));
+        } else {
+            handler.handle(Future.succeededFuture(current));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.mqtt.endpoints.AmqpPublishEndpoint;
+import enmasse.mqtt.messages.AmqpPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.RunTestOnContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import io.vertx.proton.ProtonClient;
+import io.vertx.proton.ProtonDelivery;
+import io.vertx.proton.ProtonReceiver;
+import io.vertx.proton.ProtonServer;
+import io.vertx.proton.ProtonSession;
+import org.apache.qpid.proton.amqp.Symbol;
+import org.apache.qpid.proton.amqp.transport.ErrorCondition;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests related to the publisher links of the wills, against a local AMQP peer
+ */
+@RunWith(VertxUnitRunner.class)
+public class AmqpPublishEndpointTest {
+
+    protected final Logger LOG = LoggerFactory.getLogger(AmqpPublishEndpointTest.class);
+
+    private static final String TOPIC = "will_topic";
+
+    @Rule
+    public RunTestOnContext rule = new RunTestOnContext();
+
+    private ProtonServer server;
+
+    // links attached by the publishers and deliveries received on them (never settled)
+    private final List<ProtonReceiver> receivers = new CopyOnWriteArrayList<>();
+    private final List<ProtonDelivery> deliveries = new CopyOnWriteArrayList<>();
+    // if the links are detached with an error on the first delivery
+    private volatile boolean detach;
+
+    @Before
+    public void before(TestContext context) {
+
+        this.server = ProtonServer.create(this.rule.vertx()).connectHandler(connection -> {
+
+            connection.openHandler(o -> connection.open());
+            connection.sessionOpenHandler(ProtonSession::open);
+            connection.receiverOpenHandler(receiver -> {
+
+                this.receivers.add(receiver);
+                receiver.setAutoAccept(false).handler((delivery, message) -> {
+
+                    this.deliveries.add(delivery);
+                    if (this.detach) {
+                        receiver.setCondition(new ErrorCondition(Symbol.getSymbol("amqp:internal-error"), "test"));
+                        receiver.close();
+                    }
+                }).open();
+            });
+        });
+        this.server.listen(0, context.asyncAssertSuccess());
+    }
+
+    @Test
+    public void oneLinkPerSettleMode(TestContext context) {
+
+        Async async = context.async();
+
+        this.connect(context, endpoint -> {
+
+            endpoint.publish(message(MqttQoS.AT_LEAST_ONCE), done -> context.fail("QoS 1 will never accepted"));
+            endpoint.publish(message(MqttQoS.EXACTLY_ONCE), done -> context.fail("QoS 2 will never accepted"));
+            endpoint.publish(message(MqttQoS.AT_MOST_ONCE), context.asyncAssertSuccess());
+
+            this.rule.vertx().setPeriodic(10, t -> {
+
+                if (this.deliveries.size() == 3) {
+
+                    this.rule.vertx().cancelTimer(t);
+                    // QoS 1 and 2 wills share the unsettled link, QoS 0 ones are pre-settled
+                    context.assertEquals(2, this.receivers.size());
+                    context.assertEquals(1, (int) this.deliveries.stream().filter(ProtonDelivery::remotelySettled).count());
+                    context.assertEquals(1, endpoint.publishersCount());
+                    LOG.info("Wills published on {} links", this.receivers.size());
+                    async.complete();
+                }
+            });
+        });
+    }
+
+    @Test
+    public void detachFailsInFlight(TestContext context) {
+
+        Async async = context.async();
+        this.detach = true;
+
+        this.connect(context, endpoint -> {
+
+            endpoint.publish(message(MqttQoS.AT_LEAST_ONCE), done -> {
+
+                // failed with the link error, so the will is released to the dispatcher
+                context.assertTrue(done.failed());
+                Vertx.currentContext().runOnContext(v -> {
+
+                    context.assertEquals(0, endpoint.publishersCount());
+                    LOG.info("Will in flight failed on detach : {}", done.cause().getMessage());
+                    async.complete();
+                });
+            });
+        });
+    }
+
+    private void connect(TestContext context, Handler<AmqpPublishEndpoint> handler) {
+
+        ProtonClient.create(this.rule.vertx()).connect("localhost", this.server.actualPort(), context.asyncAssertSuccess(connection -> {
+
+            AmqpPublishEndpoint endpoint = new AmqpPublishEndpoint(connection);
+            connection.openHandler(context.asyncAssertSuccess(c -> handler.handle(endpoint)));
+            endpoint.open();
+        }));
+    }
+
+    private static AmqpPublishMessage message(MqttQoS qos) {
+        return new AmqpPublishMessage(1, qos, false, false, TOPIC, Buffer.buffer("Hello"));
+    }
+}
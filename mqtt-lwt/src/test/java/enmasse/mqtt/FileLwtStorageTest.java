@@ -0,0 +1,524 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.mqtt.messages.AmqpWillMessage;
+import enmasse.mqtt.storage.impl.FileLwtStorage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.RunTestOnContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Tests related to the file based LWT storage service only
+ */
+@RunWith(VertxUnitRunner.class)
+public class FileLwtStorageTest {
+
+    protected final Logger LOG = LoggerFactory.getLogger(FileLwtStorageTest.class);
+
+    private static final AmqpWillMessage WILL_MESSAGE =
+            new AmqpWillMessage(true, "will_topic", MqttQoS.AT_MOST_ONCE, Buffer.buffer("Hello"));
+
+    private static final String CLIENT_ID = "client_id";
+
+    // small segments for rolling and compacting them in the tests
+    private static final long SEGMENT_SIZE = 4096;
+
+    // storage handlers called on the event loop, as in the LWT service
+    @Rule
+    public RunTestOnContext rule = new RunTestOnContext();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileLwtStorage lwtStorage;
+
+    @Before
+    public void before(TestContext context) {
+
+        this.lwtStorage = this.createStorage();
+        this.lwtStorage.open(context.asyncAssertSuccess());
+    }
+
+    @After
+    public void after(TestContext context) {
+        this.lwtStorage.close();
+    }
+
+    @Test
+    public void addNotExistingWill(TestContext context) {
+
+        Async async = context.async();
+
+        this.lwtStorage.add(CLIENT_ID, WILL_MESSAGE, done -> {
+
+            context.assertTrue(done.succeeded());
+            this.lwtStorage.get(CLIENT_ID, done1 -> {
+
+                context.assertTrue(done1.succeeded());
+                assertWillMessage(context, WILL_MESSAGE, done1.result());
+                LOG.info("Added a not existing will");
+                async.complete();
+            });
+        });
+    }
+
+    @Test
+    public void addExistingWill(TestContext context) {
+
+        Async async = context.async();
+
+        this.lwtStorage.add(CLIENT_ID, WILL_MESSAGE, done -> {
+
+            context.assertTrue(done.succeeded());
+            this.lwtStorage.add(CLIENT_ID, WILL_MESSAGE, done1 -> {
+
+                context.assertTrue(!done1.succeeded());
+                LOG.info("Will to add already exists");
+                async.complete();
+            });
+        });
+    }
+
+    @Test
+    public void updateExistingWill(TestContext context) {
+
+        Async async = context.async();
+
+        AmqpWillMessage willMessage1 = new AmqpWillMessage(false, "will_topic_1", MqttQoS.AT_LEAST_ONCE, Buffer.buffer("Hello_1"));
+        this.lwtStorage.add(CLIENT_ID, WILL_MESSAGE, done -> {
+
+            context.assertTrue(done.succeeded());
+            this.lwtStorage.update(CLIENT_ID, willMessage1, done1 -> {
+
+                context.assertTrue(done1.succeeded());
+                this.lwtStorage.get(CLIENT_ID, done2 -> {
+
+                    context.assertTrue(done2.succeeded());
+                    assertWillMessage(context, willMessage1, done2.result());
+                    LOG.info("Existing will updated");
+                    async.complete();
+                });
+            });
+        });
+    }
+
+    @Test
+    public void updateNotExistingWill(TestContext context) {
+
+        Async async = context.async();
+
+        this.lwtStorage.update(CLIENT_ID, WILL_MESSAGE, done -> {
+
+            context.assertTrue(!done.succeeded());
+            LOG.info("Trying to update a not existing will");
+            async.complete();
+        });
+    }
+
+    @Test
+    public void deleteExistingWill(TestContext context) {
+
+        Async async = context.async();
+
+        this.lwtStorage.add(CLIENT_ID, WILL_MESSAGE, done -> {
+
+            context.assertTrue(done.succeeded());
+            this.lwtStorage.delete(CLIENT_ID, done1 -> {
+
+                context.assertTrue(done1.succeeded());
+                this.lwtStorage.get(CLIENT_ID, done2 -> {
+
+                    context.assertTrue(!done2.succeeded());
+                    LOG.info("Existing will deleted");
+                    async.complete();
+                });
+            });
+        });
+    }
+
+    @Test
+    public void deleteNotExistingWill(TestContext context) {
+
+        Async async = context.async();
+
+        this.lwtStorage.delete(CLIENT_ID, done -> {
+
+            context.assertTrue(!done.succeeded());
+            LOG.info("Trying to delete a not existing will");
+            async.complete();
+        });
+    }
+
+    @Test
+    public void recoverWills(TestContext context) {
+
+        Async async = context.async();
+
+        AmqpWillMessage willMessage1 = new AmqpWillMessage(false, "will_topic_1", MqttQoS.EXACTLY_ONCE, null);
+        this.lwtStorage.add(CLIENT_ID, WILL_MESSAGE, context.asyncAssertSuccess());
+        this.lwtStorage.add("client_id_1", WILL_MESSAGE, context.asyncAssertSuccess());
+        this.lwtStorage.update("client_id_1", willMessage1, context.asyncAssertSuccess());
+        this.lwtStorage.add("client_id_2", WILL_MESSAGE, context.asyncAssertSuccess());
+        this.lwtStorage.delete("client_id_2", done -> {
+
+            context.assertTrue(done.succeeded());
+            this.reopen(context, () -> {
+
+                this.lwtStorage.get(CLIENT_ID, done1 -> {
+
+                    assertWillMessage(context, WILL_MESSAGE, done1.result());
+                    this.lwtStorage.get("client_id_1", done2 -> {
+
+                        assertWillMessage(context, willMessage1, done2.result());
+                        this.lwtStorage.get("client_id_2", done3 -> {
+
+                            context.assertTrue(!done3.succeeded());
+                            LOG.info("Wills recovered after reopening");
+                            async.complete();
+                        });
+                    });
+                });
+            });
+        });
+    }
+
+    @Test
+    public void recoverTornRecord(TestContext context) {
+
+        Async async = context.async();
+
+        this.lwtStorage.add(CLIENT_ID, WILL_MESSAGE, context.asyncAssertSuccess());
+        this.lwtStorage.add("client_id_1", WILL_MESSAGE, done -> {
+
+            context.assertTrue(done.succeeded());
+            this.lwtStorage.close();
+
+            // crash in the middle of writing the last record
+            try {
+                Path log = this.files(".log").get(0);
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                    channel.truncate(channel.size() - 3);
+                }
+            } catch (IOException e) {
+                context.fail(e);
+            }
+
+            this.lwtStorage = this.createStorage();
+            this.lwtStorage.open(done1 -> {
+
+                context.assertTrue(done1.succeeded());
+                this.lwtStorage.get("client_id_1", done2 -> {
+
+                    context.assertTrue(!done2.succeeded());
+                    // the log is appended after the last good record
+                    this.lwtStorage.add("client_id_1", WILL_MESSAGE, done3 -> {
+
+                        context.assertTrue(done3.succeeded());
+                        this.reopen(context, () -> {
+
+                            this.lwtStorage.get(CLIENT_ID, done4 -> {
+
+                                assertWillMessage(context, WILL_MESSAGE, done4.result());
+                                this.lwtStorage.get("client_id_1", done5 -> {
+
+                                    assertWillMessage(context, WILL_MESSAGE, done5.result());
+                                    LOG.info("Torn record truncated");
+                                    async.complete();
+                                });
+                            });
+                        });
+                    });
+                });
+            });
+        });
+    }
+
+    @Test
+    public void compactWills(TestContext context) {
+
+        Async async = context.async();
+
+        // more updates than the segment size, with just the last will for every client live
+        int clients = 10;
+        int updates = 50;
+        for (int i = 0; i < updates; i++) {
+            for (int j = 0; j < clients; j++) {
+                AmqpWillMessage willMessage = new AmqpWillMessage(false, "will_topic_" + i, MqttQoS.AT_LEAST_ONCE, Buffer.buffer("Hello_" + i));
+                if (i == 0) {
+                    this.lwtStorage.add(CLIENT_ID + j, willMessage, context.asyncAssertSuccess());
+                } else {
+                    this.lwtStorage.update(CLIENT_ID + j, willMessage, context.asyncAssertSuccess());
+                }
+            }
+        }
+        this.lwtStorage.delete(CLIENT_ID + 0, context.asyncAssertSuccess());
+
+        this.lwtStorage.compact(done -> {
+
+            context.assertTrue(done.succeeded());
+            try {
+                // just the compacted segment (with its hint file) and the new active one
+                context.assertEquals(2, this.files(".log").size());
+                context.assertEquals(1, this.files(".hint").size());
+                context.assertTrue(Files.size(this.files(".log").get(0)) < SEGMENT_SIZE);
+            } catch (IOException e) {
+                context.fail(e);
+            }
+
+            this.reopen(context, () -> {
+
+                this.lwtStorage.get(CLIENT_ID + 0, done1 -> {
+
+                    context.assertTrue(!done1.succeeded());
+                    this.lwtStorage.get(CLIENT_ID + 1, done2 -> {
+
+                        context.assertTrue(done2.succeeded());
+                        context.assertEquals("will_topic_" + (updates - 1), done2.result().topic());
+                        context.assertEquals("Hello_" + (updates - 1), done2.result().payload().toString());
+                        LOG.info("Wills recovered from the compacted log");
+                        async.complete();
+                    });
+                });
+            });
+        });
+    }
+
+    @Test
+    public void recoverInterruptedCompaction(TestContext context) {
+
+        Async async = context.async();
+
+        // the will is stored in the first segment and deleted in a following one
+        this.lwtStorage.add(CLIENT_ID, WILL_MESSAGE, context.asyncAssertSuccess());
+        for (int i = 0; i < 200; i++) {
+            this.lwtStorage.upsert("client_id_1", WILL_MESSAGE, context.asyncAssertSuccess());
+        }
+        this.lwtStorage.delete(CLIENT_ID, context.asyncAssertSuccess());
+        for (int i = 0; i < 200; i++) {
+            this.lwtStorage.upsert("client_id_1", WILL_MESSAGE, context.asyncAssertSuccess());
+        }
+        this.lwtStorage.upsert("client_id_1", WILL_MESSAGE, done -> {
+
+            context.assertTrue(done.succeeded());
+            Map<Path, byte[]> segments = new HashMap<>();
+            try {
+                for (Path log : this.files(".log")) {
+                    segments.put(log, Files.readAllBytes(log));
+                }
+            } catch (IOException e) {
+                context.fail(e);
+            }
+
+            this.lwtStorage.compact(done1 -> {
+
+                context.assertTrue(done1.succeeded());
+                this.lwtStorage.close();
+
+                // crash after moving the compacted segment, before moving its hint file and deleting
+                // the older segments : just the swap marker is left for completing the compaction
+                try {
+                    Path compacted = this.files(".log").get(0);
+                    for (Map.Entry<Path, byte[]> segment : segments.entrySet()) {
+                        if (segment.getKey().compareTo(compacted) < 0) {
+                            Files.write(segment.getKey(), segment.getValue());
+                        }
+                    }
+                    Files.delete(this.files(".hint").get(0));
+                    Files.createFile(Paths.get(compacted.toString().replace(".log", ".swap")));
+                } catch (IOException e) {
+                    context.fail(e);
+                }
+
+                this.lwtStorage = this.createStorage();
+                this.lwtStorage.open(done2 -> {
+
+                    context.assertTrue(done2.succeeded());
+                    this.lwtStorage.get(CLIENT_ID, done3 -> {
+
+                        // the deleted will doesn't come back from the older segments
+                        context.assertTrue(!done3.succeeded());
+                        this.lwtStorage.get("client_id_1", done4 -> {
+
+                            assertWillMessage(context, WILL_MESSAGE, done4.result());
+                            try {
+                                context.assertEquals(2, this.files(".log").size());
+                                context.assertTrue(this.files(".swap").isEmpty());
+                            } catch (IOException e) {
+                                context.fail(e);
+                            }
+                            LOG.info("Interrupted compaction completed on recovery");
+                            async.complete();
+                        });
+                    });
+                });
+            });
+        });
+    }
+
+    @Test
+    public void upsertAndGetAndDeleteWills(TestContext context) {
+
+        Async async = context.async();
+
+        AmqpWillMessage willMessage1 = new AmqpWillMessage(false, "will_topic_1", MqttQoS.AT_LEAST_ONCE, Buffer.buffer("Hello_1"));
+        this.lwtStorage.upsert(CLIENT_ID, WILL_MESSAGE, context.asyncAssertSuccess());
+        this.lwtStorage.upsert(CLIENT_ID, willMessage1, context.asyncAssertSuccess());
+        this.lwtStorage.upsert("client_id_1", WILL_MESSAGE, done -> {
+
+            context.assertTrue(done.succeeded());
+            this.lwtStorage.getAndDelete(CLIENT_ID, done1 -> {
+
+                assertWillMessage(context, willMessage1, done1.result());
+                this.reopen(context, () -> {
+
+                    this.lwtStorage.get(CLIENT_ID, done2 -> {
+
+                        context.assertTrue(!done2.succeeded());
+                        this.lwtStorage.get("client_id_1", done3 -> {
+
+                            assertWillMessage(context, WILL_MESSAGE, done3.result());
+                            LOG.info("Wills stored, replaced and deleted");
+                            async.complete();
+                        });
+                    });
+                });
+            });
+        });
+    }
+
+    @Test
+    public void putAllAndRemoveAllWills(TestContext context) {
+
+        Async async = context.async();
+
+        Map<String, AmqpWillMessage> wills = new HashMap<>();
+        wills.put(CLIENT_ID, WILL_MESSAGE);
+        wills.put("client_id_1", WILL_MESSAGE);
+        this.lwtStorage.putAll(wills, done -> {
+
+            context.assertEquals(2, done.result());
+            this.lwtStorage.removeAll(Arrays.asList(CLIENT_ID, "client_id_2"), done1 -> {
+
+                // just the existing ones are deleted
+                context.assertEquals(1, done1.result());
+                this.reopen(context, () -> {
+
+                    this.lwtStorage.get(CLIENT_ID, done2 -> {
+
+                        context.assertTrue(!done2.succeeded());
+                        this.lwtStorage.get("client_id_1", done3 -> {
+
+                            assertWillMessage(context, WILL_MESSAGE, done3.result());
+                            LOG.info("Wills stored and deleted in batch");
+                            async.complete();
+                        });
+                    });
+                });
+            });
+        });
+    }
+
+    @Test
+    public void getAndDeleteAllWills(TestContext context) {
+
+        Async async = context.async();
+
+        Map<String, AmqpWillMessage> wills = new HashMap<>();
+        wills.put(CLIENT_ID, WILL_MESSAGE);
+        wills.put("client_id_1", WILL_MESSAGE);
+        this.lwtStorage.putAll(wills, context.asyncAssertSuccess());
+        this.lwtStorage.getAndDeleteAll(Arrays.asList(CLIENT_ID, "client_id_2"), done -> {
+
+            // just the existing ones are returned
+            context.assertTrue(done.succeeded() && done.result().size() == 1);
+            assertWillMessage(context, WILL_MESSAGE, done.result().get(CLIENT_ID));
+            this.reopen(context, () -> {
+
+                this.lwtStorage.get(CLIENT_ID, done1 -> {
+
+                    context.assertTrue(!done1.succeeded());
+                    this.lwtStorage.get("client_id_1", done2 -> {
+
+                        assertWillMessage(context, WILL_MESSAGE, done2.result());
+                        LOG.info("Wills retrieved and deleted in batch");
+                        async.complete();
+                    });
+                });
+            });
+        });
+    }
+
+    private FileLwtStorage createStorage() {
+
+        return new FileLwtStorage()
+                .setDirectory(this.folder.getRoot().getPath())
+                .setSyncMode("batch")
+                .setSegmentSize(SEGMENT_SIZE);
+    }
+
+    private void reopen(TestContext context, Runnable handler) {
+
+        this.lwtStorage.close();
+        this.lwtStorage = this.createStorage();
+        this.lwtStorage.open(done -> {
+
+            context.assertTrue(done.succeeded());
+            handler.run();
+        });
+    }
+
+    private List<Path> files(String suffix) throws IOException {
+
+        try (Stream<Path> files = Files.list(this.folder.getRoot().toPath())) {
+            return files.filter(file -> file.toString().endsWith(suffix)).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void assertWillMessage(TestContext context, AmqpWillMessage expected, AmqpWillMessage actual) {
+
+        context.assertEquals(expected.isRetain(), actual.isRetain());
+        context.assertEquals(expected.topic(), actual.topic());
+        context.assertEquals(expected.qos(), actual.qos());
+        context.assertEquals((expected.payload() != null) ? expected.payload().toString() : null,
+                (actual.payload() != null) ? actual.payload().toString() : null);
+    }
+}
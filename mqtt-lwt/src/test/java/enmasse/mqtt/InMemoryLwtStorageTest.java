@@ -31,6 +31,10 @@ import org.junit.runner.RunWith;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Tests related to the LWT storage service only
  */
@@ -203,4 +207,94 @@ public class InMemoryLwtStorageTest {
         });
     }
 
+    @Test
+    public void upsertWill(TestContext context) {
+
+        Async async = context.async();
+
+        AmqpWillMessage willMessage1 = new AmqpWillMessage(false, "will_topic_1", MqttQoS.AT_LEAST_ONCE, Buffer.buffer("Hello_1"));
+        this.lwtStorage.upsert(CLIENT_ID, WILL_MESSAGE, done -> {
+
+            context.assertTrue(done.succeeded());
+            this.lwtStorage.upsert(CLIENT_ID, willMessage1, done1 -> {
+
+                context.assertTrue(done1.succeeded());
+                this.lwtStorage.get(CLIENT_ID, done2 -> {
+
+                    context.assertTrue(done2.succeeded() && willMessage1.equals(done2.result()));
+                    LOG.info("Will added and then replaced");
+                    async.complete();
+                });
+            });
+        });
+    }
+
+    @Test
+    public void getAndDeleteWill(TestContext context) {
+
+        Async async = context.async();
+
+        this.lwtStorage.add(CLIENT_ID, WILL_MESSAGE, done -> {
+
+            context.assertTrue(done.succeeded());
+            this.lwtStorage.getAndDelete(CLIENT_ID, done1 -> {
+
+                context.assertTrue(done1.succeeded() && WILL_MESSAGE.equals(done1.result()));
+                this.lwtStorage.getAndDelete(CLIENT_ID, done2 -> {
+
+                    context.assertTrue(!done2.succeeded());
+                    LOG.info("Existing will retrieved and deleted");
+                    async.complete();
+                });
+            });
+        });
+    }
+
+    @Test
+    public void putAllAndRemoveAllWills(TestContext context) {
+
+        Async async = context.async();
+
+        Map<String, AmqpWillMessage> wills = new HashMap<>();
+        wills.put(CLIENT_ID, WILL_MESSAGE);
+        wills.put("client_id_1", WILL_MESSAGE);
+        this.lwtStorage.putAll(wills, done -> {
+
+            context.assertEquals(2, done.result());
+            this.lwtStorage.removeAll(Arrays.asList(CLIENT_ID, "client_id_2"), done1 -> {
+
+                // just the existing ones are deleted
+                context.assertEquals(1, done1.result());
+                this.lwtStorage.get("client_id_1", done2 -> {
+
+                    context.assertTrue(done2.succeeded());
+                    LOG.info("Wills stored and deleted in batch");
+                    async.complete();
+                });
+            });
+        });
+    }
+
+    @Test
+    public void getAndDeleteAllWills(TestContext context) {
+
+        Async async = context.async();
+
+        Map<String, AmqpWillMessage> wills = new HashMap<>();
+        wills.put(CLIENT_ID, WILL_MESSAGE);
+        wills.put("client_id_1", WILL_MESSAGE);
+        this.lwtStorage.putAll(wills, context.asyncAssertSuccess());
+        this.lwtStorage.getAndDeleteAll(Arrays.asList(CLIENT_ID, "client_id_2"), done -> {
+
+            // just the existing ones are returned
+            context.assertTrue(done.succeeded() && done.result().size() == 1);
+            context.assertTrue(WILL_MESSAGE.equals(done.result().get(CLIENT_ID)));
+            this.lwtStorage.get(CLIENT_ID, done1 -> {
+
+                context.assertTrue(!done1.succeeded());
+                LOG.info("Wills retrieved and deleted in batch");
+                async.complete();
+            });
+        });
+    }
 }
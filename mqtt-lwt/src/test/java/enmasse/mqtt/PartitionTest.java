@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.mqtt.lwt.LwtPartitions;
+import enmasse.mqtt.messages.AmqpWillMessage;
+import enmasse.mqtt.storage.LwtStorage;
+import enmasse.mqtt.storage.impl.InMemoryLwtStorage;
+import io.enmasse.amqp.DispatchRouterJ;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.Handler;
+import io.vertx.core.Verticle;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import io.vertx.proton.ProtonClient;
+import io.vertx.proton.ProtonConnection;
+import io.vertx.proton.ProtonLinkOptions;
+import io.vertx.proton.ProtonQoS;
+import io.vertx.proton.ProtonSender;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.amqp.transport.AmqpError;
+import org.apache.qpid.proton.amqp.transport.ErrorCondition;
+import org.apache.qpid.proton.amqp.transport.LinkError;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests related to the MQTT LWT service partitioned by client identifier
+ */
+@RunWith(VertxUnitRunner.class)
+public class PartitionTest {
+
+    protected final Logger LOG = LoggerFactory.getLogger(PartitionTest.class);
+
+    private static final int PARTITIONS = 2;
+
+    private static final String MQTT_WILL_TOPIC = "will";
+    private static final String MQTT_WILL_MESSAGE = "Will on EnMasse";
+
+    private static final int DETACH_TIMEOUT = 1000;
+
+    private Vertx vertx;
+    private DispatchRouterJ dispatchRouterJ;
+    private LwtStorage[] lwtStorages = new LwtStorage[PARTITIONS];
+
+    @Before
+    public void before(TestContext context) {
+
+        this.vertx = Vertx.vertx();
+
+        this.dispatchRouterJ = new DispatchRouterJ("src/test/resources/router-certs");
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            this.dispatchRouterJ.addLinkRoute(LwtPartitions.address(partition, PARTITIONS),
+                    LwtPartitions.containerId(partition, PARTITIONS));
+        }
+        this.deployVerticle(this.dispatchRouterJ, context);
+
+        // an MQTT LWT instance with its own storage for every partition
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+
+            this.lwtStorages[partition] = new InMemoryLwtStorage();
+
+            MqttLwt lwtService = new MqttLwt()
+                    .setHost(MqttLwtTestBase.MESSAGING_SERVICE_HOST)
+                    .setNormalPort(this.dispatchRouterJ.getNormalTlsPort())
+                    .setRouteContainerPort(this.dispatchRouterJ.getRouteContainerPort())
+                    .setCertDir(MqttLwtTestBase.CERT_DIR)
+                    .setLwtStorage(this.lwtStorages[partition])
+                    .setPartition(partition, PARTITIONS);
+
+            this.deployVerticle(lwtService, context);
+        }
+    }
+
+    @After
+    public void after(TestContext context) {
+
+        Async async = context.async();
+        this.vertx.close(context.asyncAssertSuccess(v -> async.complete()));
+        async.awaitSuccess();
+    }
+
+    @Test
+    public void willsOnOwnerPartitions(TestContext context) {
+
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+
+            Async async = context.async();
+            String clientId = clientId(partition);
+            int owner = partition;
+
+            // receiver for the will published by the owner partition
+            this.connect(context, connection -> {
+
+                connection.createReceiver(MQTT_WILL_TOPIC + "/" + clientId)
+                        .setQoS(ProtonQoS.AT_LEAST_ONCE)
+                        .handler((d, m) -> {
+
+                            LOG.info("topic: {}, message: {}", MQTT_WILL_TOPIC + "/" + clientId, ((Data) m.getBody()).getValue());
+                            d.disposition(Accepted.getInstance(), true);
+                            async.complete();
+                        }).open();
+
+                this.willClient(context, LwtPartitions.address(owner, PARTITIONS), clientId, sender -> {
+
+                    // the will is stored just by the owner partition
+                    this.lwtStorages[owner].get(clientId, done -> {
+
+                        context.assertTrue(done.succeeded());
+                        this.lwtStorages[(owner + 1) % PARTITIONS].get(clientId, done1 -> {
+
+                            context.assertTrue(done1.failed());
+
+                            ErrorCondition errorCondition =
+                                    new ErrorCondition(LinkError.DETACH_FORCED, "Link detached due to a brute client disconnection");
+                            sender.setCondition(errorCondition)
+                                    .close();
+                        });
+                    });
+                });
+            });
+        }
+    }
+
+    @Test
+    public void clientOnWrongPartition(TestContext context) {
+
+        Async async = context.async();
+
+        String clientId = clientId(0);
+
+        this.connect(context, connection -> {
+
+            ProtonLinkOptions options = new ProtonLinkOptions();
+            options.setLinkName(clientId);
+
+            ProtonSender sender = connection.createSender(LwtPartitions.address(1, PARTITIONS), options);
+            sender.closeHandler(done -> {
+
+                // refused, otherwise its will would be in the storage of another partition
+                context.assertTrue(done.failed());
+                context.assertEquals(AmqpError.NOT_ALLOWED, sender.getRemoteCondition().getCondition());
+                LOG.info("Client refused by a partition not owning it");
+                async.complete();
+            }).open();
+        });
+    }
+
+    private void willClient(TestContext context, String address, String clientId, Handler<ProtonSender> sentHandler) {
+
+        this.connect(context, connection -> {
+
+            ProtonLinkOptions options = new ProtonLinkOptions();
+            options.setLinkName(clientId);
+
+            ProtonSender sender = connection.createSender(address, options);
+            sender.open();
+
+            AmqpWillMessage amqpWillMessage =
+                    new AmqpWillMessage(false, MQTT_WILL_TOPIC + "/" + clientId, MqttQoS.AT_MOST_ONCE, Buffer.buffer(MQTT_WILL_MESSAGE));
+            sender.send(amqpWillMessage.toAmqp());
+
+            // disconnect brutely after the will is stored
+            this.vertx.setTimer(DETACH_TIMEOUT, t -> sentHandler.handle(sender));
+        });
+    }
+
+    private void connect(TestContext context, Handler<ProtonConnection> handler) {
+
+        ProtonClient client = ProtonClient.create(this.vertx);
+        client.connect(MqttLwtTestBase.MESSAGING_SERVICE_HOST, this.dispatchRouterJ.getNormalPort(), done -> {
+
+            if (done.succeeded()) {
+                ProtonConnection connection = done.result();
+                connection.open();
+                handler.handle(connection);
+            } else {
+                context.fail(done.cause());
+            }
+        });
+    }
+
+    @Test
+    public void replicaFromStatefulSetOrdinal(TestContext context) {
+
+        context.assertEquals(0, Application.replicaOf("mqtt-lwt-0", 3));
+        context.assertEquals(2, Application.replicaOf("mqtt-lwt-2", 3));
+        // a single replica doesn't need a StatefulSet
+        context.assertEquals(0, Application.replicaOf("mqtt-lwt-5d8f9c7b6-x2k4p", 1));
+        try {
+            Application.replicaOf("mqtt-lwt-5d8f9c7b6-x2k4p", 3);
+            context.fail("more replicas without an ordinal");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private void deployVerticle(Verticle verticle, TestContext context) {
+
+        Async async = context.async();
+        this.vertx.deployVerticle(verticle, context.asyncAssertSuccess(v -> async.complete()));
+        async.awaitSuccess();
+    }
+
+    private static String clientId(int partition) {
+
+        for (int i = 0; ; i++) {
+            String clientId = "client_id_" + i;
+            if (LwtPartitions.partition(clientId, PARTITIONS) == partition) {
+                return clientId;
+            }
+        }
+    }
+}
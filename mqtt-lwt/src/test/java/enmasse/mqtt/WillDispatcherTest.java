@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.mqtt.messages.AmqpWillMessage;
+import enmasse.mqtt.metrics.LwtMetrics;
+import enmasse.mqtt.storage.impl.InMemoryLwtStorage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.RunTestOnContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests related to the dispatch queue of the wills, against local storage and publisher
+ */
+@RunWith(VertxUnitRunner.class)
+public class WillDispatcherTest {
+
+    protected final Logger LOG = LoggerFactory.getLogger(WillDispatcherTest.class);
+
+    private static final AmqpWillMessage WILL_MESSAGE =
+            new AmqpWillMessage(false, "will_topic", MqttQoS.AT_LEAST_ONCE, Buffer.buffer("Hello"));
+
+    private static final int DISCONNECTIONS = 100000;
+
+    @Rule
+    public RunTestOnContext rule = new RunTestOnContext();
+
+    /**
+     * In memory LWT storage replying asynchronously, as a remote one, and recording the batches
+     */
+    private static class AsyncLwtStorage extends InMemoryLwtStorage {
+
+        private final Vertx vertx;
+        private final List<String> operations = new ArrayList<>();
+        private int maxBatch;
+
+        AsyncLwtStorage(Vertx vertx) {
+            this.vertx = vertx;
+        }
+
+        @Override
+        public void getAndDeleteAll(Collection<String> clientIds, Handler<AsyncResult<Map<String, AmqpWillMessage>>> handler) {
+
+            this.operations.add("get" + clientIds);
+            this.maxBatch = Math.max(this.maxBatch, clientIds.size());
+            super.getAndDeleteAll(clientIds, done -> this.vertx.runOnContext(v -> handler.handle(done)));
+        }
+
+        @Override
+        public void removeAll(Collection<String> clientIds, Handler<AsyncResult<Integer>> handler) {
+
+            this.operations.add("remove" + clientIds);
+            super.removeAll(clientIds, done -> this.vertx.runOnContext(v -> handler.handle(done)));
+        }
+    }
+
+    /**
+     * Publisher completing asynchronously and recording the max wills in flight
+     */
+    private static class AsyncWillPublisher implements WillDispatcher.WillPublisher {
+
+        private final Vertx vertx;
+        private final Map<String, AmqpWillMessage> published = new HashMap<>();
+        private int inFlight;
+        private int maxInFlight;
+        private Handler<Void> publishedHandler;
+
+        AsyncWillPublisher(Vertx vertx) {
+            this.vertx = vertx;
+        }
+
+        @Override
+        public void publish(String clientId, AmqpWillMessage willMessage, Handler<AsyncResult<Void>> handler) {
+
+            this.inFlight++;
+            this.maxInFlight = Math.max(this.maxInFlight, this.inFlight);
+            this.vertx.runOnContext(v -> {
+                this.inFlight--;
+                this.published.put(clientId, willMessage);
+                handler.handle(Future.succeededFuture());
+                if (this.publishedHandler != null) {
+                    this.publishedHandler.handle(null);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void massBruteDisconnection(TestContext context) {
+
+        Async async = context.async();
+
+        int capacity = 10000;
+        int window = 256;
+        int batchSize = 64;
+
+        AsyncLwtStorage lwtStorage = new AsyncLwtStorage(this.rule.vertx());
+        lwtStorage.open(context.asyncAssertSuccess());
+        AsyncWillPublisher publisher = new AsyncWillPublisher(this.rule.vertx());
+        LwtMetrics metrics = new LwtMetrics();
+
+        Map<String, AmqpWillMessage> wills = new HashMap<>();
+        for (int i = 0; i < DISCONNECTIONS; i++) {
+            wills.put("client_id_" + i, WILL_MESSAGE);
+        }
+        lwtStorage.putAll(wills, context.asyncAssertSuccess());
+
+        WillDispatcher dispatcher = new WillDispatcher(this.rule.vertx(), lwtStorage, publisher, metrics, capacity, window, batchSize,
+                WillDispatcher.DEFAULT_PUBLISH_TIMEOUT);
+
+        List<Integer> pausedDepths = new ArrayList<>();
+        List<Integer> resumedDepths = new ArrayList<>();
+        dispatcher
+                .pauseHandler(v -> pausedDepths.add(dispatcher.queueDepth()))
+                .resumeHandler(v -> resumedDepths.add(dispatcher.queueDepth()));
+
+        publisher.publishedHandler = v -> {
+
+            context.assertTrue(dispatcher.inFlight() <= window);
+            if (publisher.published.size() == DISCONNECTIONS) {
+
+                context.assertEquals(0, dispatcher.queueDepth());
+                context.assertEquals(0, dispatcher.inFlight());
+                context.assertTrue(publisher.maxInFlight <= window);
+                context.assertTrue(lwtStorage.maxBatch <= batchSize);
+                // just the first ones read one by one, before the window is full
+                context.assertTrue(lwtStorage.operations.size() <= window + DISCONNECTIONS / batchSize + 1);
+
+                // credits stopped once at the capacity and granted again at half of it
+                context.assertEquals(1, pausedDepths.size());
+                context.assertTrue(pausedDepths.get(0) >= capacity);
+                context.assertEquals(1, resumedDepths.size());
+                context.assertTrue(resumedDepths.get(0) <= capacity / 2);
+                context.assertTrue(!dispatcher.isPaused());
+
+                String scrape = metrics.scrape();
+                context.assertTrue(scrape.contains("enmasse_mqtt_lwt_dispatch_queue_depth 0\n"));
+                context.assertTrue(scrape.contains("enmasse_mqtt_lwt_dispatch_seconds_count " + DISCONNECTIONS + "\n"));
+                context.assertTrue(scrape.contains("enmasse_mqtt_lwt_wills_published_total " + DISCONNECTIONS + "\n"));
+
+                LOG.info("{} wills published in {} storage reads", DISCONNECTIONS, lwtStorage.operations.size());
+                async.complete();
+            }
+        };
+
+        // all the clients detached at same time
+        for (int i = 0; i < DISCONNECTIONS; i++) {
+            dispatcher.disconnected(new DisconnectionData("client_id_" + i, true));
+        }
+        context.assertTrue(dispatcher.isPaused());
+        context.assertEquals(DISCONNECTIONS - window, dispatcher.queueDepth());
+    }
+
+    @Test
+    public void bruteDisconnectionsFirst(TestContext context) {
+
+        Async async = context.async();
+
+        AsyncLwtStorage lwtStorage = new AsyncLwtStorage(this.rule.vertx());
+        lwtStorage.open(context.asyncAssertSuccess());
+        AsyncWillPublisher publisher = new AsyncWillPublisher(this.rule.vertx());
+
+        for (String clientId : new String[] { "client_id_0", "client_id_1", "client_id_2", "client_id_3" }) {
+            lwtStorage.add(clientId, WILL_MESSAGE, context.asyncAssertSuccess());
+        }
+
+        WillDispatcher dispatcher = new WillDispatcher(this.rule.vertx(), lwtStorage, publisher, new LwtMetrics(), 100, 1, 4,
+                WillDispatcher.DEFAULT_PUBLISH_TIMEOUT);
+
+        publisher.publishedHandler = v -> {
+
+            if (publisher.published.size() == 3) {
+
+                this.rule.vertx().runOnContext(v1 -> {
+
+                    // the will to delete after the wills to publish, even the ones received later
+                    context.assertEquals("get[client_id_0]", lwtStorage.operations.get(0));
+                    context.assertEquals("get[client_id_1]", lwtStorage.operations.get(1));
+                    context.assertEquals("get[client_id_2]", lwtStorage.operations.get(2));
+                    context.assertEquals("remove[client_id_3]", lwtStorage.operations.get(3));
+                    LOG.info("Brute disconnections dispatched before clean ones");
+                    async.complete();
+                });
+            }
+        };
+
+        dispatcher.disconnected(new DisconnectionData("client_id_0", true));
+        dispatcher.disconnected(new DisconnectionData("client_id_1", true));
+        dispatcher.disconnected(new DisconnectionData("client_id_3", false));
+        dispatcher.disconnected(new DisconnectionData("client_id_2", true));
+    }
+
+    @Test
+    public void willReceivedWhileQueued(TestContext context) {
+
+        Async async = context.async();
+
+        AsyncLwtStorage lwtStorage = new AsyncLwtStorage(this.rule.vertx());
+        lwtStorage.open(context.asyncAssertSuccess());
+        AsyncWillPublisher publisher = new AsyncWillPublisher(this.rule.vertx());
+
+        AmqpWillMessage willMessage1 = new AmqpWillMessage(false, "will_topic_1", MqttQoS.AT_LEAST_ONCE, Buffer.buffer("Hello_1"));
+        lwtStorage.add("client_id_0", WILL_MESSAGE, context.asyncAssertSuccess());
+        lwtStorage.add("client_id_1", WILL_MESSAGE, context.asyncAssertSuccess());
+
+        WillDispatcher dispatcher = new WillDispatcher(this.rule.vertx(), lwtStorage, publisher, new LwtMetrics(), 100, 1, 4,
+                WillDispatcher.DEFAULT_PUBLISH_TIMEOUT);
+
+        publisher.publishedHandler = v -> {
+
+            if (publisher.published.size() == 2) {
+
+                // the will of the previous session published, the new one stored
+                context.assertTrue(WILL_MESSAGE.equals(publisher.published.get("client_id_1")));
+                lwtStorage.get("client_id_1", done -> {
+
+                    context.assertTrue(done.succeeded() && willMessage1.equals(done.result()));
+                    LOG.info("Queued will published before storing the new one");
+                    async.complete();
+                });
+            }
+        };
+
+        dispatcher.disconnected(new DisconnectionData("client_id_0", true));
+        dispatcher.disconnected(new DisconnectionData("client_id_1", true));
+        context.assertEquals(1, dispatcher.queueDepth());
+
+        // client reconnected with a new will before its disconnection is dispatched
+        dispatcher.willReceived("client_id_1");
+        lwtStorage.upsert("client_id_1", willMessage1, context.asyncAssertSuccess());
+        context.assertEquals(0, dispatcher.queueDepth());
+    }
+
+    @Test
+    public void publisherNeverAnswering(TestContext context) {
+
+        Async async = context.async();
+
+        AsyncLwtStorage lwtStorage = new AsyncLwtStorage(this.rule.vertx());
+        lwtStorage.open(context.asyncAssertSuccess());
+        LwtMetrics metrics = new LwtMetrics();
+
+        lwtStorage.add("client_id_0", WILL_MESSAGE, context.asyncAssertSuccess());
+        lwtStorage.add("client_id_1", WILL_MESSAGE, context.asyncAssertSuccess());
+
+        // the handlers are never called, so only the timeout frees the window
+        List<String> published = new ArrayList<>();
+        WillDispatcher.WillPublisher publisher = (clientId, willMessage, handler) -> published.add(clientId);
+        WillDispatcher dispatcher = new WillDispatcher(this.rule.vertx(), lwtStorage, publisher, metrics, 100, 1, 4, 100);
+
+        dispatcher.disconnected(new DisconnectionData("client_id_0", true));
+        dispatcher.disconnected(new DisconnectionData("client_id_1", true));
+        context.assertEquals(1, dispatcher.queueDepth());
+
+        this.rule.vertx().setPeriodic(10, t -> {
+
+            if (published.size() == 2 && dispatcher.inFlight() == 0) {
+
+                this.rule.vertx().cancelTimer(t);
+                context.assertEquals(0, dispatcher.queueDepth());
+                context.assertTrue(metrics.scrape().contains("enmasse_mqtt_lwt_wills_failed_total 2\n"));
+
+                // the wills not published are restored
+                lwtStorage.get("client_id_0", done -> {
+
+                    context.assertTrue(done.succeeded());
+                    lwtStorage.get("client_id_1", done1 -> {
+
+                        context.assertTrue(done1.succeeded());
+                        LOG.info("Wills not published failed after the timeout");
+                        async.complete();
+                    });
+                });
+            }
+        });
+    }
+}
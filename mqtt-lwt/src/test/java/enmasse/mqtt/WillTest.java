@@ -71,6 +71,20 @@ public class WillTest extends MqttLwtTestBase {
         this.willClient(context, MQTT_WILL_TOPIC, MQTT_WILL_MESSAGE, 0, true);
     }
 
+    @Test
+    public void bruteDisconnectionQoS1(TestContext context) {
+
+        this.amqpReceiver(context, MQTT_WILL_TOPIC, 1, true);
+        this.willClient(context, MQTT_WILL_TOPIC, MQTT_WILL_MESSAGE, 1, true);
+    }
+
+    @Test
+    public void bruteDisconnectionQoS2(TestContext context) {
+
+        this.amqpReceiver(context, MQTT_WILL_TOPIC, 2, true);
+        this.willClient(context, MQTT_WILL_TOPIC, MQTT_WILL_MESSAGE, 2, true);
+    }
+
     @Test
     public void cleanDisconnection(TestContext context) {
 
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt;
+
+import enmasse.mqtt.messages.AmqpWillMessage;
+import enmasse.mqtt.storage.impl.InMemoryLwtStorage;
+import enmasse.mqtt.storage.impl.WriteBehindLwtStorage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.RunTestOnContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Tests related to the write-behind LWT storage service only
+ */
+@RunWith(VertxUnitRunner.class)
+public class WriteBehindLwtStorageTest {
+
+    protected final Logger LOG = LoggerFactory.getLogger(WriteBehindLwtStorageTest.class);
+
+    private static final AmqpWillMessage WILL_MESSAGE =
+            new AmqpWillMessage(true, "will_topic", MqttQoS.AT_MOST_ONCE, Buffer.buffer("Hello"));
+
+    private static final String CLIENT_ID = "client_id";
+
+    private static final long WINDOW = 100;
+
+    @Rule
+    public RunTestOnContext rule = new RunTestOnContext();
+
+    private CountingLwtStorage storage;
+    private WriteBehindLwtStorage lwtStorage;
+
+    /**
+     * In memory LWT storage counting the written "will" information
+     */
+    private static class CountingLwtStorage extends InMemoryLwtStorage {
+
+        private int writes;
+
+        @Override
+        public void putAll(Map<String, AmqpWillMessage> wills, Handler<AsyncResult<Integer>> handler) {
+            this.writes += wills.size();
+            super.putAll(wills, handler);
+        }
+
+        @Override
+        public void removeAll(Collection<String> clientIds, Handler<AsyncResult<Integer>> handler) {
+            this.writes += clientIds.size();
+            super.removeAll(clientIds, handler);
+        }
+    }
+
+    @Before
+    public void before(TestContext context) {
+
+        this.storage = new CountingLwtStorage();
+        this.lwtStorage = new WriteBehindLwtStorage(this.storage, this.rule.vertx(), WINDOW);
+        this.lwtStorage.open(context.asyncAssertSuccess());
+    }
+
+    @After
+    public void after(TestContext context) {
+        this.lwtStorage.close();
+    }
+
+    @Test
+    public void coalesceWills(TestContext context) {
+
+        Async async = context.async();
+
+        AmqpWillMessage willMessage1 = new AmqpWillMessage(false, "will_topic_1", MqttQoS.AT_LEAST_ONCE, Buffer.buffer("Hello_1"));
+        this.lwtStorage.upsert(CLIENT_ID, WILL_MESSAGE, context.asyncAssertSuccess());
+        this.lwtStorage.upsert(CLIENT_ID, willMessage1, context.asyncAssertSuccess());
+        // connected and then disconnected cleanly in the window
+        this.lwtStorage.upsert("client_id_1", WILL_MESSAGE, context.asyncAssertSuccess());
+        this.lwtStorage.delete("client_id_1", context.asyncAssertSuccess());
+
+        // pending changes seen before writing them
+        this.lwtStorage.get(CLIENT_ID, done -> {
+
+            context.assertTrue(done.succeeded() && willMessage1.equals(done.result()));
+            context.assertEquals(0, this.storage.writes);
+
+            this.rule.vertx().setTimer(WINDOW * 3, t -> {
+
+                // just the last change for every client written
+                context.assertEquals(2, this.storage.writes);
+                this.storage.get(CLIENT_ID, done1 -> {
+
+                    context.assertTrue(done1.succeeded() && willMessage1.equals(done1.result()));
+                    this.storage.get("client_id_1", done2 -> {
+
+                        context.assertTrue(!done2.succeeded());
+                        LOG.info("Wills changes coalesced in the window");
+                        async.complete();
+                    });
+                });
+            });
+        });
+    }
+
+    @Test
+    public void getAndDeletePendingWill(TestContext context) {
+
+        Async async = context.async();
+
+        this.storage.add(CLIENT_ID, WILL_MESSAGE, context.asyncAssertSuccess());
+
+        AmqpWillMessage willMessage1 = new AmqpWillMessage(false, "will_topic_1", MqttQoS.AT_LEAST_ONCE, Buffer.buffer("Hello_1"));
+        this.lwtStorage.upsert(CLIENT_ID, willMessage1, context.asyncAssertSuccess());
+        this.lwtStorage.add(CLIENT_ID, WILL_MESSAGE, done -> {
+
+            context.assertTrue(!done.succeeded());
+            this.lwtStorage.getAndDelete(CLIENT_ID, done1 -> {
+
+                context.assertTrue(done1.succeeded() && willMessage1.equals(done1.result()));
+                this.lwtStorage.flush();
+
+                // the older will in the storage is deleted as well
+                this.storage.get(CLIENT_ID, done2 -> {
+
+                    context.assertTrue(!done2.succeeded());
+                    LOG.info("Pending will retrieved and deleted");
+                    async.complete();
+                });
+            });
+        });
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package enmasse.mqtt.benchmarks;
+
+import enmasse.mqtt.messages.AmqpWillMessage;
+import enmasse.mqtt.storage.impl.FileLwtStorage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Measures the file based LWT storage : the write throughput for every sync mode and the
+ * recovery time on startup, with the log as written (every update still in it) and then
+ * compacted (just the live wills, with the hint files).
+ *
+ * Every client adds its will and updates it more times, while a window of operations is
+ * outstanding (as more clients connecting at same time), so the writes share the fsync.
+ *
+ * System properties :
+ * - wills : number of clients with a will (default 1000000)
+ * - updates : will updates for every client (default 2)
+ * - syncs : comma separated list of sync modes (default batch,periodic,none)
+ * - payload : will payload size in bytes (default 64)
+ * - window : max outstanding operations (default 1024)
+ * - segmentsize : log segment size in bytes (default 64 MB)
+ */
+public class LwtStorageRecoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        int wills = Integer.getInteger("wills", 1000000);
+        int updates = Integer.getInteger("updates", 2);
+        String[] syncs = System.getProperty("syncs", "batch,periodic,none").split(",");
+        int payload = Integer.getInteger("payload", 64);
+        int window = Integer.getInteger("window", 1024);
+        long segmentSize = Long.getLong("segmentsize", FileLwtStorage.DEFAULT_SEGMENT_SIZE);
+
+        for (String sync : syncs) {
+
+            Path directory = Files.createTempDirectory("lwt-storage");
+            try {
+
+                FileLwtStorage lwtStorage = open(directory, sync.trim(), segmentSize);
+
+                Semaphore outstanding = new Semaphore(window);
+                long start = System.nanoTime();
+                for (int i = 0; i <= updates; i++) {
+
+                    AmqpWillMessage willMessage =
+                            new AmqpWillMessage(false, "will/topic/" + i, MqttQoS.AT_LEAST_ONCE, Buffer.buffer(new byte[payload]));
+                    for (int j = 0; j < wills; j++) {
+
+                        outstanding.acquire();
+                        Handler<AsyncResult<Integer>> handler = done -> {
+                            if (done.failed()) {
+                                done.cause().printStackTrace();
+                                System.exit(1);
+                            }
+                            outstanding.release();
+                        };
+                        if (i == 0) {
+                            lwtStorage.add("client-" + j, willMessage, handler);
+                        } else {
+                            lwtStorage.update("client-" + j, willMessage, handler);
+                        }
+                    }
+                }
+                outstanding.acquire(window);
+                long elapsed = System.nanoTime() - start;
+                lwtStorage.close();
+
+                long operations = (long) wills * (updates + 1);
+                System.out.println(String.format("sync=%s wills=%d operations=%d ops/s=%.0f log=%d MB",
+                        sync, wills, operations, operations / (elapsed / 1e9), size(directory) / (1024 * 1024)));
+
+                // recovery of the log as written (sealed segments compacted in the meantime use their hint)
+                lwtStorage = recover("written", directory, sync.trim(), segmentSize, wills);
+
+                await(lwtStorage::compact);
+                lwtStorage.close();
+
+                recover("compacted", directory, sync.trim(), segmentSize, wills).close();
+
+            } finally {
+                delete(directory);
+            }
+        }
+    }
+
+    private static FileLwtStorage open(Path directory, String sync, long segmentSize) throws Exception {
+
+        FileLwtStorage lwtStorage = new FileLwtStorage()
+                .setDirectory(directory.toString())
+                .setSyncMode(sync)
+                .setSegmentSize(segmentSize);
+        await(lwtStorage::open);
+        return lwtStorage;
+    }
+
+    private static FileLwtStorage recover(String log, Path directory, String sync, long segmentSize, int wills) throws Exception {
+
+        long logSize = size(directory);
+        long start = System.nanoTime();
+        FileLwtStorage lwtStorage = open(directory, sync, segmentSize);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("sync=%s log=%s size=%d MB wills=%d recovery=%d ms",
+                sync, log, logSize / (1024 * 1024), wills, TimeUnit.NANOSECONDS.toMillis(elapsed)));
+
+        return lwtStorage;
+    }
+
+    private static void await(Consumer<Handler<AsyncResult<Void>>> operation) throws Exception {
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        operation.accept(done -> {
+            failure.set(done.cause());
+            future.complete(null);
+        });
+        future.get();
+        if (failure.get() != null) {
+            throw new IllegalStateException(failure.get());
+        }
+    }
+
+    private static long size(Path directory) throws IOException {
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
@@ -32,6 +32,12 @@ fi
 if [ -n "$AMQP_KAFKA_BRIDGE_SERVICE_HOST" ]; then
     envsubst < /etc/qpid-dispatch/amqp-kafka-bridge.snippet >> /tmp/qdrouterd.conf
 fi
+# a link route for every partition of the MQTT LWT service ($lwt.<partition> to lwt-service-<partition>)
+if [ -n "$MQTT_LWT_PARTITIONS" ] && [ "$MQTT_LWT_PARTITIONS" -gt 1 ]; then
+    for partition in $(seq 0 $(($MQTT_LWT_PARTITIONS - 1))); do
+        LWT_PARTITION=$partition DOLLAR='$' envsubst < /etc/qpid-dispatch/lwt-partition.snippet >> /tmp/qdrouterd.conf
+    done
+fi
 
 # TODO: This is a hack for allowing 2 CAs (address space + address controller) to be accepted as
 # avalid clients. This is needed by the address controller to check the router status